@@ -0,0 +1,261 @@
+package com.microsoft.windowsazure.services.media.samples.azuread;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Loads each PKCS12 (PFX) file once and hands out the decrypted certificate and private key as an
+ * immutable {@link Credential}, so the expensive PKCS12 decryption is not repeated for every
+ * client or every protected Asset.
+ *
+ * The directories of the loaded files are watched; when a file is replaced (a rotated
+ * certificate), its entry is marked stale and the next {@link #get} loads the new file. Where the
+ * directory cannot be watched, the modification time and size are compared on every get.
+ */
+final class Pkcs12CredentialCache implements Closeable {
+
+    private final ConcurrentMap<Path, Entry> entries = new ConcurrentHashMap<Path, Entry>();
+    private final Set<Path> watchedDirectories = new HashSet<Path>();
+    private final WatchService watchService;
+
+    Pkcs12CredentialCache() {
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            service = null;
+        }
+        this.watchService = service;
+
+        if (watchService != null) {
+            Thread watcher = new Thread(new Runnable() {
+                public void run() {
+                    watch();
+                }
+            }, "pkcs12-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+
+    // Get the credential of the PKCS12 file, loading it on first use and after it changed
+    Credential get(File file, String password) throws IOException, GeneralSecurityException {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        Entry entry = entries.get(path);
+        if (entry == null) {
+            Entry created = new Entry();
+            entry = entries.putIfAbsent(path, created);
+            if (entry == null) {
+                entry = created;
+                entry.watched = startWatching(path.getParent());
+            }
+        }
+
+        Credential credential = entry.credential;
+        if (credential != null && !entry.stale && entry.password.equals(password)
+                && (entry.watched || entry.stamp.equals(stamp(path)))) {
+            return credential;
+        }
+
+        synchronized (entry) {
+            if (entry.credential == null || entry.stale || !entry.password.equals(password)
+                    || !entry.stamp.equals(stamp(path))) {
+                // Clear the flag first, so a change while the file is read marks it stale again
+                entry.stale = false;
+                String stamp = stamp(path);
+                entry.credential = load(path, password);
+                entry.password = password;
+                entry.stamp = stamp;
+            }
+            return entry.credential;
+        }
+    }
+
+    // Stop watching the files
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                System.out.println("Could not stop watching the PKCS12 files: " + e.toString());
+            }
+        }
+    }
+
+    private static Credential load(Path path, String password) throws IOException, GeneralSecurityException {
+        byte[] pfx = Files.readAllBytes(path);
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(new ByteArrayInputStream(pfx), password.toCharArray());
+
+        // Use the first entry with a private key
+        Enumeration<String> aliases = keyStore.aliases();
+        while (aliases.hasMoreElements()) {
+            String alias = aliases.nextElement();
+            if (!keyStore.isKeyEntry(alias)) {
+                continue;
+            }
+            Key key = keyStore.getKey(alias, password.toCharArray());
+            if (!(key instanceof PrivateKey)) {
+                continue;
+            }
+
+            List<X509Certificate> chain = new ArrayList<X509Certificate>();
+            Certificate[] certificates = keyStore.getCertificateChain(alias);
+            if (certificates != null) {
+                for (Certificate certificate : certificates) {
+                    chain.add((X509Certificate) certificate);
+                }
+            }
+            if (chain.isEmpty()) {
+                chain.add((X509Certificate) keyStore.getCertificate(alias));
+            }
+
+            Credential credential = new Credential(alias, (PrivateKey) key, chain, pfx);
+            System.out.println(String.format("Loaded certificate %s (%s) from %s",
+                    credential.getThumbprint(), credential.getCertificate().getSubjectX500Principal(), path));
+            return credential;
+        }
+        throw new GeneralSecurityException("No private key in " + path);
+    }
+
+    private static String stamp(Path path) throws IOException {
+        return Files.getLastModifiedTime(path).toMillis() + "/" + Files.size(path);
+    }
+
+    // Watch the directory for changes; returns false if it cannot be watched
+    private boolean startWatching(Path directory) {
+        if (watchService == null) {
+            return false;
+        }
+        synchronized (watchedDirectories) {
+            if (watchedDirectories.contains(directory)) {
+                return true;
+            }
+            try {
+                directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                watchedDirectories.add(directory);
+                return true;
+            } catch (IOException e) {
+                System.out.println(String.format("Could not watch %s: %s", directory, e.toString()));
+                return false;
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Events were lost; check every file on its next use
+                        for (Entry entry : entries.values()) {
+                            entry.stale = true;
+                        }
+                        continue;
+                    }
+                    Entry entry = entries.get(directory.resolve((Path) event.context()));
+                    if (entry != null) {
+                        entry.stale = true;
+                    }
+                }
+                key.reset();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // The cache was closed
+        }
+    }
+
+    private static final class Entry {
+        private volatile Credential credential;
+        private volatile boolean stale;
+        private volatile boolean watched;
+        private volatile String password = "";
+        private volatile String stamp = "";
+    }
+
+    // The certificate chain and private key of a PKCS12 file
+    static final class Credential {
+        private final String alias;
+        private final PrivateKey privateKey;
+        private final List<X509Certificate> certificateChain;
+        private final byte[] pfx;
+        private final String thumbprint;
+
+        Credential(String alias, PrivateKey privateKey, List<X509Certificate> certificateChain, byte[] pfx)
+                throws GeneralSecurityException {
+            this.alias = alias;
+            this.privateKey = privateKey;
+            this.certificateChain = Collections.unmodifiableList(new ArrayList<X509Certificate>(certificateChain));
+            this.pfx = pfx.clone();
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(certificateChain.get(0).getEncoded())) {
+                hex.append(String.format("%02X", b));
+            }
+            this.thumbprint = hex.toString();
+        }
+
+        String getAlias() {
+            return alias;
+        }
+
+        PrivateKey getPrivateKey() {
+            return privateKey;
+        }
+
+        X509Certificate getCertificate() {
+            return certificateChain.get(0);
+        }
+
+        List<X509Certificate> getCertificateChain() {
+            return certificateChain;
+        }
+
+        // SHA-1 thumbprint of the certificate; it changes when the certificate is rotated
+        String getThumbprint() {
+            return thumbprint;
+        }
+
+        // The PFX file contents
+        byte[] getPfx() {
+            return pfx.clone();
+        }
+
+        // A new KeyStore with the contents of the PFX file, for APIs that take a KeyStore
+        KeyStore toKeyStore(String password) throws IOException, GeneralSecurityException {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(new ByteArrayInputStream(pfx), password.toCharArray());
+            return keyStore;
+        }
+    }
+}
@@ -1,11 +1,8 @@
 package com.microsoft.windowsazure.services.media.samples.azuread;
 
-import java.io.FileInputStream;
-import java.io.InputStream;
+import java.io.File;
 import java.net.URI;
 import java.security.PrivateKey;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import com.microsoft.aad.adal4j.AsymmetricKeyCredential;
@@ -17,9 +14,7 @@ import com.microsoft.windowsazure.services.media.MediaService;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdClientSymmetricKey;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdClientUsernamePassword;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenCredentials;
-import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenProvider;
 import com.microsoft.windowsazure.services.media.authentication.AzureEnvironments;
-import com.microsoft.windowsazure.services.media.authentication.TokenProvider;
 import com.microsoft.windowsazure.services.media.models.Asset;
 import com.microsoft.windowsazure.services.media.models.AssetInfo;
 import com.microsoft.windowsazure.services.media.models.ListResult;
@@ -31,7 +26,8 @@ public final class ServicePrincipalWithClientCertificate {
     }
 
     public static void main(String[] args) {
-    	ExecutorService executorService = Executors.newFixedThreadPool(1);
+        Pkcs12CredentialCache credentialCache = new Pkcs12CredentialCache();
+        AzureAdTokenManager tokenManager = null;
 
         try {
             String tenant = "tenant.domain.com";
@@ -39,20 +35,25 @@ public final class ServicePrincipalWithClientCertificate {
             String restApiEndpoint = "https://account.restv2.region.media.azure.net/api/";
             String pfxFilename = "%path_to_keystore.pfx%";
             String pfxPassword = "%keystore_password%";
-            InputStream pfx = new FileInputStream(pfxFilename);
+
+            // Load and decrypt the keystore once; the cache reloads it when the file is replaced
+            Pkcs12CredentialCache.Credential certificate = credentialCache.get(new File(pfxFilename), pfxPassword);
 
             // Connect to Media Services API with service principal and client certificate
             AzureAdTokenCredentials credentials = new AzureAdTokenCredentials(
                     tenant,
-                    AsymmetricKeyCredential.create(clientId, pfx, pfxPassword),
+                    AsymmetricKeyCredential.create(clientId, certificate.getPrivateKey(), certificate.getCertificate()),
                     AzureEnvironments.AZURE_CLOUD_ENVIRONMENT);
 
-            TokenProvider provider = new AzureAdTokenProvider(credentials, executorService);
+            // Reuse the cached token of an earlier run while it is valid, or acquire one now,
+            // and keep it refreshed in the background
+            tokenManager = new AzureAdTokenManager(credentials, TokenCache.inUserHome(), TokenCache.key(
+                    tenant, clientId, AzureEnvironments.AZURE_CLOUD_ENVIRONMENT.getMediaServicesResource()));
 
             // create a new configuration with the new credentials
             Configuration configuration = MediaConfiguration.configureWithAzureAdTokenProvider(
                     new URI(restApiEndpoint),
-                    provider);
+                    tokenManager);
 
             // create the media service with the new configuration
             MediaContract mediaService = MediaService.create(configuration);
@@ -73,7 +74,10 @@ public final class ServicePrincipalWithClientCertificate {
             e.printStackTrace();
             System.out.println(e.toString());
         } finally {
-            executorService.shutdown();
+            if (tokenManager != null) {
+                tokenManager.close();
+            }
+            credentialCache.close();
         }
     }
 }
\ No newline at end of file
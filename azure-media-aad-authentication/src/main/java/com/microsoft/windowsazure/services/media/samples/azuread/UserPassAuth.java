@@ -1,8 +1,6 @@
 package com.microsoft.windowsazure.services.media.samples.azuread;
 
 import java.net.URI;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import com.microsoft.windowsazure.Configuration;
 import com.microsoft.windowsazure.exception.ServiceException;
@@ -11,9 +9,7 @@ import com.microsoft.windowsazure.services.media.MediaContract;
 import com.microsoft.windowsazure.services.media.MediaService;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdClientUsernamePassword;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenCredentials;
-import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenProvider;
 import com.microsoft.windowsazure.services.media.authentication.AzureEnvironments;
-import com.microsoft.windowsazure.services.media.authentication.TokenProvider;
 import com.microsoft.windowsazure.services.media.models.Asset;
 import com.microsoft.windowsazure.services.media.models.AssetInfo;
 import com.microsoft.windowsazure.services.media.models.ListResult;
@@ -25,7 +21,7 @@ public final class UserPassAuth {
     }
 
     public static void main(String[] args) {
-        ExecutorService executorService = Executors.newFixedThreadPool(1);
+        AzureAdTokenManager tokenManager = null;
 
         try {
             String tenant = "tenant.domain.com";
@@ -39,12 +35,15 @@ public final class UserPassAuth {
                     new AzureAdClientUsernamePassword(username, password),
                     AzureEnvironments.AZURE_CLOUD_ENVIRONMENT);
 
-            TokenProvider provider = new AzureAdTokenProvider(credentials, executorService);
+            // Reuse the cached token of an earlier run while it is valid, or acquire one now,
+            // and keep it refreshed in the background
+            tokenManager = new AzureAdTokenManager(credentials, TokenCache.inUserHome(), TokenCache.key(
+                    tenant, username, AzureEnvironments.AZURE_CLOUD_ENVIRONMENT.getMediaServicesResource()));
 
             // create a new configuration with the new credentials
             Configuration configuration = MediaConfiguration.configureWithAzureAdTokenProvider(
                     new URI(restApiEndpoint),
-                    provider);
+                    tokenManager);
 
             // create the media service provisioned with the new configuration
             MediaContract mediaService = MediaService.create(configuration);
@@ -65,7 +64,9 @@ public final class UserPassAuth {
             e.printStackTrace();
             System.out.println(e.toString());
         } finally {
-            executorService.shutdown();
+            if (tokenManager != null) {
+                tokenManager.close();
+            }
         }
     }
 }
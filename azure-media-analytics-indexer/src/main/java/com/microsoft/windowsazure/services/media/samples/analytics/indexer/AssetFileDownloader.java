@@ -0,0 +1,378 @@
+package com.microsoft.windowsazure.services.media.samples.analytics.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.services.media.models.AssetFileInfo;
+import com.microsoft.windowsazure.services.media.models.LocatorInfo;
+
+/**
+ * Downloads the files of an Asset through a SAS Locator, many at a time. Each file is
+ * pre-allocated at its final size and written through a {@link FileChannel} at the offset of
+ * every received range, so large files are split into ranges that are fetched in parallel while
+ * small files (captions, keywords) are fetched in a single request each.
+ *
+ * Requests go through {@link HttpURLConnection}, whose keep-alive cache reuses connections to
+ * the storage account once a response has been read to the end; the cache is sized to the number
+ * of workers. A failed range is requested again up to the configured number of attempts.
+ */
+final class AssetFileDownloader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private int concurrency = 8;
+    private long rangeSize = 8 * 1024 * 1024;
+    private int attempts = 3;
+    private long progressIntervalMillis = 2000;
+
+    // Number of ranges downloaded at the same time
+    AssetFileDownloader setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    // Files larger than this are downloaded in ranges of this size
+    AssetFileDownloader setRangeSize(long rangeSize) {
+        this.rangeSize = rangeSize;
+        return this;
+    }
+
+    AssetFileDownloader setAttempts(int attempts) {
+        this.attempts = attempts;
+        return this;
+    }
+
+    // Interval between progress reports (0 disables them)
+    AssetFileDownloader setProgressInterval(long progressIntervalMillis) {
+        this.progressIntervalMillis = progressIntervalMillis;
+        return this;
+    }
+
+    // Download the given Asset Files into the directory
+    DownloadStatistics download(LocatorInfo sasLocator, List<AssetFileInfo> files, File directory)
+            throws IOException, InterruptedException {
+        List<Source> sources = new ArrayList<Source>();
+        for (AssetFileInfo file : files) {
+            URL url = new URL(sasLocator.getBaseUri() + "/" + file.getName() + sasLocator.getContentAccessToken());
+            sources.add(new Source(file.getName(), url, file.getContentFileSize()));
+        }
+        return download(sources, directory);
+    }
+
+    DownloadStatistics download(List<Source> sources, File directory) throws IOException, InterruptedException {
+        directory.mkdirs();
+
+        // Let the keep-alive cache hold one idle connection per worker (read once, on first use)
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(concurrency));
+        }
+
+        final DownloadStatistics statistics = new DownloadStatistics(sources.size());
+        List<Range> ranges = new ArrayList<Range>();
+        List<TargetFile> targets = new ArrayList<TargetFile>();
+        try {
+            for (Source source : sources) {
+                TargetFile target = new TargetFile(source, new File(directory, source.name));
+                targets.add(target);
+                statistics.totalBytes.addAndGet(Math.max(0, source.length));
+
+                if (source.length <= rangeSize) {
+                    // Small (or unknown) size: a single request
+                    ranges.add(new Range(target, 0, source.length, false));
+                } else {
+                    for (long offset = 0; offset < source.length; offset += rangeSize) {
+                        ranges.add(new Range(target, offset, Math.min(rangeSize, source.length - offset), true));
+                    }
+                }
+            }
+            for (Range range : ranges) {
+                range.target.pendingRanges.incrementAndGet();
+            }
+
+            runAll(ranges, statistics);
+        } finally {
+            for (TargetFile target : targets) {
+                target.close();
+            }
+        }
+
+        statistics.finish();
+        return statistics;
+    }
+
+    private void runAll(List<Range> ranges, final DownloadStatistics statistics)
+            throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, daemonThreads("asset-download"));
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(daemonThreads("download-progress"));
+        if (progressIntervalMillis > 0) {
+            progress.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    System.out.println(statistics.getProgress());
+                }
+            }, progressIntervalMillis, progressIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final Range range : ranges) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException, InterruptedException {
+                        fetchWithRetries(range, statistics);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            progress.shutdownNow();
+        }
+    }
+
+    private void fetchWithRetries(Range range, DownloadStatistics statistics)
+            throws IOException, InterruptedException {
+        for (int attempt = 1;; attempt++) {
+            try {
+                fetch(range, statistics);
+                break;
+            } catch (IOException e) {
+                // Take back the bytes of the failed attempt; the range is written again from its start
+                statistics.downloadedBytes.addAndGet(-range.received);
+                range.received = 0;
+                if (attempt >= attempts) {
+                    throw new IOException(String.format("Could not download %s: %s", range.target.source.name,
+                            e.getMessage()), e);
+                }
+                statistics.retries.incrementAndGet();
+                Thread.sleep(500L * attempt);
+            }
+        }
+
+        statistics.requests.incrementAndGet();
+        if (range.target.pendingRanges.decrementAndGet() == 0) {
+            range.target.complete(statistics);
+        }
+    }
+
+    // Download one range and write it at its offset
+    private void fetch(Range range, DownloadStatistics statistics) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) range.target.source.url.openConnection();
+        if (range.partial) {
+            connection.setRequestProperty("Range",
+                    String.format("bytes=%d-%d", range.offset, range.offset + range.length - 1));
+        }
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_PARTIAL) {
+            // Read the error body so the connection can be reused
+            drain(connection.getErrorStream());
+            throw new IOException(String.format("HTTP %d %s", status, connection.getResponseMessage()));
+        }
+        if (range.partial && status != HttpURLConnection.HTTP_PARTIAL) {
+            drain(connection.getInputStream());
+            throw new IOException("The server does not support range requests");
+        }
+
+        InputStream input = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = range.offset;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += range.target.channel.write(chunk, position);
+                }
+                range.received += read;
+                statistics.downloadedBytes.addAndGet(read);
+            }
+        } finally {
+            input.close();
+        }
+
+        // A body that ends early would leave a zero-filled tail in the pre-allocated file
+        long expected = range.length > 0 ? range.length : connection.getContentLengthLong();
+        if (expected >= 0 && range.received != expected) {
+            throw new IOException(String.format("Received %d of %d bytes", range.received, expected));
+        }
+        if (range.length <= 0) {
+            // Unknown size: the file ends where the body did, even if an earlier attempt wrote more
+            range.target.channel.truncate(range.offset + range.received);
+        }
+    }
+
+    private static void drain(InputStream input) throws IOException {
+        if (input == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (input.read(buffer) != -1) {
+                // Discard
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    // A remote file to download; a length of 0 or less means the size is not known
+    static final class Source {
+        private final String name;
+        private final URL url;
+        private final long length;
+
+        Source(String name, URL url, long length) {
+            this.name = name;
+            this.url = url;
+            this.length = length;
+        }
+    }
+
+    private static final class TargetFile {
+        private final Source source;
+        private final File file;
+        private final FileChannel channel;
+        private final AtomicInteger pendingRanges = new AtomicInteger();
+        private final long startedAt = System.nanoTime();
+
+        TargetFile(Source source, File file) throws IOException {
+            this.source = source;
+            this.file = file;
+
+            // Pre-allocate the file so that ranges can be written in any order
+            RandomAccessFile allocation = new RandomAccessFile(file, "rw");
+            try {
+                allocation.setLength(Math.max(0, source.length));
+            } finally {
+                allocation.close();
+            }
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        }
+
+        void complete(DownloadStatistics statistics) throws IOException {
+            close();
+            statistics.completedFiles.incrementAndGet();
+            System.out.println(String.format("Downloaded %s (%d bytes) in %d ms", source.name, file.length(),
+                    (System.nanoTime() - startedAt) / 1000000));
+        }
+
+        synchronized void close() throws IOException {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        }
+    }
+
+    private static final class Range {
+        private final TargetFile target;
+        private final long offset;
+        private final long length;
+        private final boolean partial;
+        private long received;
+
+        Range(TargetFile target, long offset, long length, boolean partial) {
+            this.target = target;
+            this.offset = offset;
+            this.length = length;
+            this.partial = partial;
+        }
+    }
+
+    // Progress and throughput of a download
+    static final class DownloadStatistics {
+        private final int files;
+        private final long startedAt = System.nanoTime();
+        private final AtomicInteger completedFiles = new AtomicInteger();
+        private final AtomicLong totalBytes = new AtomicLong();
+        private final AtomicLong downloadedBytes = new AtomicLong();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private volatile long elapsedNanos;
+
+        DownloadStatistics(int files) {
+            this.files = files;
+        }
+
+        void finish() {
+            elapsedNanos = System.nanoTime() - startedAt;
+        }
+
+        int getFiles() {
+            return files;
+        }
+
+        int getCompletedFiles() {
+            return completedFiles.get();
+        }
+
+        long getDownloadedBytes() {
+            return downloadedBytes.get();
+        }
+
+        long getRequests() {
+            return requests.get();
+        }
+
+        long getRetries() {
+            return retries.get();
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos > 0 ? elapsedNanos : System.nanoTime() - startedAt;
+        }
+
+        double getMegabytesPerSecond() {
+            double seconds = getElapsedNanos() / 1000000000.0;
+            return seconds <= 0 ? 0 : downloadedBytes.get() / (1024.0 * 1024.0) / seconds;
+        }
+
+        String getProgress() {
+            long total = totalBytes.get();
+            return String.format("Downloaded %d of %d files, %.1f%s MB (%.2f MB/s)", completedFiles.get(), files,
+                    downloadedBytes.get() / (1024.0 * 1024.0),
+                    total > 0 ? String.format(" of %.1f", total / (1024.0 * 1024.0)) : "",
+                    getMegabytesPerSecond());
+        }
+    }
+}
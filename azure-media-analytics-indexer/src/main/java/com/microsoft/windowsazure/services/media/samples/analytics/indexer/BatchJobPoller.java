@@ -0,0 +1,344 @@
+package com.microsoft.windowsazure.services.media.samples.analytics.indexer;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.Job;
+import com.microsoft.windowsazure.services.media.models.JobInfo;
+import com.microsoft.windowsazure.services.media.models.JobState;
+import com.microsoft.windowsazure.services.media.models.ListResult;
+
+/**
+ * Polls the state of many Jobs with a few list requests instead of one request per Job. Each
+ * round splits the tracked Job ids into batches and sends one Job list request per batch with an
+ * "Id eq '...' or Id eq '...'" $filter, paging through the results. Every state change is sent
+ * to the listener of that Job, and a Job stops being tracked once it reaches a final state. A Job
+ * that is missing from the results of several rounds in a row (deleted, or a wrong id) is reported
+ * to its listener as not found and is no longer tracked.
+ *
+ * The interval between rounds goes back to the minimum whenever a state changes or a Job is added,
+ * and otherwise backs off exponentially (with jitter) up to the maximum.
+ */
+final class BatchJobPoller implements Closeable {
+
+    private static final int HTTP_NOT_FOUND = 404;
+
+    // Receives the state transitions of one Job
+    interface JobStateListener {
+        void onStateChanged(JobInfo job, JobState previousState);
+
+        void onPollFailed(String jobId, Exception error);
+    }
+
+    private final MediaContract mediaService;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentMap<String, TrackedJob> jobs = new ConcurrentHashMap<String, TrackedJob>();
+    private final Metrics metrics = new Metrics();
+
+    private int batchSize = 20;
+    private int pageSize = 1000;
+    private long minIntervalMillis = 500;
+    private long maxIntervalMillis = 30000;
+    private double backoffMultiplier = 2.0;
+    private int maxConsecutiveErrors = 5;
+    private int maxAbsentRounds = 3;
+
+    private long intervalMillis = minIntervalMillis;
+    private int consecutiveErrors;
+    private ScheduledFuture<?> nextRound;
+    private long nextRoundAt;
+
+    BatchJobPoller(MediaContract mediaService) {
+        this.mediaService = mediaService;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "job-poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Number of Job ids combined in the $filter of one request
+    BatchJobPoller setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    // Number of Jobs requested per page ($top)
+    BatchJobPoller setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    BatchJobPoller setPollInterval(long minIntervalMillis, long maxIntervalMillis) {
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        return this;
+    }
+
+    BatchJobPoller setBackoffMultiplier(double backoffMultiplier) {
+        this.backoffMultiplier = backoffMultiplier;
+        return this;
+    }
+
+    BatchJobPoller setMaxConsecutiveErrors(int maxConsecutiveErrors) {
+        this.maxConsecutiveErrors = maxConsecutiveErrors;
+        return this;
+    }
+
+    // Rounds in a row a Job may be missing from the results before it is reported as not found
+    BatchJobPoller setMaxAbsentRounds(int maxAbsentRounds) {
+        this.maxAbsentRounds = Math.max(1, maxAbsentRounds);
+        return this;
+    }
+
+    void subscribe(String jobId, JobStateListener listener) {
+        jobs.put(jobId, new TrackedJob(jobId, listener));
+        pollSoon();
+    }
+
+    void unsubscribe(String jobId) {
+        jobs.remove(jobId);
+    }
+
+    int getTrackedJobCount() {
+        return jobs.size();
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Bring the next round forward to the minimum interval; a round that is already due or running
+    // is left alone, it picks up the new Jobs or schedules the next round itself
+    synchronized void pollSoon() {
+        intervalMillis = minIntervalMillis;
+        if (nextRound == null || nextRoundAt - System.currentTimeMillis() > minIntervalMillis) {
+            if (nextRound != null) {
+                nextRound.cancel(false);
+            }
+            scheduleRound(minIntervalMillis);
+        }
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    static boolean isFinal(JobState state) {
+        return state == JobState.Finished || state == JobState.Canceled || state == JobState.Error;
+    }
+
+    // "Equal jitter": wait between half and all of the interval
+    private synchronized void scheduleRound(long delayMillis) {
+        long jittered = delayMillis / 2 + ThreadLocalRandom.current().nextLong(delayMillis / 2 + 1);
+        nextRoundAt = System.currentTimeMillis() + jittered;
+        nextRound = scheduler.schedule(new Runnable() {
+            public void run() {
+                runRound();
+            }
+        }, jittered, TimeUnit.MILLISECONDS);
+    }
+
+    private void runRound() {
+        List<TrackedJob> snapshot = new ArrayList<TrackedJob>(jobs.values());
+        if (snapshot.isEmpty()) {
+            synchronized (this) {
+                // A Job subscribed since the snapshot found this round pending and did not schedule
+                // one, so look again under the lock before going idle
+                if (jobs.isEmpty() || scheduler.isShutdown()) {
+                    nextRound = null;
+                } else {
+                    scheduleRound(minIntervalMillis);
+                }
+            }
+            return;
+        }
+
+        metrics.recordRound();
+        boolean changed = false;
+        try {
+            for (int from = 0; from < snapshot.size(); from += batchSize) {
+                changed |= pollBatch(snapshot.subList(from, Math.min(from + batchSize, snapshot.size())));
+            }
+            consecutiveErrors = 0;
+        } catch (ServiceException se) {
+            failOnRepeatedErrors(snapshot, se);
+        } catch (RuntimeException e) {
+            failOnRepeatedErrors(snapshot, e);
+        }
+
+        synchronized (this) {
+            intervalMillis = changed ? minIntervalMillis
+                    : Math.min(maxIntervalMillis, (long) (intervalMillis * backoffMultiplier));
+            if (!scheduler.isShutdown()) {
+                scheduleRound(intervalMillis);
+            }
+        }
+    }
+
+    private boolean pollBatch(List<TrackedJob> batch) throws ServiceException {
+        StringBuilder filter = new StringBuilder();
+        for (TrackedJob job : batch) {
+            if (filter.length() > 0) {
+                filter.append(" or ");
+            }
+            filter.append("Id eq '").append(job.jobId).append("'");
+        }
+
+        boolean changed = false;
+        Set<String> listed = new HashSet<String>();
+        int skip = 0;
+        while (true) {
+            ListResult<JobInfo> page = mediaService.list(Job.list()
+                    .set("$filter", filter.toString())
+                    .set("$top", String.valueOf(pageSize))
+                    .set("$skip", String.valueOf(skip)));
+            metrics.recordRequest();
+
+            for (JobInfo info : page) {
+                listed.add(info.getId());
+                changed |= dispatch(info);
+            }
+            if (page.size() < pageSize) {
+                break;
+            }
+            skip += page.size();
+        }
+
+        for (TrackedJob job : batch) {
+            if (listed.contains(job.jobId)) {
+                job.absentRounds = 0;
+            } else if (++job.absentRounds >= maxAbsentRounds && jobs.remove(job.jobId, job)) {
+                ServiceException notFound = new ServiceException(String.format("Job %s not found", job.jobId));
+                notFound.setHttpStatusCode(HTTP_NOT_FOUND);
+                job.listener.onPollFailed(job.jobId, notFound);
+            }
+        }
+        return changed;
+    }
+
+    private boolean dispatch(JobInfo info) {
+        TrackedJob job = jobs.get(info.getId());
+        JobState state = info.getState();
+        if (job == null || state == job.lastState) {
+            return false;
+        }
+
+        JobState previousState = job.lastState;
+        job.lastState = state;
+        if (isFinal(state)) {
+            jobs.remove(job.jobId, job);
+            metrics.recordDetection(info.getEndTime());
+        }
+
+        try {
+            job.listener.onStateChanged(info, previousState);
+        } catch (RuntimeException e) {
+            System.out.println("Job state listener failed: " + e.toString());
+        }
+        return true;
+    }
+
+    private void failOnRepeatedErrors(List<TrackedJob> snapshot, Exception error) {
+        System.out.println("Job status poll failed: " + error.toString());
+        if (++consecutiveErrors < maxConsecutiveErrors) {
+            return;
+        }
+        consecutiveErrors = 0;
+        for (TrackedJob job : snapshot) {
+            if (jobs.remove(job.jobId, job)) {
+                job.listener.onPollFailed(job.jobId, error);
+            }
+        }
+    }
+
+    private static final class TrackedJob {
+        private final String jobId;
+        private final JobStateListener listener;
+        private JobState lastState;
+        private int absentRounds;
+
+        TrackedJob(String jobId, JobStateListener listener) {
+            this.jobId = jobId;
+            this.listener = listener;
+        }
+    }
+
+    // Poll rate and completion detection latency
+    static final class Metrics {
+        private final long startedAt = System.nanoTime();
+        private final AtomicLong rounds = new AtomicLong();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong detections = new AtomicLong();
+        private final AtomicLong totalDetectionMillis = new AtomicLong();
+        private final AtomicLong maxDetectionMillis = new AtomicLong();
+
+        void recordRound() {
+            rounds.incrementAndGet();
+        }
+
+        void recordRequest() {
+            requests.incrementAndGet();
+        }
+
+        // Time between the end of the Job (as reported by the service) and the poll that saw it
+        void recordDetection(Date endTime) {
+            if (endTime == null) {
+                return;
+            }
+            long latency = Math.max(0, System.currentTimeMillis() - endTime.getTime());
+            detections.incrementAndGet();
+            totalDetectionMillis.addAndGet(latency);
+            long max;
+            do {
+                max = maxDetectionMillis.get();
+            } while (latency > max && !maxDetectionMillis.compareAndSet(max, latency));
+        }
+
+        long getRounds() {
+            return rounds.get();
+        }
+
+        long getRequests() {
+            return requests.get();
+        }
+
+        double getRequestsPerSecond() {
+            double seconds = (System.nanoTime() - startedAt) / 1000000000.0;
+            return seconds <= 0 ? 0 : requests.get() / seconds;
+        }
+
+        double getAverageDetectionMillis() {
+            long count = detections.get();
+            return count == 0 ? 0 : (double) totalDetectionMillis.get() / count;
+        }
+
+        long getMaxDetectionMillis() {
+            return maxDetectionMillis.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d polls (%.2f/s), %d completions detected, avg %.0f ms, max %d ms",
+                    requests.get(), getRequestsPerSecond(), detections.get(), getAverageDetectionMillis(),
+                    getMaxDetectionMillis());
+        }
+    }
+}
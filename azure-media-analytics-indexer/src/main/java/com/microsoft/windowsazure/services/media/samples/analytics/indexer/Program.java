@@ -1,20 +1,17 @@
 package com.microsoft.windowsazure.services.media.samples.analytics.indexer;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.security.NoSuchAlgorithmException;
 import java.util.EnumSet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.microsoft.windowsazure.Configuration;
 import com.microsoft.windowsazure.exception.ServiceException;
@@ -24,9 +21,7 @@ import com.microsoft.windowsazure.services.media.MediaService;
 import com.microsoft.windowsazure.services.media.WritableBlobContainerContract;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdClientSymmetricKey;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenCredentials;
-import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenProvider;
 import com.microsoft.windowsazure.services.media.authentication.AzureEnvironments;
-import com.microsoft.windowsazure.services.media.authentication.TokenProvider;
 import com.microsoft.windowsazure.services.media.models.AccessPolicy;
 import com.microsoft.windowsazure.services.media.models.AccessPolicyInfo;
 import com.microsoft.windowsazure.services.media.models.AccessPolicyPermission;
@@ -41,13 +36,15 @@ import com.microsoft.windowsazure.services.media.models.ListResult;
 import com.microsoft.windowsazure.services.media.models.Locator;
 import com.microsoft.windowsazure.services.media.models.LocatorInfo;
 import com.microsoft.windowsazure.services.media.models.LocatorType;
-import com.microsoft.windowsazure.services.media.models.MediaProcessor;
 import com.microsoft.windowsazure.services.media.models.MediaProcessorInfo;
 import com.microsoft.windowsazure.services.media.models.Task;
 
 public final class Program {
 
     private static MediaContract mediaService;
+    private static JobCompletionWatcher jobWatcher;
+    private static JobNotificationQueue jobNotifications;
+    private static MediaProcessorRegistry mediaProcessors;
 
     // Media Services account credentials configuration
     private static String tenant = "tenant.domain.com";
@@ -71,12 +68,32 @@ public final class Program {
     // Destination path
     private static String destinationPath = "IndexerOutput";
 
+    // Job state change notifications, pushed to an Azure queue in the storage account of the Media
+    // Services account; without a connection string Jobs are only polled
+    private static String jobNotificationStorageConnectionString = null;
+    private static String jobNotificationQueueName = "job-notifications";
+
+    // Longest wait for a Job to reach a final state
+    private static int jobTimeoutMinutes = 12 * 60;
+
+    // Upload configuration
+    private static int uploadConcurrency = 8;
+    private static int uploadBlockSize = 4 * 1024 * 1024;
+    private static int uploadAttempts = 5;
+    private static String uploadJournalDirectory = "UploadJournals";
+
+    // Download configuration
+    private static int downloadConcurrency = 8;
+    private static long downloadRangeSize = 8 * 1024 * 1024;
+    private static int downloadAttempts = 3;
+
     // Utility classes should not have a public or default constructor
     private Program() {
     }
 
     public static void main(String[] args) {
-        ExecutorService executorService = Executors.newFixedThreadPool(1);
+        AzureAdTokenManager tokenManager = null;
+        ResilientMediaContract resilience = null;
 
         try {
             // Connect to Media Services API with service principal and client symmetric key
@@ -85,15 +102,30 @@ public final class Program {
                     new AzureAdClientSymmetricKey(clientId, clientKey),
                     AzureEnvironments.AZURE_CLOUD_ENVIRONMENT);
 
-            TokenProvider provider = new AzureAdTokenProvider(credentials, executorService);
+            // Acquire the first token now and keep it refreshed in the background
+            tokenManager = new AzureAdTokenManager(credentials);
 
             // create a new configuration with the new credentials
             Configuration configuration = MediaConfiguration.configureWithAzureAdTokenProvider(
                     new URI(restApiEndpoint),
-                    provider);
+                    tokenManager);
+
+            // create the media service provisioned with the new configuration, retrying REST
+            // calls that are throttled or fail with transient errors
+            resilience = new ResilientMediaContract(restApiEndpoint);
+            mediaService = resilience.wrap(MediaService.create(configuration));
+
+            // Track Job completion with a single batched status poller
+            jobWatcher = new JobCompletionWatcher(new BatchJobPoller(mediaService));
 
-            // create the media service provisioned with the new configuration
-            mediaService = MediaService.create(configuration);
+            // Complete Jobs as soon as the service pushes their final state
+            if (jobNotificationStorageConnectionString != null) {
+                jobNotifications = JobNotificationQueue.forStorageQueue(mediaService, jobWatcher,
+                        jobNotificationStorageConnectionString, jobNotificationQueueName);
+            }
+
+            // Resolve Media Processors once per hour instead of once per Job
+            mediaProcessors = new MediaProcessorRegistry(mediaService, TimeUnit.HOURS.toMillis(1));
 
             System.out.println("Azure SDK for Java - Media Analytics Sample (Indexer)");
 
@@ -123,69 +155,138 @@ public final class Program {
             System.out.println("Exception encountered.");
             System.out.println(e.toString());
         } finally {
-            executorService.shutdown();
+            if (jobNotifications != null) {
+                System.out.println("Job notifications received: " + jobNotifications.getReceivedCount());
+                jobNotifications.close();
+            }
+            if (jobWatcher != null) {
+                if (jobWatcher.getPoller().getMetrics().getRequests() > 0) {
+                    System.out.println("Job status " + jobWatcher.getPoller().getMetrics());
+                }
+                jobWatcher.close();
+            }
+            if (mediaProcessors != null) {
+                mediaProcessors.close();
+            }
+            if (tokenManager != null) {
+                tokenManager.close();
+            }
+            if (resilience != null) {
+                System.out.println("REST calls to " + resilience);
+            }
         }
     }
 
     // Upload a media file to your Media Services account.
     // This code creates an Asset, an AccessPolicy (using Write access) and a
-    // Locator, and uses those objects to upload a local file.
+    // Locator, and uses those objects to upload a local file. The uploaded blocks
+    // are recorded in a journal, so a failed upload is resumed by the next run.
     private static AssetInfo uploadFileAndCreateAsset(String fileName)
-            throws ServiceException, FileNotFoundException, NoSuchAlgorithmException {
+            throws ServiceException, IOException, InterruptedException, NoSuchAlgorithmException {
         WritableBlobContainerContract uploader;
         AssetInfo asset;
-        AccessPolicyInfo uploadAccessPolicy;
         LocatorInfo uploadLocator = null;
 
-        // Create an empty Asset
-        asset = mediaService.create(Asset.create().setName(String.format("Media File %s", fileName)));
-        System.out.println("Asset created " + asset.getName());
+        // The local file that will be uploaded to your Media Services account
+        File input = new File(Program.class.getClassLoader().getResource("").getPath() + fileName);
 
-        // Create an AccessPolicy that provides Write access for 15 minutes
-        uploadAccessPolicy = mediaService
-                .create(AccessPolicy.create("uploadAccessPolicy", 15.0, EnumSet.of(AccessPolicyPermission.WRITE)));
+        // Open the upload journal of the file; it is kept until the upload completes
+        UploadJournal journal = UploadJournal.open(new File(uploadJournalDirectory, fileName + ".journal"),
+                input, uploadBlockSize);
 
-        // Create a SAS Locator using the AccessPolicy and Asset
-        uploadLocator = mediaService
-                .create(Locator.create(uploadAccessPolicy.getId(), asset.getId(), LocatorType.SAS));
+        try {
+            if (journal.getAssetId() != null) {
+                // Resume the upload into the Asset created by a previous run
+                asset = mediaService.get(Asset.get(journal.getAssetId()));
+                System.out.println(String.format("Resuming upload to Asset %s (%d blocks already uploaded)",
+                        asset.getId(), journal.getBlockCount()));
+            } else {
+                // Create an empty Asset
+                asset = mediaService.create(Asset.create().setName(String.format("Media File %s", fileName)));
+                System.out.println("Asset created " + asset.getName());
+                journal.setAssetId(asset.getId());
+            }
 
-        // Create the Blob Writer using the Locator
-        uploader = mediaService.createBlobWriter(uploadLocator);
+            System.out.println("Uploading " + fileName);
+
+            // Upload the local file to the asset in parallel blocks; after a failure only the
+            // missing blocks are sent again, with a new Locator if the previous one has expired
+            BlockBlobUploader.UploadStatistics uploadStatistics = null;
+            for (int attempt = 1; uploadStatistics == null; attempt++) {
+                uploadLocator = getUploadLocator(journal, asset.getId());
+
+                // Create the Blob Writer using the Locator
+                uploader = mediaService.createBlobWriter(uploadLocator);
+
+                try {
+                    uploadStatistics = new BlockBlobUploader()
+                            .setConcurrency(uploadConcurrency)
+                            .setBlockSize(uploadBlockSize)
+                            .setJournal(journal)
+                            .upload(uploader, fileName, input);
+                } catch (ServiceException se) {
+                    if (attempt >= uploadAttempts) {
+                        throw se;
+                    }
+                    System.out.println("Upload interrupted, resuming: " + se.getMessage());
+                }
+            }
+            System.out.println(String.format("Uploaded %d blocks in %d ms (%.2f MB/s), %d blocks resumed",
+                    uploadStatistics.getBlocks().size(), uploadStatistics.getElapsedNanos() / 1000000,
+                    uploadStatistics.getMegabytesPerSecond(), uploadStatistics.getResumedBlocks()));
 
-        // The local file that will be uploaded to your Media Services account
-        InputStream input = new FileInputStream(
-                new File(Program.class.getClassLoader().getResource("").getPath() + fileName));
+            // Inform Media Services about the uploaded files
+            mediaService.action(AssetFile.createFileInfos(asset.getId()));
+            System.out.println("Uploaded Asset File " + fileName);
 
-        System.out.println("Uploading " + fileName);
+            // Delete the SAS Locator (and Access Policy) for the Asset since we are done uploading files
+            mediaService.delete(Locator.delete(uploadLocator.getId()));
+            mediaService.delete(AccessPolicy.delete(journal.getAccessPolicyId()));
 
-        // Upload the local file to the asset
-        uploader.createBlockBlob(fileName, input);
+            journal.delete();
+        } finally {
+            journal.close();
+        }
 
-        // Inform Media Services about the uploaded files
-        mediaService.action(AssetFile.createFileInfos(asset.getId()));
-        System.out.println("Uploaded Asset File " + fileName);
+        return asset;
+    }
 
-        // Delete the SAS Locator (and Access Policy) for the Asset since we are done uploading files
-        mediaService.delete(Locator.delete(uploadLocator.getId()));
-        mediaService.delete(AccessPolicy.delete(uploadAccessPolicy.getId()));
+    // Get a SAS Locator that provides Write access to the Asset for 15 minutes.
+    // The Locator recorded in the journal is reused while it is still valid.
+    private static LocatorInfo getUploadLocator(UploadJournal journal, String assetId)
+            throws ServiceException, IOException {
+        if (journal.getLocatorId() != null) {
+            try {
+                LocatorInfo locator = mediaService.get(Locator.get(journal.getLocatorId()));
+
+                // Leave a margin so the Locator does not expire in the middle of a block
+                if (locator.getExpirationDateTime().getTime() - System.currentTimeMillis() > 60 * 1000) {
+                    return locator;
+                }
+                mediaService.delete(Locator.delete(locator.getId()));
+                mediaService.delete(AccessPolicy.delete(journal.getAccessPolicyId()));
+            } catch (ServiceException se) {
+                // The Locator (or its AccessPolicy) no longer exists
+            }
+        }
 
-        return asset;
+        // Create an AccessPolicy that provides Write access for 15 minutes
+        AccessPolicyInfo uploadAccessPolicy = mediaService
+                .create(AccessPolicy.create("uploadAccessPolicy", 15.0, EnumSet.of(AccessPolicyPermission.WRITE)));
+
+        // Create a SAS Locator using the AccessPolicy and Asset
+        LocatorInfo uploadLocator = mediaService
+                .create(Locator.create(uploadAccessPolicy.getId(), assetId, LocatorType.SAS));
+
+        journal.setLocator(uploadAccessPolicy.getId(), uploadLocator.getId());
+        return uploadLocator;
     }
 
     // Create a Job that contains a Task to process the Asset
     private static AssetInfo runIndexingJob(AssetInfo asset, String taskConfiguration)
             throws ServiceException, InterruptedException {
-        // Retrieve the list of Media Processors that match the name
-        ListResult<MediaProcessorInfo> mediaProcessors = mediaService
-                .list(MediaProcessor.list().set("$filter", String.format("Name eq '%s'", indexerProcessorName)));
-
-        // Use the latest version of the Media Processor
-        MediaProcessorInfo mediaProcessor = null;
-        for (MediaProcessorInfo info : mediaProcessors) {
-            if (null == mediaProcessor || info.getVersion().compareTo(mediaProcessor.getVersion()) > 0) {
-                mediaProcessor = info;
-            }
-        }
+        // Use the latest version of the Media Processor (resolved once and cached)
+        MediaProcessorInfo mediaProcessor = mediaProcessors.resolve(indexerProcessorName);
 
         System.out.println("Using Media Processor: " + mediaProcessor.getName() + " " + mediaProcessor.getVersion());
 
@@ -202,6 +303,9 @@ public final class Program {
         Job.Creator jobCreator = Job.create()
                 .setName("Indexing Job")
                 .addInputMediaAsset(asset.getId()).setPriority(0).addTaskCreator(task);
+        if (jobNotifications != null) {
+            jobNotifications.subscribe(jobCreator);
+        }
         JobInfo job = mediaService.create(jobCreator);
 
         String jobId = job.getId();
@@ -228,28 +332,25 @@ public final class Program {
     }
 
     private static JobState checkJobStatus(String jobId) throws InterruptedException, ServiceException {
-        boolean done = false;
-        JobState jobState = null;
-        while (!done) {
-            // Sleep for 5 seconds
-            Thread.sleep(5000);
-
-            // Query the updated Job state
-            jobState = mediaService.get(Job.get(jobId)).getState();
-            System.out.println("Job state: " + jobState);
-
-            if (jobState == JobState.Finished || jobState == JobState.Canceled || jobState == JobState.Error) {
-                done = true;
+        CompletableFuture<JobState> job = jobWatcher.watch(jobId);
+        try {
+            // Wait until the Job reaches a final state
+            return job.get(jobTimeoutMinutes, TimeUnit.MINUTES);
+        } catch (TimeoutException e) {
+            // Stop tracking the Job
+            job.cancel(false);
+            throw new ServiceException(String.format("Job %s did not finish within %d minutes", jobId,
+                    jobTimeoutMinutes));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
             }
+            throw new ServiceException(e.getCause());
         }
-
-        return jobState;
     }
 
-    private static void downloadAssetFiles(AssetInfo asset, String destinationPath) throws ServiceException, IOException {
-        // Create destination directory if does not exist
-        new File(destinationPath).mkdir();
-
+    private static void downloadAssetFiles(AssetInfo asset, String destinationPath)
+            throws ServiceException, IOException, InterruptedException {
         // Create an AccessPolicy that provides Read access for 15 minutes
         AccessPolicyInfo accessPolicy = mediaService
                 .create(AccessPolicy.create("downloadAccessPolicy", 15.0, EnumSet.of(AccessPolicyPermission.READ)));
@@ -258,23 +359,26 @@ public final class Program {
         LocatorInfo sasLocator = mediaService
                 .create(Locator.create(accessPolicy.getId(), asset.getId(), LocatorType.SAS));
 
-        // List all the Asset Files
-        ListResult<AssetFileInfo> assetFiles = mediaService.list(AssetFile.list(asset.getAssetFilesLink()));
-
-        for (AssetFileInfo file : assetFiles) {
-            System.out.print("Downloading " + file.getName() + " output file...");
-
-            URL downloadUrl = new URL(sasLocator.getBaseUri() + "/" + file.getName() + sasLocator.getContentAccessToken());
-            HttpURLConnection httpConn = (HttpURLConnection) downloadUrl.openConnection();
-            InputStream inputStream = httpConn.getInputStream();
-            Files.copy(inputStream, Paths.get(destinationPath, file.getName()), StandardCopyOption.REPLACE_EXISTING);
-            inputStream.close();
-
-            System.out.println("Done!");
+        try {
+            // List all the Asset Files
+            ListResult<AssetFileInfo> assetFiles = mediaService.list(AssetFile.list(asset.getAssetFilesLink()));
+            System.out.println(String.format("Downloading %d output files...", assetFiles.size()));
+
+            // Download the files in parallel; large files are split into ranges
+            AssetFileDownloader.DownloadStatistics statistics = new AssetFileDownloader()
+                    .setConcurrency(downloadConcurrency)
+                    .setRangeSize(downloadRangeSize)
+                    .setAttempts(downloadAttempts)
+                    .download(sasLocator, assetFiles, new File(destinationPath));
+
+            System.out.println(String.format("Downloaded %d files (%d bytes) in %d ms, %.2f MB/s, %d requests, %d retries",
+                    statistics.getCompletedFiles(), statistics.getDownloadedBytes(),
+                    statistics.getElapsedNanos() / 1000000, statistics.getMegabytesPerSecond(),
+                    statistics.getRequests(), statistics.getRetries()));
+        } finally {
+            // Clean up Locator and Access Policy
+            mediaService.delete(Locator.delete(sasLocator.getId()));
+            mediaService.delete(AccessPolicy.delete(accessPolicy.getId()));
         }
-
-        // Clean up Locator and Access Policy
-        mediaService.delete(Locator.delete(sasLocator.getId()));
-        mediaService.delete(AccessPolicy.delete(accessPolicy.getId()));
     }
 }
\ No newline at end of file
@@ -0,0 +1,132 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import java.io.Closeable;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.services.media.authentication.AzureAdAccessToken;
+import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenCredentials;
+import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenProvider;
+import com.microsoft.windowsazure.services.media.authentication.TokenProvider;
+
+/**
+ * A long-lived {@link TokenProvider} that keeps a valid Azure AD access token at hand. The first
+ * token is acquired when the manager is created, and a background thread acquires the next one
+ * a few minutes before the current one expires, so REST calls never wait on Azure AD.
+ *
+ * Callers read the current token without locking, so any number of threads (and MediaContract
+ * instances) can share one manager. Only when the token has expired because the background
+ * refreshes kept failing does a caller acquire a new token itself. It works the same for
+ * symmetric key, client certificate and username/password credentials.
+ */
+final class AzureAdTokenManager implements TokenProvider, Closeable {
+
+    private static final long DEFAULT_REFRESH_MARGIN_MILLIS = 5 * 60 * 1000L;
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000L;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000L;
+    private static final long MAX_EXPIRY_SKEW_MILLIS = 30 * 1000L;
+
+    private final ExecutorService providerExecutor;
+    private final TokenProvider source;
+    private final ScheduledExecutorService refresher;
+    private final long refreshMarginMillis;
+    private final long expirySkewMillis;
+    private volatile AzureAdAccessToken token;
+
+    AzureAdTokenManager(AzureAdTokenCredentials credentials) throws Exception {
+        this(credentials, DEFAULT_REFRESH_MARGIN_MILLIS);
+    }
+
+    // Acquire the first token now; later tokens are acquired refreshMarginMillis before expiry
+    AzureAdTokenManager(AzureAdTokenCredentials credentials, long refreshMarginMillis) throws Exception {
+        this.providerExecutor = Executors.newSingleThreadExecutor(daemonThreads("aad-token"));
+        this.source = new AzureAdTokenProvider(credentials, providerExecutor);
+        this.refresher = Executors.newSingleThreadScheduledExecutor(daemonThreads("aad-token-refresh"));
+        this.refreshMarginMillis = refreshMarginMillis;
+        // A token about to expire could expire before the request using it reaches the service
+        this.expirySkewMillis = Math.min(MAX_EXPIRY_SKEW_MILLIS, refreshMarginMillis / 4);
+
+        try {
+            token = source.acquireAccessToken();
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+        scheduleRefresh(token, 0);
+    }
+
+    public AzureAdAccessToken acquireAccessToken() throws Exception {
+        AzureAdAccessToken current = token;
+        if (!isExpired(current)) {
+            return current;
+        }
+        return refresh(current);
+    }
+
+    // Stop the background refresh
+    public void close() {
+        refresher.shutdownNow();
+        providerExecutor.shutdown();
+    }
+
+    // Acquire a new token unless another thread already replaced the given one
+    private synchronized AzureAdAccessToken refresh(AzureAdAccessToken expected) throws Exception {
+        if (token != expected) {
+            return token;
+        }
+        token = source.acquireAccessToken();
+        return token;
+    }
+
+    private void scheduleRefresh(final AzureAdAccessToken current, final int failures) {
+        long delay;
+        if (failures == 0) {
+            Date expiresOn = current.getExpiresOnDate();
+            long remaining = expiresOn == null ? 0 : expiresOn.getTime() - System.currentTimeMillis();
+            // Short-lived tokens are refreshed halfway through their lifetime
+            delay = Math.max(MIN_RETRY_DELAY_MILLIS, Math.max(remaining - refreshMarginMillis, remaining / 2));
+        } else {
+            delay = Math.min(MAX_RETRY_DELAY_MILLIS, MIN_RETRY_DELAY_MILLIS << Math.min(failures, 16));
+        }
+
+        try {
+            refresher.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        AzureAdAccessToken next = refresh(current);
+                        scheduleRefresh(next, 0);
+                    } catch (Exception e) {
+                        System.out.println(String.format("Could not refresh the Azure AD token (expires %s): %s",
+                                current.getExpiresOnDate(), e.toString()));
+                        scheduleRefresh(current, failures + 1);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The manager was closed
+        }
+    }
+
+    private boolean isExpired(AzureAdAccessToken token) {
+        Date expiresOn = token.getExpiresOnDate();
+        return expiresOn == null || expiresOn.getTime() - expirySkewMillis <= System.currentTimeMillis();
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
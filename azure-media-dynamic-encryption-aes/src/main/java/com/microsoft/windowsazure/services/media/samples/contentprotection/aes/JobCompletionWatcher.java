@@ -0,0 +1,92 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.microsoft.windowsazure.services.media.models.JobInfo;
+import com.microsoft.windowsazure.services.media.models.JobState;
+
+/**
+ * Tracks Jobs until they reach a final state. Each watched Job gets a future that completes with
+ * its final {@link JobState}. The Jobs are polled by a shared {@link BatchJobPoller}, so waiting
+ * does not take a thread per Job.
+ *
+ * Push notifications of a NotificationEndPoint queue are fed in by a {@link JobNotificationQueue}
+ * through {@link #onNotification}; they complete the future right away instead of waiting for
+ * the next poll.
+ */
+final class JobCompletionWatcher implements Closeable {
+
+    private final BatchJobPoller poller;
+    private final ConcurrentMap<String, CompletableFuture<JobState>> jobs
+            = new ConcurrentHashMap<String, CompletableFuture<JobState>>();
+
+    private final BatchJobPoller.JobStateListener listener = new BatchJobPoller.JobStateListener() {
+        public void onStateChanged(JobInfo job, JobState previousState) {
+            System.out.println(String.format("Job %s state: %s", job.getId(), job.getState()));
+            if (BatchJobPoller.isFinal(job.getState())) {
+                complete(job.getId(), job.getState());
+            }
+        }
+
+        public void onPollFailed(String jobId, Exception error) {
+            CompletableFuture<JobState> future = jobs.get(jobId);
+            if (future != null) {
+                future.completeExceptionally(error);
+            }
+        }
+    };
+
+    JobCompletionWatcher(BatchJobPoller poller) {
+        this.poller = poller;
+    }
+
+    // Start watching a Job; watching the same Job twice returns the same future
+    CompletableFuture<JobState> watch(final String jobId) {
+        final CompletableFuture<JobState> future = new CompletableFuture<JobState>();
+        CompletableFuture<JobState> existing = jobs.putIfAbsent(jobId, future);
+        if (existing != null) {
+            return existing;
+        }
+        future.whenComplete((state, error) -> {
+            jobs.remove(jobId, future);
+            poller.unsubscribe(jobId);
+        });
+        poller.subscribe(jobId, listener);
+        return future;
+    }
+
+    // Push notification of a Job state change
+    void onNotification(String jobId, JobState state) {
+        if (BatchJobPoller.isFinal(state)) {
+            complete(jobId, state);
+        } else if (jobs.containsKey(jobId)) {
+            // The Job is moving; check on it (and the other Jobs) sooner
+            poller.pollSoon();
+        }
+    }
+
+    int getWatchedJobCount() {
+        return jobs.size();
+    }
+
+    BatchJobPoller getPoller() {
+        return poller;
+    }
+
+    public void close() {
+        poller.close();
+        for (CompletableFuture<JobState> future : jobs.values()) {
+            future.cancel(false);
+        }
+    }
+
+    private void complete(String jobId, JobState state) {
+        CompletableFuture<JobState> future = jobs.get(jobId);
+        if (future != null) {
+            future.complete(state);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.microsoft.windowsazure.core.utils.Base64;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.EncryptionUtils;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.ContentKeyType;
+import com.microsoft.windowsazure.services.media.models.ProtectionKey;
+
+/**
+ * Caches the ProtectionKey certificate of each {@link ContentKeyType}. The protection key id is
+ * looked up, the certificate downloaded and parsed, and its thumbprint computed once per type;
+ * every ContentKey of that type is then encrypted with the cached certificate. Concurrent first
+ * requests for the same type share a single download.
+ *
+ * Media Services rotates protection keys rarely, so entries are kept for a day; the
+ * {@link ContentKeyProvisioner} calls {@link #invalidate} when the service rejects a ContentKey,
+ * and the next request fetches the current certificate.
+ */
+final class ProtectionKeyCache {
+
+    private final MediaContract mediaService;
+    private final long timeToLiveMillis;
+    private final ConcurrentMap<ContentKeyType, Entry> entries = new ConcurrentHashMap<ContentKeyType, Entry>();
+
+    ProtectionKeyCache(MediaContract mediaService) {
+        this(mediaService, 24 * 60 * 60 * 1000L);
+    }
+
+    ProtectionKeyCache(MediaContract mediaService, long timeToLiveMillis) {
+        this.mediaService = mediaService;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    // Get the protection certificate of the ContentKey type, downloading it on first use
+    Certificate get(ContentKeyType contentKeyType) throws ServiceException {
+        Entry entry = entries.get(contentKeyType);
+        if (entry == null) {
+            Entry created = new Entry();
+            entry = entries.putIfAbsent(contentKeyType, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+
+        synchronized (entry) {
+            if (entry.certificate == null || System.currentTimeMillis() > entry.expiresAt) {
+                entry.certificate = download(contentKeyType);
+                entry.expiresAt = System.currentTimeMillis() + timeToLiveMillis;
+            }
+            return entry.certificate;
+        }
+    }
+
+    // Drop a certificate the service no longer accepts; a certificate that another thread has
+    // already replaced is kept, so concurrent failures download it only once
+    void invalidate(ContentKeyType contentKeyType, Certificate stale) {
+        Entry entry = entries.get(contentKeyType);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.certificate == stale) {
+                entry.certificate = null;
+            }
+        }
+    }
+
+    private Certificate download(ContentKeyType contentKeyType) throws ServiceException {
+        // Get the protection key id for ContentKey
+        String protectionKeyId = mediaService.action(ProtectionKey.getProtectionKeyId(contentKeyType));
+
+        // Download and create the X509 certificate
+        String protectionKey = mediaService.action(ProtectionKey.getProtectionKey(protectionKeyId));
+        try {
+            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(Base64.decode(protectionKey)));
+            return new Certificate(protectionKeyId, certificate, EncryptionUtils.getThumbPrint(certificate));
+        } catch (Exception e) {
+            throw new ServiceException(String.format("Invalid %s protection key %s", contentKeyType, protectionKeyId), e);
+        }
+    }
+
+    private static final class Entry {
+        private Certificate certificate;
+        private long expiresAt;
+    }
+
+    // A downloaded ProtectionKey certificate
+    static final class Certificate {
+        private final String protectionKeyId;
+        private final X509Certificate certificate;
+        private final String thumbprint;
+
+        Certificate(String protectionKeyId, X509Certificate certificate, String thumbprint) {
+            this.protectionKeyId = protectionKeyId;
+            this.certificate = certificate;
+            this.thumbprint = thumbprint;
+        }
+
+        String getProtectionKeyId() {
+            return protectionKeyId;
+        }
+
+        X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        String getThumbprint() {
+            return thumbprint;
+        }
+    }
+}
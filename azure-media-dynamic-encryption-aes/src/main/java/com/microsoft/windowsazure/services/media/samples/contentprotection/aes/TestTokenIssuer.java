@@ -0,0 +1,284 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.JAXBException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.SymmetricVerificationKey;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenClaim;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenRestrictionTemplate;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenRestrictionTemplateSerializer;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenType;
+
+/**
+ * Issues test tokens for a TokenRestrictionTemplate without the per-token work of
+ * TokenRestrictionTemplateSerializer.generateTestToken. The template is parsed once, everything
+ * that does not depend on the ContentKey (JWT header, issuer, audience, fixed claims) is encoded
+ * once, and each thread keeps its own Mac initialized with the verification key, so issuing a
+ * token is one string build and one HMAC, and any number of threads can issue at once.
+ *
+ * The tokens carry the same claims as the serializer's: JWT tokens are signed with HS256 and hold
+ * the required claims, iss, aud, iat (the not-before time) and exp; SWT tokens are the
+ * form-encoded required claims, Audience, ExpiresOn and Issuer, followed by their HMACSHA256. As in
+ * the serializer, the ContentKey identifier claim of a JWT template keeps a value the template gives
+ * it, and otherwise (always, for SWT) holds the ContentKey id. Only templates with a symmetric
+ * primary verification key are supported.
+ *
+ * {@link #forTemplate} checks each new issuer against generateTestToken once, with the same
+ * ContentKey id and times, so a template the layouts below do not cover fails on first use instead
+ * of producing tokens the key delivery service rejects.
+ */
+final class TestTokenIssuer {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HMAC_SHA256 = "HmacSHA256";
+    private static final String JWT_HEADER = base64Url("{\"typ\":\"JWT\",\"alg\":\"HS256\"}".getBytes(UTF8));
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // Default not-before time, as in generateTestToken, for clocks running slightly behind
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    // Issuers by template XML, so each template is parsed once per process
+    private static final ConcurrentMap<String, TestTokenIssuer> ISSUERS = new ConcurrentHashMap<String, TestTokenIssuer>();
+
+    private final TokenType tokenType;
+    private final SecretKeySpec key;
+    // The token text up to the ContentKey id, and from there up to the first time; without a
+    // ContentKey identifier claim to fill in the head runs up to the first time and middle is null
+    private final String head;
+    private final String middle;
+    // SWT only: the text after ExpiresOn
+    private final String tail;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return newMac();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Cannot initialize " + HMAC_SHA256, e);
+            }
+        }
+    };
+
+    TestTokenIssuer(TokenRestrictionTemplate template) throws GeneralSecurityException {
+        if (!(template.getPrimaryVerificationKey() instanceof SymmetricVerificationKey)) {
+            throw new IllegalArgumentException("Test tokens need a symmetric primary verification key");
+        }
+        this.tokenType = template.getTokenType();
+        this.key = new SecretKeySpec(
+                ((SymmetricVerificationKey) template.getPrimaryVerificationKey()).getKeyValue(), HMAC_SHA256);
+        // Fail now rather than on the first token
+        newMac();
+
+        String issuer = template.getIssuer().toString();
+        String audience = template.getAudience().toString();
+        StringBuilder before = new StringBuilder();
+        StringBuilder after = null;
+        if (tokenType == TokenType.SWT) {
+            // Claims in template order, the ContentKey id in the place of its claim
+            for (TokenClaim claim : template.getRequiredClaims()) {
+                StringBuilder text = after != null ? after : before;
+                text.append(formEncode(claim.getClaimType())).append('=');
+                if (takesContentKeyId(claim, tokenType)) {
+                    after = new StringBuilder("&");
+                } else {
+                    text.append(formEncode(claim.getClaimValue() == null ? "" : claim.getClaimValue())).append('&');
+                }
+            }
+            (after != null ? after : before).append("Audience=").append(formEncode(audience)).append("&ExpiresOn=");
+            this.tail = "&Issuer=" + formEncode(issuer);
+        } else {
+            // Fixed claims first, then the ContentKey id and the times
+            before.append('{');
+            String contentKeyClaimType = null;
+            for (TokenClaim claim : template.getRequiredClaims()) {
+                if (takesContentKeyId(claim, tokenType)) {
+                    contentKeyClaimType = claim.getClaimType();
+                    continue;
+                }
+                appendJsonString(before, claim.getClaimType());
+                before.append(':');
+                if (claim.getClaimValue() == null) {
+                    before.append("null");
+                } else {
+                    appendJsonString(before, claim.getClaimValue());
+                }
+                before.append(',');
+            }
+            before.append("\"iss\":");
+            appendJsonString(before, issuer);
+            before.append(",\"aud\":");
+            appendJsonString(before, audience);
+            if (contentKeyClaimType != null) {
+                before.append(',');
+                appendJsonString(before, contentKeyClaimType);
+                before.append(":\"");
+                after = new StringBuilder("\"");
+            }
+            (after != null ? after : before).append(",\"iat\":");
+            this.tail = null;
+        }
+        this.head = before.toString();
+        this.middle = after == null ? null : after.toString();
+    }
+
+    // The issuer of a template in its XML form, parsing the template on first use
+    static TestTokenIssuer forTemplate(String templateXml) throws JAXBException, GeneralSecurityException {
+        TestTokenIssuer issuer = ISSUERS.get(templateXml);
+        if (issuer == null) {
+            TokenRestrictionTemplate template = TokenRestrictionTemplateSerializer.deserialize(templateXml);
+            issuer = new TestTokenIssuer(template);
+            issuer.checkAgainstSerializer(template);
+            TestTokenIssuer existing = ISSUERS.putIfAbsent(templateXml, issuer);
+            if (existing != null) {
+                issuer = existing;
+            }
+        }
+        return issuer;
+    }
+
+    TokenType getTokenType() {
+        return tokenType;
+    }
+
+    // A token for the ContentKey, valid from a few minutes ago until the expiration
+    String issue(UUID contentKeyId, Date expiration) {
+        return issue(contentKeyId, expiration, new Date(System.currentTimeMillis() - CLOCK_SKEW_MILLIS));
+    }
+
+    String issue(UUID contentKeyId, Date expiration, Date notBefore) {
+        if (middle != null && contentKeyId == null) {
+            throw new IllegalArgumentException("The template requires a ContentKey identifier claim");
+        }
+        StringBuilder token = new StringBuilder(256).append(head);
+        if (middle != null) {
+            token.append(contentKeyId.toString()).append(middle);
+        }
+        Mac mac = macs.get();
+
+        if (tokenType == TokenType.SWT) {
+            token.append(TimeUnit.MILLISECONDS.toSeconds(expiration.getTime())).append(tail);
+            String signature = Base64.getEncoder().encodeToString(mac.doFinal(token.toString().getBytes(UTF8)));
+            return token.append("&HMACSHA256=").append(formEncode(signature)).toString();
+        }
+
+        token.append(TimeUnit.MILLISECONDS.toSeconds(notBefore.getTime()))
+                .append(",\"exp\":").append(TimeUnit.MILLISECONDS.toSeconds(expiration.getTime())).append('}');
+        String signed = JWT_HEADER + "." + base64Url(token.toString().getBytes(UTF8));
+        return signed + "." + base64Url(mac.doFinal(signed.getBytes(UTF8)));
+    }
+
+    // Issue a token with the serializer and one with this issuer for the same ContentKey id and times
+    // (whole seconds, as both encode them), and check that they hold the same claims and signature key
+    private void checkAgainstSerializer(TokenRestrictionTemplate template) throws GeneralSecurityException {
+        UUID contentKeyId = UUID.randomUUID();
+        long now = TimeUnit.SECONDS.toMillis(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+        Date expiration = new Date(now + TimeUnit.HOURS.toMillis(1));
+        Date notBefore = new Date(now - CLOCK_SKEW_MILLIS);
+
+        String expected;
+        try {
+            expected = TokenRestrictionTemplateSerializer.generateTestToken(template, null, contentKeyId, expiration,
+                    notBefore);
+        } catch (Exception e) {
+            throw new GeneralSecurityException("Could not generate a test token to check the issuer against", e);
+        }
+        String actual = issue(contentKeyId, expiration, notBefore);
+        if (!sameToken(expected, actual)) {
+            throw new GeneralSecurityException(String.format(
+                    "Test token does not match TokenRestrictionTemplateSerializer.generateTestToken:%n%s%n%s",
+                    expected, actual));
+        }
+    }
+
+    // SWT tokens must be identical; the JSON parts of JWT tokens must hold the same fields (the
+    // serializer does not keep the claim order), and this issuer's key must give the serializer's
+    // signature
+    private boolean sameToken(String expected, String actual) {
+        if (tokenType == TokenType.SWT) {
+            return expected.equals(actual);
+        }
+        String[] expectedParts = expected.split("\\.");
+        String[] actualParts = actual.split("\\.");
+        if (expectedParts.length != 3 || actualParts.length != 3) {
+            return false;
+        }
+        try {
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            for (int i = 0; i < 2; i++) {
+                if (!MAPPER.readTree(decoder.decode(expectedParts[i]))
+                        .equals(MAPPER.readTree(decoder.decode(actualParts[i])))) {
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        String signed = expectedParts[0] + "." + expectedParts[1];
+        return base64Url(macs.get().doFinal(signed.getBytes(UTF8))).equals(expectedParts[2]);
+    }
+
+    private Mac newMac() throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(HMAC_SHA256);
+        mac.init(key);
+        return mac;
+    }
+
+    // The serializer fills in the ContentKey id for SWT, and for JWT only when the template gives the
+    // claim no value
+    private static boolean takesContentKeyId(TokenClaim claim, TokenType tokenType) {
+        return TokenClaim.getContentKeyIdentifierClaimType().equals(claim.getClaimType())
+                && (tokenType == TokenType.SWT || claim.getClaimValue() == null);
+    }
+
+    private static String base64Url(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // Form encoding with lower-case escapes, as the serializer (and .NET) write them; the signature
+    // covers the encoded text, so the case matters
+    private static String formEncode(String value) {
+        StringBuilder encoded;
+        try {
+            encoded = new StringBuilder(URLEncoder.encode(value, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < encoded.length() - 2; i++) {
+            if (encoded.charAt(i) == '%') {
+                encoded.setCharAt(i + 1, Character.toLowerCase(encoded.charAt(i + 1)));
+                encoded.setCharAt(i + 2, Character.toLowerCase(encoded.charAt(i + 2)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,118 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.SymmetricVerificationKey;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenClaim;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenRestrictionTemplate;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenRestrictionTemplateSerializer;
+import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenType;
+
+/**
+ * Compares the tokens per second of the per-call path of the samples (deserialize the template
+ * XML, then TokenRestrictionTemplateSerializer.generateTestToken) with {@link TestTokenIssuer}, on
+ * one thread and on several. Every run issues tokens for distinct ContentKey ids, after a warm-up
+ * run of the same size so the JIT has compiled both paths. Creating the issuer checks its tokens
+ * against generateTestToken first, so the rates compare tokens with the same claims. Nothing is sent
+ * to Media Services.
+ *
+ * Usage: TokenBenchmark [tokens per run] [JWT|SWT]
+ */
+public final class TokenBenchmark {
+
+    private static final int[] THREAD_COUNTS = new int[] { 1, 2, 4, 8 };
+
+    // Utility classes should not have a public or default constructor
+    private TokenBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int tokens = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        TokenType tokenType = args.length > 1 ? TokenType.valueOf(args[1].toUpperCase()) : TokenType.JWT;
+
+        TokenRestrictionTemplate template = new TokenRestrictionTemplate(tokenType);
+        template.setAudience(new URI("urn:contoso"));
+        template.setIssuer(new URI("https://sts.contoso.com"));
+        template.setPrimaryVerificationKey(new SymmetricVerificationKey());
+        template.getRequiredClaims().add(TokenClaim.getContentKeyIdentifierClaim());
+        final String templateXml = TokenRestrictionTemplateSerializer.serialize(template);
+
+        final UUID[] contentKeyIds = new UUID[tokens];
+        for (int i = 0; i < tokens; i++) {
+            contentKeyIds[i] = UUID.randomUUID();
+        }
+        final Date expiration = new Date(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(365));
+        System.out.println(String.format("%d %s tokens per run, %d processors", tokens, tokenType,
+                Runtime.getRuntime().availableProcessors()));
+
+        // The per-call path is much slower; a tenth of the tokens gives a stable rate
+        final int perCallTokens = Math.max(1, tokens / 10);
+        Runnable perCall = new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; i < perCallTokens; i++) {
+                        TokenRestrictionTemplate parsed = TokenRestrictionTemplateSerializer.deserialize(templateXml);
+                        TokenRestrictionTemplateSerializer.generateTestToken(parsed, null, contentKeyIds[i],
+                                expiration, null);
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        perCall.run();
+        long start = System.nanoTime();
+        perCall.run();
+        report("per call", 1, perCallTokens, System.nanoTime() - start);
+
+        TestTokenIssuer issuer = TestTokenIssuer.forTemplate(templateXml);
+        System.out.println("Issuer tokens match TokenRestrictionTemplateSerializer.generateTestToken");
+        for (int threads : THREAD_COUNTS) {
+            issueAll(issuer, contentKeyIds, expiration, threads);
+            report("issuer", threads, tokens, issueAll(issuer, contentKeyIds, expiration, threads));
+        }
+    }
+
+    // Issue a token for every id, split across the threads; returns the elapsed nanoseconds
+    private static long issueAll(final TestTokenIssuer issuer, final UUID[] contentKeyIds, final Date expiration,
+            int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Callable<Integer>> slices = new ArrayList<Callable<Integer>>();
+            for (int t = 0; t < threads; t++) {
+                final int from = contentKeyIds.length * t / threads;
+                final int to = contentKeyIds.length * (t + 1) / threads;
+                slices.add(new Callable<Integer>() {
+                    public Integer call() {
+                        int length = 0;
+                        for (int i = from; i < to; i++) {
+                            length += issuer.issue(contentKeyIds[i], expiration).length();
+                        }
+                        return length;
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            for (Future<Integer> slice : executor.invokeAll(slices)) {
+                slice.get();
+            }
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void report(String label, int threads, int tokens, long nanos) {
+        System.out.println(String.format("%-10s %2d threads %12.0f tokens/s", label, threads,
+                tokens / (nanos / 1000000000.0)));
+    }
+}
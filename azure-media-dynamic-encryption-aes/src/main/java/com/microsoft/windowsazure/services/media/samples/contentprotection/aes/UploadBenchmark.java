@@ -0,0 +1,203 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the single-stream upload with the parallel block upload of {@link BlockBlobUploader}
+ * against a local HTTP stand-in for the blob endpoint. The stand-in throttles every request to a
+ * fixed bandwidth and adds a fixed latency, which is what limits a single stream to a remote
+ * storage account.
+ *
+ * Usage: UploadBenchmark [file size in MB] [per-connection MB/s] [latency in ms]
+ */
+public final class UploadBenchmark {
+
+    private static final int[] CONCURRENCY_LEVELS = new int[] { 1, 4, 8, 16 };
+    private static final int BLOCK_SIZE = 4 * 1024 * 1024;
+
+    // Utility classes should not have a public or default constructor
+    private UploadBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileSizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int connectionMbps = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int latencyMs = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        File file = createRandomFile(fileSizeMb);
+        ExecutorService serverExecutor = Executors.newCachedThreadPool();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new ThrottledBlobHandler(connectionMbps * 1024L * 1024L, latencyMs));
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        try {
+            String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/asset/benchmark.bin";
+            System.out.println(String.format("File: %d MB, stand-in: %d MB/s per connection, %d ms latency",
+                    fileSizeMb, connectionMbps, latencyMs));
+
+            long start = System.nanoTime();
+            uploadSingleStream(baseUrl, file);
+            report("single stream", file.length(), System.nanoTime() - start);
+
+            for (int concurrency : CONCURRENCY_LEVELS) {
+                BlockBlobUploader.UploadStatistics statistics = new BlockBlobUploader()
+                        .setConcurrency(concurrency)
+                        .setBlockSize(BLOCK_SIZE)
+                        .upload(new HttpBlockSink(baseUrl), file);
+                report(String.format("%d workers", concurrency), statistics.getTotalBytes(),
+                        statistics.getElapsedNanos());
+            }
+        } finally {
+            server.stop(0);
+            serverExecutor.shutdown();
+            file.delete();
+        }
+    }
+
+    private static void report(String label, long bytes, long nanos) {
+        System.out.println(String.format("%-16s %10.2f MB/s %10d ms", label,
+                (bytes / (1024.0 * 1024.0)) / (nanos / 1000000000.0), nanos / 1000000));
+    }
+
+    private static File createRandomFile(int sizeMb) throws IOException {
+        File file = File.createTempFile("upload-benchmark", ".bin");
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            for (int i = 0; i < sizeMb; i++) {
+                output.write(chunk);
+            }
+        } finally {
+            output.close();
+        }
+        return file;
+    }
+
+    private static void uploadSingleStream(String url, File file) throws IOException {
+        HttpURLConnection connection = openPut(url, file.length());
+        InputStream input = new FileInputStream(file);
+        try {
+            copy(input, connection.getOutputStream());
+        } finally {
+            input.close();
+        }
+        checkResponse(connection);
+    }
+
+    private static HttpURLConnection openPut(String url, long length) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("PUT");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(length);
+        return connection;
+    }
+
+    private static void checkResponse(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        connection.getInputStream().close();
+        if (status != HttpURLConnection.HTTP_CREATED) {
+            throw new IOException("Unexpected status " + status);
+        }
+    }
+
+    private static long copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+            total += read;
+        }
+        output.close();
+        return total;
+    }
+
+    // Sends Put Block and Put Block List requests the way the blob service expects them
+    private static final class HttpBlockSink implements BlockBlobUploader.BlockSink {
+        private final String blobUrl;
+
+        HttpBlockSink(String blobUrl) {
+            this.blobUrl = blobUrl;
+        }
+
+        public void putBlock(String blockId, InputStream content, long length, String md5) throws IOException {
+            HttpURLConnection connection = openPut(
+                    blobUrl + "?comp=block&blockid=" + URLEncoder.encode(blockId, "UTF-8"), length);
+            connection.setRequestProperty("Content-MD5", md5);
+            copy(content, connection.getOutputStream());
+            checkResponse(connection);
+        }
+
+        public void commit(List<String> blockIds) throws ServiceException, IOException {
+            StringBuilder body = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+            for (String blockId : blockIds) {
+                body.append("<Latest>").append(blockId).append("</Latest>");
+            }
+            body.append("</BlockList>");
+
+            byte[] bytes = body.toString().getBytes("UTF-8");
+            HttpURLConnection connection = openPut(blobUrl + "?comp=blocklist", bytes.length);
+            OutputStream output = connection.getOutputStream();
+            output.write(bytes);
+            output.close();
+            checkResponse(connection);
+        }
+    }
+
+    // Drains request bodies at a fixed rate per connection and answers 201 Created
+    private static final class ThrottledBlobHandler implements HttpHandler {
+        private final long bytesPerSecond;
+        private final int latencyMs;
+
+        ThrottledBlobHandler(long bytesPerSecond, int latencyMs) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.latencyMs = latencyMs;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Thread.sleep(latencyMs);
+
+                InputStream body = exchange.getRequestBody();
+                byte[] buffer = new byte[64 * 1024];
+                long start = System.nanoTime();
+                long received = 0;
+                int read;
+                while ((read = body.read(buffer)) != -1) {
+                    received += read;
+                    long expectedNanos = received * 1000000000L / bytesPerSecond;
+                    long aheadNanos = expectedNanos - (System.nanoTime() - start);
+                    if (aheadNanos > 0) {
+                        Thread.sleep(aheadNanos / 1000000, (int) (aheadNanos % 1000000));
+                    }
+                }
+                body.close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_CREATED, -1);
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only journal of a block upload. It records the Asset, the SAS Locator and every block
+ * accepted by the blob service (with its MD5), so an interrupted upload can be resumed by sending
+ * only the missing blocks. The journal is bound to the length and modification time of the
+ * source file and the block size; if any of them changes it starts over.
+ *
+ * Every record is a single line and is flushed to disk before the call returns; when a record is
+ * repeated the last one wins, and a torn last line is ignored (and ended before the next record, so
+ * that record is not lost as well).
+ */
+final class UploadJournal implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File journalFile;
+    private final Map<String, String> blocks = new HashMap<String, String>();
+    private FileOutputStream output;
+    private String assetId;
+    private String accessPolicyId;
+    private String locatorId;
+
+    private UploadJournal(File journalFile) {
+        this.journalFile = journalFile;
+    }
+
+    // Open the journal of the given source file, or start a new one
+    static UploadJournal open(File journalFile, File source, int blockSize) throws IOException {
+        String header = String.format("source %d %d %d", source.length(), source.lastModified(), blockSize);
+        UploadJournal journal = new UploadJournal(journalFile);
+
+        boolean resume = journalFile.exists() && journal.load(header);
+        if (!resume) {
+            journal.blocks.clear();
+            journal.assetId = null;
+            journal.accessPolicyId = null;
+            journal.locatorId = null;
+        }
+
+        File directory = journalFile.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        boolean torn = resume && !endsWithNewline(journalFile);
+        journal.output = new FileOutputStream(journalFile, resume);
+        if (!resume) {
+            journal.append(header);
+        } else if (torn) {
+            journal.append("");
+        }
+        return journal;
+    }
+
+    private boolean load(String expectedHeader) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF8));
+        try {
+            if (!expectedHeader.equals(reader.readLine())) {
+                return false;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] record = line.split(" ");
+                if (record.length == 2 && record[0].equals("asset")) {
+                    assetId = record[1];
+                } else if (record.length == 3 && record[0].equals("locator")) {
+                    accessPolicyId = record[1];
+                    locatorId = record[2];
+                } else if (record.length == 3 && record[0].equals("block")) {
+                    blocks.put(record[1], record[2]);
+                }
+            }
+            return true;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            if (input.length() == 0) {
+                return true;
+            }
+            input.seek(input.length() - 1);
+            return input.read() == '\n';
+        } finally {
+            input.close();
+        }
+    }
+
+    String getAssetId() {
+        return assetId;
+    }
+
+    synchronized void setAssetId(String assetId) throws IOException {
+        append("asset " + assetId);
+        this.assetId = assetId;
+    }
+
+    String getAccessPolicyId() {
+        return accessPolicyId;
+    }
+
+    String getLocatorId() {
+        return locatorId;
+    }
+
+    synchronized void setLocator(String accessPolicyId, String locatorId) throws IOException {
+        append(String.format("locator %s %s", accessPolicyId, locatorId));
+        this.accessPolicyId = accessPolicyId;
+        this.locatorId = locatorId;
+    }
+
+    synchronized boolean hasBlock(String blockId) {
+        return blocks.containsKey(blockId);
+    }
+
+    synchronized int getBlockCount() {
+        return blocks.size();
+    }
+
+    synchronized void recordBlock(String blockId, String md5) throws IOException {
+        append(String.format("block %s %s", blockId, md5));
+        blocks.put(blockId, md5);
+    }
+
+    // Remove the journal once the block list has been committed
+    synchronized void delete() throws IOException {
+        output.close();
+        journalFile.delete();
+    }
+
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+    private void append(String record) throws IOException {
+        output.write((record + "\n").getBytes(UTF8));
+        output.flush();
+        output.getFD().sync();
+    }
+}
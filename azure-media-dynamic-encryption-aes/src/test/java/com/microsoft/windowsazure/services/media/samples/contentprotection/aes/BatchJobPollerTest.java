@@ -0,0 +1,206 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.entityoperations.EntityListOperation;
+import com.microsoft.windowsazure.services.media.implementation.content.JobType;
+import com.microsoft.windowsazure.services.media.models.JobInfo;
+import com.microsoft.windowsazure.services.media.models.JobState;
+import com.microsoft.windowsazure.services.media.models.ListResult;
+
+public class BatchJobPollerTest {
+
+    private static final Pattern JOB_ID = Pattern.compile("Id eq '([^']*)'");
+
+    // The state the service reports for each Job; a Job that is not here is not listed
+    private final ConcurrentMap<String, JobState> states = new ConcurrentHashMap<String, JobState>();
+    private final List<String> filters = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger listCalls = new AtomicInteger();
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    private volatile ServiceException listError;
+    private volatile Exception pollError;
+    private BatchJobPoller poller;
+
+    @After
+    public void closePoller() {
+        if (poller != null) {
+            poller.close();
+        }
+    }
+
+    @Test
+    public void deliversEachTransitionOnceAndStopsAtAFinalState() throws InterruptedException {
+        poller = newPoller().setPollInterval(10, 40);
+        states.put("job-1", JobState.Queued);
+        poller.subscribe("job-1", listener());
+
+        assertEquals("job-1 null -> Queued", nextEvent());
+        states.put("job-1", JobState.Processing);
+        assertEquals("job-1 Queued -> Processing", nextEvent());
+        states.put("job-1", JobState.Finished);
+        assertEquals("job-1 Processing -> Finished", nextEvent());
+
+        assertEquals(0, poller.getTrackedJobCount());
+        assertNull(events.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void splitsTheJobsOfARoundIntoBatches() throws InterruptedException {
+        poller = newPoller().setPollInterval(200, 400).setBatchSize(2);
+        for (int i = 1; i <= 5; i++) {
+            states.put("job-" + i, JobState.Finished);
+            poller.subscribe("job-" + i, listener());
+        }
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(nextEvent().endsWith("-> Finished"));
+        }
+
+        Set<String> polled = new HashSet<String>();
+        for (String filter : filters) {
+            List<String> ids = jobIds(filter);
+            assertTrue(filter, ids.size() <= 2);
+            polled.addAll(ids);
+        }
+        assertEquals(5, polled.size());
+        assertEquals(3, poller.getMetrics().getRequests());
+    }
+
+    @Test
+    public void pagesThroughTheJobsOfABatch() throws InterruptedException {
+        poller = newPoller().setPollInterval(200, 400).setBatchSize(10).setPageSize(2);
+        for (int i = 1; i <= 5; i++) {
+            states.put("job-" + i, JobState.Finished);
+            poller.subscribe("job-" + i, listener());
+        }
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(nextEvent().endsWith("-> Finished"));
+        }
+        assertEquals(3, poller.getMetrics().getRequests());
+    }
+
+    @Test
+    public void failsTheJobsAfterRepeatedErrors() throws InterruptedException {
+        poller = newPoller().setPollInterval(10, 20).setMaxConsecutiveErrors(3);
+        listError = MediaServiceStub.error(503);
+        poller.subscribe("job-1", listener());
+
+        assertEquals("job-1 failed: HTTP 503", nextEvent());
+        assertEquals(3, listCalls.get());
+        assertEquals(0, poller.getTrackedJobCount());
+    }
+
+    @Test
+    public void reportsAJobThatIsNoLongerListed() throws InterruptedException {
+        poller = newPoller().setPollInterval(10, 20).setMaxAbsentRounds(3);
+        states.put("job-1", JobState.Queued);
+        states.put("job-2", JobState.Queued);
+        poller.subscribe("job-1", listener());
+        poller.subscribe("job-2", listener());
+        assertTrue(nextEvent().endsWith("null -> Queued"));
+        assertTrue(nextEvent().endsWith("null -> Queued"));
+
+        // The Job is deleted
+        states.remove("job-1");
+        assertEquals("job-1 failed: Job job-1 not found", nextEvent());
+        assertEquals(404, ((ServiceException) pollError).getHttpStatusCode());
+        assertEquals(1, poller.getTrackedJobCount());
+
+        states.put("job-2", JobState.Finished);
+        assertEquals("job-2 Queued -> Finished", nextEvent());
+    }
+
+    @Test
+    public void pollsAJobSubscribedAfterThePollerWentIdle() throws InterruptedException {
+        poller = newPoller().setPollInterval(10, 40);
+        states.put("job-1", JobState.Finished);
+        poller.subscribe("job-1", listener());
+        assertEquals("job-1 null -> Finished", nextEvent());
+
+        // Let the next round find no Jobs and stop scheduling
+        Thread.sleep(200);
+        states.put("job-2", JobState.Finished);
+        poller.subscribe("job-2", listener());
+        assertEquals("job-2 null -> Finished", nextEvent());
+    }
+
+    private BatchJobPoller newPoller() {
+        return new BatchJobPoller(MediaServiceStub.of(new MediaServiceStub.Calls() {
+            public Object call(String method, Object operation) throws ServiceException {
+                if (!method.equals("list")) {
+                    throw new UnsupportedOperationException(method);
+                }
+                listCalls.incrementAndGet();
+                if (listError != null) {
+                    throw listError;
+                }
+                return listJobs((EntityListOperation<?>) operation);
+            }
+        }));
+    }
+
+    private ListResult<JobInfo> listJobs(EntityListOperation<?> operation) {
+        String filter = operation.getQueryParameters().getFirst("$filter");
+        int top = Integer.parseInt(operation.getQueryParameters().getFirst("$top"));
+        int skip = Integer.parseInt(operation.getQueryParameters().getFirst("$skip"));
+        filters.add(filter);
+
+        List<JobInfo> jobs = new ArrayList<JobInfo>();
+        for (String jobId : jobIds(filter)) {
+            JobState state = states.get(jobId);
+            if (state != null) {
+                jobs.add(new JobInfo(null, new JobType().setId(jobId).setState(state.getCode())));
+            }
+        }
+        return new ListResult<JobInfo>(jobs.subList(Math.min(skip, jobs.size()), Math.min(skip + top, jobs.size())));
+    }
+
+    private static List<String> jobIds(String filter) {
+        List<String> ids = new ArrayList<String>();
+        Matcher matcher = JOB_ID.matcher(filter);
+        while (matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        return ids;
+    }
+
+    private BatchJobPoller.JobStateListener listener() {
+        return new BatchJobPoller.JobStateListener() {
+            public void onStateChanged(JobInfo job, JobState previousState) {
+                events.add(String.format("%s %s -> %s", job.getId(), previousState, job.getState()));
+            }
+
+            public void onPollFailed(String jobId, Exception error) {
+                pollError = error;
+                events.add(String.format("%s failed: %s", jobId, error.getMessage()));
+            }
+        };
+    }
+
+    private String nextEvent() throws InterruptedException {
+        String event = events.poll(5, TimeUnit.SECONDS);
+        if (event == null) {
+            throw new AssertionError("No Job event within 5 s");
+        }
+        return event;
+    }
+}
@@ -0,0 +1,146 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+
+public class BlockBlobUploaderTest {
+
+    private static final byte[] CONTENT = "0123456789".getBytes(Charset.forName("UTF-8"));
+    private static final int BLOCK_SIZE = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+    private File journalFile;
+    private FakeSink sink;
+
+    @Before
+    public void createSource() throws IOException {
+        source = folder.newFile("movie.mp4");
+        OutputStream output = new FileOutputStream(source);
+        try {
+            output.write(CONTENT);
+        } finally {
+            output.close();
+        }
+        journalFile = new File(folder.getRoot(), "movie.mp4.journal");
+        sink = new FakeSink();
+    }
+
+    @Test
+    public void commitsTheBlockIdsInFileOrder() throws Exception {
+        BlockBlobUploader.UploadStatistics statistics = new BlockBlobUploader()
+                .setBlockSize(BLOCK_SIZE).setConcurrency(4).upload(sink, source);
+
+        assertEquals(blockIds(0, 1, 2, 3), sink.committed);
+        ByteArrayOutputStream blob = new ByteArrayOutputStream();
+        for (String blockId : sink.committed) {
+            blob.write(sink.blocks.get(blockId));
+        }
+        assertArrayEquals(CONTENT, blob.toByteArray());
+        assertEquals(4, statistics.getBlocks().size());
+        assertEquals(CONTENT.length, statistics.getUploadedBytes());
+    }
+
+    @Test
+    public void skipsTheBlocksOfTheJournalOnResume() throws Exception {
+        UploadJournal journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        journal.recordBlock(BlockBlobUploader.createBlockId(0), "md5-0");
+        journal.recordBlock(BlockBlobUploader.createBlockId(2), "md5-2");
+        try {
+            BlockBlobUploader.UploadStatistics statistics = new BlockBlobUploader()
+                    .setBlockSize(BLOCK_SIZE).setJournal(journal).upload(sink, source);
+
+            assertEquals(2, sink.blocks.size());
+            assertTrue(sink.blocks.containsKey(BlockBlobUploader.createBlockId(1)));
+            assertTrue(sink.blocks.containsKey(BlockBlobUploader.createBlockId(3)));
+            assertEquals(2, statistics.getResumedBlocks());
+            assertEquals(blockIds(0, 1, 2, 3), sink.committed);
+            assertEquals(4, journal.getBlockCount());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void doesNotRecordAFailedBlock() throws Exception {
+        sink.failing = BlockBlobUploader.createBlockId(1);
+        UploadJournal journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        try {
+            new BlockBlobUploader().setBlockSize(BLOCK_SIZE).setConcurrency(1).setJournal(journal)
+                    .upload(sink, source);
+            fail("The failed block was not reported");
+        } catch (ServiceException e) {
+            assertEquals("block rejected", e.getMessage());
+        } finally {
+            journal.close();
+        }
+        assertNull(sink.committed);
+
+        journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        try {
+            assertTrue(journal.hasBlock(BlockBlobUploader.createBlockId(0)));
+            assertFalse(journal.hasBlock(BlockBlobUploader.createBlockId(1)));
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static List<String> blockIds(int... indexes) {
+        String[] ids = new String[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            ids[i] = BlockBlobUploader.createBlockId(indexes[i]);
+        }
+        return Arrays.asList(ids);
+    }
+
+    // Keeps the blocks in memory; putBlock of the failing block id throws
+    private static final class FakeSink implements BlockBlobUploader.BlockSink {
+        private final ConcurrentMap<String, byte[]> blocks = new ConcurrentHashMap<String, byte[]>();
+        private volatile String failing;
+        private volatile List<String> committed;
+
+        public void putBlock(String blockId, InputStream content, long length, String md5)
+                throws ServiceException, IOException {
+            if (blockId.equals(failing)) {
+                throw new ServiceException("block rejected");
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                block.write(buffer, 0, read);
+            }
+            assertEquals(length, block.size());
+            blocks.put(blockId, block.toByteArray());
+        }
+
+        public void commit(List<String> blockIds) {
+            committed = blockIds;
+        }
+    }
+}
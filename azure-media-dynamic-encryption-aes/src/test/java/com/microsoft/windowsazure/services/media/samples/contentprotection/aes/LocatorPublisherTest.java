@@ -0,0 +1,143 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.implementation.content.AccessPolicyType;
+import com.microsoft.windowsazure.services.media.implementation.content.LocatorRestType;
+import com.microsoft.windowsazure.services.media.models.AccessPolicyInfo;
+import com.microsoft.windowsazure.services.media.models.AssetDeliveryProtocol;
+import com.microsoft.windowsazure.services.media.models.ListResult;
+import com.microsoft.windowsazure.services.media.models.LocatorInfo;
+import com.microsoft.windowsazure.services.media.models.LocatorType;
+
+public class LocatorPublisherTest {
+
+    private static final String ASSET_ID = "nb:cid:UUID:1";
+    private static final double DURATION_IN_MINUTES = TimeUnit.DAYS.toMinutes(30);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // The Origin Locators the service lists for the Asset
+    private final List<LocatorInfo> locators = new ArrayList<LocatorInfo>();
+    private final List<String> calls = new CopyOnWriteArrayList<String>();
+    private volatile Date updatedExpiration;
+    private volatile int updateStatus;
+    private LocatorPublisher publisher;
+
+    @Before
+    public void createPublisher() throws IOException {
+        File manifestIndexFile = new File(folder.getRoot(), "ManifestIndex.txt");
+        OutputStream output = new FileOutputStream(manifestIndexFile);
+        try {
+            output.write((ASSET_ID + " movie.ism\n").getBytes(Charset.forName("UTF-8")));
+        } finally {
+            output.close();
+        }
+
+        MediaServiceStub.Calls service = new MediaServiceStub.Calls() {
+            public Object call(String method, Object operation) throws ServiceException {
+                String entity = operation.getClass().getName().contains("AccessPolicy") ? "AccessPolicy" : "Locator";
+                calls.add(method + " " + entity);
+                if (method.equals("list")) {
+                    return new ListResult<LocatorInfo>(locators);
+                }
+                if (method.equals("update")) {
+                    if (updateStatus != 0) {
+                        throw MediaServiceStub.error(updateStatus);
+                    }
+                    LocatorRestType contents = (LocatorRestType) ((LocatorExpiryTracker.ExpirationUpdater) operation)
+                            .getRequestContents();
+                    updatedExpiration = contents.getExpirationDateTime();
+                    return null;
+                }
+                if (method.equals("create") && entity.equals("AccessPolicy")) {
+                    return new AccessPolicyInfo(null, new AccessPolicyType().setId("nb:pid:UUID:1"));
+                }
+                if (method.equals("create")) {
+                    return locator("nb:lid:UUID:new", TimeUnit.DAYS.toMillis(30));
+                }
+                return null;
+            }
+        };
+        publisher = new LocatorPublisher(MediaServiceStub.of(service),
+                new PolicyRegistry(MediaServiceStub.of(service), "test", new File(folder.getRoot(), "PolicyIndex.txt")),
+                manifestIndexFile, EnumSet.of(AssetDeliveryProtocol.SmoothStreaming), 1)
+                .setDuration(DURATION_IN_MINUTES);
+    }
+
+    @After
+    public void closePublisher() {
+        publisher.close();
+    }
+
+    @Test
+    public void reusesALocatorWithEnoughLifetimeLeft() throws ServiceException {
+        locators.add(locator("nb:lid:UUID:live", TimeUnit.DAYS.toMillis(20)));
+
+        LocatorPublisher.StreamingUrls urls = publisher.publish(ASSET_ID);
+        assertEquals("nb:lid:UUID:live", urls.getLocatorId());
+        assertEquals("Smooth: https://origin/nb:lid:UUID:live/movie.ism/manifest", urls.toString());
+        assertEquals("[list Locator]", calls.toString());
+    }
+
+    @Test
+    public void extendsALocatorThatExpiresSoon() throws ServiceException {
+        locators.add(locator("nb:lid:UUID:live", TimeUnit.DAYS.toMillis(20)));
+        locators.add(locator("nb:lid:UUID:ending", TimeUnit.MINUTES.toMillis(1)));
+        publisher.setMinRemainingLifetime(TimeUnit.DAYS.toMinutes(25));
+
+        long before = System.currentTimeMillis();
+        LocatorPublisher.StreamingUrls urls = publisher.publish(ASSET_ID);
+        assertEquals("nb:lid:UUID:live", urls.getLocatorId());
+        assertEquals("[list Locator, update Locator]", calls.toString());
+        assertEquals(updatedExpiration, urls.getExpiration());
+        assertTrue(updatedExpiration.getTime() >= before + TimeUnit.DAYS.toMillis(30));
+    }
+
+    @Test
+    public void createsALocatorWhenTheOneToExtendIsGone() throws ServiceException {
+        locators.add(locator("nb:lid:UUID:ending", TimeUnit.MINUTES.toMillis(1)));
+        updateStatus = 404;
+
+        assertEquals("nb:lid:UUID:new", publisher.publish(ASSET_ID).getLocatorId());
+        assertEquals("[list Locator, update Locator, create AccessPolicy, create Locator]", calls.toString());
+    }
+
+    @Test
+    public void replacesExpiredLocators() throws ServiceException {
+        locators.add(locator("nb:lid:UUID:expired", -TimeUnit.MINUTES.toMillis(1)));
+
+        assertEquals("nb:lid:UUID:new", publisher.publish(ASSET_ID).getLocatorId());
+        assertEquals("[list Locator, delete Locator, create AccessPolicy, create Locator]", calls.toString());
+    }
+
+    private static LocatorInfo locator(String id, long expiresInMillis) {
+        return new LocatorInfo(null, new LocatorRestType()
+                .setId(id)
+                .setAssetId(ASSET_ID)
+                .setType(LocatorType.OnDemandOrigin.getCode())
+                .setPath("https://origin/" + id + "/")
+                .setExpirationDateTime(new Date(System.currentTimeMillis() + expiresInMillis)));
+    }
+}
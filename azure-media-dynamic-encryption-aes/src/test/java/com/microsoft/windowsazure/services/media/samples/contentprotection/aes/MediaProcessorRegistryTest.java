@@ -0,0 +1,57 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.implementation.content.MediaProcessorType;
+import com.microsoft.windowsazure.services.media.models.ListResult;
+import com.microsoft.windowsazure.services.media.models.MediaProcessorInfo;
+
+public class MediaProcessorRegistryTest {
+
+    @Test
+    public void comparesVersionsNumerically() {
+        assertTrue(MediaProcessorRegistry.compareVersions("10.0", "9.0") > 0);
+        assertTrue(MediaProcessorRegistry.compareVersions("4.10.1", "4.9.12") > 0);
+        assertTrue(MediaProcessorRegistry.compareVersions("1.2", "1.10") < 0);
+    }
+
+    @Test
+    public void treatsMissingPartsAsZero() {
+        assertEquals(0, MediaProcessorRegistry.compareVersions("1.2", "1.2.0"));
+        assertTrue(MediaProcessorRegistry.compareVersions("1.2.1", "1.2") > 0);
+        assertTrue(MediaProcessorRegistry.compareVersions(null, "0.1") < 0);
+    }
+
+    @Test
+    public void resolvesTheLatestVersionOnce() throws ServiceException {
+        final AtomicInteger lists = new AtomicInteger();
+        MediaProcessorRegistry registry = new MediaProcessorRegistry(MediaServiceStub.of(
+                new MediaServiceStub.Calls() {
+                    public Object call(String method, Object operation) {
+                        lists.incrementAndGet();
+                        return new ListResult<MediaProcessorInfo>(Arrays.asList(
+                                processor("nb:mpid:1", "9.0"),
+                                processor("nb:mpid:2", "10.0"),
+                                processor("nb:mpid:3", "9.5")));
+                    }
+                }), 60000);
+        try {
+            assertEquals("nb:mpid:2", registry.resolve("Media Encoder Standard").getId());
+            assertEquals("nb:mpid:2", registry.resolve("Media Encoder Standard").getId());
+            assertEquals(1, lists.get());
+        } finally {
+            registry.close();
+        }
+    }
+
+    private static MediaProcessorInfo processor(String id, String version) {
+        return new MediaProcessorInfo(null, new MediaProcessorType().setId(id).setVersion(version));
+    }
+}
@@ -0,0 +1,46 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+
+/**
+ * A {@link MediaContract} for tests: every call (create, get, list, update, delete, action) is
+ * passed to a {@link Calls} with the operation it was given.
+ */
+final class MediaServiceStub {
+
+    // Answers the calls of the stub
+    interface Calls {
+        Object call(String method, Object operation) throws ServiceException;
+    }
+
+    private MediaServiceStub() {
+    }
+
+    static MediaContract of(final Calls calls) {
+        return (MediaContract) Proxy.newProxyInstance(MediaContract.class.getClassLoader(),
+                new Class<?>[] { MediaContract.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            try {
+                                return method.invoke(this, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                        return calls.call(method.getName(), args == null || args.length == 0 ? null : args[0]);
+                    }
+                });
+    }
+
+    static ServiceException error(int httpStatusCode) {
+        ServiceException error = new ServiceException("HTTP " + httpStatusCode);
+        error.setHttpStatusCode(httpStatusCode);
+        return error;
+    }
+}
@@ -0,0 +1,155 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.implementation.content.AccessPolicyType;
+import com.microsoft.windowsazure.services.media.models.AccessPolicyInfo;
+import com.microsoft.windowsazure.services.media.models.AccessPolicyPermission;
+
+public class PolicyRegistryTest {
+
+    private static final String SCOPE = "https://media.windows.net/API/";
+    private static final EnumSet<AccessPolicyPermission> READ = EnumSet.of(AccessPolicyPermission.READ);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicInteger creates = new AtomicInteger();
+    private final AtomicInteger gets = new AtomicInteger();
+    private volatile int getStatus;
+    private MediaContract mediaService;
+    private File indexFile;
+
+    @Before
+    public void createStub() {
+        indexFile = new File(folder.getRoot(), "PolicyIndex.txt");
+        mediaService = MediaServiceStub.of(new MediaServiceStub.Calls() {
+            public Object call(String method, Object operation) throws ServiceException {
+                if (method.equals("create")) {
+                    return new AccessPolicyInfo(null,
+                            new AccessPolicyType().setId("nb:pid:UUID:" + creates.incrementAndGet()));
+                }
+                if (method.equals("get")) {
+                    gets.incrementAndGet();
+                    if (getStatus != 0) {
+                        throw MediaServiceStub.error(getStatus);
+                    }
+                    return null;
+                }
+                throw new UnsupportedOperationException(method);
+            }
+        });
+    }
+
+    @Test
+    public void reusesAPolicyWithTheSameDefinition() throws Exception {
+        PolicyRegistry policies = new PolicyRegistry(mediaService, SCOPE, indexFile);
+        String first = policies.getAccessPolicy("Streaming policy", 60, READ);
+
+        assertEquals(first, policies.getAccessPolicy("Streaming policy", 60, READ));
+        assertNotEquals(first, policies.getAccessPolicy("Streaming policy", 120, READ));
+        assertNotEquals(first, policies.getAccessPolicy("Upload policy", 60, READ));
+        assertEquals(3, creates.get());
+    }
+
+    @Test
+    public void keepsThePoliciesOfEachScopeApart() throws Exception {
+        String first = new PolicyRegistry(mediaService, SCOPE, indexFile)
+                .getAccessPolicy("Streaming policy", 60, READ);
+        String other = new PolicyRegistry(mediaService, "https://other.windows.net/API/", indexFile)
+                .getAccessPolicy("Streaming policy", 60, READ);
+
+        assertNotEquals(first, other);
+        assertEquals(2, creates.get());
+    }
+
+    @Test
+    public void verifiesAnIndexedPolicyOnceAfterARestart() throws Exception {
+        String first = new PolicyRegistry(mediaService, SCOPE, indexFile)
+                .getAccessPolicy("Streaming policy", 60, READ);
+
+        PolicyRegistry restarted = new PolicyRegistry(mediaService, SCOPE, indexFile);
+        assertEquals(first, restarted.getAccessPolicy("Streaming policy", 60, READ));
+        assertEquals(first, restarted.getAccessPolicy("Streaming policy", 60, READ));
+        assertEquals(1, creates.get());
+        assertEquals(1, gets.get());
+    }
+
+    @Test
+    public void recreatesAnIndexedPolicyThatIsGone() throws Exception {
+        String first = new PolicyRegistry(mediaService, SCOPE, indexFile)
+                .getAccessPolicy("Streaming policy", 60, READ);
+
+        getStatus = 404;
+        String recreated = new PolicyRegistry(mediaService, SCOPE, indexFile)
+                .getAccessPolicy("Streaming policy", 60, READ);
+        assertNotEquals(first, recreated);
+
+        getStatus = 0;
+        assertEquals(recreated, new PolicyRegistry(mediaService, SCOPE, indexFile)
+                .getAccessPolicy("Streaming policy", 60, READ));
+        assertEquals(2, creates.get());
+    }
+
+    @Test
+    public void keepsAnIndexedPolicyWhenTheCheckFails() throws Exception {
+        new PolicyRegistry(mediaService, SCOPE, indexFile).getAccessPolicy("Streaming policy", 60, READ);
+
+        getStatus = 503;
+        try {
+            new PolicyRegistry(mediaService, SCOPE, indexFile).getAccessPolicy("Streaming policy", 60, READ);
+            fail("The failed check was not reported");
+        } catch (ServiceException e) {
+            assertEquals(503, e.getHttpStatusCode());
+        }
+        assertEquals(1, creates.get());
+    }
+
+    @Test
+    public void recordsValuesOnce() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<String> factory = new Callable<String>() {
+            public String call() {
+                return "secret " + calls.incrementAndGet();
+            }
+        };
+
+        assertEquals("secret 1", new PolicyRegistry(mediaService, SCOPE, indexFile).getValue("Token key", factory));
+        assertEquals("secret 1", new PolicyRegistry(mediaService, SCOPE, indexFile).getValue("Token key", factory));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void keepsTheIndexOwnerOnly() throws Exception {
+        Assume.assumeTrue(Files.getFileStore(folder.getRoot().toPath()).supportsFileAttributeView("posix"));
+
+        new PolicyRegistry(mediaService, SCOPE, indexFile).getAccessPolicy("Streaming policy", 60, READ);
+        assertEquals("rw-------", permissions(indexFile));
+
+        Files.setPosixFilePermissions(indexFile.toPath(), PosixFilePermissions.fromString("rw-r--r--"));
+        new PolicyRegistry(mediaService, SCOPE, indexFile);
+        assertEquals("rw-------", permissions(indexFile));
+    }
+
+    private static String permissions(File file) throws IOException {
+        return PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath()));
+    }
+}
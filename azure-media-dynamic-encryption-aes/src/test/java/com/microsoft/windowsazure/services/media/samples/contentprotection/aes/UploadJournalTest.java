@@ -0,0 +1,134 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.aes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadJournalTest {
+
+    private static final int BLOCK_SIZE = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+    private File journalFile;
+
+    @Before
+    public void createSource() throws IOException {
+        source = folder.newFile("movie.mp4");
+        write(source, "0123456789", false);
+        journalFile = new File(folder.getRoot(), "journal/movie.mp4.journal");
+    }
+
+    @Test
+    public void resumesWithTheRecordedAssetLocatorAndBlocks() throws IOException {
+        UploadJournal journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        journal.setAssetId("nb:cid:UUID:1");
+        journal.setLocator("nb:pid:UUID:2", "nb:lid:UUID:3");
+        journal.recordBlock("YmxvY2swMDAwMA==", "md5-a");
+        journal.recordBlock("YmxvY2swMDAwMQ==", "md5-b");
+        journal.close();
+
+        journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        try {
+            assertEquals("nb:cid:UUID:1", journal.getAssetId());
+            assertEquals("nb:pid:UUID:2", journal.getAccessPolicyId());
+            assertEquals("nb:lid:UUID:3", journal.getLocatorId());
+            assertEquals(2, journal.getBlockCount());
+            assertTrue(journal.hasBlock("YmxvY2swMDAwMA=="));
+            assertTrue(journal.hasBlock("YmxvY2swMDAwMQ=="));
+            assertFalse(journal.hasBlock("YmxvY2swMDAwMg=="));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void startsOverWhenTheSourceChanges() throws IOException {
+        UploadJournal journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        journal.setAssetId("nb:cid:UUID:1");
+        journal.recordBlock("YmxvY2swMDAwMA==", "md5-a");
+        journal.close();
+
+        write(source, "more", true);
+        journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        try {
+            assertNull(journal.getAssetId());
+            assertEquals(0, journal.getBlockCount());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void startsOverWhenTheBlockSizeChanges() throws IOException {
+        UploadJournal journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        journal.recordBlock("YmxvY2swMDAwMA==", "md5-a");
+        journal.close();
+
+        journal = UploadJournal.open(journalFile, source, BLOCK_SIZE * 2);
+        try {
+            assertEquals(0, journal.getBlockCount());
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void ignoresATornLastLineAndKeepsTheNextRecord() throws IOException {
+        UploadJournal journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        journal.recordBlock("YmxvY2swMDAwMA==", "md5-a");
+        journal.close();
+        write(journalFile, "block YmxvY2swMDAwMQ", true);
+
+        journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        assertEquals(1, journal.getBlockCount());
+        journal.recordBlock("YmxvY2swMDAwMQ==", "md5-b");
+        journal.close();
+
+        journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        try {
+            assertEquals(2, journal.getBlockCount());
+            assertTrue(journal.hasBlock("YmxvY2swMDAwMQ=="));
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void deleteRemovesTheJournal() throws IOException {
+        UploadJournal journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        journal.recordBlock("YmxvY2swMDAwMA==", "md5-a");
+        journal.delete();
+
+        assertFalse(journalFile.exists());
+        journal = UploadJournal.open(journalFile, source, BLOCK_SIZE);
+        try {
+            assertEquals(0, journal.getBlockCount());
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static void write(File file, String text, boolean append) throws IOException {
+        OutputStream output = new FileOutputStream(file, append);
+        try {
+            output.write(text.getBytes(Charset.forName("UTF-8")));
+        } finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.fairplay;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.Asset;
+import com.microsoft.windowsazure.services.media.models.AssetInfo;
+import com.microsoft.windowsazure.services.media.models.ContentKeyInfo;
+import com.microsoft.windowsazure.services.media.models.ContentKeyType;
+
+/**
+ * Protects existing Assets in bulk. The Assets are read in parallel, and every Asset gets its own
+ * ContentKey (the one an earlier attempt already linked, or a new one) through the bulk path of the
+ * {@link ContentKeyProvisioner}; the authorization and delivery policies then come from the
+ * {@link PolicyRegistry} and are shared by the whole batch, so the Assets in the retry file can
+ * simply be protected again. The first Asset is protected alone, so the shared policies are created once and
+ * a configuration error stops the batch before it reaches the other Assets.
+ *
+ * A failed Asset does not stop the others; every Asset gets a {@link Result}, and
+ * {@link #printSummary} lists them and writes the ids of the Assets to retry to a file.
+ */
+final class BatchProtector implements Closeable {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String ASSET_ID_PREFIX = "nb:cid:";
+
+    // Protects one Asset with its ContentKey
+    interface Protection {
+        void protect(AssetInfo asset, ContentKeyInfo contentKey) throws Exception;
+    }
+
+    private final MediaContract mediaService;
+    private final ContentKeyProvisioner contentKeys;
+    private final ContentKeyType contentKeyType;
+    private final String contentKeyName;
+    private final ExecutorService executor;
+
+    BatchProtector(MediaContract mediaService, ContentKeyProvisioner contentKeys, ContentKeyType contentKeyType,
+            String contentKeyName, int parallelism) {
+        this.mediaService = mediaService;
+        this.contentKeys = contentKeys;
+        this.contentKeyType = contentKeyType;
+        this.contentKeyName = contentKeyName;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "batch-protect-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // The Asset ids of the arguments: each one is an Asset id, or a file with one id per line
+    // (blank lines and lines starting with # are ignored); duplicates are dropped
+    static List<String> readAssetIds(List<String> arguments) throws IOException {
+        Set<String> assetIds = new LinkedHashSet<String>();
+        for (String argument : arguments) {
+            if (argument.startsWith(ASSET_ID_PREFIX)) {
+                assetIds.add(argument);
+                continue;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(argument), UTF8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        assetIds.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return new ArrayList<String>(assetIds);
+    }
+
+    // Protect every Asset; the results are in the order of the ids
+    List<Result> protectAll(List<String> assetIds, final Protection protection) throws InterruptedException {
+        List<Result> results = new ArrayList<Result>();
+        if (assetIds.isEmpty()) {
+            return results;
+        }
+
+        Result first = protect(assetIds.subList(0, 1), protection).get(0);
+        results.add(first);
+        if (!first.isProtected()) {
+            for (String assetId : assetIds.subList(1, assetIds.size())) {
+                results.add(new Result(assetId, null, null, "not attempted, the first Asset failed", 0));
+            }
+            return results;
+        }
+
+        results.addAll(protect(assetIds.subList(1, assetIds.size()), protection));
+        return results;
+    }
+
+    // List the results, with the totals, and write the ids of the Assets that were not protected
+    // to the retry file (which is deleted when there are none)
+    static void printSummary(List<Result> results, long elapsedMillis, File retryFile) throws IOException {
+        List<String> retry = new ArrayList<String>();
+        for (Result result : results) {
+            System.out.println(result);
+            if (!result.isProtected()) {
+                retry.add(result.assetId);
+            }
+        }
+
+        System.out.println(String.format("Protected %d of %d Assets in %.1f s (%.1f Assets/s), %d failed",
+                results.size() - retry.size(), results.size(), elapsedMillis / 1000.0,
+                results.size() * 1000.0 / Math.max(1, elapsedMillis), retry.size()));
+
+        if (retry.isEmpty()) {
+            retryFile.delete();
+            return;
+        }
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(retryFile), UTF8));
+        try {
+            for (String assetId : retry) {
+                out.println(assetId);
+            }
+        } finally {
+            out.close();
+        }
+        System.out.println("Assets to retry written to " + retryFile.getPath());
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    // Read the Assets, create their ContentKeys in bulk, then protect the Assets that got a key; the
+    // elapsed time of each Asset runs from the start of the batch
+    private List<Result> protect(List<String> assetIds, final Protection protection) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        Result[] results = new Result[assetIds.size()];
+
+        List<Callable<AssetInfo>> reads = new ArrayList<Callable<AssetInfo>>();
+        for (final String assetId : assetIds) {
+            reads.add(new Callable<AssetInfo>() {
+                public AssetInfo call() throws ServiceException {
+                    return mediaService.get(Asset.get(assetId));
+                }
+            });
+        }
+        List<AssetInfo> assets = new ArrayList<AssetInfo>();
+        List<Integer> positions = new ArrayList<Integer>();
+        List<Future<AssetInfo>> read = executor.invokeAll(reads);
+        for (int i = 0; i < read.size(); i++) {
+            try {
+                assets.add(read.get(i).get());
+                positions.add(i);
+            } catch (ExecutionException e) {
+                results[i] = new Result(assetIds.get(i), null, null, message(e.getCause()),
+                        System.currentTimeMillis() - start);
+            }
+        }
+
+        List<ContentKeyProvisioner.Result> keys = contentKeys.findOrCreateAndLinkAll(contentKeyType, contentKeyName, assets);
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+        final List<Integer> taskPositions = new ArrayList<Integer>();
+        for (int i = 0; i < keys.size(); i++) {
+            final AssetInfo asset = assets.get(i);
+            final ContentKeyProvisioner.Result key = keys.get(i);
+            if (!key.isCreated()) {
+                results[positions.get(i)] = new Result(asset.getId(), asset.getName(), null,
+                        message(key.getError()), System.currentTimeMillis() - start);
+                continue;
+            }
+            taskPositions.add(positions.get(i));
+            tasks.add(new Callable<Result>() {
+                public Result call() {
+                    String contentKeyId = key.getContentKey().getId();
+                    try {
+                        protection.protect(asset, key.getContentKey());
+                        return new Result(asset.getId(), asset.getName(), contentKeyId, null,
+                                System.currentTimeMillis() - start);
+                    } catch (Exception e) {
+                        return new Result(asset.getId(), asset.getName(), contentKeyId, message(e),
+                                System.currentTimeMillis() - start);
+                    }
+                }
+            });
+        }
+
+        List<Future<Result>> protectedAssets = executor.invokeAll(tasks);
+        for (int i = 0; i < protectedAssets.size(); i++) {
+            try {
+                results[taskPositions.get(i)] = protectedAssets.get(i).get();
+            } catch (ExecutionException e) {
+                // The tasks report their own failures
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private static String message(Throwable error) {
+        return error.getMessage() != null ? error.getMessage() : error.toString();
+    }
+
+    // The outcome of one Asset
+    static final class Result {
+        private final String assetId;
+        private final String assetName;
+        private final String contentKeyId;
+        private final String error;
+        private final long elapsedMillis;
+
+        Result(String assetId, String assetName, String contentKeyId, String error, long elapsedMillis) {
+            this.assetId = assetId;
+            this.assetName = assetName;
+            this.contentKeyId = contentKeyId;
+            this.error = error;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        boolean isProtected() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            String name = assetName != null ? " (" + assetName + ")" : "";
+            if (error != null) {
+                return String.format("%s%s: failed, %s", assetId, name, error);
+            }
+            return String.format("%s%s: %s in %d ms", assetId, name, contentKeyId, elapsedMillis);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.fairplay;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.entityoperations.EntityOperationBase;
+import com.microsoft.windowsazure.services.media.entityoperations.EntityUpdateOperation;
+import com.microsoft.windowsazure.services.media.implementation.content.LocatorRestType;
+import com.microsoft.windowsazure.services.media.models.ListResult;
+import com.microsoft.windowsazure.services.media.models.Locator;
+import com.microsoft.windowsazure.services.media.models.LocatorInfo;
+import com.microsoft.windowsazure.services.media.models.LocatorType;
+
+/**
+ * Tracks when the Origin Locators of an account expire and renews them before they do.
+ * {@link #refresh} pages through every Locator and queues the OnDemandOrigin ones by expiry time;
+ * {@link #renewExpiring} takes the Locators that expire within the renewal window off the queue and
+ * extends them in parallel, with a {@link TokenBucket} limiting the REST requests per second so a
+ * large catalog is not throttled.
+ *
+ * A Locator is renewed by moving its expiry time, which keeps its path and every URL published
+ * with it. Only a Locator that is gone (deleted, or already expired) is replaced through the
+ * {@link LocatorPublisher}; its path changes, and the new URLs are reported. Any other failure is
+ * reported and the Locator is retried on a later pass.
+ */
+final class LocatorExpiryTracker implements Closeable {
+
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final long RETRY_DELAY_MILLIS = 60000;
+
+    private final MediaContract mediaService;
+    private final LocatorPublisher publisher;
+    private final TokenBucket requests;
+    private final ExecutorService executor;
+    private final PriorityQueue<TrackedLocator> queue = new PriorityQueue<TrackedLocator>();
+    private final List<TrackedLocator> retries = new ArrayList<TrackedLocator>();
+    private int pageSize = 1000;
+
+    LocatorExpiryTracker(MediaContract mediaService, LocatorPublisher publisher, double requestsPerSecond,
+            int parallelism) {
+        this.mediaService = mediaService;
+        this.publisher = publisher;
+        this.requests = new TokenBucket(requestsPerSecond, Math.max(1, parallelism));
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "locator-renewal-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Locators listed per request
+    LocatorExpiryTracker setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, pageSize);
+        return this;
+    }
+
+    // Replace the queue with the Origin Locators of the account; returns how many are tracked
+    int refresh() throws ServiceException, InterruptedException {
+        List<TrackedLocator> locators = new ArrayList<TrackedLocator>();
+        int skip = 0;
+        while (true) {
+            requests.acquire();
+            ListResult<LocatorInfo> page = mediaService.list(Locator.list()
+                    .set("$top", String.valueOf(pageSize))
+                    .set("$skip", String.valueOf(skip)));
+            for (LocatorInfo locator : page) {
+                if (locator.getLocatorType() == LocatorType.OnDemandOrigin && locator.getExpirationDateTime() != null) {
+                    locators.add(new TrackedLocator(locator.getId(), locator.getAssetId(),
+                            locator.getExpirationDateTime().getTime()));
+                }
+            }
+            if (page.size() < pageSize) {
+                break;
+            }
+            skip += page.size();
+        }
+
+        synchronized (this) {
+            queue.clear();
+            retries.clear();
+            queue.addAll(locators);
+            return queue.size();
+        }
+    }
+
+    // The earliest expiry time, or null when no Locator is tracked
+    synchronized Date getNextExpiration() {
+        TrackedLocator next = queue.peek();
+        return next == null ? null : new Date(next.expiration);
+    }
+
+    // Milliseconds until the earliest Locator enters the renewal window or a failed one is due to be
+    // retried (0 if one already is)
+    synchronized long getMillisUntilDue(long windowMillis) {
+        long now = System.currentTimeMillis();
+        long due = Long.MAX_VALUE;
+        TrackedLocator next = queue.peek();
+        if (next != null) {
+            due = Math.max(0, next.expiration - windowMillis - now);
+        }
+        for (TrackedLocator retry : retries) {
+            due = Math.min(due, Math.max(0, retry.retryAt - now));
+        }
+        return due;
+    }
+
+    // Extend every Locator that expires within the window until the given time from now; renewed
+    // Locators go back in the queue with their new expiry time, and failed ones are retried after the
+    // retry delay
+    List<Renewal> renewExpiring(long windowMillis, long extensionMillis) throws InterruptedException {
+        final long now = System.currentTimeMillis();
+        final Date expiration = new Date(now + extensionMillis);
+        List<TrackedLocator> due = new ArrayList<TrackedLocator>();
+        synchronized (this) {
+            while (!queue.isEmpty() && queue.peek().expiration <= now + windowMillis) {
+                due.add(queue.poll());
+            }
+            for (Iterator<TrackedLocator> retry = retries.iterator(); retry.hasNext();) {
+                TrackedLocator locator = retry.next();
+                if (locator.retryAt <= now) {
+                    due.add(locator);
+                    retry.remove();
+                }
+            }
+        }
+
+        List<Callable<Renewal>> tasks = new ArrayList<Callable<Renewal>>();
+        for (final TrackedLocator locator : due) {
+            tasks.add(new Callable<Renewal>() {
+                public Renewal call() throws InterruptedException {
+                    return renew(locator, expiration);
+                }
+            });
+        }
+
+        List<Renewal> renewals = new ArrayList<Renewal>();
+        for (Future<Renewal> renewal : executor.invokeAll(tasks)) {
+            try {
+                renewals.add(renewal.get());
+            } catch (ExecutionException e) {
+                // renew() reports its own failures
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        synchronized (this) {
+            long retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+            for (int i = 0; i < renewals.size(); i++) {
+                Renewal renewal = renewals.get(i);
+                if (renewal.error == null) {
+                    queue.add(new TrackedLocator(renewal.locatorId, renewal.assetId, renewal.expiration.getTime()));
+                } else if (!renewal.gone) {
+                    TrackedLocator locator = due.get(i);
+                    locator.retryAt = retryAt;
+                    retries.add(locator);
+                }
+            }
+        }
+        return renewals;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private Renewal renew(TrackedLocator locator, Date expiration) throws InterruptedException {
+        try {
+            requests.acquire();
+            mediaService.update(new ExpirationUpdater(locator.locatorId, expiration));
+            return new Renewal(locator.assetId, locator.locatorId, expiration, null, null, false);
+        } catch (ServiceException updateFailure) {
+            boolean gone = updateFailure.getHttpStatusCode() == HTTP_NOT_FOUND
+                    || locator.expiration <= System.currentTimeMillis();
+            if (!gone) {
+                // Throttling, authentication or network errors: keep the Locator and try again later
+                return new Renewal(locator.assetId, locator.locatorId, null, null, updateFailure.getMessage(), false);
+            }
+            if (publisher == null) {
+                return new Renewal(locator.assetId, locator.locatorId, null, null, updateFailure.getMessage(), true);
+            }
+            try {
+                requests.acquire();
+                LocatorPublisher.StreamingUrls urls = publisher.publish(locator.assetId);
+                return new Renewal(locator.assetId, urls.getLocatorId(), urls.getExpiration(), urls, null, false);
+            } catch (ServiceException publishFailure) {
+                return new Renewal(locator.assetId, locator.locatorId, null, null, publishFailure.getMessage(),
+                        false);
+            }
+        }
+    }
+
+    // Moves the expiry time of a Locator; Locator.Updater of the SDK only sends the start time
+    static final class ExpirationUpdater extends EntityOperationBase implements EntityUpdateOperation {
+        private final Date expiration;
+
+        ExpirationUpdater(String locatorId, Date expiration) {
+            super(new EntityOperationBase.EntityIdUriBuilder("Locators", locatorId));
+            this.expiration = expiration;
+        }
+
+        public Object getRequestContents() {
+            return new LocatorRestType().setExpirationDateTime(expiration);
+        }
+    }
+
+    // An Origin Locator in the queue, ordered by expiry time
+    private static final class TrackedLocator implements Comparable<TrackedLocator> {
+        private final String locatorId;
+        private final String assetId;
+        private final long expiration;
+        private long retryAt;
+
+        TrackedLocator(String locatorId, String assetId, long expiration) {
+            this.locatorId = locatorId;
+            this.assetId = assetId;
+            this.expiration = expiration;
+        }
+
+        public int compareTo(TrackedLocator other) {
+            return Long.compare(expiration, other.expiration);
+        }
+    }
+
+    // The outcome of one Locator: extended in place, replaced with a new Locator, or failed
+    static final class Renewal {
+        private final String assetId;
+        private final String locatorId;
+        private final Date expiration;
+        private final LocatorPublisher.StreamingUrls replacement;
+        private final String error;
+        private final boolean gone;
+
+        Renewal(String assetId, String locatorId, Date expiration, LocatorPublisher.StreamingUrls replacement,
+                String error, boolean gone) {
+            this.assetId = assetId;
+            this.locatorId = locatorId;
+            this.expiration = expiration;
+            this.replacement = replacement;
+            this.error = error;
+            this.gone = gone;
+        }
+
+        boolean isRenewed() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return String.format("Locator %s of Asset %s: failed%s, %s", locatorId, assetId,
+                        gone ? "" : " (will retry)", error);
+            }
+            if (replacement != null) {
+                return String.format("Asset %s: replaced with Locator %s until %s, new URLs:\n%s", assetId,
+                        locatorId, expiration, replacement);
+            }
+            return String.format("Locator %s of Asset %s: extended until %s", locatorId, assetId, expiration);
+        }
+    }
+}
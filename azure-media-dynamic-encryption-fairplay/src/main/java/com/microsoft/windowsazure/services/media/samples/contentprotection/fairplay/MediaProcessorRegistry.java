@@ -0,0 +1,141 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.fairplay;
+
+import java.io.Closeable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.ListResult;
+import com.microsoft.windowsazure.services.media.models.MediaProcessor;
+import com.microsoft.windowsazure.services.media.models.MediaProcessorInfo;
+
+/**
+ * Resolves a Media Processor name to its latest version and caches the result. A name is listed
+ * once; after the time-to-live the cached processor is still returned while a background refresh
+ * fetches the current one, so Jobs never wait on the lookup after the first resolution.
+ */
+final class MediaProcessorRegistry implements Closeable {
+
+    private final MediaContract mediaService;
+    private final long timeToLiveMillis;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ExecutorService refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "media-processor-refresh");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    MediaProcessorRegistry(MediaContract mediaService, long timeToLiveMillis) {
+        this.mediaService = mediaService;
+        this.timeToLiveMillis = timeToLiveMillis;
+    }
+
+    // Get the latest version of the Media Processor with the given name
+    MediaProcessorInfo resolve(String name) throws ServiceException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            Entry created = new Entry();
+            entry = entries.putIfAbsent(name, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+
+        synchronized (entry) {
+            if (entry.processor == null) {
+                entry.set(lookup(name));
+                return entry.processor;
+            }
+        }
+
+        if (entry.isExpired() && entry.refreshing.compareAndSet(false, true)) {
+            refreshInBackground(name, entry);
+        }
+        return entry.processor;
+    }
+
+    // Forget a cached processor, for example after a Job failed because it was retired
+    void invalidate(String name) {
+        entries.remove(name);
+    }
+
+    public void close() {
+        refresher.shutdownNow();
+    }
+
+    private void refreshInBackground(final String name, final Entry entry) {
+        refresher.execute(new Runnable() {
+            public void run() {
+                try {
+                    entry.set(lookup(name));
+                } catch (ServiceException se) {
+                    // Keep serving the cached processor; the next resolve tries again
+                    System.out.println("Media Processor refresh failed: " + se.toString());
+                } finally {
+                    entry.refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    private MediaProcessorInfo lookup(String name) throws ServiceException {
+        // Retrieve the list of Media Processors that match the name
+        ListResult<MediaProcessorInfo> mediaProcessors = mediaService
+                .list(MediaProcessor.list().set("$filter", String.format("Name eq '%s'", name)));
+
+        // Use the latest version of the Media Processor
+        MediaProcessorInfo latest = null;
+        for (MediaProcessorInfo info : mediaProcessors) {
+            if (latest == null || compareVersions(info.getVersion(), latest.getVersion()) > 0) {
+                latest = info;
+            }
+        }
+
+        if (latest == null) {
+            throw new ServiceException(String.format("Media Processor '%s' not found", name));
+        }
+        return latest;
+    }
+
+    // Compare dotted version strings numerically, so that "10.0" is newer than "9.0"
+    static int compareVersions(String left, String right) {
+        String[] leftParts = left == null ? new String[0] : left.split("\\.");
+        String[] rightParts = right == null ? new String[0] : right.split("\\.");
+        for (int i = 0; i < Math.max(leftParts.length, rightParts.length); i++) {
+            String leftPart = i < leftParts.length ? leftParts[i].trim() : "0";
+            String rightPart = i < rightParts.length ? rightParts[i].trim() : "0";
+            int result;
+            try {
+                result = Long.compare(Long.parseLong(leftPart), Long.parseLong(rightPart));
+            } catch (NumberFormatException e) {
+                result = leftPart.compareTo(rightPart);
+            }
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    private final class Entry {
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile MediaProcessorInfo processor;
+        private volatile long expiresAt;
+
+        void set(MediaProcessorInfo processor) {
+            this.processor = processor;
+            this.expiresAt = System.currentTimeMillis() + timeToLiveMillis;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+    }
+}
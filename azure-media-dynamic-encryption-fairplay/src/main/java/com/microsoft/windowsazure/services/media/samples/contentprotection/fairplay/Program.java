@@ -1,16 +1,12 @@
 package com.microsoft.windowsazure.services.media.samples.contentprotection.fairplay;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.IOException;
 import java.net.URI;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.EnumSet;
@@ -19,22 +15,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.microsoft.windowsazure.Configuration;
-import com.microsoft.windowsazure.core.utils.Base64;
 import com.microsoft.windowsazure.exception.ServiceException;
-import com.microsoft.windowsazure.services.media.EncryptionUtils;
 import com.microsoft.windowsazure.services.media.MediaConfiguration;
 import com.microsoft.windowsazure.services.media.MediaContract;
 import com.microsoft.windowsazure.services.media.MediaService;
 import com.microsoft.windowsazure.services.media.WritableBlobContainerContract;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdClientSymmetricKey;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenCredentials;
-import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenProvider;
 import com.microsoft.windowsazure.services.media.authentication.AzureEnvironments;
-import com.microsoft.windowsazure.services.media.authentication.TokenProvider;
 import com.microsoft.windowsazure.services.media.implementation.templates.fairplay.FairPlayConfiguration;
 import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.SymmetricVerificationKey;
 import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.TokenClaim;
@@ -45,19 +39,12 @@ import com.microsoft.windowsazure.services.media.models.AccessPolicy;
 import com.microsoft.windowsazure.services.media.models.AccessPolicyInfo;
 import com.microsoft.windowsazure.services.media.models.AccessPolicyPermission;
 import com.microsoft.windowsazure.services.media.models.Asset;
-import com.microsoft.windowsazure.services.media.models.AssetDeliveryPolicy;
 import com.microsoft.windowsazure.services.media.models.AssetDeliveryPolicyConfigurationKey;
-import com.microsoft.windowsazure.services.media.models.AssetDeliveryPolicyInfo;
 import com.microsoft.windowsazure.services.media.models.AssetDeliveryPolicyType;
 import com.microsoft.windowsazure.services.media.models.AssetDeliveryProtocol;
 import com.microsoft.windowsazure.services.media.models.AssetFile;
-import com.microsoft.windowsazure.services.media.models.AssetFileInfo;
 import com.microsoft.windowsazure.services.media.models.AssetInfo;
 import com.microsoft.windowsazure.services.media.models.ContentKey;
-import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicy;
-import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyInfo;
-import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyOption;
-import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyOptionInfo;
 import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyRestriction;
 import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyRestriction.ContentKeyRestrictionType;
 import com.microsoft.windowsazure.services.media.models.ContentKeyDeliveryType;
@@ -70,15 +57,19 @@ import com.microsoft.windowsazure.services.media.models.ListResult;
 import com.microsoft.windowsazure.services.media.models.Locator;
 import com.microsoft.windowsazure.services.media.models.LocatorInfo;
 import com.microsoft.windowsazure.services.media.models.LocatorType;
-import com.microsoft.windowsazure.services.media.models.MediaProcessor;
 import com.microsoft.windowsazure.services.media.models.MediaProcessorInfo;
-import com.microsoft.windowsazure.services.media.models.ProtectionKey;
-import com.microsoft.windowsazure.services.media.models.ProtectionKeyType;
 import com.microsoft.windowsazure.services.media.models.Task;
 
 public final class Program {
 
     private static MediaContract mediaService;
+    private static JobCompletionWatcher jobWatcher;
+    private static JobNotificationQueue jobNotifications;
+    private static MediaProcessorRegistry mediaProcessors;
+    private static ContentKeyProvisioner contentKeys;
+    private static PolicyRegistry policies;
+    private static LocatorPublisher publisher;
+    private static Pkcs12CredentialCache fairPlayCertificates;
 
     // Media Services account credentials configuration
     private static String tenant = "tenant.domain.com";
@@ -100,14 +91,58 @@ public final class Program {
     private static String fairPlayASK = "%apple-ask%";
     private static String fairPlayPFXFile = "%pfx-file-path%";
     private static String fairPlayPFXPassword = "%password-of-pfx-file%";
-    private static String fairPlayIV; // random generated
+
+    // Job state change notifications, pushed to an Azure queue in the storage account of the Media
+    // Services account; without a connection string Jobs are only polled
+    private static String jobNotificationStorageConnectionString = null;
+    private static String jobNotificationQueueName = "job-notifications";
+
+    // Longest wait for a Job to reach a final state
+    private static int jobTimeoutMinutes = 12 * 60;
+
+    // Upload configuration
+    private static int uploadConcurrency = 8;
+    private static int uploadBlockSize = 4 * 1024 * 1024;
+    private static int uploadAttempts = 5;
+    private static String uploadJournalDirectory = "UploadJournals";
+
+    // Local index of the shared authorization and delivery policies
+    private static String policyIndexFile = "PolicyIndex.txt";
+
+    // Local index of the .ism manifest of each published Asset
+    private static String manifestIndexFile = "ManifestIndex.txt";
+
+    // Pipeline configuration: workers of each stage and the capacity of the stage queues
+    private static int ingestWorkers = 2;
+    private static int encodeWorkers = 8;
+    private static int protectWorkers = 4;
+    private static int publishWorkers = 4;
+    private static int stageQueueCapacity = 16;
+
+    // Batch protection: Assets protected at once, and the file listing the Assets to retry
+    private static int batchProtectWorkers = 16;
+    private static String batchRetryFile = "ProtectRetry.txt";
+
+    // Streaming configuration: the protocols of the AssetDeliveryPolicy and of the published URLs,
+    // how long the Origin Locators are valid, and the Assets published at once
+    private static EnumSet<AssetDeliveryProtocol> streamingProtocols = EnumSet.of(AssetDeliveryProtocol.HLS);
+    private static double locatorDurationInMinutes = 60 * 24 * 30;
+    private static int publishConcurrency = 16;
+
+    // Origin Locator renewal: Locators that expire within the window are extended by the Locator
+    // duration, with at most the given REST requests per second; watch mode lists the Locators of
+    // the account again every refresh interval
+    private static int locatorRenewalWindowDays = 7;
+    private static double locatorRenewalRequestsPerSecond = 10;
+    private static int locatorRefreshIntervalMinutes = 60;
 
     // Utility classes should not have a public or default constructor
     private Program() {
     }
 
     public static void main(String[] args) {
-        ExecutorService executorService = Executors.newFixedThreadPool(1);
+        AzureAdTokenManager tokenManager = null;
+        ResilientMediaContract resilience = null;
 
         try {
             // Connect to Media Services API with service principal and client symmetric key
@@ -116,69 +151,63 @@ public final class Program {
                     new AzureAdClientSymmetricKey(clientId, clientKey),
                     AzureEnvironments.AZURE_CLOUD_ENVIRONMENT);
 
-            TokenProvider provider = new AzureAdTokenProvider(credentials, executorService);
+            // Acquire the first token now and keep it refreshed in the background
+            tokenManager = new AzureAdTokenManager(credentials);
 
             // create a new configuration with the new credentials
             Configuration configuration = MediaConfiguration.configureWithAzureAdTokenProvider(
                     new URI(restApiEndpoint),
-                    provider);
-
-            // create the media service provisioned with the new configuration
-            mediaService = MediaService.create(configuration);
-
-            System.out.println("Azure SDK for Java - FairPlay Dynamic Encryption Sample");
+                    tokenManager);
 
-            // Upload a local file to a media asset.
-            AssetInfo uploadAsset = uploadFileAndCreateAsset("Azure-Video.wmv");
-            System.out.println("Uploaded Asset Id: " + uploadAsset.getId());
+            // create the media service provisioned with the new configuration, retrying REST
+            // calls that are throttled or fail with transient errors
+            resilience = new ResilientMediaContract(restApiEndpoint);
+            mediaService = resilience.wrap(MediaService.create(configuration));
 
-            // Transform the asset.
-            AssetInfo encodedAsset = encode(uploadAsset);
-            System.out.println("Encoded Asset Id: " + encodedAsset.getId());
+            // Track Job completion with a single batched status poller
+            jobWatcher = new JobCompletionWatcher(new BatchJobPoller(mediaService));
 
-            // Create the ContentKey
-            ContentKeyInfo contentKeyInfo = createCommonCBCTypeContentKey(encodedAsset);
-            System.out.println("Common Encryption Content Key: " + contentKeyInfo.getId());
-
-            // Create the ContentKeyAuthorizationPolicy
-            String tokenTemplateString = null;
-            if (tokenRestriction) {
-                tokenTemplateString = addTokenRestrictedAuthorizationPolicy(contentKeyInfo, tokenType);
-            } else {
-                addOpenAuthorizationPolicy(contentKeyInfo);
+            // Complete Jobs as soon as the service pushes their final state
+            if (jobNotificationStorageConnectionString != null) {
+                jobNotifications = JobNotificationQueue.forStorageQueue(mediaService, jobWatcher,
+                        jobNotificationStorageConnectionString, jobNotificationQueueName);
             }
 
-            // Create the AssetDeliveryPolicy
-            createAssetDeliveryPolicy(encodedAsset, contentKeyInfo);
+            // Resolve Media Processors once per hour instead of once per Job
+            mediaProcessors = new MediaProcessorRegistry(mediaService, TimeUnit.HOURS.toMillis(1));
 
-            if (tokenTemplateString != null) {
-                // Deserializes a string containing the XML representation of the TokenRestrictionTemplate
-                TokenRestrictionTemplate tokenTemplate = TokenRestrictionTemplateSerializer
-                        .deserialize(tokenTemplateString);
+            // Download each ProtectionKey certificate once and create the ContentKeys from it
+            contentKeys = new ContentKeyProvisioner(mediaService, new ProtectionKeyCache(mediaService), 8);
 
-                // Generate a test token based on the the data in the given
-                // TokenRestrictionTemplate.
-                // Note: You need to pass the key id Guid because we specified
-                // TokenClaim.ContentKeyIdentifierClaim in during the creation
-                // of TokenRestrictionTemplate.
-                UUID rawKey = UUID.fromString(contentKeyInfo.getId().substring("nb:kid:UUID:".length()));
+            // Share the authorization and delivery policies between Assets, and between runs
+            policies = new PolicyRegistry(mediaService, restApiEndpoint, new File(policyIndexFile));
 
-                // Token expiration: 1-year
-                Calendar date = Calendar.getInstance();
-                date.setTime(new Date());
-                date.add(Calendar.YEAR, 1);
+            // Publish with one shared AccessPolicy and a local index of the Asset manifests
+            publisher = new LocatorPublisher(mediaService, policies, new File(manifestIndexFile), streamingProtocols,
+                    publishConcurrency).setDuration(locatorDurationInMinutes)
+                    .setMinRemainingLifetime(TimeUnit.DAYS.toMinutes(locatorRenewalWindowDays));
 
-                // Generate token
-                String testToken = TokenRestrictionTemplateSerializer.generateTestToken(tokenTemplate, null, rawKey,
-                        date.getTime(), null);
+            // Decrypt the FairPlay PFX once, and again only when the file is replaced
+            fairPlayCertificates = new Pkcs12CredentialCache();
 
-                System.out.println(tokenTemplate.getTokenType().toString() + " Test Token: Bearer " + testToken);
-            }
+            System.out.println("Azure SDK for Java - FairPlay Dynamic Encryption Sample");
 
-            // Create the Streaming Origin Locator
-            String url = getStreamingOriginLocator(encodedAsset);
+            if (args.length > 0 && args[0].equals("protect")) {
+                // Protect existing Assets: protect <Asset id or file of Asset ids>...
+                protectAssets(BatchProtector.readAssetIds(Arrays.asList(args).subList(1, args.length)));
+            } else if (args.length > 0 && args[0].equals("publish")) {
+                // Publish existing Assets again: publish <Asset id or file of Asset ids>...
+                publishAssets(BatchProtector.readAssetIds(Arrays.asList(args).subList(1, args.length)));
+            } else if (args.length > 0 && args[0].equals("renew-locators")) {
+                // Renew the Origin Locators that are about to expire: renew-locators [watch]
+                renewLocators(args.length > 1 && args[1].equals("watch"));
+            } else {
+                // Run every file given on the command line (or the sample file) through the
+                // upload, encode, protect and publish stages
+                List<String> fileNames = args.length > 0 ? Arrays.asList(args) : Arrays.asList("Azure-Video.wmv");
+                processTitles(fileNames);
+            }
 
-            System.out.println("Origin Locator Url: " + url);
             System.out.println("Sample completed!");
 
         } catch (ServiceException se) {
@@ -188,68 +217,321 @@ public final class Program {
             System.out.println("Exception encountered.");
             System.out.println(e.toString());
         } finally {
-            executorService.shutdown();
+            if (jobNotifications != null) {
+                System.out.println("Job notifications received: " + jobNotifications.getReceivedCount());
+                jobNotifications.close();
+            }
+            if (jobWatcher != null) {
+                if (jobWatcher.getPoller().getMetrics().getRequests() > 0) {
+                    System.out.println("Job status " + jobWatcher.getPoller().getMetrics());
+                }
+                jobWatcher.close();
+            }
+            if (mediaProcessors != null) {
+                mediaProcessors.close();
+            }
+            if (contentKeys != null) {
+                contentKeys.close();
+            }
+            if (publisher != null) {
+                publisher.close();
+            }
+            if (fairPlayCertificates != null) {
+                fairPlayCertificates.close();
+            }
+            if (tokenManager != null) {
+                tokenManager.close();
+            }
+            if (resilience != null) {
+                System.out.println("REST calls to " + resilience);
+            }
+        }
+    }
+
+    // Run the titles through the workflow stages. Each stage has its own workers, so
+    // one title uploads while the previous one is encoding.
+    private static void processTitles(List<String> fileNames) throws InterruptedException {
+        WorkflowPipeline<Title> pipeline = new WorkflowPipeline<Title>("workflow")
+                .addStage("ingest", ingestWorkers, stageQueueCapacity, title -> {
+                    // Upload a local file to a media asset.
+                    title.uploadAsset = uploadFileAndCreateAsset(title.fileName);
+                    System.out.println("Uploaded Asset Id: " + title.uploadAsset.getId());
+                })
+                .addStage("encode", encodeWorkers, stageQueueCapacity, title -> {
+                    // Transform the asset.
+                    title.encodedAsset = encode(title.uploadAsset);
+                    System.out.println("Encoded Asset Id: " + title.encodedAsset.getId());
+                })
+                .addStage("protect", protectWorkers, stageQueueCapacity, title -> protect(title))
+                .addStage("publish", publishWorkers, stageQueueCapacity, title -> {
+                    // Create the Streaming Origin Locator
+                    title.urls = publisher.publish(title.encodedAsset);
+                });
+
+        try {
+            List<CompletableFuture<Title>> results = new ArrayList<CompletableFuture<Title>>();
+            for (String fileName : fileNames) {
+                // Waits while the ingest stage is full
+                results.add(pipeline.submit(new Title(fileName)));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    Title title = results.get(i).get();
+                    if (title.testToken != null) {
+                        System.out.println(title.fileName + " " + title.testToken);
+                    }
+                    System.out.println(title.fileName + " Origin Locator URLs:\n" + title.urls);
+                } catch (ExecutionException e) {
+                    System.out.println(fileNames.get(i) + " " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            pipeline.close();
+        }
+
+        for (WorkflowPipeline.StageMetrics metrics : pipeline.getMetrics()) {
+            System.out.println(metrics);
+        }
+    }
+
+    // Protect existing (encoded) Assets in parallel, each one with its own ContentKey and with the
+    // shared policies, and list the result of every Asset
+    private static void protectAssets(List<String> assetIds) throws Exception {
+        System.out.println(String.format("Protecting %d Assets", assetIds.size()));
+        BatchProtector batch = new BatchProtector(mediaService, contentKeys, ContentKeyType.CommonEncryptionCbcs,
+                "Common Encryption Content Key", batchProtectWorkers);
+        try {
+            long start = System.currentTimeMillis();
+            List<BatchProtector.Result> results = batch.protectAll(assetIds, (asset, contentKey) -> {
+                Title title = new Title(asset.getName());
+                title.encodedAsset = asset;
+                protect(title, contentKey);
+            });
+            BatchProtector.printSummary(results, System.currentTimeMillis() - start, new File(batchRetryFile));
+        } finally {
+            batch.close();
+        }
+    }
+
+    // Publish existing Assets in parallel, each one with a live Origin Locator
+    private static void publishAssets(List<String> assetIds) throws InterruptedException {
+        System.out.println(String.format("Publishing %d Assets", assetIds.size()));
+        long start = System.currentTimeMillis();
+        int published = 0;
+        for (LocatorPublisher.Result result : publisher.publishAll(assetIds)) {
+            System.out.println(result);
+            if (result.isPublished()) {
+                published++;
+            }
+        }
+        System.out.println(String.format("Published %d of %d Assets in %.1f s", published, assetIds.size(),
+                (System.currentTimeMillis() - start) / 1000.0));
+    }
+
+    // Renew the Origin Locators of the account that expire within the renewal window; in watch mode
+    // keep running, waking up when the next Locator enters the window or the inventory is due
+    private static void renewLocators(boolean watch) throws ServiceException, InterruptedException {
+        long windowMillis = TimeUnit.DAYS.toMillis(locatorRenewalWindowDays);
+        long extensionMillis = (long) (locatorDurationInMinutes * TimeUnit.MINUTES.toMillis(1));
+        long refreshMillis = TimeUnit.MINUTES.toMillis(locatorRefreshIntervalMinutes);
+        LocatorExpiryTracker tracker = new LocatorExpiryTracker(mediaService, publisher,
+                locatorRenewalRequestsPerSecond, publishConcurrency);
+        try {
+            long refreshedAt = 0;
+            while (true) {
+                if (System.currentTimeMillis() - refreshedAt >= refreshMillis) {
+                    int tracked = tracker.refresh();
+                    refreshedAt = System.currentTimeMillis();
+                    System.out.println(String.format("Tracking %d Origin Locators, next expiry %s", tracked,
+                            tracker.getNextExpiration()));
+                }
+
+                List<LocatorExpiryTracker.Renewal> renewals = tracker.renewExpiring(windowMillis, extensionMillis);
+                int renewed = 0;
+                for (LocatorExpiryTracker.Renewal renewal : renewals) {
+                    System.out.println(renewal);
+                    if (renewal.isRenewed()) {
+                        renewed++;
+                    }
+                }
+                if (!renewals.isEmpty()) {
+                    System.out.println(String.format("Renewed %d of %d Origin Locators", renewed, renewals.size()));
+                }
+
+                if (!watch) {
+                    return;
+                }
+                long refreshDue = refreshedAt + refreshMillis - System.currentTimeMillis();
+                Thread.sleep(Math.max(TimeUnit.SECONDS.toMillis(1),
+                        Math.min(refreshDue, tracker.getMillisUntilDue(windowMillis))));
+            }
+        } finally {
+            tracker.close();
+        }
+    }
+
+    // Create the ContentKey, the ContentKeyAuthorizationPolicy and the AssetDeliveryPolicy
+    // of an encoded title
+    private static void protect(Title title) throws Exception {
+        // Create the ContentKey
+        ContentKeyInfo contentKeyInfo = createCommonCBCTypeContentKey(title.encodedAsset);
+        if (contentKeyInfo == null) {
+            throw new ServiceException("Could not create the Content Key of " + title.fileName);
+        }
+        protect(title, contentKeyInfo);
+    }
+
+    // Create the ContentKeyAuthorizationPolicy and the AssetDeliveryPolicy of an encoded title
+    // with its ContentKey
+    private static void protect(Title title, ContentKeyInfo contentKeyInfo) throws Exception {
+        System.out.println("Common Encryption Content Key: " + contentKeyInfo.getId());
+        title.contentKey = contentKeyInfo;
+
+        // Create the ContentKeyAuthorizationPolicy
+        String tokenTemplateString = null;
+        if (tokenRestriction) {
+            tokenTemplateString = addTokenRestrictedAuthorizationPolicy(contentKeyInfo, tokenType);
+        } else {
+            addOpenAuthorizationPolicy(contentKeyInfo);
+        }
+
+        // Create the AssetDeliveryPolicy
+        createAssetDeliveryPolicy(title.encodedAsset, contentKeyInfo);
+
+        if (tokenTemplateString != null) {
+            // The issuer of the template: parsed once, and shared by every ContentKey protected
+            // with the same template
+            TestTokenIssuer tokenIssuer = TestTokenIssuer.forTemplate(tokenTemplateString);
+
+            // Generate a test token based on the the data in the given
+            // TokenRestrictionTemplate.
+            // Note: You need to pass the key id Guid because we specified
+            // TokenClaim.ContentKeyIdentifierClaim in during the creation
+            // of TokenRestrictionTemplate.
+            UUID rawKey = UUID.fromString(contentKeyInfo.getId().substring("nb:kid:UUID:".length()));
+
+            // Token expiration: 1-year
+            Calendar date = Calendar.getInstance();
+            date.setTime(new Date());
+            date.add(Calendar.YEAR, 1);
+
+            // Generate token
+            String testToken = tokenIssuer.issue(rawKey, date.getTime());
+
+            title.testToken = tokenIssuer.getTokenType().toString() + " Test Token: Bearer " + testToken;
         }
     }
 
     // Upload a media file to your Media Services account.
     // This code creates an Asset, an AccessPolicy (using Write access) and a
-    // Locator, and uses those objects to upload a local file.
+    // Locator, and uses those objects to upload a local file. The uploaded blocks
+    // are recorded in a journal, so a failed upload is resumed by the next run.
     private static AssetInfo uploadFileAndCreateAsset(String fileName)
-            throws ServiceException, FileNotFoundException, NoSuchAlgorithmException {
+            throws ServiceException, IOException, InterruptedException, NoSuchAlgorithmException {
         WritableBlobContainerContract uploader;
         AssetInfo resultAsset;
-        AccessPolicyInfo uploadAccessPolicy;
         LocatorInfo uploadLocator = null;
 
-        // Create an Asset
-        resultAsset = mediaService.create(Asset.create().setName(fileName).setAlternateId("altId"));
-        System.out.println("Created Asset " + fileName);
+        // The local file that will be uploaded to your Media Services account
+        File input = new File(Program.class.getClassLoader().getResource("").getPath() + fileName);
 
-        // Create an AccessPolicy that provides Write access for 15 minutes
-        uploadAccessPolicy = mediaService
-                .create(AccessPolicy.create("uploadAccessPolicy", 15.0, EnumSet.of(AccessPolicyPermission.WRITE)));
+        // Open the upload journal of the file; it is kept until the upload completes
+        UploadJournal journal = UploadJournal.open(new File(uploadJournalDirectory, fileName + ".journal"),
+                input, uploadBlockSize);
 
-        // Create a Locator using the AccessPolicy and Asset
-        uploadLocator = mediaService
-                .create(Locator.create(uploadAccessPolicy.getId(), resultAsset.getId(), LocatorType.SAS));
+        try {
+            if (journal.getAssetId() != null) {
+                // Resume the upload into the Asset created by a previous run
+                resultAsset = mediaService.get(Asset.get(journal.getAssetId()));
+                System.out.println(String.format("Resuming upload to Asset %s (%d blocks already uploaded)",
+                        resultAsset.getId(), journal.getBlockCount()));
+            } else {
+                // Create an Asset
+                resultAsset = mediaService.create(Asset.create().setName(fileName).setAlternateId("altId"));
+                System.out.println("Created Asset " + fileName);
+                journal.setAssetId(resultAsset.getId());
+            }
+
+            System.out.println("Uploading " + fileName);
+
+            // Upload the local file to the asset in parallel blocks; after a failure only the
+            // missing blocks are sent again, with a new Locator if the previous one has expired
+            BlockBlobUploader.UploadStatistics uploadStatistics = null;
+            for (int attempt = 1; uploadStatistics == null; attempt++) {
+                uploadLocator = getUploadLocator(journal, resultAsset.getId());
+
+                // Create the Blob Writer using the Locator
+                uploader = mediaService.createBlobWriter(uploadLocator);
+
+                try {
+                    uploadStatistics = new BlockBlobUploader()
+                            .setConcurrency(uploadConcurrency)
+                            .setBlockSize(uploadBlockSize)
+                            .setJournal(journal)
+                            .upload(uploader, fileName, input);
+                } catch (ServiceException se) {
+                    if (attempt >= uploadAttempts) {
+                        throw se;
+                    }
+                    System.out.println("Upload interrupted, resuming: " + se.getMessage());
+                }
+            }
+            System.out.println(String.format("Uploaded %d blocks in %d ms (%.2f MB/s), %d blocks resumed",
+                    uploadStatistics.getBlocks().size(), uploadStatistics.getElapsedNanos() / 1000000,
+                    uploadStatistics.getMegabytesPerSecond(), uploadStatistics.getResumedBlocks()));
 
-        // Create the Blob Writer using the Locator
-        uploader = mediaService.createBlobWriter(uploadLocator);
+            // Inform Media Services about the uploaded files
+            mediaService.action(AssetFile.createFileInfos(resultAsset.getId()));
+            System.out.println("Uploaded Asset File " + fileName);
 
-        // The local file that will be uploaded to your Media Services account
-        InputStream input = new FileInputStream(
-                new File(Program.class.getClassLoader().getResource("").getPath() + fileName));
+            mediaService.delete(Locator.delete(uploadLocator.getId()));
+            mediaService.delete(AccessPolicy.delete(journal.getAccessPolicyId()));
 
-        System.out.println("Uploading " + fileName);
+            journal.delete();
+        } finally {
+            journal.close();
+        }
+
+        return resultAsset;
+    }
 
-        // Upload the local file to the asset
-        uploader.createBlockBlob(fileName, input);
+    // Get a SAS Locator that provides Write access to the Asset for 15 minutes.
+    // The Locator recorded in the journal is reused while it is still valid.
+    private static LocatorInfo getUploadLocator(UploadJournal journal, String assetId)
+            throws ServiceException, IOException {
+        if (journal.getLocatorId() != null) {
+            try {
+                LocatorInfo locator = mediaService.get(Locator.get(journal.getLocatorId()));
+
+                // Leave a margin so the Locator does not expire in the middle of a block
+                if (locator.getExpirationDateTime().getTime() - System.currentTimeMillis() > 60 * 1000) {
+                    return locator;
+                }
+                mediaService.delete(Locator.delete(locator.getId()));
+                mediaService.delete(AccessPolicy.delete(journal.getAccessPolicyId()));
+            } catch (ServiceException se) {
+                // The Locator (or its AccessPolicy) no longer exists
+            }
+        }
 
-        // Inform Media Services about the uploaded files
-        mediaService.action(AssetFile.createFileInfos(resultAsset.getId()));
-        System.out.println("Uploaded Asset File " + fileName);
+        // Create an AccessPolicy that provides Write access for 15 minutes
+        AccessPolicyInfo uploadAccessPolicy = mediaService
+                .create(AccessPolicy.create("uploadAccessPolicy", 15.0, EnumSet.of(AccessPolicyPermission.WRITE)));
 
-        mediaService.delete(Locator.delete(uploadLocator.getId()));
-        mediaService.delete(AccessPolicy.delete(uploadAccessPolicy.getId()));
+        // Create a Locator using the AccessPolicy and Asset
+        LocatorInfo uploadLocator = mediaService
+                .create(Locator.create(uploadAccessPolicy.getId(), assetId, LocatorType.SAS));
 
-        return resultAsset;
+        journal.setLocator(uploadAccessPolicy.getId(), uploadLocator.getId());
+        return uploadLocator;
     }
 
     // Create a Job that contains a Task to transform the Asset
     private static AssetInfo encode(AssetInfo assetToEncode)
             throws ServiceException, InterruptedException {
-        // Retrieve the list of Media Processors that match the name
-        ListResult<MediaProcessorInfo> mediaProcessors = mediaService
-                .list(MediaProcessor.list().set("$filter", String.format("Name eq '%s'", preferedEncoder)));
-
-        // Use the latest version of the Media Processor
-        MediaProcessorInfo mediaProcessor = null;
-        for (MediaProcessorInfo info : mediaProcessors) {
-            if (null == mediaProcessor || info.getVersion().compareTo(mediaProcessor.getVersion()) > 0) {
-                mediaProcessor = info;
-            }
-        }
+        // Use the latest version of the Media Processor (resolved once and cached)
+        MediaProcessorInfo mediaProcessor = mediaProcessors.resolve(preferedEncoder);
 
         System.out.println("Using Media Processor: " + mediaProcessor.getName() + " " + mediaProcessor.getVersion());
 
@@ -266,6 +548,9 @@ public final class Program {
         Job.Creator jobCreator = Job.create()
                 .setName(String.format("Encoding %s to %s", assetToEncode.getName(), encodingPreset))
                 .addInputMediaAsset(assetToEncode.getId()).setPriority(2).addTaskCreator(task);
+        if (jobNotifications != null) {
+            jobNotifications.subscribe(jobCreator);
+        }
         JobInfo job = mediaService.create(jobCreator);
 
         String jobId = job.getId();
@@ -282,43 +567,10 @@ public final class Program {
 
     public static ContentKeyInfo createCommonCBCTypeContentKey(AssetInfo asset) {
         try {
-            // Get the protection key id for ContentKey
-            String protectionKeyId = mediaService
-                    .action(ProtectionKey.getProtectionKeyId(ContentKeyType.CommonEncryptionCbcs));
-
-            // Download and create the X509 certificate
-            String protectionKey = mediaService.action(ProtectionKey.getProtectionKey(protectionKeyId));
-            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
-                    .generateCertificate(new ByteArrayInputStream(Base64.decode(protectionKey)));
-
-            // Create a new ContentKey (secure random)
-            byte[] contentKeyData = new byte[16];
-            EncryptionUtils.eraseKey(contentKeyData);
-
-            // Encrypt ContentKey
-            byte[] encryptedContentKey = EncryptionUtils.encryptSymmetricKeyData(certificate, contentKeyData);
-            String encryptedContentKeyString = Base64.encode(encryptedContentKey);
-
-            // Create the ContentKey Id
-            UUID contentKeyIdUuid = UUID.randomUUID();
-            String contentKeyId = String.format("nb:kid:UUID:%s", contentKeyIdUuid.toString());
-
-            // Calculate the checksum
-            String checksum = EncryptionUtils.calculateChecksum(contentKeyData, contentKeyIdUuid);
-
-            // Create the ContentKey entity
-            ContentKeyInfo contentKey = mediaService.create(
-            		ContentKey.create(contentKeyId, ContentKeyType.CommonEncryptionCbcs, encryptedContentKeyString)
-                            .setChecksum(checksum)
-                            .setProtectionKeyType(ProtectionKeyType.X509CertificateThumbprint)
-                            .setName("Common Encryption Content Key")
-                            .setProtectionKeyId(EncryptionUtils.getThumbPrint(certificate)));
-
-            // Associate the ContentKey with the Asset
-            mediaService.action(Asset.linkContentKey(asset.getId(), contentKeyId));
-
-            return contentKey;
-
+            // Reuse the ContentKey an earlier attempt linked to the Asset, or create one from the cached
+            // protection certificate and associate it with the Asset
+            return contentKeys.findOrCreateAndLink(ContentKeyType.CommonEncryptionCbcs,
+                    "Common Encryption Content Key", asset);
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
@@ -332,50 +584,56 @@ public final class Program {
         restrictions.add(new ContentKeyAuthorizationPolicyRestriction("Open Restriction",
         		ContentKeyRestrictionType.Open.getValue(), null));
 
-        // Create ContentKeyAuthorizationPolicyOption (FairPlay)
-        String fairPlayOptions = configureFairPlayPolicyOptions();
-        ContentKeyAuthorizationPolicyOptionInfo option = mediaService
-                .create(ContentKeyAuthorizationPolicyOption.create("Deliver Common CBC Content Key with token restrictions",
-                        ContentKeyDeliveryType.FairPlay.getCode(), fairPlayOptions, restrictions));
-
-        // Create ContentKeyAuthorizationPolicy
-        ContentKeyAuthorizationPolicyInfo contentKeyAuthorizationPolicy = mediaService
-                .create(ContentKeyAuthorizationPolicy.create("FairPlay Open Content Key Authorization Policy"));
+        // FairPlay options; they refer to the ASK and PFX password ContentKeys and to the certificate,
+        // so they are created once per certificate and kept in the policy index
+        Pkcs12CredentialCache.Credential certificate = getFairPlayCertificate();
+        String fairPlayOptions = policies.getValue("FairPlayOptions." + certificate.getThumbprint(),
+                () -> configureFairPlayPolicyOptions(certificate));
 
-        // Link the ContentKeyAuthorizationPolicyOption to the ContentKeyAuthorizationPolicy
-        mediaService.action(ContentKeyAuthorizationPolicy.linkOptions(contentKeyAuthorizationPolicy.getId(), option.getId()));
+        // Find or create the ContentKeyAuthorizationPolicy; it is shared by every ContentKey
+        // with the same options and restrictions
+        List<PolicyRegistry.PolicyOption> options = new ArrayList<PolicyRegistry.PolicyOption>();
+        options.add(new PolicyRegistry.PolicyOption("Deliver Common CBC Content Key with token restrictions",
+                ContentKeyDeliveryType.FairPlay.getCode(), fairPlayOptions, restrictions));
+        String contentKeyAuthorizationPolicyId = policies.getAuthorizationPolicy(
+                "FairPlay Open Content Key Authorization Policy", options);
 
         // Associate the ContentKeyAuthorizationPolicy with the ContentKey
-        mediaService.update(ContentKey.update(contentKey.getId(), contentKeyAuthorizationPolicy.getId()));
+        mediaService.update(ContentKey.update(contentKey.getId(), contentKeyAuthorizationPolicyId));
 
-        System.out.println("Added Content Key Authorization Policy: " + contentKeyAuthorizationPolicy.getName());
+        System.out.println("Added Content Key Authorization Policy: " + contentKeyAuthorizationPolicyId);
     }
 
     public static String addTokenRestrictedAuthorizationPolicy(ContentKeyInfo contentKey, TokenType tokenType)
             throws Exception {
+        // The token template (and its verification key) is kept in the policy index, so the
+        // policy it belongs to can be shared
+        String tokenRestrictionString = policies.getValue("TokenRestriction." + tokenType,
+                () -> generateTokenRequirements(tokenType));
+
         // Create ContentKeyAuthorizationPolicyRestriction (Token)
-        String tokenRestrictionString = generateTokenRequirements(tokenType);
         List<ContentKeyAuthorizationPolicyRestriction> restrictions = new ArrayList<ContentKeyAuthorizationPolicyRestriction>();
         restrictions.add(new ContentKeyAuthorizationPolicyRestriction("Token Restriction",
                 ContentKeyRestrictionType.TokenRestricted.getValue(), tokenRestrictionString));
 
-        // Create ContentKeyAuthorizationPolicyOptions (FairPlay)
-        String fairPlayOptions = configureFairPlayPolicyOptions();
-        ContentKeyAuthorizationPolicyOptionInfo option = mediaService
-                .create(ContentKeyAuthorizationPolicyOption.create("Deliver Common CBC Content Key with token restrictions",
-                        ContentKeyDeliveryType.FairPlay.getCode(), fairPlayOptions, restrictions));
-
-        // Create ContentKeyAuthorizationPolicy
-        ContentKeyAuthorizationPolicyInfo contentKeyAuthorizationPolicy = mediaService
-                .create(ContentKeyAuthorizationPolicy.create("FairPlay Token Content Key Authorization Policy"));
+        // FairPlay options; they refer to the ASK and PFX password ContentKeys and to the certificate,
+        // so they are created once per certificate and kept in the policy index
+        Pkcs12CredentialCache.Credential certificate = getFairPlayCertificate();
+        String fairPlayOptions = policies.getValue("FairPlayOptions." + certificate.getThumbprint(),
+                () -> configureFairPlayPolicyOptions(certificate));
 
-        // Link the ContentKeyAuthorizationPolicyOption to the ContentKeyAuthorizationPolicy
-        mediaService.action(ContentKeyAuthorizationPolicy.linkOptions(contentKeyAuthorizationPolicy.getId(), option.getId()));
+        // Find or create the ContentKeyAuthorizationPolicy; it is shared by every ContentKey
+        // with the same options and restrictions
+        List<PolicyRegistry.PolicyOption> options = new ArrayList<PolicyRegistry.PolicyOption>();
+        options.add(new PolicyRegistry.PolicyOption("Deliver Common CBC Content Key with token restrictions",
+                ContentKeyDeliveryType.FairPlay.getCode(), fairPlayOptions, restrictions));
+        String contentKeyAuthorizationPolicyId = policies.getAuthorizationPolicy(
+                "FairPlay Token Content Key Authorization Policy", options);
 
         // Associate the ContentKeyAuthorizationPolicy with the ContentKey
-        mediaService.update(ContentKey.update(contentKey.getId(), contentKeyAuthorizationPolicy.getId()));
+        mediaService.update(ContentKey.update(contentKey.getId(), contentKeyAuthorizationPolicyId));
 
-        System.out.println("Added Content Key Authorization Policy: " + contentKeyAuthorizationPolicy.getName());
+        System.out.println("Added Content Key Authorization Policy: " + contentKeyAuthorizationPolicyId);
 
         return tokenRestrictionString;
     }
@@ -398,65 +656,41 @@ public final class Program {
 
         assetDeliveryPolicyConfiguration.put(AssetDeliveryPolicyConfigurationKey.FairPlayBaseLicenseAcquisitionUrl,
                 acquisitionUrl);
-        assetDeliveryPolicyConfiguration.put(AssetDeliveryPolicyConfigurationKey.CommonEncryptionIVForCbcs, fairPlayIV);
+        assetDeliveryPolicyConfiguration.put(AssetDeliveryPolicyConfigurationKey.CommonEncryptionIVForCbcs,
+                getFairPlayIV());
 
-        AssetDeliveryPolicyInfo assetDeliveryPolicy = mediaService.create(AssetDeliveryPolicy.create()
-                .setName("FairPlay Asset Delivery Policy")
-                .setAssetDeliveryConfiguration(assetDeliveryPolicyConfiguration)
-                .setAssetDeliveryPolicyType(AssetDeliveryPolicyType.DynamicCommonEncryptionCbcs)
-                .setAssetDeliveryProtocol(EnumSet.of(AssetDeliveryProtocol.HLS)));
+        // Find or create the AssetDeliveryPolicy; it is shared by every Asset with the same configuration
+        String assetDeliveryPolicyId = policies.getDeliveryPolicy("FairPlay Asset Delivery Policy",
+                AssetDeliveryPolicyType.DynamicCommonEncryptionCbcs,
+                streamingProtocols,
+                assetDeliveryPolicyConfiguration);
 
-        // Link the AssetDeliveryPolicy to the Asset
-        mediaService.action(Asset.linkDeliveryPolicy(asset.getId(), assetDeliveryPolicy.getId()));
+        // Link the AssetDeliveryPolicy to the Asset, unless an earlier attempt already did
+        policies.linkDeliveryPolicy(asset, assetDeliveryPolicyId);
 
-        System.out.println("Added Asset Delivery Policy: " + assetDeliveryPolicy.getName());
-    }
-
-    public static String getStreamingOriginLocator(AssetInfo asset) throws ServiceException {
-        // Get the .ISM AssetFile
-        ListResult<AssetFileInfo> assetFiles = mediaService.list(AssetFile.list(asset.getAssetFilesLink()));
-        AssetFileInfo streamingAssetFile = null;
-        for (AssetFileInfo file : assetFiles) {
-            if (file.getName().toLowerCase().endsWith(".ism")) {
-                streamingAssetFile = file;
-                break;
-            }
-        }
-
-        AccessPolicyInfo originAccessPolicy;
-        LocatorInfo originLocator = null;
-
-        // Create a 30-day readonly AccessPolicy
-        double durationInMinutes = 60 * 24 * 30;
-        originAccessPolicy = mediaService.create(
-                AccessPolicy.create("Streaming policy", durationInMinutes, EnumSet.of(AccessPolicyPermission.READ)));
-
-        // Create a Locator using the AccessPolicy and Asset
-        originLocator = mediaService
-                .create(Locator.create(originAccessPolicy.getId(), asset.getId(), LocatorType.OnDemandOrigin));
-
-        // Create a Smooth Streaming base URL
-        return originLocator.getPath() + streamingAssetFile.getName() + "/manifest(format=m3u8-aapl)";
+        System.out.println("Added Asset Delivery Policy: " + assetDeliveryPolicyId);
     }
 
     private static void checkJobStatus(String jobId) throws InterruptedException, ServiceException {
-        boolean done = false;
-        JobState jobState = null;
-        while (!done) {
-            // Sleep for 5 seconds
-            Thread.sleep(5000);
-
-            // Query the updated Job state
-            jobState = mediaService.get(Job.get(jobId)).getState();
-            System.out.println("Job state: " + jobState);
-
-            if (jobState == JobState.Finished || jobState == JobState.Canceled || jobState == JobState.Error) {
-                done = true;
+        CompletableFuture<JobState> job = jobWatcher.watch(jobId);
+        try {
+            // Wait until the Job reaches a final state
+            job.get(jobTimeoutMinutes, TimeUnit.MINUTES);
+        } catch (TimeoutException e) {
+            // Stop tracking the Job
+            job.cancel(false);
+            throw new ServiceException(String.format("Job %s did not finish within %d minutes", jobId,
+                    jobTimeoutMinutes));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
             }
+            throw new ServiceException(e.getCause());
         }
     }
 
-    private static String configureFairPlayPolicyOptions() throws Exception {
+    private static String configureFairPlayPolicyOptions(Pkcs12CredentialCache.Credential certificate)
+            throws Exception {
     	// Configure FairPlay policy options
 
     	// Key delivery retrieves askKey by askId and uses this key to generate the response.
@@ -466,12 +700,9 @@ public final class Program {
     	ContentKeyInfo passContentKey = createFairPlayPfxPasswordTypeContentKey();
 
     	// iv - 16 bytes random value, must match the iv in the asset delivery policy.
-    	fairPlayIV = getRandomHexString(32); // 32 hex chars == 16 bytes
+    	String fairPlayIV = getFairPlayIV();
 
-    	KeyStore ks = KeyStore.getInstance("PKCS12");
-    	InputStream input = new FileInputStream(
-                new File(Program.class.getClassLoader().getResource("").getPath() + fairPlayPFXFile));
-    	ks.load(input, fairPlayPFXPassword.toCharArray());
+    	KeyStore ks = certificate.toKeyStore(fairPlayPFXPassword);
     	String strPassContentKey = passContentKey.getId().substring("nb:kid:UUID:".length());
     	String strAskContentKey = askContentKey.getId().substring("nb:kid:UUID:".length());
     	return FairPlayConfiguration.createSerializedFairPlayOptionConfiguration(ks,
@@ -479,6 +710,13 @@ public final class Program {
     			strAskContentKey, fairPlayIV);
     }
 
+    // The FairPlay certificate and private key, decrypted once per PFX file version
+    private static Pkcs12CredentialCache.Credential getFairPlayCertificate() throws Exception {
+        return fairPlayCertificates.get(
+                new File(Program.class.getClassLoader().getResource("").getPath() + fairPlayPFXFile),
+                fairPlayPFXPassword);
+    }
+
     private static String generateTokenRequirements(TokenType tokenType) throws Exception {
         TokenRestrictionTemplate template = new TokenRestrictionTemplate(tokenType);
 
@@ -502,39 +740,8 @@ public final class Program {
 
     public static ContentKeyInfo createFairPlayAskTypeContentKey() {
         try {
-            // Get the protection key id for ContentKey
-            String protectionKeyId = mediaService
-                    .action(ProtectionKey.getProtectionKeyId(ContentKeyType.FairPlayASk));
-
-            // Download and create the X509 certificate
-            String protectionKey = mediaService.action(ProtectionKey.getProtectionKey(protectionKeyId));
-            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
-                    .generateCertificate(new ByteArrayInputStream(Base64.decode(protectionKey)));
-
-            // Create a new ContentKey (secure random)
-        	byte[] contentKeyData = hexStringToByteArray(fairPlayASK);
-
-            // Encrypt ContentKey
-            byte[] encryptedContentKey = EncryptionUtils.encryptSymmetricKeyData(certificate, contentKeyData);
-            String encryptedContentKeyString = Base64.encode(encryptedContentKey);
-
-            // Create the ContentKey Id
-            UUID contentKeyIdUuid = UUID.randomUUID();
-            String contentKeyId = String.format("nb:kid:UUID:%s", contentKeyIdUuid.toString());
-
-            // Calculate the checksum
-            String checksum = EncryptionUtils.calculateChecksum(contentKeyData, contentKeyIdUuid);
-
-            // Create the ContentKey entity
-            ContentKeyInfo contentKey = mediaService.create(
-            		ContentKey.create(contentKeyId, ContentKeyType.FairPlayASk, encryptedContentKeyString)
-                            .setChecksum(checksum)
-                            .setProtectionKeyType(ProtectionKeyType.X509CertificateThumbprint)
-                            .setName("askKey")
-                            .setProtectionKeyId(EncryptionUtils.getThumbPrint(certificate)));
-
-            return contentKey;
-
+            // Create the ContentKey from the App Secret Key (ASK)
+            return contentKeys.create(ContentKeyType.FairPlayASk, "askKey", hexStringToByteArray(fairPlayASK), true);
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
@@ -544,35 +751,9 @@ public final class Program {
 
     public static ContentKeyInfo createFairPlayPfxPasswordTypeContentKey() {
         try {
-            // Get the protection key id for ContentKey
-            String protectionKeyId = mediaService
-                    .action(ProtectionKey.getProtectionKeyId(ContentKeyType.FairPlayPfxPassword));
-
-            // Download and create the X509 certificate
-            String protectionKey = mediaService.action(ProtectionKey.getProtectionKey(protectionKeyId));
-            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
-                    .generateCertificate(new ByteArrayInputStream(Base64.decode(protectionKey)));
-
-            // Create a new ContentKey (secure random)
-            byte[] contentKeyData = fairPlayPFXPassword.getBytes("UTF-8");
-
-            // Encrypt ContentKey
-            byte[] encryptedContentKey = EncryptionUtils.encryptSymmetricKeyData(certificate, contentKeyData);
-            String encryptedContentKeyString = Base64.encode(encryptedContentKey);
-
-            // Create the ContentKey Id
-            UUID contentKeyIdUuid = UUID.randomUUID();
-            String contentKeyId = String.format("nb:kid:UUID:%s", contentKeyIdUuid.toString());
-
-            // Create the ContentKey entity
-            ContentKeyInfo contentKey = mediaService.create(
-            		ContentKey.create(contentKeyId, ContentKeyType.FairPlayPfxPassword, encryptedContentKeyString)
-                            .setProtectionKeyType(ProtectionKeyType.X509CertificateThumbprint)
-                            .setName("pfxPassword")
-                            .setProtectionKeyId(EncryptionUtils.getThumbPrint(certificate)));
-
-            return contentKey;
-
+            // Create the ContentKey from the PFX password; this key type has no checksum
+            return contentKeys.create(ContentKeyType.FairPlayPfxPassword, "pfxPassword",
+                    fairPlayPFXPassword.getBytes("UTF-8"), false);
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
@@ -580,6 +761,12 @@ public final class Program {
         return null;
     }
 
+    // iv - 16 bytes random value, must match the iv in the asset delivery policy.
+    // It is kept in the policy index together with the policies that use it.
+    private static String getFairPlayIV() throws ServiceException {
+        return policies.getValue("FairPlayIV", () -> getRandomHexString(32)); // 32 hex chars == 16 bytes
+    }
+
     private static String getRandomHexString(int numchars){
         Random r = new Random();
         StringBuffer sb = new StringBuffer();
@@ -599,4 +786,18 @@ public final class Program {
 	    }
 	    return new String(hexChars);
 	}
+
+    // A media file and the entities created for it by the workflow stages
+    private static final class Title {
+        private final String fileName;
+        private AssetInfo uploadAsset;
+        private AssetInfo encodedAsset;
+        private ContentKeyInfo contentKey;
+        private String testToken;
+        private LocatorPublisher.StreamingUrls urls;
+
+        Title(String fileName) {
+            this.fileName = fileName;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,323 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playreadywidevine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.microsoft.windowsazure.core.utils.Base64;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.blob.models.BlockList;
+import com.microsoft.windowsazure.services.blob.models.CreateBlobBlockOptions;
+import com.microsoft.windowsazure.services.media.WritableBlobContainerContract;
+
+/**
+ * Uploads a local file as a block blob. The file is split into fixed-size blocks that are
+ * sent concurrently by a bounded pool of workers, and the block list is committed once
+ * every block has been accepted. Blocks are read from memory-mapped regions of the file
+ * (see {@link MappedFileSource}).
+ *
+ * When an {@link UploadJournal} is set, blocks already recorded in it are skipped and every
+ * accepted block is recorded, so an interrupted upload can be resumed.
+ */
+final class BlockBlobUploader {
+
+    // Block blob limits of the Azure Storage service
+    private static final int MAX_BLOCK_COUNT = 50000;
+    private static final int MAX_BLOCK_SIZE = 100 * 1024 * 1024;
+
+    private int concurrency = 4;
+    private int blockSize = 4 * 1024 * 1024;
+    private UploadJournal journal;
+
+    BlockBlobUploader setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1");
+        }
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    BlockBlobUploader setBlockSize(int blockSize) {
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("blockSize must be between 1 and " + MAX_BLOCK_SIZE);
+        }
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    BlockBlobUploader setJournal(UploadJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    // Upload the file to the given blob of an asset container (SAS Locator)
+    UploadStatistics upload(WritableBlobContainerContract container, String blobName, File file)
+            throws ServiceException, IOException, InterruptedException {
+        return upload(new ContainerBlockSink(container, blobName), file);
+    }
+
+    UploadStatistics upload(BlockSink sink, File file) throws ServiceException, IOException, InterruptedException {
+        MappedFileSource source = new MappedFileSource(file);
+        try {
+            return upload(sink, source);
+        } finally {
+            source.close();
+        }
+    }
+
+    UploadStatistics upload(BlockSink sink, MappedFileSource source)
+            throws ServiceException, IOException, InterruptedException {
+        long fileLength = source.length();
+        long effectiveBlockSize = getEffectiveBlockSize(fileLength);
+        int blockCount = (int) Math.max(1, (fileLength + effectiveBlockSize - 1) / effectiveBlockSize);
+
+        List<String> blockIds = new ArrayList<String>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            blockIds.add(createBlockId(i));
+        }
+
+        List<BlockStatistics> blocks = new ArrayList<BlockStatistics>(blockCount);
+        int resumedBlocks = 0;
+        long start = System.nanoTime();
+
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(concurrency, blockCount));
+        try {
+            CompletionService<BlockStatistics> completion = new ExecutorCompletionService<BlockStatistics>(workers);
+            for (int i = 0; i < blockCount; i++) {
+                // Skip the blocks that were accepted by a previous run
+                if (journal != null && journal.hasBlock(blockIds.get(i))) {
+                    resumedBlocks++;
+                    continue;
+                }
+                long offset = i * effectiveBlockSize;
+                int length = (int) Math.min(effectiveBlockSize, fileLength - offset);
+                completion.submit(new BlockUpload(sink, source, journal, i, blockIds.get(i), offset, length));
+            }
+
+            for (int i = resumedBlocks; i < blockCount; i++) {
+                try {
+                    blocks.add(completion.take().get());
+                } catch (ExecutionException e) {
+                    throw unwrap(e);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+
+        // Commit the blocks in file order
+        sink.commit(blockIds);
+
+        Collections.sort(blocks);
+        return new UploadStatistics(fileLength, System.nanoTime() - start, blocks, resumedBlocks);
+    }
+
+    // Grow the block size when the file would not fit in the maximum number of blocks
+    private long getEffectiveBlockSize(long fileLength) {
+        long minimum = (fileLength + MAX_BLOCK_COUNT - 1) / MAX_BLOCK_COUNT;
+        if (minimum > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("File is too large to be uploaded as a block blob: " + fileLength);
+        }
+        return Math.max(blockSize, minimum);
+    }
+
+    // Block ids must be Base64 strings of the same length for every block of a blob
+    static String createBlockId(int index) {
+        return Base64.encode(String.format("block-%06d", index).getBytes(Charset.forName("UTF-8")));
+    }
+
+    private static ServiceException unwrap(ExecutionException e) throws IOException {
+        Throwable cause = e.getCause();
+        if (cause instanceof ServiceException) {
+            return (ServiceException) cause;
+        }
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new ServiceException(cause);
+    }
+
+    // Maps one block of the file and hands it over to the sink
+    private static final class BlockUpload implements Callable<BlockStatistics> {
+        private final BlockSink sink;
+        private final MappedFileSource source;
+        private final UploadJournal journal;
+        private final int index;
+        private final String blockId;
+        private final long offset;
+        private final int length;
+
+        BlockUpload(BlockSink sink, MappedFileSource source, UploadJournal journal, int index, String blockId,
+                long offset, int length) {
+            this.sink = sink;
+            this.source = source;
+            this.journal = journal;
+            this.index = index;
+            this.blockId = blockId;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public BlockStatistics call() throws Exception {
+            ByteBuffer region = source.mapBlock(offset, length);
+
+            // The MD5 lets the blob service reject a corrupted block and is kept in the journal
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(region.duplicate());
+            String md5 = Base64.encode(digest.digest());
+
+            InputStream content = new MappedFileSource.ByteBufferInputStream(region);
+            try {
+                long start = System.nanoTime();
+                sink.putBlock(blockId, content, length, md5);
+                long elapsed = System.nanoTime() - start;
+                if (journal != null) {
+                    journal.recordBlock(blockId, md5);
+                }
+                return new BlockStatistics(index, offset, length, elapsed);
+            } finally {
+                content.close();
+            }
+        }
+    }
+
+    // Destination of the uploaded blocks
+    interface BlockSink {
+        void putBlock(String blockId, InputStream content, long length, String md5)
+                throws ServiceException, IOException;
+
+        void commit(List<String> blockIds) throws ServiceException, IOException;
+    }
+
+    static final class ContainerBlockSink implements BlockSink {
+        private final WritableBlobContainerContract container;
+        private final String blobName;
+
+        ContainerBlockSink(WritableBlobContainerContract container, String blobName) {
+            this.container = container;
+            this.blobName = blobName;
+        }
+
+        public void putBlock(String blockId, InputStream content, long length, String md5) throws ServiceException {
+            container.createBlobBlock(blobName, blockId, content, new CreateBlobBlockOptions().setContentMD5(md5));
+        }
+
+        public void commit(List<String> blockIds) throws ServiceException {
+            BlockList blockList = new BlockList();
+            for (String blockId : blockIds) {
+                blockList.addLatestEntry(blockId);
+            }
+            container.commitBlobBlocks(blobName, blockList);
+        }
+    }
+
+    static final class BlockStatistics implements Comparable<BlockStatistics> {
+        private final int index;
+        private final long offset;
+        private final long length;
+        private final long elapsedNanos;
+
+        BlockStatistics(int index, long offset, long length, long elapsedNanos) {
+            this.index = index;
+            this.offset = offset;
+            this.length = length;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        int getIndex() {
+            return index;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        double getMegabytesPerSecond() {
+            return toMegabytesPerSecond(length, elapsedNanos);
+        }
+
+        public int compareTo(BlockStatistics other) {
+            return index < other.index ? -1 : (index == other.index ? 0 : 1);
+        }
+    }
+
+    static final class UploadStatistics {
+        private final long totalBytes;
+        private final long elapsedNanos;
+        private final List<BlockStatistics> blocks;
+        private final int resumedBlocks;
+
+        UploadStatistics(long totalBytes, long elapsedNanos, List<BlockStatistics> blocks, int resumedBlocks) {
+            this.totalBytes = totalBytes;
+            this.elapsedNanos = elapsedNanos;
+            this.blocks = Collections.unmodifiableList(blocks);
+            this.resumedBlocks = resumedBlocks;
+        }
+
+        long getTotalBytes() {
+            return totalBytes;
+        }
+
+        long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        // Blocks uploaded by this run
+        List<BlockStatistics> getBlocks() {
+            return blocks;
+        }
+
+        // Blocks skipped because a previous run had already uploaded them
+        int getResumedBlocks() {
+            return resumedBlocks;
+        }
+
+        long getUploadedBytes() {
+            long uploaded = 0;
+            for (BlockStatistics block : blocks) {
+                uploaded += block.getLength();
+            }
+            return uploaded;
+        }
+
+        double getMegabytesPerSecond() {
+            return toMegabytesPerSecond(getUploadedBytes(), elapsedNanos);
+        }
+
+        // Throughput of the slowest block; a low value points at a throttled or lossy connection
+        double getSlowestBlockMegabytesPerSecond() {
+            double slowest = Double.MAX_VALUE;
+            for (BlockStatistics block : blocks) {
+                slowest = Math.min(slowest, block.getMegabytesPerSecond());
+            }
+            return blocks.isEmpty() ? 0 : slowest;
+        }
+    }
+
+    private static double toMegabytesPerSecond(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : (bytes / (1024.0 * 1024.0)) / (nanos / 1000000000.0);
+    }
+}
@@ -0,0 +1,233 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playreadywidevine;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.ContentEncryptionKeyFromHeader;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.MediaServicesLicenseTemplateSerializer;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.PlayReadyLicenseResponseTemplate;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.PlayReadyLicenseTemplate;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.PlayReadyLicenseType;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.PlayReadyPlayRight;
+import com.microsoft.windowsazure.services.media.implementation.templates.widevine.AllowedTrackTypes;
+import com.microsoft.windowsazure.services.media.implementation.templates.widevine.ContentKeySpecs;
+import com.microsoft.windowsazure.services.media.implementation.templates.widevine.Hdcp;
+import com.microsoft.windowsazure.services.media.implementation.templates.widevine.RequiredOutputProtection;
+import com.microsoft.windowsazure.services.media.implementation.templates.widevine.WidevineMessage;
+
+/**
+ * Named PlayReady and Widevine license templates, built and serialized once. The PlayReady
+ * templates go through MediaServicesLicenseTemplateSerializer (and its JAXB context) once per
+ * name, the Widevine ones through a single shared ObjectMapper, which is thread-safe and keeps the
+ * serializer of each class after the first use; every Asset then gets the cached text.
+ *
+ * Serialized templates are kept by the SHA-256 hash of their content, so names defining the same
+ * license share one copy. Templates can be added under new names; a name cannot be redefined.
+ */
+final class LicenseTemplateCatalog {
+
+    // The template of the original sample: non-persistent PlayReady, Widevine SD and HD
+    static final String DEFAULT = "default";
+    // Widevine SD tracks only; PlayReady constrains analog component video to SD
+    static final String SD_ONLY = "sd-only";
+    // HD tracks only on outputs protected with HDCP
+    static final String HD_HDCP = "hd-hdcp";
+    // Persistent licenses that expire two days after they are issued, and a day after first play
+    static final String RENTAL = "rental";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long RENTAL_SECONDS = TimeUnit.DAYS.toSeconds(2);
+    private static final long RENTAL_PLAYBACK_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    // Shared by every catalog; ObjectMapper is thread-safe once configured
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final ConcurrentMap<String, Template> playReady = new ConcurrentHashMap<String, Template>();
+    private final ConcurrentMap<String, Template> widevine = new ConcurrentHashMap<String, Template>();
+    private final ConcurrentMap<String, Template> byHash = new ConcurrentHashMap<String, Template>();
+
+    LicenseTemplateCatalog() throws JAXBException, JsonProcessingException {
+        addPlayReady(DEFAULT, playReadyTemplate(null, null, false, null, null));
+        addWidevine(DEFAULT, widevineMessage(AllowedTrackTypes.SD_HD, 1, Hdcp.HDCP_NONE, "SD",
+                policyOverrides(true, false, null, null)));
+
+        addPlayReady(SD_ONLY, playReadyTemplate(null, null, true, null, null));
+        addWidevine(SD_ONLY, widevineMessage(AllowedTrackTypes.SD_ONLY, 1, Hdcp.HDCP_NONE, "SD",
+                policyOverrides(true, false, null, null)));
+
+        // OPL 300 allows uncompressed digital video only on outputs with HDCP
+        addPlayReady(HD_HDCP, playReadyTemplate(null, 300, false, null, null));
+        addWidevine(HD_HDCP, widevineMessage(AllowedTrackTypes.SD_HD, 3, Hdcp.HDCP_V1, "HD",
+                policyOverrides(true, false, null, null)));
+
+        addPlayReady(RENTAL, playReadyTemplate(PlayReadyLicenseType.Persistent, null, false,
+                duration(RENTAL_SECONDS), duration(RENTAL_PLAYBACK_SECONDS)));
+        addWidevine(RENTAL, widevineMessage(AllowedTrackTypes.SD_HD, 1, Hdcp.HDCP_NONE, "SD",
+                policyOverrides(true, false, RENTAL_SECONDS, RENTAL_PLAYBACK_SECONDS)));
+    }
+
+    // Serialize a PlayReady template under a new name
+    LicenseTemplateCatalog addPlayReady(String name, PlayReadyLicenseResponseTemplate template) throws JAXBException {
+        add(playReady, "PlayReady", name, MediaServicesLicenseTemplateSerializer.serialize(template));
+        return this;
+    }
+
+    // Serialize a Widevine template under a new name
+    LicenseTemplateCatalog addWidevine(String name, WidevineMessage message) throws JsonProcessingException {
+        add(widevine, "Widevine", name, MAPPER.writeValueAsString(message));
+        return this;
+    }
+
+    // The PlayReady license template XML of a name
+    String getPlayReady(String name) {
+        return get(playReady, "PlayReady", name).text;
+    }
+
+    // The Widevine license template JSON of a name
+    String getWidevine(String name) {
+        return get(widevine, "Widevine", name).text;
+    }
+
+    Set<String> getNames() {
+        Set<String> names = new TreeSet<String>(playReady.keySet());
+        names.addAll(widevine.keySet());
+        return Collections.unmodifiableSet(names);
+    }
+
+    // The name with the content hash of each of its templates, for logging
+    String describe(String name) {
+        List<String> hashes = new ArrayList<String>();
+        if (playReady.containsKey(name)) {
+            hashes.add("PlayReady " + playReady.get(name).hash.substring(0, 12));
+        }
+        if (widevine.containsKey(name)) {
+            hashes.add("Widevine " + widevine.get(name).hash.substring(0, 12));
+        }
+        return hashes.isEmpty() ? name : name + " (" + String.join(", ", hashes) + ")";
+    }
+
+    private void add(ConcurrentMap<String, Template> templates, String kind, String name, String text) {
+        String hash = sha256(text);
+        Template template = new Template(hash, text);
+        Template existing = byHash.putIfAbsent(hash, template);
+        if (templates.putIfAbsent(name, existing != null ? existing : template) != null) {
+            throw new IllegalArgumentException(kind + " license template " + name + " is already defined");
+        }
+    }
+
+    private static Template get(Map<String, Template> templates, String kind, String name) {
+        Template template = templates.get(name);
+        if (template == null) {
+            throw new IllegalArgumentException("No " + kind + " license template named " + name);
+        }
+        return template;
+    }
+
+    private static PlayReadyLicenseResponseTemplate playReadyTemplate(PlayReadyLicenseType licenseType,
+            Integer uncompressedDigitalVideoOpl, boolean analogVideoConstraint, Duration relativeExpiration,
+            Duration firstPlayExpiration) {
+        PlayReadyLicenseResponseTemplate responseTemplate = new PlayReadyLicenseResponseTemplate();
+        PlayReadyLicenseTemplate licenseTemplate = new PlayReadyLicenseTemplate();
+        responseTemplate.getLicenseTemplates().add(licenseTemplate);
+        PlayReadyPlayRight playRight = new PlayReadyPlayRight();
+        licenseTemplate.setPlayRight(playRight);
+        licenseTemplate.setContentKey(new ContentEncryptionKeyFromHeader());
+        if (licenseType != null) {
+            licenseTemplate.setLicenseType(licenseType);
+        }
+        if (relativeExpiration != null) {
+            licenseTemplate.setRelativeExpirationDate(relativeExpiration);
+        }
+        if (uncompressedDigitalVideoOpl != null) {
+            playRight.setUncompressedDigitalVideoOpl(uncompressedDigitalVideoOpl);
+        }
+        if (analogVideoConstraint) {
+            playRight.setImageConstraintForAnalogComponentVideoRestriction(true);
+        }
+        if (firstPlayExpiration != null) {
+            playRight.setFirstPlayExpiration(firstPlayExpiration);
+        }
+        return responseTemplate;
+    }
+
+    private static WidevineMessage widevineMessage(AllowedTrackTypes trackTypes, int securityLevel, Hdcp hdcp,
+            String trackType, Map<String, Object> policyOverrides) {
+        WidevineMessage message = new WidevineMessage();
+        message.setAllowedTrackTypes(trackTypes);
+        ContentKeySpecs ckspecs = new ContentKeySpecs();
+        message.setContentKeySpecs(new ContentKeySpecs[] { ckspecs });
+        ckspecs.setRequiredOutputProtection(new RequiredOutputProtection());
+        ckspecs.getRequiredOutputProtection().setHdcp(hdcp);
+        ckspecs.setSecurityLevel(securityLevel);
+        ckspecs.setTrackType(trackType);
+        message.setPolicyOverrides(policyOverrides);
+        return message;
+    }
+
+    // Policy overrides in a map rather than an anonymous class, in the order of the original sample
+    private static Map<String, Object> policyOverrides(boolean canPersist, boolean canRenew, Long rentalSeconds,
+            Long playbackSeconds) {
+        Map<String, Object> overrides = new LinkedHashMap<String, Object>();
+        overrides.put("can_play", true);
+        overrides.put("can_persist", canPersist);
+        overrides.put("can_renew", canRenew);
+        if (rentalSeconds != null) {
+            overrides.put("license_duration_seconds", rentalSeconds);
+            overrides.put("rental_duration_seconds", rentalSeconds);
+        }
+        if (playbackSeconds != null) {
+            overrides.put("playback_duration_seconds", playbackSeconds);
+        }
+        return overrides;
+    }
+
+    private static Duration duration(long seconds) {
+        try {
+            return DatatypeFactory.newInstance().newDuration(TimeUnit.SECONDS.toMillis(seconds));
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(UTF8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A serialized template and the hash of its content
+    private static final class Template {
+        private final String hash;
+        private final String text;
+
+        Template(String hash, String text) {
+            this.hash = hash;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playreadywidevine;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only source of upload blocks backed by memory-mapped regions of a local file. Blocks are
+ * read straight from the page cache instead of being staged in heap arrays, and the underlying
+ * channel is released as soon as the source is closed.
+ */
+final class MappedFileSource implements Closeable {
+
+    private final FileChannel channel;
+    private final long length;
+
+    MappedFileSource(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.length = channel.size();
+    }
+
+    long length() {
+        return length;
+    }
+
+    // Map the given region of the file
+    ByteBuffer mapBlock(long offset, int blockLength) throws IOException {
+        if (offset < 0 || blockLength < 0 || offset + blockLength > length) {
+            throw new IllegalArgumentException(String.format("Region %d+%d is outside of the file", offset, blockLength));
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, blockLength);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Stream over a (mapped) buffer; mark/reset allow the block to be sent again on retry
+    static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.buffer.mark();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(count, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
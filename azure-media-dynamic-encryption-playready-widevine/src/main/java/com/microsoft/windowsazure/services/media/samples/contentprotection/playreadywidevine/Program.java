@@ -1,36 +1,35 @@
 package com.microsoft.windowsazure.services.media.samples.contentprotection.playreadywidevine;
 
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.windowsazure.Configuration;
-import com.microsoft.windowsazure.core.utils.Base64;
 import com.microsoft.windowsazure.exception.ServiceException;
 import com.microsoft.windowsazure.services.media.*;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdClientSymmetricKey;
 import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenCredentials;
-import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenProvider;
 import com.microsoft.windowsazure.services.media.authentication.AzureEnvironments;
-import com.microsoft.windowsazure.services.media.authentication.TokenProvider;
-import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.*;
 import com.microsoft.windowsazure.services.media.implementation.templates.tokenrestriction.*;
-import com.microsoft.windowsazure.services.media.implementation.templates.widevine.*;
 import com.microsoft.windowsazure.services.media.models.*;
 import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyRestriction.ContentKeyRestrictionType;
 
-import javax.xml.bind.JAXBException;
 import java.io.*;
 import java.net.URI;
 import java.security.NoSuchAlgorithmException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public final class Program {
 
     private static MediaContract mediaService;
+    private static JobCompletionWatcher jobWatcher;
+    private static JobNotificationQueue jobNotifications;
+    private static MediaProcessorRegistry mediaProcessors;
+    private static ContentKeyProvisioner contentKeys;
+    private static PolicyRegistry policies;
+    private static LocatorPublisher publisher;
+    private static LicenseTemplateCatalog licenseTemplates;
 
     // Media Services account credentials configuration
     private static String tenant = "tenant.domain.com";
@@ -47,12 +46,60 @@ public final class Program {
                                                     // false: use open
     private static TokenType tokenType = TokenType.JWT;
 
+    // License templates of the ContentKey authorization policy: default, sd-only, hd-hdcp or rental
+    private static String licenseTemplate = LicenseTemplateCatalog.DEFAULT;
+
+    // Job state change notifications, pushed to an Azure queue in the storage account of the Media
+    // Services account; without a connection string Jobs are only polled
+    private static String jobNotificationStorageConnectionString = null;
+    private static String jobNotificationQueueName = "job-notifications";
+
+    // Longest wait for a Job to reach a final state
+    private static int jobTimeoutMinutes = 12 * 60;
+
+    // Upload configuration
+    private static int uploadConcurrency = 8;
+    private static int uploadBlockSize = 4 * 1024 * 1024;
+    private static int uploadAttempts = 5;
+    private static String uploadJournalDirectory = "UploadJournals";
+
+    // Local index of the shared authorization and delivery policies
+    private static String policyIndexFile = "PolicyIndex.txt";
+
+    // Local index of the .ism manifest of each published Asset
+    private static String manifestIndexFile = "ManifestIndex.txt";
+
+    // Pipeline configuration: workers of each stage and the capacity of the stage queues
+    private static int ingestWorkers = 2;
+    private static int encodeWorkers = 8;
+    private static int protectWorkers = 4;
+    private static int publishWorkers = 4;
+    private static int stageQueueCapacity = 16;
+
+    // Batch protection: Assets protected at once, and the file listing the Assets to retry
+    private static int batchProtectWorkers = 16;
+    private static String batchRetryFile = "ProtectRetry.txt";
+
+    // Streaming configuration: the protocols of the AssetDeliveryPolicy and of the published URLs,
+    // how long the Origin Locators are valid, and the Assets published at once
+    private static EnumSet<AssetDeliveryProtocol> streamingProtocols = EnumSet.of(AssetDeliveryProtocol.Dash);
+    private static double locatorDurationInMinutes = 60 * 24 * 30;
+    private static int publishConcurrency = 16;
+
+    // Origin Locator renewal: Locators that expire within the window are extended by the Locator
+    // duration, with at most the given REST requests per second; watch mode lists the Locators of
+    // the account again every refresh interval
+    private static int locatorRenewalWindowDays = 7;
+    private static double locatorRenewalRequestsPerSecond = 10;
+    private static int locatorRefreshIntervalMinutes = 60;
+
     // Utility classes should not have a public or default constructor
     private Program() {
     }
 
     public static void main(String[] args) {
-        ExecutorService executorService = Executors.newFixedThreadPool(1);
+        AzureAdTokenManager tokenManager = null;
+        ResilientMediaContract resilience = null;
 
         try {
             // Setup Azure AD Service Principal Symmetric Key Credentials
@@ -61,69 +108,64 @@ public final class Program {
                     new AzureAdClientSymmetricKey(clientId, clientKey),
                     AzureEnvironments.AZURE_CLOUD_ENVIRONMENT);
 
-            TokenProvider provider = new AzureAdTokenProvider(credentials, executorService);
+            // Acquire the first token now and keep it refreshed in the background
+            tokenManager = new AzureAdTokenManager(credentials);
 
             // create a new configuration with the new credentials
             Configuration configuration = MediaConfiguration.configureWithAzureAdTokenProvider(
                     new URI(restApiEndpoint),
-                    provider);
-
-            // create the media service provisioned with the new configuration
-            mediaService = MediaService.create(configuration);
-
-            System.out.println("Azure SDK for Java - PlayReady & Widevine Dynamic Encryption Sample");
+                    tokenManager);
 
-            // Upload a local file to a media asset.
-            AssetInfo uploadAsset = uploadFileAndCreateAsset("Azure-Video.wmv");
-            System.out.println("Uploaded Asset Id: " + uploadAsset.getId());
+            // create the media service provisioned with the new configuration, retrying REST
+            // calls that are throttled or fail with transient errors
+            resilience = new ResilientMediaContract(restApiEndpoint);
+            mediaService = resilience.wrap(MediaService.create(configuration));
 
-            // Transform the asset.
-            AssetInfo encodedAsset = encode(uploadAsset);
-            System.out.println("Encoded Asset Id: " + encodedAsset.getId());
+            // Track Job completion with a single batched status poller
+            jobWatcher = new JobCompletionWatcher(new BatchJobPoller(mediaService));
 
-            // Create the ContentKey
-            ContentKeyInfo contentKeyInfo = createCommonTypeContentKey(encodedAsset);
-            System.out.println("Common Encryption Content Key: " + contentKeyInfo.getId());
-
-            // Create the ContentKeyAuthorizationPolicy
-            String tokenTemplateString = null;
-            if (tokenRestriction) {
-                tokenTemplateString = addTokenRestrictedAuthorizationPolicy(contentKeyInfo, tokenType);
-            } else {
-                addOpenAuthorizationPolicy(contentKeyInfo);
+            // Complete Jobs as soon as the service pushes their final state
+            if (jobNotificationStorageConnectionString != null) {
+                jobNotifications = JobNotificationQueue.forStorageQueue(mediaService, jobWatcher,
+                        jobNotificationStorageConnectionString, jobNotificationQueueName);
             }
 
-            // Create the AssetDeliveryPolicy
-            createAssetDeliveryPolicy(encodedAsset, contentKeyInfo);
+            // Resolve Media Processors once per hour instead of once per Job
+            mediaProcessors = new MediaProcessorRegistry(mediaService, TimeUnit.HOURS.toMillis(1));
 
-            if (tokenTemplateString != null) {
-                // Deserializes a string containing the XML representation of the TokenRestrictionTemplate
-                TokenRestrictionTemplate tokenTemplate = TokenRestrictionTemplateSerializer
-                        .deserialize(tokenTemplateString);
+            // Download each ProtectionKey certificate once and create the ContentKeys from it
+            contentKeys = new ContentKeyProvisioner(mediaService, new ProtectionKeyCache(mediaService), 8);
 
-                // Generate a test token based on the the data in the given
-                // TokenRestrictionTemplate.
-                // Note: You need to pass the key id Guid because we specified
-                // TokenClaim.ContentKeyIdentifierClaim in during the creation
-                // of TokenRestrictionTemplate.
-                UUID rawKey = UUID.fromString(contentKeyInfo.getId().substring("nb:kid:UUID:".length()));
+            // Share the authorization and delivery policies between Assets, and between runs
+            policies = new PolicyRegistry(mediaService, restApiEndpoint, new File(policyIndexFile));
 
-                // Token expiration: 1-year
-                Calendar date = Calendar.getInstance();
-                date.setTime(new Date());
-                date.add(Calendar.YEAR, 1);
+            // Publish with one shared AccessPolicy and a local index of the Asset manifests
+            publisher = new LocatorPublisher(mediaService, policies, new File(manifestIndexFile), streamingProtocols,
+                    publishConcurrency).setDuration(locatorDurationInMinutes)
+                    .setMinRemainingLifetime(TimeUnit.DAYS.toMinutes(locatorRenewalWindowDays));
 
-                // Generate token
-                String testToken = TokenRestrictionTemplateSerializer.generateTestToken(tokenTemplate, null, rawKey,
-                        date.getTime(), null);
+            // Build and serialize the license templates once for every Asset
+            licenseTemplates = new LicenseTemplateCatalog();
+            System.out.println("License template: " + licenseTemplates.describe(licenseTemplate));
 
-                System.out.println(tokenTemplate.getTokenType().toString() + " Test Token: Bearer " + testToken);
-            }
+            System.out.println("Azure SDK for Java - PlayReady & Widevine Dynamic Encryption Sample");
 
-            // Create the Streaming Origin Locator
-            String url = getStreamingOriginLocator(encodedAsset);
+            if (args.length > 0 && args[0].equals("protect")) {
+                // Protect existing Assets: protect <Asset id or file of Asset ids>...
+                protectAssets(BatchProtector.readAssetIds(Arrays.asList(args).subList(1, args.length)));
+            } else if (args.length > 0 && args[0].equals("publish")) {
+                // Publish existing Assets again: publish <Asset id or file of Asset ids>...
+                publishAssets(BatchProtector.readAssetIds(Arrays.asList(args).subList(1, args.length)));
+            } else if (args.length > 0 && args[0].equals("renew-locators")) {
+                // Renew the Origin Locators that are about to expire: renew-locators [watch]
+                renewLocators(args.length > 1 && args[1].equals("watch"));
+            } else {
+                // Run every file given on the command line (or the sample file) through the
+                // upload, encode, protect and publish stages
+                List<String> fileNames = args.length > 0 ? Arrays.asList(args) : Arrays.asList("Azure-Video.wmv");
+                processTitles(fileNames);
+            }
 
-            System.out.println("Origin Locator Url: " + url);
             System.out.println("Sample completed!");
 
         } catch (ServiceException se) {
@@ -133,68 +175,318 @@ public final class Program {
             System.out.println("Exception encountered.");
             System.out.println(e.toString());
         } finally {
-            executorService.shutdown();
+            if (jobNotifications != null) {
+                System.out.println("Job notifications received: " + jobNotifications.getReceivedCount());
+                jobNotifications.close();
+            }
+            if (jobWatcher != null) {
+                if (jobWatcher.getPoller().getMetrics().getRequests() > 0) {
+                    System.out.println("Job status " + jobWatcher.getPoller().getMetrics());
+                }
+                jobWatcher.close();
+            }
+            if (mediaProcessors != null) {
+                mediaProcessors.close();
+            }
+            if (contentKeys != null) {
+                contentKeys.close();
+            }
+            if (publisher != null) {
+                publisher.close();
+            }
+            if (tokenManager != null) {
+                tokenManager.close();
+            }
+            if (resilience != null) {
+                System.out.println("REST calls to " + resilience);
+            }
+        }
+    }
+
+    // Run the titles through the workflow stages. Each stage has its own workers, so
+    // one title uploads while the previous one is encoding.
+    private static void processTitles(List<String> fileNames) throws InterruptedException {
+        WorkflowPipeline<Title> pipeline = new WorkflowPipeline<Title>("workflow")
+                .addStage("ingest", ingestWorkers, stageQueueCapacity, title -> {
+                    // Upload a local file to a media asset.
+                    title.uploadAsset = uploadFileAndCreateAsset(title.fileName);
+                    System.out.println("Uploaded Asset Id: " + title.uploadAsset.getId());
+                })
+                .addStage("encode", encodeWorkers, stageQueueCapacity, title -> {
+                    // Transform the asset.
+                    title.encodedAsset = encode(title.uploadAsset);
+                    System.out.println("Encoded Asset Id: " + title.encodedAsset.getId());
+                })
+                .addStage("protect", protectWorkers, stageQueueCapacity, title -> protect(title))
+                .addStage("publish", publishWorkers, stageQueueCapacity, title -> {
+                    // Create the Streaming Origin Locator
+                    title.urls = publisher.publish(title.encodedAsset);
+                });
+
+        try {
+            List<CompletableFuture<Title>> results = new ArrayList<CompletableFuture<Title>>();
+            for (String fileName : fileNames) {
+                // Waits while the ingest stage is full
+                results.add(pipeline.submit(new Title(fileName)));
+            }
+
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    Title title = results.get(i).get();
+                    if (title.testToken != null) {
+                        System.out.println(title.fileName + " " + title.testToken);
+                    }
+                    System.out.println(title.fileName + " Origin Locator URLs:\n" + title.urls);
+                } catch (ExecutionException e) {
+                    System.out.println(fileNames.get(i) + " " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            pipeline.close();
+        }
+
+        for (WorkflowPipeline.StageMetrics metrics : pipeline.getMetrics()) {
+            System.out.println(metrics);
+        }
+    }
+
+    // Protect existing (encoded) Assets in parallel, each one with its own ContentKey and with the
+    // shared policies, and list the result of every Asset
+    private static void protectAssets(List<String> assetIds) throws Exception {
+        System.out.println(String.format("Protecting %d Assets", assetIds.size()));
+        BatchProtector batch = new BatchProtector(mediaService, contentKeys, ContentKeyType.CommonEncryption,
+                "Common Encryption Content Key", batchProtectWorkers);
+        try {
+            long start = System.currentTimeMillis();
+            List<BatchProtector.Result> results = batch.protectAll(assetIds, (asset, contentKey) -> {
+                Title title = new Title(asset.getName());
+                title.encodedAsset = asset;
+                protect(title, contentKey);
+            });
+            BatchProtector.printSummary(results, System.currentTimeMillis() - start, new File(batchRetryFile));
+        } finally {
+            batch.close();
+        }
+    }
+
+    // Publish existing Assets in parallel, each one with a live Origin Locator
+    private static void publishAssets(List<String> assetIds) throws InterruptedException {
+        System.out.println(String.format("Publishing %d Assets", assetIds.size()));
+        long start = System.currentTimeMillis();
+        int published = 0;
+        for (LocatorPublisher.Result result : publisher.publishAll(assetIds)) {
+            System.out.println(result);
+            if (result.isPublished()) {
+                published++;
+            }
+        }
+        System.out.println(String.format("Published %d of %d Assets in %.1f s", published, assetIds.size(),
+                (System.currentTimeMillis() - start) / 1000.0));
+    }
+
+    // Renew the Origin Locators of the account that expire within the renewal window; in watch mode
+    // keep running, waking up when the next Locator enters the window or the inventory is due
+    private static void renewLocators(boolean watch) throws ServiceException, InterruptedException {
+        long windowMillis = TimeUnit.DAYS.toMillis(locatorRenewalWindowDays);
+        long extensionMillis = (long) (locatorDurationInMinutes * TimeUnit.MINUTES.toMillis(1));
+        long refreshMillis = TimeUnit.MINUTES.toMillis(locatorRefreshIntervalMinutes);
+        LocatorExpiryTracker tracker = new LocatorExpiryTracker(mediaService, publisher,
+                locatorRenewalRequestsPerSecond, publishConcurrency);
+        try {
+            long refreshedAt = 0;
+            while (true) {
+                if (System.currentTimeMillis() - refreshedAt >= refreshMillis) {
+                    int tracked = tracker.refresh();
+                    refreshedAt = System.currentTimeMillis();
+                    System.out.println(String.format("Tracking %d Origin Locators, next expiry %s", tracked,
+                            tracker.getNextExpiration()));
+                }
+
+                List<LocatorExpiryTracker.Renewal> renewals = tracker.renewExpiring(windowMillis, extensionMillis);
+                int renewed = 0;
+                for (LocatorExpiryTracker.Renewal renewal : renewals) {
+                    System.out.println(renewal);
+                    if (renewal.isRenewed()) {
+                        renewed++;
+                    }
+                }
+                if (!renewals.isEmpty()) {
+                    System.out.println(String.format("Renewed %d of %d Origin Locators", renewed, renewals.size()));
+                }
+
+                if (!watch) {
+                    return;
+                }
+                long refreshDue = refreshedAt + refreshMillis - System.currentTimeMillis();
+                Thread.sleep(Math.max(TimeUnit.SECONDS.toMillis(1),
+                        Math.min(refreshDue, tracker.getMillisUntilDue(windowMillis))));
+            }
+        } finally {
+            tracker.close();
+        }
+    }
+
+    // Create the ContentKey, the ContentKeyAuthorizationPolicy and the AssetDeliveryPolicy
+    // of an encoded title
+    private static void protect(Title title) throws Exception {
+        // Create the ContentKey
+        ContentKeyInfo contentKeyInfo = createCommonTypeContentKey(title.encodedAsset);
+        if (contentKeyInfo == null) {
+            throw new ServiceException("Could not create the Content Key of " + title.fileName);
+        }
+        protect(title, contentKeyInfo);
+    }
+
+    // Create the ContentKeyAuthorizationPolicy and the AssetDeliveryPolicy of an encoded title
+    // with its ContentKey
+    private static void protect(Title title, ContentKeyInfo contentKeyInfo) throws Exception {
+        System.out.println("Common Encryption Content Key: " + contentKeyInfo.getId());
+        title.contentKey = contentKeyInfo;
+
+        // Create the ContentKeyAuthorizationPolicy
+        String tokenTemplateString = null;
+        if (tokenRestriction) {
+            tokenTemplateString = addTokenRestrictedAuthorizationPolicy(contentKeyInfo, tokenType);
+        } else {
+            addOpenAuthorizationPolicy(contentKeyInfo);
+        }
+
+        // Create the AssetDeliveryPolicy
+        createAssetDeliveryPolicy(title.encodedAsset, contentKeyInfo);
+
+        if (tokenTemplateString != null) {
+            // The issuer of the template: parsed once, and shared by every ContentKey protected
+            // with the same template
+            TestTokenIssuer tokenIssuer = TestTokenIssuer.forTemplate(tokenTemplateString);
+
+            // Generate a test token based on the the data in the given
+            // TokenRestrictionTemplate.
+            // Note: You need to pass the key id Guid because we specified
+            // TokenClaim.ContentKeyIdentifierClaim in during the creation
+            // of TokenRestrictionTemplate.
+            UUID rawKey = UUID.fromString(contentKeyInfo.getId().substring("nb:kid:UUID:".length()));
+
+            // Token expiration: 1-year
+            Calendar date = Calendar.getInstance();
+            date.setTime(new Date());
+            date.add(Calendar.YEAR, 1);
+
+            // Generate token
+            String testToken = tokenIssuer.issue(rawKey, date.getTime());
+
+            title.testToken = tokenIssuer.getTokenType().toString() + " Test Token: Bearer " + testToken;
         }
     }
 
     // Upload a media file to your Media Services account.
     // This code creates an Asset, an AccessPolicy (using Write access) and a
-    // Locator, and uses those objects to upload a local file.
+    // Locator, and uses those objects to upload a local file. The uploaded blocks
+    // are recorded in a journal, so a failed upload is resumed by the next run.
     private static AssetInfo uploadFileAndCreateAsset(String fileName)
-            throws ServiceException, FileNotFoundException, NoSuchAlgorithmException {
+            throws ServiceException, IOException, InterruptedException, NoSuchAlgorithmException {
         WritableBlobContainerContract uploader;
         AssetInfo resultAsset;
-        AccessPolicyInfo uploadAccessPolicy;
         LocatorInfo uploadLocator = null;
 
-        // Create an Asset
-        resultAsset = mediaService.create(Asset.create().setName(fileName).setAlternateId("altId"));
-        System.out.println("Created Asset " + fileName);
+        // The local file that will be uploaded to your Media Services account
+        File input = new File(Program.class.getClassLoader().getResource("").getPath() + fileName);
+
+        // Open the upload journal of the file; it is kept until the upload completes
+        UploadJournal journal = UploadJournal.open(new File(uploadJournalDirectory, fileName + ".journal"),
+                input, uploadBlockSize);
 
-        // Create an AccessPolicy that provides Write access for 15 minutes
-        uploadAccessPolicy = mediaService
-                .create(AccessPolicy.create("uploadAccessPolicy", 15.0, EnumSet.of(AccessPolicyPermission.WRITE)));
+        try {
+            if (journal.getAssetId() != null) {
+                // Resume the upload into the Asset created by a previous run
+                resultAsset = mediaService.get(Asset.get(journal.getAssetId()));
+                System.out.println(String.format("Resuming upload to Asset %s (%d blocks already uploaded)",
+                        resultAsset.getId(), journal.getBlockCount()));
+            } else {
+                // Create an Asset
+                resultAsset = mediaService.create(Asset.create().setName(fileName).setAlternateId("altId"));
+                System.out.println("Created Asset " + fileName);
+                journal.setAssetId(resultAsset.getId());
+            }
 
-        // Create a Locator using the AccessPolicy and Asset
-        uploadLocator = mediaService
-                .create(Locator.create(uploadAccessPolicy.getId(), resultAsset.getId(), LocatorType.SAS));
+            System.out.println("Uploading " + fileName);
+
+            // Upload the local file to the asset in parallel blocks; after a failure only the
+            // missing blocks are sent again, with a new Locator if the previous one has expired
+            BlockBlobUploader.UploadStatistics uploadStatistics = null;
+            for (int attempt = 1; uploadStatistics == null; attempt++) {
+                uploadLocator = getUploadLocator(journal, resultAsset.getId());
+
+                // Create the Blob Writer using the Locator
+                uploader = mediaService.createBlobWriter(uploadLocator);
+
+                try {
+                    uploadStatistics = new BlockBlobUploader()
+                            .setConcurrency(uploadConcurrency)
+                            .setBlockSize(uploadBlockSize)
+                            .setJournal(journal)
+                            .upload(uploader, fileName, input);
+                } catch (ServiceException se) {
+                    if (attempt >= uploadAttempts) {
+                        throw se;
+                    }
+                    System.out.println("Upload interrupted, resuming: " + se.getMessage());
+                }
+            }
+            System.out.println(String.format("Uploaded %d blocks in %d ms (%.2f MB/s), %d blocks resumed",
+                    uploadStatistics.getBlocks().size(), uploadStatistics.getElapsedNanos() / 1000000,
+                    uploadStatistics.getMegabytesPerSecond(), uploadStatistics.getResumedBlocks()));
 
-        // Create the Blob Writer using the Locator
-        uploader = mediaService.createBlobWriter(uploadLocator);
+            // Inform Media Services about the uploaded files
+            mediaService.action(AssetFile.createFileInfos(resultAsset.getId()));
+            System.out.println("Uploaded Asset File " + fileName);
 
-        // The local file that will be uploaded to your Media Services account
-        InputStream input = new FileInputStream(
-                new File(Program.class.getClassLoader().getResource("").getPath() + fileName));
+            mediaService.delete(Locator.delete(uploadLocator.getId()));
+            mediaService.delete(AccessPolicy.delete(journal.getAccessPolicyId()));
 
-        System.out.println("Uploading " + fileName);
+            journal.delete();
+        } finally {
+            journal.close();
+        }
 
-        // Upload the local file to the asset
-        uploader.createBlockBlob(fileName, input);
+        return resultAsset;
+    }
 
-        // Inform Media Services about the uploaded files
-        mediaService.action(AssetFile.createFileInfos(resultAsset.getId()));
-        System.out.println("Uploaded Asset File " + fileName);
+    // Get a SAS Locator that provides Write access to the Asset for 15 minutes.
+    // The Locator recorded in the journal is reused while it is still valid.
+    private static LocatorInfo getUploadLocator(UploadJournal journal, String assetId)
+            throws ServiceException, IOException {
+        if (journal.getLocatorId() != null) {
+            try {
+                LocatorInfo locator = mediaService.get(Locator.get(journal.getLocatorId()));
+
+                // Leave a margin so the Locator does not expire in the middle of a block
+                if (locator.getExpirationDateTime().getTime() - System.currentTimeMillis() > 60 * 1000) {
+                    return locator;
+                }
+                mediaService.delete(Locator.delete(locator.getId()));
+                mediaService.delete(AccessPolicy.delete(journal.getAccessPolicyId()));
+            } catch (ServiceException se) {
+                // The Locator (or its AccessPolicy) no longer exists
+            }
+        }
 
-        mediaService.delete(Locator.delete(uploadLocator.getId()));
-        mediaService.delete(AccessPolicy.delete(uploadAccessPolicy.getId()));
+        // Create an AccessPolicy that provides Write access for 15 minutes
+        AccessPolicyInfo uploadAccessPolicy = mediaService
+                .create(AccessPolicy.create("uploadAccessPolicy", 15.0, EnumSet.of(AccessPolicyPermission.WRITE)));
 
-        return resultAsset;
+        // Create a Locator using the AccessPolicy and Asset
+        LocatorInfo uploadLocator = mediaService
+                .create(Locator.create(uploadAccessPolicy.getId(), assetId, LocatorType.SAS));
+
+        journal.setLocator(uploadAccessPolicy.getId(), uploadLocator.getId());
+        return uploadLocator;
     }
 
     // Create a Job that contains a Task to transform the Asset
     private static AssetInfo encode(AssetInfo assetToEncode)
             throws ServiceException, InterruptedException {
-        // Retrieve the list of Media Processors that match the name
-        ListResult<MediaProcessorInfo> mediaProcessors = mediaService
-                .list(MediaProcessor.list().set("$filter", String.format("Name eq '%s'", preferedEncoder)));
-
-        // Use the latest version of the Media Processor
-        MediaProcessorInfo mediaProcessor = null;
-        for (MediaProcessorInfo info : mediaProcessors) {
-            if (null == mediaProcessor || info.getVersion().compareTo(mediaProcessor.getVersion()) > 0) {
-                mediaProcessor = info;
-            }
-        }
+        // Use the latest version of the Media Processor (resolved once and cached)
+        MediaProcessorInfo mediaProcessor = mediaProcessors.resolve(preferedEncoder);
 
         System.out.println("Using Media Processor: " + mediaProcessor.getName() + " " + mediaProcessor.getVersion());
 
@@ -211,6 +503,9 @@ public final class Program {
         Job.Creator jobCreator = Job.create()
                 .setName(String.format("Encoding %s to %s", assetToEncode.getName(), encodingPreset))
                 .addInputMediaAsset(assetToEncode.getId()).setPriority(2).addTaskCreator(task);
+        if (jobNotifications != null) {
+            jobNotifications.subscribe(jobCreator);
+        }
         JobInfo job = mediaService.create(jobCreator);
 
         String jobId = job.getId();
@@ -227,43 +522,10 @@ public final class Program {
 
     public static ContentKeyInfo createCommonTypeContentKey(AssetInfo asset) {
         try {
-            // Get the protection key id for ContentKey
-            String protectionKeyId = mediaService
-                    .action(ProtectionKey.getProtectionKeyId(ContentKeyType.CommonEncryption));
-
-            // Download and create the X509 certificate
-            String protectionKey = mediaService.action(ProtectionKey.getProtectionKey(protectionKeyId));
-            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
-                    .generateCertificate(new ByteArrayInputStream(Base64.decode(protectionKey)));
-
-            // Create a new ContentKey (secure random)
-            byte[] contentKeyData = new byte[16];
-            EncryptionUtils.eraseKey(contentKeyData);
-
-            // Encrypt ContentKey
-            byte[] encryptedContentKey = EncryptionUtils.encryptSymmetricKeyData(certificate, contentKeyData);
-            String encryptedContentKeyString = Base64.encode(encryptedContentKey);
-
-            // Create the ContentKey Id
-            UUID contentKeyIdUuid = UUID.randomUUID();
-            String contentKeyId = String.format("nb:kid:UUID:%s", contentKeyIdUuid.toString());
-
-            // Calculate the checksum
-            String checksum = EncryptionUtils.calculateChecksum(contentKeyData, contentKeyIdUuid);
-
-            // Create the ContentKey entity
-            ContentKeyInfo contentKey = mediaService.create(
-            		ContentKey.create(contentKeyId, ContentKeyType.CommonEncryption, encryptedContentKeyString)
-                            .setChecksum(checksum)
-                            .setProtectionKeyType(ProtectionKeyType.X509CertificateThumbprint)
-                            .setName("Common Encryption Content Key")
-                            .setProtectionKeyId(EncryptionUtils.getThumbPrint(certificate)));
-
-            // Associate the ContentKey with the Asset
-            mediaService.action(Asset.linkContentKey(asset.getId(), contentKeyId));
-
-            return contentKey;
-
+            // Reuse the ContentKey an earlier attempt linked to the Asset, or create one from the cached
+            // protection certificate and associate it with the Asset
+            return contentKeys.findOrCreateAndLink(ContentKeyType.CommonEncryption,
+                    "Common Encryption Content Key", asset);
         } catch (Exception e) {
             System.out.println(e.getMessage());
         }
@@ -277,64 +539,58 @@ public final class Program {
         restrictions.add(new ContentKeyAuthorizationPolicyRestriction("Open Restriction",
         		ContentKeyRestrictionType.Open.getValue(), null));
 
-        // Create ContentKeyAuthorizationPolicyOption (PlayReady)
-        String playReadyLicenseTemplate = configurePlayReadyLicenceTemplate();
-        ContentKeyAuthorizationPolicyOptionInfo playReadyOption = mediaService
-                .create(ContentKeyAuthorizationPolicyOption.create("PlayReady Option",
-                        ContentKeyDeliveryType.PlayReadyLicense.getCode(), playReadyLicenseTemplate, restrictions));
-
-        // Create ContentKeyAuthorizationPolicyOption (Widevine)
-        String widevineLicenseTemplate = configureWidevineLicenceTemplate();
-        ContentKeyAuthorizationPolicyOptionInfo widevineOption = mediaService
-                .create(ContentKeyAuthorizationPolicyOption.create("Widevine Option",
-                        ContentKeyDeliveryType.Widevine.getCode(), widevineLicenseTemplate, restrictions));
-
-        // Create ContentKeyAuthorizationPolicy
-        ContentKeyAuthorizationPolicyInfo contentKeyAuthorizationPolicy = mediaService
-                .create(ContentKeyAuthorizationPolicy.create("PlayReady Open Content Key Authorization Policy"));
-
-        // Link the ContentKeyAuthorizationPolicyOptions to the ContentKeyAuthorizationPolicy
-        mediaService.action(ContentKeyAuthorizationPolicy.linkOptions(contentKeyAuthorizationPolicy.getId(), playReadyOption.getId()));
-        mediaService.action(ContentKeyAuthorizationPolicy.linkOptions(contentKeyAuthorizationPolicy.getId(), widevineOption.getId()));
+        // PlayReady license template
+        String playReadyLicenseTemplate = licenseTemplates.getPlayReady(licenseTemplate);
+        // Widevine license template
+        String widevineLicenseTemplate = licenseTemplates.getWidevine(licenseTemplate);
+
+        // Find or create the ContentKeyAuthorizationPolicy; it is shared by every ContentKey
+        // with the same options and restrictions
+        List<PolicyRegistry.PolicyOption> options = new ArrayList<PolicyRegistry.PolicyOption>();
+        options.add(new PolicyRegistry.PolicyOption("PlayReady Option",
+                ContentKeyDeliveryType.PlayReadyLicense.getCode(), playReadyLicenseTemplate, restrictions));
+        options.add(new PolicyRegistry.PolicyOption("Widevine Option",
+                ContentKeyDeliveryType.Widevine.getCode(), widevineLicenseTemplate, restrictions));
+        String contentKeyAuthorizationPolicyId = policies.getAuthorizationPolicy(
+                "PlayReady Open Content Key Authorization Policy", options);
 
         // Associate the ContentKeyAuthorizationPolicy with the ContentKey
-        mediaService.update(ContentKey.update(contentKey.getId(), contentKeyAuthorizationPolicy.getId()));
+        mediaService.update(ContentKey.update(contentKey.getId(), contentKeyAuthorizationPolicyId));
 
-        System.out.println("Added Content Key Authorization Policy: " + contentKeyAuthorizationPolicy.getName());
+        System.out.println("Added Content Key Authorization Policy: " + contentKeyAuthorizationPolicyId);
     }
 
     public static String addTokenRestrictedAuthorizationPolicy(ContentKeyInfo contentKey, TokenType tokenType)
             throws Exception {
+        // The token template (and its verification key) is kept in the policy index, so the
+        // policy it belongs to can be shared
+        String tokenRestrictionString = policies.getValue("TokenRestriction." + tokenType,
+                () -> generateTokenRequirements(tokenType));
+
         // Create ContentKeyAuthorizationPolicyRestriction (Token)
-        String tokenRestrictionString = generateTokenRequirements(tokenType);
         List<ContentKeyAuthorizationPolicyRestriction> restrictions = new ArrayList<ContentKeyAuthorizationPolicyRestriction>();
         restrictions.add(new ContentKeyAuthorizationPolicyRestriction("Token Restriction",
                 ContentKeyRestrictionType.TokenRestricted.getValue(), tokenRestrictionString));
 
-        // Create ContentKeyAuthorizationPolicyOptions (PlayReady)
-        String playReadyLicenseTemplateString = configurePlayReadyLicenceTemplate();
-        ContentKeyAuthorizationPolicyOptionInfo playReadyOption = mediaService
-                .create(ContentKeyAuthorizationPolicyOption.create("PlayReady Option",
-                        ContentKeyDeliveryType.PlayReadyLicense.getCode(), playReadyLicenseTemplateString, restrictions));
-
-        // Create ContentKeyAuthorizationPolicyOption (Widevine)
-        String widevineLicenseTemplate = configureWidevineLicenceTemplate();
-        ContentKeyAuthorizationPolicyOptionInfo widevineOption = mediaService
-                .create(ContentKeyAuthorizationPolicyOption.create("Widevine Option",
-                        ContentKeyDeliveryType.Widevine.getCode(), widevineLicenseTemplate, restrictions));
-
-        // Create ContentKeyAuthorizationPolicy
-        ContentKeyAuthorizationPolicyInfo contentKeyAuthorizationPolicy = mediaService
-                .create(ContentKeyAuthorizationPolicy.create("PlayReady Token Content Key Authorization Policy"));
-
-        // Link the ContentKeyAuthorizationPolicyOptions to the ContentKeyAuthorizationPolicy
-        mediaService.action(ContentKeyAuthorizationPolicy.linkOptions(contentKeyAuthorizationPolicy.getId(), playReadyOption.getId()));
-        mediaService.action(ContentKeyAuthorizationPolicy.linkOptions(contentKeyAuthorizationPolicy.getId(), widevineOption.getId()));
+        // PlayReady license template
+        String playReadyLicenseTemplateString = licenseTemplates.getPlayReady(licenseTemplate);
+        // Widevine license template
+        String widevineLicenseTemplate = licenseTemplates.getWidevine(licenseTemplate);
+
+        // Find or create the ContentKeyAuthorizationPolicy; it is shared by every ContentKey
+        // with the same options and restrictions
+        List<PolicyRegistry.PolicyOption> options = new ArrayList<PolicyRegistry.PolicyOption>();
+        options.add(new PolicyRegistry.PolicyOption("PlayReady Option",
+                ContentKeyDeliveryType.PlayReadyLicense.getCode(), playReadyLicenseTemplateString, restrictions));
+        options.add(new PolicyRegistry.PolicyOption("Widevine Option",
+                ContentKeyDeliveryType.Widevine.getCode(), widevineLicenseTemplate, restrictions));
+        String contentKeyAuthorizationPolicyId = policies.getAuthorizationPolicy(
+                "PlayReady Token Content Key Authorization Policy", options);
 
         // Associate the ContentKeyAuthorizationPolicy with the ContentKey
-        mediaService.update(ContentKey.update(contentKey.getId(), contentKeyAuthorizationPolicy.getId()));
+        mediaService.update(ContentKey.update(contentKey.getId(), contentKeyAuthorizationPolicyId));
 
-        System.out.println("Added Content Key Authorization Policy: " + contentKeyAuthorizationPolicy.getName());
+        System.out.println("Added Content Key Authorization Policy: " + contentKeyAuthorizationPolicyId);
 
         return tokenRestrictionString;
     }
@@ -357,95 +613,36 @@ public final class Program {
         assetDeliveryPolicyConfiguration.put(AssetDeliveryPolicyConfigurationKey.WidevineBaseLicenseAcquisitionUrl,
                 widevineUrl);
 
-        AssetDeliveryPolicyInfo assetDeliveryPolicy = mediaService.create(AssetDeliveryPolicy.create()
-                .setName("PlayReady & Widevine Dash Asset Delivery Policy")
-                .setAssetDeliveryConfiguration(assetDeliveryPolicyConfiguration)
-                .setAssetDeliveryPolicyType(AssetDeliveryPolicyType.DynamicCommonEncryption)
-                .setAssetDeliveryProtocol(EnumSet.of(AssetDeliveryProtocol.Dash)));
-
-        // Link the AssetDeliveryPolicy to the Asset
-        mediaService.action(Asset.linkDeliveryPolicy(asset.getId(), assetDeliveryPolicy.getId()));
-
-        System.out.println("Added Asset Delivery Policy: " + assetDeliveryPolicy.getName());
-    }
-
-    public static String getStreamingOriginLocator(AssetInfo asset) throws ServiceException {
-        // Get the .ISM AssetFile
-        ListResult<AssetFileInfo> assetFiles = mediaService.list(AssetFile.list(asset.getAssetFilesLink()));
-        AssetFileInfo streamingAssetFile = null;
-        for (AssetFileInfo file : assetFiles) {
-            if (file.getName().toLowerCase().endsWith(".ism")) {
-                streamingAssetFile = file;
-                break;
-            }
-        }
+        // Find or create the AssetDeliveryPolicy; it is shared by every Asset with the same configuration
+        String assetDeliveryPolicyId = policies.getDeliveryPolicy("PlayReady & Widevine Dash Asset Delivery Policy",
+                AssetDeliveryPolicyType.DynamicCommonEncryption,
+                streamingProtocols,
+                assetDeliveryPolicyConfiguration);
 
-        AccessPolicyInfo originAccessPolicy;
-        LocatorInfo originLocator = null;
+        // Link the AssetDeliveryPolicy to the Asset, unless an earlier attempt already did
+        policies.linkDeliveryPolicy(asset, assetDeliveryPolicyId);
 
-        // Create a 30-day readonly AccessPolicy
-        double durationInMinutes = 60 * 24 * 30;
-        originAccessPolicy = mediaService.create(
-                AccessPolicy.create("Streaming policy", durationInMinutes, EnumSet.of(AccessPolicyPermission.READ)));
-
-        // Create a Locator using the AccessPolicy and Asset
-        originLocator = mediaService
-                .create(Locator.create(originAccessPolicy.getId(), asset.getId(), LocatorType.OnDemandOrigin));
-
-        // Create a Smooth Streaming base URL
-        return originLocator.getPath() + streamingAssetFile.getName() + "/manifest";
+        System.out.println("Added Asset Delivery Policy: " + assetDeliveryPolicyId);
     }
 
     private static void checkJobStatus(String jobId) throws InterruptedException, ServiceException {
-        boolean done = false;
-        JobState jobState = null;
-        while (!done) {
-            // Sleep for 5 seconds
-            Thread.sleep(5000);
-
-            // Query the updated Job state
-            jobState = mediaService.get(Job.get(jobId)).getState();
-            System.out.println("Job state: " + jobState);
-
-            if (jobState == JobState.Finished || jobState == JobState.Canceled || jobState == JobState.Error) {
-                done = true;
+        CompletableFuture<JobState> job = jobWatcher.watch(jobId);
+        try {
+            // Wait until the Job reaches a final state
+            job.get(jobTimeoutMinutes, TimeUnit.MINUTES);
+        } catch (TimeoutException e) {
+            // Stop tracking the Job
+            job.cancel(false);
+            throw new ServiceException(String.format("Job %s did not finish within %d minutes", jobId,
+                    jobTimeoutMinutes));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
             }
+            throw new ServiceException(e.getCause());
         }
     }
 
-    private static String configurePlayReadyLicenceTemplate() throws JAXBException {
-        // Configure PlayReady License Template and serialize it to XML
-        PlayReadyLicenseResponseTemplate responseTemplate = new PlayReadyLicenseResponseTemplate();
-        PlayReadyLicenseTemplate licenseTemplate = new PlayReadyLicenseTemplate();
-        responseTemplate.getLicenseTemplates().add(licenseTemplate);
-        PlayReadyPlayRight playRight = new PlayReadyPlayRight();
-        licenseTemplate.setPlayRight(playRight);
-        licenseTemplate.setContentKey(new ContentEncryptionKeyFromHeader());
-
-        return MediaServicesLicenseTemplateSerializer.serialize(responseTemplate);
-    }
-
-    private static String configureWidevineLicenceTemplate() throws JsonProcessingException {
-        // Configure Widevine License Template and serialize it to JSON
-        WidevineMessage message = new WidevineMessage();
-        message.setAllowedTrackTypes(AllowedTrackTypes.SD_HD);
-        ContentKeySpecs ckspecs = new ContentKeySpecs();
-        message.setContentKeySpecs(new ContentKeySpecs[] { ckspecs });
-        ckspecs.setRequiredOutputProtection(new RequiredOutputProtection());
-        ckspecs.getRequiredOutputProtection().setHdcp(Hdcp.HDCP_NONE);
-        ckspecs.setSecurityLevel(1);
-        ckspecs.setTrackType("SD");
-        message.setPolicyOverrides(new Object() {
-              public boolean can_play = true;
-              public boolean can_persist = true;
-              public boolean can_renew  = false;
-        });
-
-        ObjectMapper mapper = new ObjectMapper();
-
-        return mapper.writeValueAsString(message);
-    }
-
     private static String generateTokenRequirements(TokenType tokenType) throws Exception {
         TokenRestrictionTemplate template = new TokenRestrictionTemplate(tokenType);
 
@@ -456,4 +653,18 @@ public final class Program {
 
         return TokenRestrictionTemplateSerializer.serialize(template);
     }
+
+    // A media file and the entities created for it by the workflow stages
+    private static final class Title {
+        private final String fileName;
+        private AssetInfo uploadAsset;
+        private AssetInfo encodedAsset;
+        private ContentKeyInfo contentKey;
+        private String testToken;
+        private LocatorPublisher.StreamingUrls urls;
+
+        Title(String fileName) {
+            this.fileName = fileName;
+        }
+    }
 }
@@ -0,0 +1,261 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playreadywidevine;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs work items through a fixed sequence of stages, for example upload, encode, protect and
+ * publish. Every stage has its own pool of workers and a bounded input queue, so different items
+ * are in different stages at the same time: the next file uploads while the previous one encodes.
+ *
+ * Each stage takes at most its workers plus its queue capacity of items, counted by a semaphore.
+ * When a stage is full, the worker of the stage before it waits until there is room (and
+ * {@link #submit} waits when the first stage is full), so a slow stage holds back the ones before
+ * it instead of piling up work in memory. Once the pipeline is closed, waiting and new hand-offs
+ * fail with a RejectedExecutionException, so the future of every item completes.
+ */
+final class WorkflowPipeline<T> implements Closeable {
+
+    // One step of the workflow; it updates the item in place
+    interface Step<T> {
+        void run(T item) throws Exception;
+    }
+
+    private static final long CLOSED_CHECK_MILLIS = 100;
+
+    private final String name;
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    WorkflowPipeline(String name) {
+        this.name = name;
+    }
+
+    // Add a stage with the given number of workers and input queue capacity
+    WorkflowPipeline<T> addStage(String stageName, int workers, int queueCapacity, Step<T> step) {
+        stages.add(new Stage(stageName, workers, queueCapacity, step, stages.size()));
+        return this;
+    }
+
+    // Start an item at the first stage; the future completes once it has left the last stage
+    CompletableFuture<T> submit(T item) throws InterruptedException {
+        if (stages.isEmpty()) {
+            throw new IllegalStateException("The pipeline has no stages");
+        }
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        stages.get(0).enqueue(item, future);
+        return future;
+    }
+
+    List<StageMetrics> getMetrics() {
+        List<StageMetrics> metrics = new ArrayList<StageMetrics>();
+        for (Stage stage : stages) {
+            metrics.add(stage.metrics);
+        }
+        return metrics;
+    }
+
+    // Stop accepting items; items already queued in a stage still run there, items waiting for room
+    // or moving on to the next stage fail
+    public void close() {
+        for (Stage stage : stages) {
+            stage.executor.shutdown();
+        }
+    }
+
+    private final class Stage {
+        private final Step<T> step;
+        private final int index;
+        private final ThreadPoolExecutor executor;
+        private final Semaphore permits;
+        private final StageMetrics metrics;
+
+        Stage(final String stageName, int workers, int queueCapacity, Step<T> step, int index) {
+            this.step = step;
+            this.index = index;
+            // The semaphore bounds the queue; the executor rejects only once it is shut down
+            this.permits = new Semaphore(workers + queueCapacity);
+            this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    String.format("%s-%s-%d", name, stageName, count.incrementAndGet()));
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            this.metrics = new StageMetrics(stageName, executor);
+        }
+
+        void enqueue(final T item, final CompletableFuture<T> future) throws InterruptedException {
+            final long queuedAt = System.nanoTime();
+            // Wait for room, looking at the executor now and then so a closed pipeline fails fast
+            while (!permits.tryAcquire(CLOSED_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("The pipeline is closed");
+                }
+            }
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            process(item, future, queuedAt);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw new RejectedExecutionException("The pipeline is closed", e);
+            }
+            metrics.recordQueued(System.nanoTime() - queuedAt);
+        }
+
+        private void process(T item, CompletableFuture<T> future, long queuedAt) {
+            long startedAt = System.nanoTime();
+            metrics.recordStarted(startedAt - queuedAt);
+            try {
+                step.run(item);
+            } catch (Exception e) {
+                metrics.recordFinished(System.nanoTime() - startedAt, false);
+                System.out.println(String.format("Stage %s failed: %s", metrics.getName(), e.toString()));
+                future.completeExceptionally(new StageException(metrics.getName(), e));
+                return;
+            }
+            metrics.recordFinished(System.nanoTime() - startedAt, true);
+
+            if (index + 1 == stages.size()) {
+                future.complete(item);
+                return;
+            }
+            try {
+                // Waits here while the next stage is full
+                stages.get(index + 1).enqueue(item, future);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    // Failure of an item in one of the stages
+    static final class StageException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final String stageName;
+
+        StageException(String stageName, Throwable cause) {
+            super(String.format("Stage %s failed: %s", stageName, cause.toString()), cause);
+            this.stageName = stageName;
+        }
+
+        String getStageName() {
+            return stageName;
+        }
+    }
+
+    // Latency, throughput and queue depth of one stage
+    static final class StageMetrics {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong totalBlockedNanos = new AtomicLong();
+        private final AtomicLong totalServiceNanos = new AtomicLong();
+        private final AtomicLong maxServiceNanos = new AtomicLong();
+        private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+        StageMetrics(String name, ThreadPoolExecutor executor) {
+            this.name = name;
+            this.executor = executor;
+        }
+
+        // Time the previous stage waited for room in the queue
+        void recordQueued(long blockedNanos) {
+            totalBlockedNanos.addAndGet(blockedNanos);
+            int depth = executor.getQueue().size();
+            int max;
+            do {
+                max = maxQueueDepth.get();
+            } while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+        }
+
+        void recordStarted(long waitNanos) {
+            totalWaitNanos.addAndGet(waitNanos);
+        }
+
+        void recordFinished(long serviceNanos, boolean succeeded) {
+            (succeeded ? completed : failed).incrementAndGet();
+            totalServiceNanos.addAndGet(serviceNanos);
+            long max;
+            do {
+                max = maxServiceNanos.get();
+            } while (serviceNanos > max && !maxServiceNanos.compareAndSet(max, serviceNanos));
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getCompleted() {
+            return completed.get();
+        }
+
+        long getFailed() {
+            return failed.get();
+        }
+
+        int getQueueDepth() {
+            return executor.getQueue().size();
+        }
+
+        int getMaxQueueDepth() {
+            return maxQueueDepth.get();
+        }
+
+        int getActiveWorkers() {
+            return executor.getActiveCount();
+        }
+
+        // Average time an item spent in the stage, excluding the wait in the queue
+        double getAverageServiceMillis() {
+            long count = completed.get() + failed.get();
+            return count == 0 ? 0 : totalServiceNanos.get() / 1000000.0 / count;
+        }
+
+        double getAverageWaitMillis() {
+            long count = completed.get() + failed.get();
+            return count == 0 ? 0 : totalWaitNanos.get() / 1000000.0 / count;
+        }
+
+        long getMaxServiceMillis() {
+            return maxServiceNanos.get() / 1000000;
+        }
+
+        long getBlockedMillis() {
+            return totalBlockedNanos.get() / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-8s %d done, %d failed, avg %.0f ms (max %d ms), avg queue wait %.0f ms, "
+                    + "queue depth %d (max %d), upstream blocked %d ms",
+                    name, getCompleted(), getFailed(), getAverageServiceMillis(), getMaxServiceMillis(),
+                    getAverageWaitMillis(), getQueueDepth(), getMaxQueueDepth(), getBlockedMillis());
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playready;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.core.utils.Base64;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.EncryptionUtils;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.Asset;
+import com.microsoft.windowsazure.services.media.models.AssetInfo;
+import com.microsoft.windowsazure.services.media.models.ContentKey;
+import com.microsoft.windowsazure.services.media.models.ContentKeyInfo;
+import com.microsoft.windowsazure.services.media.models.ContentKeyType;
+import com.microsoft.windowsazure.services.media.models.ProtectionKeyType;
+
+/**
+ * Creates ContentKeys encrypted with the cached ProtectionKey certificates of a
+ * {@link ProtectionKeyCache}. Besides single keys it creates the keys of many Assets at once, in
+ * parallel: the certificate is downloaded once and only the ContentKey (and Asset link) requests
+ * remain. Every Asset gets its own {@link Result}, so one failure does not lose the keys created
+ * for the others, and a key whose Asset link fails is deleted rather than left behind.
+ *
+ * An Asset that already has a ContentKey of the requested type (linked by an earlier attempt that
+ * failed further on) keeps it, so protecting an Asset again never gives it a second key.
+ *
+ * When the service rejects a ContentKey, the cached certificate may belong to a rotated
+ * ProtectionKey: it is invalidated, and the key is created again if the current certificate differs.
+ */
+final class ContentKeyProvisioner implements Closeable {
+
+    private static final int HTTP_BAD_REQUEST = 400;
+
+    private final MediaContract mediaService;
+    private final ProtectionKeyCache protectionKeys;
+    private final ExecutorService executor;
+
+    ContentKeyProvisioner(MediaContract mediaService, ProtectionKeyCache protectionKeys, int parallelism) {
+        this.mediaService = mediaService;
+        this.protectionKeys = protectionKeys;
+        this.executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "content-key-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Create a ContentKey with new (secure random) key data
+    ContentKeyInfo create(ContentKeyType contentKeyType, String name) throws ServiceException {
+        byte[] contentKeyData = new byte[16];
+        EncryptionUtils.eraseKey(contentKeyData);
+        return create(contentKeyType, name, contentKeyData, true);
+    }
+
+    // Create a ContentKey with the given key data; some key types (the FairPlay PFX password)
+    // are created without a checksum
+    ContentKeyInfo create(ContentKeyType contentKeyType, String name, byte[] contentKeyData, boolean withChecksum)
+            throws ServiceException {
+        ProtectionKeyCache.Certificate certificate = protectionKeys.get(contentKeyType);
+        try {
+            return mediaService.create(creator(contentKeyType, name, contentKeyData, withChecksum, certificate));
+        } catch (ServiceException e) {
+            if (e.getHttpStatusCode() != HTTP_BAD_REQUEST) {
+                throw e;
+            }
+            // The ProtectionKey may have been rotated since the certificate was cached
+            protectionKeys.invalidate(contentKeyType, certificate);
+            ProtectionKeyCache.Certificate current = protectionKeys.get(contentKeyType);
+            if (current.getThumbprint().equals(certificate.getThumbprint())) {
+                throw e;
+            }
+            System.out.println(String.format("%s protection key rotated, creating the Content Key again",
+                    contentKeyType));
+            return mediaService.create(creator(contentKeyType, name, contentKeyData, withChecksum, current));
+        }
+    }
+
+    // Get the ContentKey of the type already linked to the Asset, or create one and associate it
+    // with the Asset; a new key is deleted if it cannot be linked
+    ContentKeyInfo findOrCreateAndLink(ContentKeyType contentKeyType, String name, AssetInfo asset)
+            throws ServiceException {
+        ContentKeyInfo contentKey = findLinked(contentKeyType, asset);
+        if (contentKey != null) {
+            System.out.println(String.format("Reusing Content Key %s of Asset %s", contentKey.getId(),
+                    asset.getId()));
+            return contentKey;
+        }
+
+        contentKey = create(contentKeyType, name);
+        try {
+            mediaService.action(Asset.linkContentKey(asset.getId(), contentKey.getId()));
+        } catch (ServiceException e) {
+            delete(contentKey);
+            throw e;
+        }
+        return contentKey;
+    }
+
+    // Find or create the ContentKey of every Asset in parallel; the results are in the order of the
+    // Assets
+    List<Result> findOrCreateAndLinkAll(final ContentKeyType contentKeyType, final String name, List<AssetInfo> assets)
+            throws InterruptedException {
+        List<Result> results = new ArrayList<Result>();
+        try {
+            // Download the certificate once before the keys are created in parallel
+            protectionKeys.get(contentKeyType);
+        } catch (ServiceException e) {
+            for (AssetInfo asset : assets) {
+                results.add(new Result(asset.getId(), null, e));
+            }
+            return results;
+        }
+
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+        for (final AssetInfo asset : assets) {
+            tasks.add(new Callable<Result>() {
+                public Result call() {
+                    try {
+                        return new Result(asset.getId(), findOrCreateAndLink(contentKeyType, name, asset), null);
+                    } catch (Exception e) {
+                        return new Result(asset.getId(), null, e);
+                    }
+                }
+            });
+        }
+        for (Future<Result> result : executor.invokeAll(tasks)) {
+            try {
+                results.add(result.get());
+            } catch (ExecutionException e) {
+                // The tasks report their own failures
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static ContentKey.Creator creator(ContentKeyType contentKeyType, String name, byte[] contentKeyData,
+            boolean withChecksum, ProtectionKeyCache.Certificate certificate) throws ServiceException {
+        // Encrypt ContentKey
+        String encryptedContentKeyString;
+        try {
+            byte[] encryptedContentKey = EncryptionUtils.encryptSymmetricKeyData(certificate.getCertificate(),
+                    contentKeyData);
+            encryptedContentKeyString = Base64.encode(encryptedContentKey);
+        } catch (Exception e) {
+            throw new ServiceException("Could not encrypt the Content Key", e);
+        }
+
+        // Create the ContentKey Id
+        UUID contentKeyIdUuid = UUID.randomUUID();
+        String contentKeyId = String.format("nb:kid:UUID:%s", contentKeyIdUuid.toString());
+
+        // Create the ContentKey entity
+        ContentKey.Creator creator = ContentKey.create(contentKeyId, contentKeyType, encryptedContentKeyString)
+                .setProtectionKeyType(ProtectionKeyType.X509CertificateThumbprint)
+                .setName(name)
+                .setProtectionKeyId(certificate.getThumbprint());
+        if (withChecksum) {
+            // Calculate the checksum
+            try {
+                creator.setChecksum(EncryptionUtils.calculateChecksum(contentKeyData, contentKeyIdUuid));
+            } catch (Exception e) {
+                throw new ServiceException("Could not calculate the Content Key checksum", e);
+            }
+        }
+        return creator;
+    }
+
+    private ContentKeyInfo findLinked(ContentKeyType contentKeyType, AssetInfo asset) throws ServiceException {
+        for (ContentKeyInfo contentKey : mediaService.list(ContentKey.list(asset.getContentKeysLink()))) {
+            if (contentKey.getContentKeyType() == contentKeyType) {
+                return contentKey;
+            }
+        }
+        return null;
+    }
+
+    private void delete(ContentKeyInfo contentKey) {
+        try {
+            mediaService.delete(ContentKey.delete(contentKey.getId()));
+        } catch (ServiceException e) {
+            System.out.println(String.format("Could not delete the unlinked Content Key %s: %s", contentKey.getId(),
+                    e.getMessage()));
+        }
+    }
+
+    // The ContentKey of one Asset, or the reason it could not be created
+    static final class Result {
+        private final String assetId;
+        private final ContentKeyInfo contentKey;
+        private final Exception error;
+
+        Result(String assetId, ContentKeyInfo contentKey, Exception error) {
+            this.assetId = assetId;
+            this.contentKey = contentKey;
+            this.error = error;
+        }
+
+        String getAssetId() {
+            return assetId;
+        }
+
+        ContentKeyInfo getContentKey() {
+            return contentKey;
+        }
+
+        Exception getError() {
+            return error;
+        }
+
+        boolean isCreated() {
+            return error == null;
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playready;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.queue.CloudQueue;
+import com.microsoft.azure.storage.queue.CloudQueueMessage;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.EndPointType;
+import com.microsoft.windowsazure.services.media.models.Job;
+import com.microsoft.windowsazure.services.media.models.JobNotificationSubscription;
+import com.microsoft.windowsazure.services.media.models.JobState;
+import com.microsoft.windowsazure.services.media.models.NotificationEndPoint;
+import com.microsoft.windowsazure.services.media.models.NotificationEndPointInfo;
+import com.microsoft.windowsazure.services.media.models.TargetJobState;
+
+/**
+ * Feeds the Job state changes pushed by Media Services into a {@link JobCompletionWatcher}. Jobs
+ * created with {@link #subscribe} make the service post a JobStateChange message to the Azure
+ * Storage queue of a NotificationEndPoint; a daemon thread reads the queue and hands every change
+ * to {@link JobCompletionWatcher#onNotification}, so a finished Job completes without waiting for
+ * the next poll.
+ *
+ * The queue is a {@link MessageSource}: {@link StorageQueue} reads the Azure queue, and
+ * {@link LocalQueue} is an in-memory stand-in that simulates the service posting the same
+ * messages, so the push path can be exercised without a storage account. The poller keeps tracking
+ * every Job, so a lost message only delays a Job until its next poll.
+ */
+final class JobNotificationQueue implements Closeable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long RECEIVE_TIMEOUT_MILLIS = 1000;
+    private static final long MAX_ERROR_BACKOFF_MILLIS = 30000;
+
+    // Where the notification messages are read from
+    interface MessageSource {
+        // The next message, or null when none arrived within the timeout
+        String receive(long timeoutMillis) throws Exception;
+    }
+
+    private final JobCompletionWatcher watcher;
+    private final MessageSource source;
+    private final String endPointId;
+    private final Thread reader;
+    private final AtomicLong received = new AtomicLong();
+    private volatile boolean closed;
+
+    JobNotificationQueue(JobCompletionWatcher watcher, MessageSource source, String endPointId) {
+        this.watcher = watcher;
+        this.source = source;
+        this.endPointId = endPointId;
+        this.reader = new Thread(new Runnable() {
+            public void run() {
+                readMessages();
+            }
+        }, "job-notifications");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    // Read the notifications of an Azure queue in the storage account of the Media Services account,
+    // through a NotificationEndPoint on that queue (created if the account does not have one yet)
+    static JobNotificationQueue forStorageQueue(MediaContract mediaService, JobCompletionWatcher watcher,
+            String storageConnectionString, String queueName) throws Exception {
+        StorageQueue queue = new StorageQueue(storageConnectionString, queueName);
+        return new JobNotificationQueue(watcher, queue, getEndPointId(mediaService, queueName));
+    }
+
+    // Subscribe a Job to the notifications of this queue; a local queue has no endpoint to subscribe to
+    Job.Creator subscribe(Job.Creator jobCreator) {
+        if (endPointId == null) {
+            return jobCreator;
+        }
+        return jobCreator.addJobNotificationSubscription(
+                new JobNotificationSubscription(endPointId, TargetJobState.All));
+    }
+
+    // Notifications received so far
+    long getReceivedCount() {
+        return received.get();
+    }
+
+    public void close() {
+        closed = true;
+        reader.interrupt();
+    }
+
+    // The message Media Services posts when the state of a subscribed Job changes
+    static String jobStateChange(String jobId, JobState oldState, JobState newState) {
+        ObjectNode message = MAPPER.createObjectNode();
+        message.put("MessageVersion", "1.1");
+        message.put("EventType", "JobStateChange");
+        message.put("TimeStamp", String.format("%tFT%<tT", new Date()));
+        ObjectNode properties = message.putObject("Properties");
+        properties.put("JobId", jobId);
+        properties.put("OldState", oldState.toString());
+        properties.put("NewState", newState.toString());
+        return message.toString();
+    }
+
+    private void readMessages() {
+        long backoffMillis = RECEIVE_TIMEOUT_MILLIS;
+        while (!closed) {
+            try {
+                String message = source.receive(RECEIVE_TIMEOUT_MILLIS);
+                if (message != null) {
+                    dispatch(message);
+                }
+                backoffMillis = RECEIVE_TIMEOUT_MILLIS;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (closed) {
+                    return;
+                }
+                System.out.println("Job notification queue read failed: " + e.toString());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMillis = Math.min(MAX_ERROR_BACKOFF_MILLIS, backoffMillis * 2);
+            }
+        }
+    }
+
+    private void dispatch(String message) {
+        JsonNode event;
+        try {
+            event = MAPPER.readTree(message);
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable Job notification: " + e.getMessage());
+            return;
+        }
+        if (!"JobStateChange".equals(event.path("EventType").asText())) {
+            return;
+        }
+
+        JsonNode properties = event.path("Properties");
+        String jobId = properties.path("JobId").asText();
+        JobState state;
+        try {
+            state = JobState.valueOf(properties.path("NewState").asText());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignoring Job notification with state " + properties.path("NewState"));
+            return;
+        }
+        received.incrementAndGet();
+        watcher.onNotification(jobId, state);
+    }
+
+    private static String getEndPointId(MediaContract mediaService, String queueName) throws ServiceException {
+        for (NotificationEndPointInfo endPoint : mediaService.list(NotificationEndPoint.list())) {
+            if (endPoint.getEndPointType() == EndPointType.AzureQueue
+                    && queueName.equals(endPoint.getEndPointAddress())) {
+                return endPoint.getId();
+            }
+        }
+        return mediaService.create(NotificationEndPoint.create(queueName, EndPointType.AzureQueue, queueName))
+                .getId();
+    }
+
+    // The Azure Storage queue of a NotificationEndPoint; messages are deleted as they are read,
+    // since the poller covers any that are lost
+    static final class StorageQueue implements MessageSource {
+        private static final int BATCH_SIZE = 32;
+
+        private final CloudQueue queue;
+        private final Deque<String> pending = new ArrayDeque<String>();
+
+        StorageQueue(String connectionString, String queueName) throws Exception {
+            this.queue = CloudStorageAccount.parse(connectionString).createCloudQueueClient()
+                    .getQueueReference(queueName);
+            this.queue.createIfNotExists();
+        }
+
+        public String receive(long timeoutMillis) throws Exception {
+            if (pending.isEmpty()) {
+                for (CloudQueueMessage message : queue.retrieveMessages(BATCH_SIZE)) {
+                    pending.add(message.getMessageContentAsString());
+                    queue.deleteMessage(message);
+                }
+            }
+            if (pending.isEmpty()) {
+                // The queue has no long polling; wait before asking again
+                Thread.sleep(timeoutMillis);
+                return null;
+            }
+            return pending.poll();
+        }
+    }
+
+    // An in-memory stand-in for the Azure queue: post() simulates the service sending a notification
+    static final class LocalQueue implements MessageSource {
+        private final BlockingQueue<String> messages = new LinkedBlockingQueue<String>();
+
+        void post(String message) {
+            messages.add(message);
+        }
+
+        void post(String jobId, JobState oldState, JobState newState) {
+            post(jobStateChange(jobId, oldState, newState));
+        }
+
+        public String receive(long timeoutMillis) throws InterruptedException {
+            return messages.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playready;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.Duration;
+
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.ContentEncryptionKeyFromHeader;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.MediaServicesLicenseTemplateSerializer;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.PlayReadyLicenseResponseTemplate;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.PlayReadyLicenseTemplate;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.PlayReadyLicenseType;
+import com.microsoft.windowsazure.services.media.implementation.templates.playreadylicense.PlayReadyPlayRight;
+
+/**
+ * Named PlayReady license templates, built and serialized once. Each template goes through
+ * MediaServicesLicenseTemplateSerializer, which creates a JAXB context for every call, once per
+ * name; every Asset then gets the cached XML.
+ *
+ * Serialized templates are kept by the SHA-256 hash of their content, so names defining the same
+ * license share one copy. Templates can be added under new names; a name cannot be redefined.
+ */
+final class LicenseTemplateCatalog {
+
+    // The template of the original sample: a non-persistent license with the default play right
+    static final String DEFAULT = "default";
+    // Analog component video constrained to SD
+    static final String SD_ONLY = "sd-only";
+    // Uncompressed digital video only on outputs protected with HDCP
+    static final String HD_HDCP = "hd-hdcp";
+    // Persistent licenses that expire two days after they are issued, and a day after first play
+    static final String RENTAL = "rental";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long RENTAL_SECONDS = TimeUnit.DAYS.toSeconds(2);
+    private static final long RENTAL_PLAYBACK_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    private final ConcurrentMap<String, Template> playReady = new ConcurrentHashMap<String, Template>();
+    private final ConcurrentMap<String, Template> byHash = new ConcurrentHashMap<String, Template>();
+
+    LicenseTemplateCatalog() throws JAXBException {
+        addPlayReady(DEFAULT, playReadyTemplate(null, null, false, null, null));
+        addPlayReady(SD_ONLY, playReadyTemplate(null, null, true, null, null));
+        // OPL 300 allows uncompressed digital video only on outputs with HDCP
+        addPlayReady(HD_HDCP, playReadyTemplate(null, 300, false, null, null));
+        addPlayReady(RENTAL, playReadyTemplate(PlayReadyLicenseType.Persistent, null, false,
+                duration(RENTAL_SECONDS), duration(RENTAL_PLAYBACK_SECONDS)));
+    }
+
+    // Serialize a PlayReady template under a new name
+    LicenseTemplateCatalog addPlayReady(String name, PlayReadyLicenseResponseTemplate template) throws JAXBException {
+        String text = MediaServicesLicenseTemplateSerializer.serialize(template);
+        String hash = sha256(text);
+        Template serialized = new Template(hash, text);
+        Template existing = byHash.putIfAbsent(hash, serialized);
+        if (playReady.putIfAbsent(name, existing != null ? existing : serialized) != null) {
+            throw new IllegalArgumentException("PlayReady license template " + name + " is already defined");
+        }
+        return this;
+    }
+
+    // The PlayReady license template XML of a name
+    String getPlayReady(String name) {
+        Template template = playReady.get(name);
+        if (template == null) {
+            throw new IllegalArgumentException("No PlayReady license template named " + name);
+        }
+        return template.text;
+    }
+
+    Set<String> getNames() {
+        return Collections.unmodifiableSet(playReady.keySet());
+    }
+
+    // The name with the content hash of its template, for logging
+    String describe(String name) {
+        Template template = playReady.get(name);
+        return template == null ? name : name + " (PlayReady " + template.hash.substring(0, 12) + ")";
+    }
+
+    private static PlayReadyLicenseResponseTemplate playReadyTemplate(PlayReadyLicenseType licenseType,
+            Integer uncompressedDigitalVideoOpl, boolean analogVideoConstraint, Duration relativeExpiration,
+            Duration firstPlayExpiration) {
+        PlayReadyLicenseResponseTemplate responseTemplate = new PlayReadyLicenseResponseTemplate();
+        PlayReadyLicenseTemplate licenseTemplate = new PlayReadyLicenseTemplate();
+        responseTemplate.getLicenseTemplates().add(licenseTemplate);
+        PlayReadyPlayRight playRight = new PlayReadyPlayRight();
+        licenseTemplate.setPlayRight(playRight);
+        licenseTemplate.setContentKey(new ContentEncryptionKeyFromHeader());
+        if (licenseType != null) {
+            licenseTemplate.setLicenseType(licenseType);
+        }
+        if (relativeExpiration != null) {
+            licenseTemplate.setRelativeExpirationDate(relativeExpiration);
+        }
+        if (uncompressedDigitalVideoOpl != null) {
+            playRight.setUncompressedDigitalVideoOpl(uncompressedDigitalVideoOpl);
+        }
+        if (analogVideoConstraint) {
+            playRight.setImageConstraintForAnalogComponentVideoRestriction(true);
+        }
+        if (firstPlayExpiration != null) {
+            playRight.setFirstPlayExpiration(firstPlayExpiration);
+        }
+        return responseTemplate;
+    }
+
+    private static Duration duration(long seconds) {
+        try {
+            return DatatypeFactory.newInstance().newDuration(TimeUnit.SECONDS.toMillis(seconds));
+        } catch (DatatypeConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String sha256(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(UTF8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // A serialized template and the hash of its content
+    private static final class Template {
+        private final String hash;
+        private final String text;
+
+        Template(String hash, String text) {
+            this.hash = hash;
+            this.text = text;
+        }
+    }
+}
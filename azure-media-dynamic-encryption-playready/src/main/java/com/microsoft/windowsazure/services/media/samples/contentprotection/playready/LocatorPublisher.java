@@ -0,0 +1,333 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playready;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.AccessPolicyPermission;
+import com.microsoft.windowsazure.services.media.models.Asset;
+import com.microsoft.windowsazure.services.media.models.AssetDeliveryProtocol;
+import com.microsoft.windowsazure.services.media.models.AssetFile;
+import com.microsoft.windowsazure.services.media.models.AssetFileInfo;
+import com.microsoft.windowsazure.services.media.models.AssetInfo;
+import com.microsoft.windowsazure.services.media.models.Locator;
+import com.microsoft.windowsazure.services.media.models.LocatorInfo;
+import com.microsoft.windowsazure.services.media.models.LocatorType;
+
+/**
+ * Publishes Assets for streaming: gives each Asset an OnDemandOrigin Locator and builds the Smooth
+ * Streaming, DASH and HLS URLs of its manifest in one pass. Every Locator of the same duration uses
+ * one READ AccessPolicy shared through the {@link PolicyRegistry}, and the name of the .ism
+ * manifest of each Asset is kept in a local index file, so publishing an Asset again (for example
+ * after its Locator expired) does not list its files.
+ *
+ * An Asset can have at most five Origin Locators, so a live one is reused rather than adding
+ * another, and expired ones are deleted before a new Locator is created. A live Locator that
+ * expires within the minimum remaining lifetime is extended first (which keeps its URLs), so
+ * the URLs handed out never die shortly after publishing.
+ *
+ * Many Assets are published at once with {@link #publishAll}; a failed Asset does not stop the
+ * others.
+ */
+final class LocatorPublisher implements Closeable {
+
+    private static final String ACCESS_POLICY_NAME = "Streaming policy";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private final MediaContract mediaService;
+    private final PolicyRegistry policies;
+    private final File manifestIndexFile;
+    private final ConcurrentMap<String, String> manifests = new ConcurrentHashMap<String, String>();
+    private final EnumSet<AssetDeliveryProtocol> protocols;
+    private final ExecutorService executor;
+    private double durationInMinutes = 60 * 24 * 30;
+    private double minRemainingInMinutes = -1;
+
+    // The protocols are those of the AssetDeliveryPolicy; a URL is built for each of them
+    LocatorPublisher(MediaContract mediaService, PolicyRegistry policies, File manifestIndexFile,
+            EnumSet<AssetDeliveryProtocol> protocols, int parallelism) throws IOException {
+        this.mediaService = mediaService;
+        this.policies = policies;
+        this.manifestIndexFile = manifestIndexFile;
+        if (manifestIndexFile.exists()) {
+            loadManifests();
+        }
+        this.protocols = EnumSet.copyOf(protocols);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "publish-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // How long the Locators are valid
+    LocatorPublisher setDuration(double minutes) {
+        this.durationInMinutes = minutes;
+        return this;
+    }
+
+    // Shortest time a reused Locator must still be valid, otherwise it is extended; half the duration
+    // unless set
+    LocatorPublisher setMinRemainingLifetime(double minutes) {
+        this.minRemainingInMinutes = minutes;
+        return this;
+    }
+
+    // Publish an Asset; its files are listed only if its manifest is not in the index yet
+    StreamingUrls publish(AssetInfo asset) throws ServiceException {
+        String manifest = manifests.get(asset.getId());
+        if (manifest == null) {
+            manifest = recordManifest(asset.getId(), findManifest(asset));
+        }
+        return getLocator(asset.getId(), manifest);
+    }
+
+    // Publish an Asset by id; it is read only if its manifest is not in the index yet
+    StreamingUrls publish(String assetId) throws ServiceException {
+        String manifest = manifests.get(assetId);
+        if (manifest == null) {
+            manifest = recordManifest(assetId, findManifest(mediaService.get(Asset.get(assetId))));
+        }
+        return getLocator(assetId, manifest);
+    }
+
+    // Publish every Asset in parallel; the results are in the order of the ids
+    List<Result> publishAll(List<String> assetIds) throws InterruptedException {
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+        for (final String assetId : assetIds) {
+            tasks.add(new Callable<Result>() {
+                public Result call() {
+                    try {
+                        return new Result(assetId, publish(assetId), null);
+                    } catch (Exception e) {
+                        return new Result(assetId, null, e.getMessage() != null ? e.getMessage() : e.toString());
+                    }
+                }
+            });
+        }
+
+        List<Result> results = new ArrayList<Result>();
+        for (Future<Result> result : executor.invokeAll(tasks)) {
+            try {
+                results.add(result.get());
+            } catch (ExecutionException e) {
+                // The tasks report their own failures
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    public void close() {
+        executor.shutdown();
+    }
+
+    // Reuse the live Origin Locator of the Asset that expires last, deleting the expired ones and
+    // extending one that expires too soon, or create a new one
+    private StreamingUrls getLocator(String assetId, String manifest) throws ServiceException {
+        long now = System.currentTimeMillis();
+        LocatorInfo locator = null;
+        for (LocatorInfo existing : mediaService.list(Locator.list()
+                .set("$filter", String.format("AssetId eq '%s'", assetId)))) {
+            if (existing.getLocatorType() != LocatorType.OnDemandOrigin) {
+                continue;
+            }
+            Date expiration = existing.getExpirationDateTime();
+            if (expiration != null && expiration.getTime() <= now) {
+                mediaService.delete(Locator.delete(existing.getId()));
+            } else if (locator == null || expiresAfter(existing, locator)) {
+                locator = existing;
+            }
+        }
+
+        Date expiration = locator == null ? null : locator.getExpirationDateTime();
+        double minRemaining = minRemainingInMinutes >= 0 ? minRemainingInMinutes : durationInMinutes / 2;
+        if (expiration != null && expiration.getTime() - now < (long) (minRemaining * 60000)) {
+            expiration = new Date(now + (long) (durationInMinutes * 60000));
+            try {
+                mediaService.update(new LocatorExpiryTracker.ExpirationUpdater(locator.getId(), expiration));
+            } catch (ServiceException se) {
+                if (se.getHttpStatusCode() != HTTP_NOT_FOUND) {
+                    throw se;
+                }
+                // Deleted in the meantime
+                locator = null;
+            }
+        }
+
+        if (locator == null) {
+            String accessPolicyId = policies.getAccessPolicy(ACCESS_POLICY_NAME, durationInMinutes,
+                    EnumSet.of(AccessPolicyPermission.READ));
+            locator = mediaService.create(Locator.create(accessPolicyId, assetId, LocatorType.OnDemandOrigin));
+            expiration = locator.getExpirationDateTime();
+        }
+
+        String manifestUrl = locator.getPath() + manifest + "/manifest";
+        Map<AssetDeliveryProtocol, String> urls
+                = new EnumMap<AssetDeliveryProtocol, String>(AssetDeliveryProtocol.class);
+        if (protocols.contains(AssetDeliveryProtocol.SmoothStreaming)) {
+            urls.put(AssetDeliveryProtocol.SmoothStreaming, manifestUrl);
+        }
+        if (protocols.contains(AssetDeliveryProtocol.Dash)) {
+            urls.put(AssetDeliveryProtocol.Dash, manifestUrl + "(format=mpd-time-csf)");
+        }
+        if (protocols.contains(AssetDeliveryProtocol.HLS)) {
+            urls.put(AssetDeliveryProtocol.HLS, manifestUrl + "(format=m3u8-aapl)");
+        }
+        return new StreamingUrls(locator.getId(), expiration, urls);
+    }
+
+    private String findManifest(AssetInfo asset) throws ServiceException {
+        for (AssetFileInfo file : mediaService.list(AssetFile.list(asset.getAssetFilesLink()))) {
+            if (file.getName().toLowerCase().endsWith(".ism")) {
+                return file.getName();
+            }
+        }
+        throw new ServiceException("Asset " + asset.getId() + " has no .ism manifest");
+    }
+
+    // A Locator without an expiry time never expires
+    private static boolean expiresAfter(LocatorInfo locator, LocatorInfo other) {
+        if (locator.getExpirationDateTime() == null) {
+            return other.getExpirationDateTime() != null;
+        }
+        return other.getExpirationDateTime() != null
+                && locator.getExpirationDateTime().after(other.getExpirationDateTime());
+    }
+
+    private void loadManifests() throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(manifestIndexFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // The Asset id, then the manifest name (which may contain spaces)
+                int separator = line.indexOf(' ');
+                if (separator > 0) {
+                    manifests.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private synchronized String recordManifest(String assetId, String manifest) {
+        if (manifests.putIfAbsent(assetId, manifest) != null) {
+            return manifest;
+        }
+        try {
+            File directory = manifestIndexFile.getAbsoluteFile().getParentFile();
+            if (directory != null) {
+                directory.mkdirs();
+            }
+            OutputStream output = new FileOutputStream(manifestIndexFile, true);
+            try {
+                output.write(String.format("%s %s\n", assetId, manifest).getBytes(UTF8));
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            // The manifest is only listed again after a restart
+            System.out.println("Could not update the manifest index: " + e.toString());
+        }
+        return manifest;
+    }
+
+    // The Locator of a published Asset and its streaming URLs
+    static final class StreamingUrls {
+        private final String locatorId;
+        private final Date expiration;
+        private final Map<AssetDeliveryProtocol, String> urls;
+
+        StreamingUrls(String locatorId, Date expiration, Map<AssetDeliveryProtocol, String> urls) {
+            this.locatorId = locatorId;
+            this.expiration = expiration;
+            this.urls = Collections.unmodifiableMap(urls);
+        }
+
+        String getLocatorId() {
+            return locatorId;
+        }
+
+        Date getExpiration() {
+            return expiration;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (Map.Entry<AssetDeliveryProtocol, String> url : urls.entrySet()) {
+                text.append(text.length() > 0 ? "\n" : "")
+                        .append(label(url.getKey())).append(": ").append(url.getValue());
+            }
+            return text.toString();
+        }
+
+        private static String label(AssetDeliveryProtocol protocol) {
+            switch (protocol) {
+            case SmoothStreaming:
+                return "Smooth";
+            case Dash:
+                return "DASH";
+            default:
+                return protocol.toString();
+            }
+        }
+    }
+
+    // The outcome of one Asset of publishAll
+    static final class Result {
+        private final String assetId;
+        private final StreamingUrls urls;
+        private final String error;
+
+        Result(String assetId, StreamingUrls urls, String error) {
+            this.assetId = assetId;
+            this.urls = urls;
+            this.error = error;
+        }
+
+        boolean isPublished() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            if (error != null) {
+                return String.format("%s: failed, %s", assetId, error);
+            }
+            return String.format("%s: Locator %s until %s\n%s", assetId, urls.getLocatorId(), urls.getExpiration(),
+                    urls);
+        }
+    }
+}
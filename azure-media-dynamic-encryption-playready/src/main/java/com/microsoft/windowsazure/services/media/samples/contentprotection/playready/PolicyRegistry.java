@@ -0,0 +1,350 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playready;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.microsoft.windowsazure.core.utils.Base64;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.AccessPolicy;
+import com.microsoft.windowsazure.services.media.models.AccessPolicyInfo;
+import com.microsoft.windowsazure.services.media.models.AccessPolicyPermission;
+import com.microsoft.windowsazure.services.media.models.Asset;
+import com.microsoft.windowsazure.services.media.models.AssetDeliveryPolicy;
+import com.microsoft.windowsazure.services.media.models.AssetDeliveryPolicyConfigurationKey;
+import com.microsoft.windowsazure.services.media.models.AssetDeliveryPolicyInfo;
+import com.microsoft.windowsazure.services.media.models.AssetDeliveryPolicyType;
+import com.microsoft.windowsazure.services.media.models.AssetDeliveryProtocol;
+import com.microsoft.windowsazure.services.media.models.AssetInfo;
+import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicy;
+import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyInfo;
+import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyOption;
+import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyOptionInfo;
+import com.microsoft.windowsazure.services.media.models.ContentKeyAuthorizationPolicyRestriction;
+
+/**
+ * Shares ContentKeyAuthorizationPolicies, AssetDeliveryPolicies and Locator AccessPolicies between
+ * Assets. A policy is identified by a fingerprint of everything that defines it (name, options,
+ * restrictions, license templates, delivery type, protocols and configuration, or duration and
+ * permissions); the first request for a fingerprint creates the policy and every later one reuses
+ * its id, so protecting or publishing an Asset only links it.
+ *
+ * The fingerprints are kept in a local index file, together with the values a shared policy
+ * depends on (such as the token restriction template and its verification key), so a restart
+ * reuses the same policies. Policies read from the index are checked once per run and created
+ * again if they were deleted. The index holds key material, so it is made readable and writable
+ * only by its owner (where the file system supports POSIX permissions), including an index left by
+ * an earlier run.
+ */
+final class PolicyRegistry {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    private static final int HTTP_NOT_FOUND = 404;
+
+    private final MediaContract mediaService;
+    private final String scope;
+    private final File indexFile;
+    private final Map<String, String> policies = new HashMap<String, String>();
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final Set<String> verified = new HashSet<String>();
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+    private boolean indexPrivate;
+
+    // The scope (for example the REST API endpoint) keeps the policies of different accounts apart
+    PolicyRegistry(MediaContract mediaService, String scope, File indexFile) throws IOException {
+        this.mediaService = mediaService;
+        this.scope = scope;
+        this.indexFile = indexFile;
+        if (indexFile.exists()) {
+            makeIndexPrivate();
+            load();
+        }
+    }
+
+    // Get a value that shared policies depend on, creating (and recording) it on first use
+    String getValue(String name, Callable<String> factory) throws ServiceException {
+        String key = fingerprint("value\n" + name);
+        synchronized (lockFor(key)) {
+            String value;
+            synchronized (this) {
+                value = values.get(key);
+            }
+            if (value == null) {
+                try {
+                    value = factory.call();
+                } catch (ServiceException se) {
+                    throw se;
+                } catch (Exception e) {
+                    throw new ServiceException(String.format("Could not create %s", name), e);
+                }
+                synchronized (this) {
+                    values.put(key, value);
+                }
+                record("value", key, Base64.encode(value.getBytes(UTF8)));
+            }
+            return value;
+        }
+    }
+
+    // Get the id of the ContentKeyAuthorizationPolicy with the given options, creating it if needed
+    String getAuthorizationPolicy(String name, List<PolicyOption> options) throws ServiceException {
+        StringBuilder definition = new StringBuilder("authorization\n").append(name);
+        for (PolicyOption option : options) {
+            option.appendTo(definition);
+        }
+        String fingerprint = fingerprint(definition.toString());
+
+        synchronized (lockFor(fingerprint)) {
+            String policyId = getVerifiedPolicy(fingerprint, "authorization");
+            if (policyId != null) {
+                return policyId;
+            }
+
+            // Create the ContentKeyAuthorizationPolicy and its options
+            ContentKeyAuthorizationPolicyInfo policy = mediaService.create(ContentKeyAuthorizationPolicy.create(name));
+            for (PolicyOption option : options) {
+                ContentKeyAuthorizationPolicyOptionInfo optionInfo = mediaService.create(
+                        ContentKeyAuthorizationPolicyOption.create(option.name, option.deliveryType,
+                                option.configuration, option.restrictions));
+
+                // Link the ContentKeyAuthorizationPolicyOption to the ContentKeyAuthorizationPolicy
+                mediaService.action(ContentKeyAuthorizationPolicy.linkOptions(policy.getId(), optionInfo.getId()));
+            }
+            System.out.println("Created Content Key Authorization Policy: " + name);
+
+            record("policy", fingerprint, policy.getId());
+            return policy.getId();
+        }
+    }
+
+    // Get the id of the AssetDeliveryPolicy with the given configuration, creating it if needed
+    String getDeliveryPolicy(String name, AssetDeliveryPolicyType type, EnumSet<AssetDeliveryProtocol> protocols,
+            Map<AssetDeliveryPolicyConfigurationKey, String> configuration) throws ServiceException {
+        StringBuilder definition = new StringBuilder("delivery\n").append(name)
+                .append('\n').append(type).append('\n').append(protocols);
+        for (Map.Entry<String, String> entry : sorted(configuration).entrySet()) {
+            definition.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        String fingerprint = fingerprint(definition.toString());
+
+        synchronized (lockFor(fingerprint)) {
+            String policyId = getVerifiedPolicy(fingerprint, "delivery");
+            if (policyId != null) {
+                return policyId;
+            }
+
+            AssetDeliveryPolicyInfo policy = mediaService.create(AssetDeliveryPolicy.create()
+                    .setName(name)
+                    .setAssetDeliveryConfiguration(configuration)
+                    .setAssetDeliveryPolicyType(type)
+                    .setAssetDeliveryProtocol(protocols));
+            System.out.println("Created Asset Delivery Policy: " + name);
+
+            record("policy", fingerprint, policy.getId());
+            return policy.getId();
+        }
+    }
+
+    // Link the AssetDeliveryPolicy to the Asset, unless an earlier attempt already did
+    void linkDeliveryPolicy(AssetInfo asset, String assetDeliveryPolicyId) throws ServiceException {
+        for (AssetDeliveryPolicyInfo policy : mediaService.list(
+                AssetDeliveryPolicy.list(asset.getDeliveryPoliciesLink()))) {
+            if (policy.getId().equals(assetDeliveryPolicyId)) {
+                return;
+            }
+        }
+        mediaService.action(Asset.linkDeliveryPolicy(asset.getId(), assetDeliveryPolicyId));
+    }
+
+    // Get the id of the AccessPolicy with the given duration and permissions, creating it if needed;
+    // every Locator created with it is valid for the duration from its own start time
+    String getAccessPolicy(String name, double durationInMinutes, EnumSet<AccessPolicyPermission> permissions)
+            throws ServiceException {
+        String fingerprint = fingerprint(String.format("access\n%s\n%s\n%s", name, durationInMinutes, permissions));
+
+        synchronized (lockFor(fingerprint)) {
+            String policyId = getVerifiedPolicy(fingerprint, "access");
+            if (policyId != null) {
+                return policyId;
+            }
+
+            AccessPolicyInfo policy = mediaService.create(AccessPolicy.create(name, durationInMinutes, permissions));
+            System.out.println("Created Access Policy: " + name);
+
+            record("policy", fingerprint, policy.getId());
+            return policy.getId();
+        }
+    }
+
+    // Look up a policy and, if it came from the index, check once that it still exists; only a
+    // policy the service reports as not found is created again
+    private String getVerifiedPolicy(String fingerprint, String kind) throws ServiceException {
+        String policyId;
+        synchronized (this) {
+            policyId = policies.get(fingerprint);
+            if (policyId == null || verified.contains(fingerprint)) {
+                return policyId;
+            }
+        }
+
+        try {
+            if (kind.equals("authorization")) {
+                mediaService.get(ContentKeyAuthorizationPolicy.get(policyId));
+            } else if (kind.equals("delivery")) {
+                mediaService.get(AssetDeliveryPolicy.get(policyId));
+            } else {
+                mediaService.get(AccessPolicy.get(policyId));
+            }
+        } catch (ServiceException se) {
+            if (se.getHttpStatusCode() != HTTP_NOT_FOUND) {
+                throw se;
+            }
+            System.out.println(String.format("Policy %s from the index no longer exists", policyId));
+            return null;
+        }
+
+        synchronized (this) {
+            verified.add(fingerprint);
+        }
+        return policyId;
+    }
+
+    private Object lockFor(String key) {
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(key, lock);
+        return existing == null ? lock : existing;
+    }
+
+    private String fingerprint(String definition) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest((scope + "\n" + definition).getBytes(UTF8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, String> sorted(Map<AssetDeliveryPolicyConfigurationKey, String> configuration) {
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<AssetDeliveryPolicyConfigurationKey, String> entry : configuration.entrySet()) {
+            sorted.put(entry.getKey().toString(), entry.getValue());
+        }
+        return sorted;
+    }
+
+    private void load() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] record = line.split(" ");
+                if (record.length == 3 && record[0].equals("policy")) {
+                    policies.put(record[1], record[2]);
+                } else if (record.length == 3 && record[0].equals("value")) {
+                    values.put(record[1], new String(Base64.decode(record[2]), UTF8));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private synchronized void record(String kind, String key, String value) throws ServiceException {
+        if (kind.equals("policy")) {
+            policies.put(key, value);
+            verified.add(key);
+        }
+        try {
+            File directory = indexFile.getAbsoluteFile().getParentFile();
+            if (directory != null) {
+                directory.mkdirs();
+            }
+            if (!indexPrivate) {
+                makeIndexPrivate();
+            }
+            OutputStream output = new FileOutputStream(indexFile, true);
+            try {
+                output.write(String.format("%s %s %s\n", kind, key, value).getBytes(UTF8));
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            // The policy still works for this run; it is only not reused after a restart
+            System.out.println("Could not update the policy index: " + e.toString());
+        }
+    }
+
+    // Create the index readable and writable only by its owner, or restrict an existing one
+    private synchronized void makeIndexPrivate() throws IOException {
+        Path path = indexFile.toPath();
+        try {
+            try {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } catch (FileAlreadyExistsException e) {
+                Files.setPosixFilePermissions(path, OWNER_ONLY);
+            }
+        } catch (UnsupportedOperationException e) {
+            indexFile.createNewFile();
+            indexFile.setReadable(false, false);
+            indexFile.setReadable(true, true);
+            indexFile.setWritable(false, false);
+            indexFile.setWritable(true, true);
+        }
+        indexPrivate = true;
+    }
+
+    // One ContentKeyAuthorizationPolicyOption of an authorization policy
+    static final class PolicyOption {
+        private final String name;
+        private final int deliveryType;
+        private final String configuration;
+        private final List<ContentKeyAuthorizationPolicyRestriction> restrictions;
+
+        PolicyOption(String name, int deliveryType, String configuration,
+                List<ContentKeyAuthorizationPolicyRestriction> restrictions) {
+            this.name = name;
+            this.deliveryType = deliveryType;
+            this.configuration = configuration;
+            this.restrictions = restrictions;
+        }
+
+        private void appendTo(StringBuilder definition) {
+            definition.append("\noption\n").append(name)
+                    .append('\n').append(deliveryType)
+                    .append('\n').append(configuration);
+            for (ContentKeyAuthorizationPolicyRestriction restriction : restrictions) {
+                definition.append("\nrestriction\n").append(restriction.getName())
+                        .append('\n').append(restriction.getKeyRestrictionType())
+                        .append('\n').append(restriction.getRequirements());
+            }
+        }
+    }
+}
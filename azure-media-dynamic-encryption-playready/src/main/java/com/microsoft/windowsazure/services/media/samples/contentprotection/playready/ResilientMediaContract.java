@@ -0,0 +1,346 @@
+package com.microsoft.windowsazure.services.media.samples.contentprotection.playready;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.MultivaluedMap;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.UniformInterfaceException;
+
+/**
+ * Decorates a MediaContract so that entity operations (create, get, list, update, delete and
+ * action) survive throttling and transient service errors.
+ *
+ * Reads and writes that can be sent twice without changing the result (get, list, update and
+ * delete) are retried on throttling, server errors and I/O errors. Create and action calls are
+ * only retried when the service throttled them (429 or 503) or the connection was never made, as
+ * a retry after any other failure could create a second entity or run the action twice. Retries
+ * wait with exponential backoff and jitter, or for the time given by the Retry-After header.
+ *
+ * Consecutive transient failures open a circuit breaker shared by every contract of the same REST
+ * API endpoint; while it is open, calls fail at once instead of adding load to a struggling
+ * service, and after a cool-down a single call is let through to probe it.
+ */
+final class ResilientMediaContract {
+
+    private static final Set<String> ENTITY_OPERATIONS = new HashSet<String>(
+            Arrays.asList("create", "get", "list", "update", "delete", "action"));
+
+    // Operations that have the same effect when they are sent more than once
+    private static final Set<String> IDEMPOTENT_OPERATIONS = new HashSet<String>(
+            Arrays.asList("get", "list", "update", "delete"));
+
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_MILLIS = 30 * 1000;
+
+    // One circuit breaker per REST API endpoint
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final String endpoint;
+    private final CircuitBreaker breaker;
+    private int maxAttempts = 5;
+    private long baseDelayMillis = 500;
+    private long maxDelayMillis = 30 * 1000;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong backoffMillis = new AtomicLong();
+
+    ResilientMediaContract(String endpoint) {
+        this.endpoint = endpoint;
+        CircuitBreaker created = new CircuitBreaker(endpoint);
+        CircuitBreaker existing = BREAKERS.putIfAbsent(endpoint, created);
+        this.breaker = existing != null ? existing : created;
+    }
+
+    // Attempts of each call, including the first one
+    ResilientMediaContract setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        return this;
+    }
+
+    // Backoff before the first retry; it doubles with every retry up to the maximum delay
+    ResilientMediaContract setBaseDelay(long millis) {
+        this.baseDelayMillis = Math.max(1, millis);
+        return this;
+    }
+
+    ResilientMediaContract setMaxDelay(long millis) {
+        this.maxDelayMillis = Math.max(1, millis);
+        return this;
+    }
+
+    // Wrap the MediaContract; filtered copies of the contract returned by it are wrapped as well
+    MediaContract wrap(final MediaContract target) {
+        return (MediaContract) Proxy.newProxyInstance(MediaContract.class.getClassLoader(),
+                new Class<?>[] {MediaContract.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            if (method.getName().equals("equals")) {
+                                return proxy == args[0];
+                            }
+                            return method.getName().equals("hashCode") ? System.identityHashCode(proxy)
+                                    : "Resilient MediaContract of " + endpoint;
+                        }
+
+                        if (!ENTITY_OPERATIONS.contains(method.getName())) {
+                            try {
+                                Object result = method.invoke(target, args);
+                                return result instanceof MediaContract ? wrap((MediaContract) result) : result;
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                        return call(target, method, args);
+                    }
+                });
+    }
+
+    long getCalls() {
+        return calls.get();
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    // Attempts rejected by the service with 429 or 503
+    long getThrottled() {
+        return throttled.get();
+    }
+
+    // Calls that failed after their last attempt
+    long getFailures() {
+        return failures.get();
+    }
+
+    // Calls not sent because the circuit was open
+    long getRejected() {
+        return rejected.get();
+    }
+
+    long getBackoffMillis() {
+        return backoffMillis.get();
+    }
+
+    String getCircuitState() {
+        return breaker.getState();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d calls, %d retries, %d throttled, %d failed, %d rejected, "
+                + "%d ms backing off, circuit %s", endpoint, getCalls(), getRetries(), getThrottled(),
+                getFailures(), getRejected(), getBackoffMillis(), getCircuitState());
+    }
+
+    private Object call(MediaContract target, Method method, Object[] args) throws Throwable {
+        calls.incrementAndGet();
+        String operation = method.getName();
+        boolean idempotent = IDEMPOTENT_OPERATIONS.contains(operation);
+
+        for (int attempt = 1; ; attempt++) {
+            if (!breaker.allowRequest()) {
+                rejected.incrementAndGet();
+                throw new ServiceException(String.format(
+                        "Circuit open for %s after repeated failures; %s was not sent", endpoint, operation));
+            }
+
+            Throwable failure;
+            try {
+                Object result = method.invoke(target, args);
+                breaker.recordSuccess();
+                return result;
+            } catch (InvocationTargetException e) {
+                failure = e.getCause();
+            }
+
+            int status = statusOf(failure);
+            if (status == 429 || status == 503) {
+                throttled.incrementAndGet();
+            }
+
+            if (!isTransient(failure, status)) {
+                // The service answered, so it is healthy
+                breaker.recordSuccess();
+                if (status == 404 && attempt > 1 && operation.equals("delete")) {
+                    // An earlier attempt deleted the entity, but its response was lost
+                    return null;
+                }
+                failures.incrementAndGet();
+                throw failure;
+            }
+            breaker.recordFailure();
+
+            boolean retryable = idempotent || status == 429 || status == 503 || neverSent(failure);
+            if (!retryable || attempt >= maxAttempts) {
+                failures.incrementAndGet();
+                throw failure;
+            }
+
+            long delay = backoff(attempt, retryAfterMillis(failure));
+            retries.incrementAndGet();
+            backoffMillis.addAndGet(delay);
+            System.out.println(String.format("Retrying %s on %s in %d ms (attempt %d of %d): %s",
+                    operation, endpoint, delay, attempt + 1, maxAttempts, describe(failure, status)));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServiceException("Interrupted while waiting to retry " + operation, failure);
+            }
+        }
+    }
+
+    // Exponential backoff with jitter, or the delay the service asked for
+    private long backoff(int attempt, long retryAfter) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (retryAfter >= 0) {
+            // Spread out the callers that were told to come back at the same time
+            return retryAfter + random.nextLong(baseDelayMillis + 1);
+        }
+        long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+        return ceiling / 2 + random.nextLong(ceiling / 2 + 1);
+    }
+
+    private static boolean isTransient(Throwable failure, int status) {
+        if (status != 0) {
+            return status == 408 || status == 429 || status >= 500;
+        }
+        return find(failure, IOException.class) != null
+                || find(failure, ClientHandlerException.class) != null;
+    }
+
+    // True if the request failed before it reached the service
+    private static boolean neverSent(Throwable failure) {
+        return find(failure, ConnectException.class) != null || find(failure, UnknownHostException.class) != null;
+    }
+
+    private static int statusOf(Throwable failure) {
+        if (failure instanceof ServiceException && ((ServiceException) failure).getHttpStatusCode() > 0) {
+            return ((ServiceException) failure).getHttpStatusCode();
+        }
+        UniformInterfaceException response = find(failure, UniformInterfaceException.class);
+        return response != null && response.getResponse() != null ? response.getResponse().getStatus() : 0;
+    }
+
+    // The Retry-After header of the response in milliseconds, or -1 if there is none
+    private static long retryAfterMillis(Throwable failure) {
+        UniformInterfaceException response = find(failure, UniformInterfaceException.class);
+        if (response == null || response.getResponse() == null) {
+            return -1;
+        }
+        MultivaluedMap<String, String> headers = response.getResponse().getHeaders();
+        try {
+            String millis = headers.getFirst("x-ms-retry-after-ms");
+            if (millis != null) {
+                return Math.max(0, Long.parseLong(millis.trim()));
+            }
+            String retryAfter = headers.getFirst("Retry-After");
+            if (retryAfter == null) {
+                return -1;
+            }
+            retryAfter = retryAfter.trim();
+            if (retryAfter.matches("\\d+")) {
+                return Long.parseLong(retryAfter) * 1000;
+            }
+            // Or an HTTP date
+            return Math.max(0, ZonedDateTime.parse(retryAfter, DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static String describe(Throwable failure, int status) {
+        if (status != 0) {
+            return "HTTP " + status;
+        }
+        Throwable root = failure;
+        while (root.getCause() != null && root.getCause() != root) {
+            root = root.getCause();
+        }
+        return root.toString();
+    }
+
+    private static <T extends Throwable> T find(Throwable failure, Class<T> type) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+        }
+        return null;
+    }
+
+    // Closed: calls go through. Open: calls are rejected until the cool-down ends. Half open: one
+    // probe call goes through; it closes the circuit if it succeeds and opens it again if it fails.
+    private static final class CircuitBreaker {
+        private final String endpoint;
+        private int consecutiveFailures;
+        private long openedAt;
+        private boolean open;
+        private boolean probing;
+
+        CircuitBreaker(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        synchronized boolean allowRequest() {
+            if (!open) {
+                return true;
+            }
+            if (probing || System.currentTimeMillis() - openedAt < OPEN_MILLIS) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+
+        synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            open = false;
+            probing = false;
+        }
+
+        synchronized void recordFailure() {
+            consecutiveFailures++;
+            if (probing || consecutiveFailures >= FAILURE_THRESHOLD) {
+                if (!open || probing) {
+                    System.out.println(String.format("Circuit for %s opened after %d consecutive failures; "
+                            + "pausing calls for %d s", endpoint, consecutiveFailures, OPEN_MILLIS / 1000));
+                }
+                open = true;
+                probing = false;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+
+        synchronized String getState() {
+            if (!open) {
+                return "closed";
+            }
+            return probing || System.currentTimeMillis() - openedAt >= OPEN_MILLIS ? "half open" : "open";
+        }
+    }
+}
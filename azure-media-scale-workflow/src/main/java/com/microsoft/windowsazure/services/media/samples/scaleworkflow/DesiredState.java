@@ -0,0 +1,275 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitType;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpointState;
+
+/**
+ * The Streaming Endpoints and Encoding Reserved Units wanted in a set of Media Services accounts,
+ * read from a JSON file in the layout written by {@link InventorySnapshot#writeJson}, so that a
+ * snapshot can be edited and used as the desired state:
+ *
+ * <pre>
+ * {"accounts": [
+ *   {"name": "account1",
+ *    "streamingEndpoints": [
+ *      {"name": "default", "scaleUnits": 2, "cdnEnabled": false, "state": "Running"}],
+ *    "encodingReservedUnits": {"type": "Standard", "currentReservedUnits": 5},
+ *    "removeUnlistedEndpoints": false}]}
+ * </pre>
+ *
+ * Only what the file lists is managed: an account without "streamingEndpoints" keeps its
+ * endpoints, an endpoint without "scaleUnits", "cdnEnabled" or "state" keeps that setting, and
+ * endpoints missing from the list are only deleted when "removeUnlistedEndpoints" is true. Other
+ * fields of a snapshot (ids, host names, storage accounts, failures) are ignored.
+ */
+final class DesiredState {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final List<AccountState> accounts;
+
+    private DesiredState(List<AccountState> accounts) {
+        this.accounts = Collections.unmodifiableList(accounts);
+    }
+
+    static DesiredState read(File file) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8"));
+        try {
+            return read(in, file.getName());
+        } finally {
+            in.close();
+        }
+    }
+
+    // The source name only appears in error messages; syntax errors also give the line
+    static DesiredState read(Reader in, String source) throws IOException {
+        JsonNode root;
+        try {
+            root = MAPPER.readTree(in);
+        } catch (JsonProcessingException e) {
+            JsonLocation location = e.getLocation();
+            throw new IOException(location == null ? source + ": " + e.getOriginalMessage()
+                    : String.format("%s:%d: %s", source, location.getLineNr(), e.getOriginalMessage()), e);
+        }
+
+        Fields fields = new Fields(source);
+        List<AccountState> accounts = new ArrayList<AccountState>();
+        for (JsonNode account : fields.array(fields.object(root, "the document").get("accounts"), "accounts")) {
+            accounts.add(new AccountState(fields, fields.object(account, "an account")));
+        }
+        return new DesiredState(accounts);
+    }
+
+    List<AccountState> getAccounts() {
+        return accounts;
+    }
+
+    // The desired state of one Media Services account
+    static final class AccountState {
+        private final String name;
+        private final List<EndpointState> streamingEndpoints;
+        private final boolean removeUnlistedEndpoints;
+        private final Integer encodingReservedUnits;
+        private final EncodingReservedUnitType encodingReservedUnitType;
+
+        private AccountState(Fields fields, JsonNode account) throws IOException {
+            this.name = fields.string(account.get("name"), "account name", true);
+            String context = "account " + name;
+
+            if (account.get("streamingEndpoints") == null || account.get("streamingEndpoints").isNull()) {
+                this.streamingEndpoints = null;
+            } else {
+                List<EndpointState> endpoints = new ArrayList<EndpointState>();
+                for (JsonNode endpoint : fields.array(account.get("streamingEndpoints"),
+                        context + " streamingEndpoints")) {
+                    endpoints.add(new EndpointState(fields,
+                            fields.object(endpoint, "a Streaming Endpoint of " + context)));
+                }
+                this.streamingEndpoints = Collections.unmodifiableList(endpoints);
+            }
+            this.removeUnlistedEndpoints = Boolean.TRUE.equals(
+                    fields.bool(account.get("removeUnlistedEndpoints"), context + " removeUnlistedEndpoints"));
+
+            JsonNode units = account.get("encodingReservedUnits");
+            if (units == null || units.isNull()) {
+                this.encodingReservedUnits = null;
+                this.encodingReservedUnitType = null;
+            } else {
+                JsonNode reserved = fields.object(units, context + " encodingReservedUnits");
+                this.encodingReservedUnits = fields.integer(reserved.get("currentReservedUnits"),
+                        context + " currentReservedUnits");
+                String type = fields.string(reserved.get("type"), context + " reserved unit type", false);
+                this.encodingReservedUnitType = type == null ? null : fields.reservedUnitType(type, context);
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        // Null when the endpoints of the account are not managed
+        List<EndpointState> getStreamingEndpoints() {
+            return streamingEndpoints;
+        }
+
+        // Delete the endpoints that are not listed
+        boolean isRemoveUnlistedEndpoints() {
+            return removeUnlistedEndpoints;
+        }
+
+        // Null when the number of units is not managed
+        Integer getEncodingReservedUnits() {
+            return encodingReservedUnits;
+        }
+
+        // Null when the type is not managed
+        EncodingReservedUnitType getEncodingReservedUnitType() {
+            return encodingReservedUnitType;
+        }
+    }
+
+    // The desired state of one Streaming Endpoint; null settings are left as they are
+    static final class EndpointState {
+        private final String name;
+        private final Integer scaleUnits;
+        private final Boolean cdnEnabled;
+        private final StreamingEndpointState state;
+
+        private EndpointState(Fields fields, JsonNode endpoint) throws IOException {
+            this.name = fields.string(endpoint.get("name"), "Streaming Endpoint name", true);
+            String context = "Streaming Endpoint " + name;
+            this.scaleUnits = fields.integer(endpoint.get("scaleUnits"), context + " scaleUnits");
+            this.cdnEnabled = fields.bool(endpoint.get("cdnEnabled"), context + " cdnEnabled");
+            this.state = fields.endpointState(fields.string(endpoint.get("state"), context + " state", false), context);
+            if (Boolean.TRUE.equals(cdnEnabled) && scaleUnits != null && scaleUnits == 0) {
+                throw fields.error(context + " needs Streaming Units to enable CDN");
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Integer getScaleUnits() {
+            return scaleUnits;
+        }
+
+        Boolean getCdnEnabled() {
+            return cdnEnabled;
+        }
+
+        // Running, Stopped or null
+        StreamingEndpointState getState() {
+            return state;
+        }
+    }
+
+    // Checks the values of the document and turns them into the types the reconciler uses
+    private static final class Fields {
+        private final String source;
+
+        Fields(String source) {
+            this.source = source;
+        }
+
+        JsonNode object(JsonNode value, String what) throws IOException {
+            if (value == null || !value.isObject()) {
+                throw error("expected an object for " + what);
+            }
+            return value;
+        }
+
+        JsonNode array(JsonNode value, String what) throws IOException {
+            if (value == null || !value.isArray()) {
+                throw error("expected an array for " + what);
+            }
+            return value;
+        }
+
+        String string(JsonNode value, String what, boolean required) throws IOException {
+            if (isMissing(value) && !required) {
+                return null;
+            }
+            if (value == null || !value.isTextual() || value.asText().isEmpty()) {
+                throw error("expected a string for " + what);
+            }
+            return value.asText();
+        }
+
+        Integer integer(JsonNode value, String what) throws IOException {
+            if (isMissing(value)) {
+                return null;
+            }
+            if (!value.isNumber() || value.asDouble() != Math.floor(value.asDouble()) || value.asDouble() < 0
+                    || value.asDouble() > Integer.MAX_VALUE) {
+                throw error("expected a whole number for " + what);
+            }
+            return value.asInt();
+        }
+
+        Boolean bool(JsonNode value, String what) throws IOException {
+            if (isMissing(value)) {
+                return null;
+            }
+            if (!value.isBoolean()) {
+                throw error("expected true or false for " + what);
+            }
+            return value.asBoolean();
+        }
+
+        EncodingReservedUnitType reservedUnitType(String type, String context) throws IOException {
+            for (EncodingReservedUnitType candidate : EncodingReservedUnitType.values()) {
+                if (candidate.toString().equalsIgnoreCase(type)) {
+                    return candidate;
+                }
+            }
+            throw error(context + " reserved unit type must be Basic, Standard or Premium, not " + type);
+        }
+
+        // Running or Stopped; the states of a snapshot taken during an operation stand for the state
+        // the operation leads to, or for no change while scaling or deleting
+        StreamingEndpointState endpointState(String state, String context) throws IOException {
+            if (state == null) {
+                return null;
+            }
+            for (StreamingEndpointState candidate : StreamingEndpointState.values()) {
+                if (candidate.getCode().equalsIgnoreCase(state)) {
+                    switch (candidate) {
+                        case Running:
+                        case Starting:
+                            return StreamingEndpointState.Running;
+                        case Stopped:
+                        case Stopping:
+                            return StreamingEndpointState.Stopped;
+                        default:
+                            return null;
+                    }
+                }
+            }
+            throw error(context + " state must be Running or Stopped, not " + state);
+        }
+
+        IOException error(String message) {
+            return new IOException(source + ": " + message);
+        }
+
+        // An absent field and an explicit null both leave the setting alone
+        private static boolean isMissing(JsonNode value) {
+            return value == null || value.isNull();
+        }
+    }
+}
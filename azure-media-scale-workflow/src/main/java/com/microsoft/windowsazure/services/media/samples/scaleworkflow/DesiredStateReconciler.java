@@ -0,0 +1,277 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitInfo;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitType;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpointInfo;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpointState;
+
+/**
+ * Brings Media Services accounts to a {@link DesiredState}. {@link #plan} compares the desired
+ * state of an account with its inventory and lists the changes needed, one per Streaming Endpoint
+ * and one for the Encoding Reserved Units; {@link #apply} then runs all the changes of all the
+ * accounts at once and waits for them.
+ *
+ * The steps of one endpoint run in order (stop, scale, start; stop before delete; create before
+ * start), each one after the previous operation completed; different endpoints and accounts do not
+ * wait for each other. Requests are sent from a small pool, so a slow account does not hold back
+ * the others, and every operation is polled by the shared {@link OperationTracker}. Endpoints in
+ * the middle of an operation, and CDN changes, which need the endpoint stopped and its CDN profile
+ * rebuilt, are reported and left alone.
+ */
+final class DesiredStateReconciler implements Closeable {
+
+    private final OperationTracker operations;
+    private final ExecutorService executor;
+    private long timeoutMillis = TimeUnit.MINUTES.toMillis(30);
+
+    DesiredStateReconciler(OperationTracker operations, int concurrency) {
+        this.operations = operations;
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "reconcile-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Time allowed for each operation
+    DesiredStateReconciler setTimeout(long millis) {
+        this.timeoutMillis = Math.max(1, millis);
+        return this;
+    }
+
+    // The changes that bring the account to the desired state; the inventory must be complete
+    Plan plan(DesiredState.AccountState desired, MediaAccountPool.Account account,
+            InventorySnapshot.AccountInventory inventory) {
+        Plan plan = new Plan();
+        final MediaContract mediaService = account.getMediaService();
+
+        if (desired.getStreamingEndpoints() != null) {
+            Set<String> listed = new HashSet<String>();
+            for (DesiredState.EndpointState endpoint : desired.getStreamingEndpoints()) {
+                listed.add(endpoint.getName());
+                StreamingEndpointInfo current = find(inventory.getStreamingEndpoints(), endpoint.getName());
+                if (current == null) {
+                    planCreate(plan, account.getName(), mediaService, endpoint);
+                } else {
+                    planUpdate(plan, account.getName(), mediaService, endpoint, current);
+                }
+            }
+            if (desired.isRemoveUnlistedEndpoints()) {
+                for (StreamingEndpointInfo current : inventory.getStreamingEndpoints()) {
+                    if (!listed.contains(current.getName())) {
+                        planDelete(plan, account.getName(), mediaService, current);
+                    }
+                }
+            }
+        }
+
+        EncodingReservedUnitInfo reserved = inventory.getEncodingReservedUnit();
+        if (reserved != null
+                && (desired.getEncodingReservedUnits() != null || desired.getEncodingReservedUnitType() != null)) {
+            final int units = desired.getEncodingReservedUnits() != null
+                    ? desired.getEncodingReservedUnits() : reserved.getCurrentReservedUnits();
+            final EncodingReservedUnitType type = desired.getEncodingReservedUnitType() != null
+                    ? desired.getEncodingReservedUnitType() : reserved.getReservedUnitType();
+            if (units != reserved.getCurrentReservedUnits() || type != reserved.getReservedUnitType()) {
+                plan.changes.add(new Change(account.getName(), "Encoding Reserved Units",
+                        String.format("%d %s -> %d %s", reserved.getCurrentReservedUnits(),
+                                reserved.getReservedUnitType().toString().toUpperCase(),
+                                units, type.toString().toUpperCase()),
+                        () -> CompletableFuture.supplyAsync(() -> null, executor).thenComposeAsync(ignored ->
+                                operations.updateEncodingReservedUnits(mediaService, units, type, timeoutMillis),
+                                executor)));
+            }
+        }
+        return plan;
+    }
+
+    // Start every change, then wait for all of them; returns the number that failed
+    int apply(List<Change> changes) throws InterruptedException {
+        List<CompletableFuture<?>> running = new ArrayList<CompletableFuture<?>>();
+        for (final Change change : changes) {
+            running.add(change.action.get().whenComplete((result, failure) -> System.out.println(
+                    String.format("%s: %s %s: %s", change.account, change.resource, change.description,
+                            failure == null ? "done" : "failed, " + cause(failure)))));
+        }
+
+        int failed = 0;
+        for (CompletableFuture<?> change : running) {
+            try {
+                change.get();
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void planCreate(Plan plan, String accountName, final MediaContract mediaService,
+            final DesiredState.EndpointState endpoint) {
+        final boolean cdn = Boolean.TRUE.equals(endpoint.getCdnEnabled());
+        final int units = endpoint.getScaleUnits() != null ? endpoint.getScaleUnits() : cdn ? 1 : 0;
+        List<String> steps = new ArrayList<String>();
+        List<Step> actions = new ArrayList<Step>();
+        steps.add(String.format("create with %d units%s", units, cdn ? " and CDN" : ""));
+        actions.add(ignored -> operations.createStreamingEndpoint(mediaService, endpoint.getName(), units, cdn,
+                timeoutMillis));
+        if (endpoint.getState() == StreamingEndpointState.Running) {
+            steps.add("start");
+            actions.add(created -> operations.startStreamingEndpoint(mediaService, created.getId(), timeoutMillis));
+        }
+        plan.changes.add(endpointChange(accountName, endpoint.getName(), steps, null, actions));
+    }
+
+    private void planUpdate(Plan plan, String accountName, final MediaContract mediaService,
+            final DesiredState.EndpointState endpoint, StreamingEndpointInfo current) {
+        String resource = "Streaming Endpoint " + endpoint.getName();
+        boolean stop = endpoint.getState() == StreamingEndpointState.Stopped
+                && current.getState() == StreamingEndpointState.Running;
+        boolean start = endpoint.getState() == StreamingEndpointState.Running
+                && current.getState() == StreamingEndpointState.Stopped;
+        final Integer units = endpoint.getScaleUnits();
+        boolean scale = units != null && units != current.getScaleUnits();
+        boolean cdn = endpoint.getCdnEnabled() != null && endpoint.getCdnEnabled() != current.isCdnEnabled();
+
+        if (cdn) {
+            plan.skipped.add(String.format("%s: %s: CDN is %s, change it in the portal", accountName, resource,
+                    current.isCdnEnabled() ? "enabled" : "disabled"));
+        }
+        if (!stop && !start && !scale) {
+            return;
+        }
+        if (current.getState() != StreamingEndpointState.Running
+                && current.getState() != StreamingEndpointState.Stopped) {
+            plan.skipped.add(String.format("%s: %s: %s, run again once the operation completed", accountName,
+                    resource, current.getState().getCode()));
+            return;
+        }
+
+        List<String> steps = new ArrayList<String>();
+        List<Step> actions = new ArrayList<Step>();
+        if (stop) {
+            steps.add("stop");
+            actions.add(info -> operations.stopStreamingEndpoint(mediaService, info.getId(), timeoutMillis));
+        }
+        if (scale) {
+            steps.add(String.format("scale %d -> %d units", current.getScaleUnits(), units));
+            actions.add(info -> operations.scaleStreamingEndpoint(mediaService, info.getId(), units, timeoutMillis));
+        }
+        if (start) {
+            steps.add("start");
+            actions.add(info -> operations.startStreamingEndpoint(mediaService, info.getId(), timeoutMillis));
+        }
+        plan.changes.add(endpointChange(accountName, endpoint.getName(), steps, current, actions));
+    }
+
+    private void planDelete(Plan plan, String accountName, final MediaContract mediaService,
+            final StreamingEndpointInfo current) {
+        if (current.getState() != StreamingEndpointState.Running
+                && current.getState() != StreamingEndpointState.Stopped) {
+            plan.skipped.add(String.format("%s: Streaming Endpoint %s: %s, run again once the operation completed",
+                    accountName, current.getName(), current.getState().getCode()));
+            return;
+        }
+        List<String> steps = new ArrayList<String>();
+        List<Step> actions = new ArrayList<Step>();
+        if (current.getState() == StreamingEndpointState.Running) {
+            steps.add("stop");
+            actions.add(info -> operations.stopStreamingEndpoint(mediaService, info.getId(), timeoutMillis));
+        }
+        steps.add("delete");
+        actions.add(info -> operations.deleteStreamingEndpoint(mediaService, info.getId(), timeoutMillis)
+                .thenApply(operationId -> info));
+        plan.changes.add(endpointChange(accountName, current.getName(), steps, current, actions));
+    }
+
+    // A change running the steps one after the other, each one with the endpoint left by the previous
+    private Change endpointChange(String accountName, String endpointName, List<String> steps,
+            final StreamingEndpointInfo current, final List<Step> actions) {
+        StringBuilder description = new StringBuilder();
+        for (String step : steps) {
+            description.append(description.length() > 0 ? ", " : "").append(step);
+        }
+        return new Change(accountName, "Streaming Endpoint " + endpointName, description.toString(), () -> {
+            CompletableFuture<StreamingEndpointInfo> chain = CompletableFuture.supplyAsync(() -> current, executor);
+            for (Step action : actions) {
+                chain = chain.thenComposeAsync(action, executor);
+            }
+            return chain;
+        });
+    }
+
+    private static StreamingEndpointInfo find(List<StreamingEndpointInfo> endpoints, String name) {
+        for (StreamingEndpointInfo endpoint : endpoints) {
+            if (endpoint.getName().equalsIgnoreCase(name)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    // The error behind the CompletionException of a chained step
+    private static Throwable cause(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private interface Step extends Function<StreamingEndpointInfo, CompletableFuture<StreamingEndpointInfo>> {
+    }
+
+    // The changes of an account, and what could not be changed
+    static final class Plan {
+        private final List<Change> changes = new ArrayList<Change>();
+        private final List<String> skipped = new ArrayList<String>();
+
+        List<Change> getChanges() {
+            return Collections.unmodifiableList(changes);
+        }
+
+        List<String> getSkipped() {
+            return Collections.unmodifiableList(skipped);
+        }
+    }
+
+    // The steps that bring one resource to its desired state
+    static final class Change {
+        private final String account;
+        private final String resource;
+        private final String description;
+        private final Supplier<CompletableFuture<?>> action;
+
+        Change(String account, String resource, String description, Supplier<CompletableFuture<?>> action) {
+            this.account = account;
+            this.resource = resource;
+            this.description = description;
+            this.action = action;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s: %s", account, resource, description);
+        }
+    }
+}
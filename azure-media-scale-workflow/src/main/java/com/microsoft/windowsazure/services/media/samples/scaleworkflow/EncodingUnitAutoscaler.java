@@ -0,0 +1,325 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnit;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitInfo;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitType;
+import com.microsoft.windowsazure.services.media.models.Job;
+import com.microsoft.windowsazure.services.media.models.JobInfo;
+import com.microsoft.windowsazure.services.media.models.JobState;
+import com.microsoft.windowsazure.services.media.models.ListResult;
+
+/**
+ * Sizes the Encoding Reserved Units of an account from its job queue. Every evaluation reads the
+ * queued and processing job counts and the average time the queued jobs have waited, and computes
+ * a target: one unit per queued or processing job between the minimum and maximum, Premium units
+ * when jobs wait too long (or the demand exceeds the maximum), Basic units when the queue is
+ * empty, and Standard units otherwise.
+ *
+ * Scaling is damped so the units do not flap: a larger target must be seen on several consecutive
+ * evaluations, a smaller one on many more, and each direction has a cool-down after the last
+ * change. When scaling down, the highest target seen during the quiet period is used, and the
+ * units are only reduced by at least a minimum step (a slower type alone is always applied). In
+ * dry-run mode decisions are only printed.
+ *
+ * The job queue and the reserved units are interfaces, so the same controller runs against Media
+ * Services or a {@link SimulatedEncodingQueue}; evaluations take the current time as a parameter
+ * for the same reason.
+ */
+final class EncodingUnitAutoscaler {
+
+    private final String name;
+    private final JobQueue jobQueue;
+    private final ReservedUnits reservedUnits;
+    private int minUnits = 1;
+    private int maxUnits = 10;
+    private long premiumWaitMillis = TimeUnit.MINUTES.toMillis(10);
+    private int scaleUpEvaluations = 2;
+    private int scaleDownEvaluations = 15;
+    private int scaleDownStep = 2;
+    private long scaleUpCooldownMillis = TimeUnit.MINUTES.toMillis(2);
+    private long scaleDownCooldownMillis = TimeUnit.MINUTES.toMillis(20);
+    private boolean dryRun;
+
+    private int upStreak;
+    private int downStreak;
+    private Allocation downPeak;
+    private long lastChangeAt = Long.MIN_VALUE / 2;
+
+    // The name identifies the account in the printed decisions
+    EncodingUnitAutoscaler(String name, JobQueue jobQueue, ReservedUnits reservedUnits) {
+        this.name = name;
+        this.jobQueue = jobQueue;
+        this.reservedUnits = reservedUnits;
+    }
+
+    EncodingUnitAutoscaler setUnitRange(int minUnits, int maxUnits) {
+        this.minUnits = Math.max(0, minUnits);
+        this.maxUnits = Math.max(this.minUnits, maxUnits);
+        return this;
+    }
+
+    // Average wait of the queued jobs above which Premium units are used
+    EncodingUnitAutoscaler setPremiumWait(long millis) {
+        this.premiumWaitMillis = millis;
+        return this;
+    }
+
+    // Consecutive evaluations that must agree before scaling up and down
+    EncodingUnitAutoscaler setEvaluations(int scaleUp, int scaleDown) {
+        this.scaleUpEvaluations = Math.max(1, scaleUp);
+        this.scaleDownEvaluations = Math.max(1, scaleDown);
+        return this;
+    }
+
+    // Fewest units removed at once
+    EncodingUnitAutoscaler setScaleDownStep(int units) {
+        this.scaleDownStep = Math.max(1, units);
+        return this;
+    }
+
+    // Minimum time after a change before scaling up and down again
+    EncodingUnitAutoscaler setCooldowns(long scaleUpMillis, long scaleDownMillis) {
+        this.scaleUpCooldownMillis = scaleUpMillis;
+        this.scaleDownCooldownMillis = scaleDownMillis;
+        return this;
+    }
+
+    // Print the decisions without changing the reserved units
+    EncodingUnitAutoscaler setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    // The allocation for the given demand, before any damping
+    Allocation target(Demand demand) {
+        int jobs = demand.getQueued() + demand.getProcessing();
+        if (jobs == 0) {
+            return new Allocation(minUnits, EncodingReservedUnitType.Basic);
+        }
+        int units = Math.max(minUnits, Math.min(maxUnits, jobs));
+        boolean behind = demand.getAverageWaitMillis() > premiumWaitMillis || jobs > maxUnits;
+        return new Allocation(units, behind ? EncodingReservedUnitType.Premium : EncodingReservedUnitType.Standard);
+    }
+
+    // Read the demand and the current units, and scale if needed; returns the new allocation, or
+    // null if nothing changed
+    Allocation evaluate(long now) throws ServiceException {
+        Demand demand = jobQueue.read(now);
+        Allocation current = reservedUnits.read();
+        Allocation target = target(demand);
+
+        Allocation next = null;
+        if (target.isAbove(current)) {
+            // Grow to the target, but never shrink either the units or the type on the way up
+            downStreak = 0;
+            downPeak = null;
+            upStreak++;
+            if (upStreak >= scaleUpEvaluations && now - lastChangeAt >= scaleUpCooldownMillis) {
+                next = new Allocation(Math.max(target.getUnits(), current.getUnits()),
+                        rank(target.getType()) > rank(current.getType()) ? target.getType() : current.getType());
+            }
+        } else if (!target.equals(current)) {
+            upStreak = 0;
+            downStreak++;
+            downPeak = downPeak == null ? target : downPeak.max(target);
+            if (downStreak >= scaleDownEvaluations && now - lastChangeAt >= scaleDownCooldownMillis) {
+                if (current.getUnits() - downPeak.getUnits() >= scaleDownStep
+                        || downPeak.getUnits() <= minUnits) {
+                    next = downPeak;
+                } else if (rank(downPeak.getType()) < rank(current.getType())) {
+                    next = new Allocation(current.getUnits(), downPeak.getType());
+                }
+            }
+        } else {
+            upStreak = 0;
+            downStreak = 0;
+            downPeak = null;
+        }
+
+        if (next == null) {
+            return null;
+        }
+        upStreak = 0;
+        downStreak = 0;
+        downPeak = null;
+        lastChangeAt = now;
+
+        System.out.println(String.format("%tF %<tT %s: %s %s -> %s (%s)", new Date(now), name,
+                dryRun ? "Dry run, would scale Encoding Reserved Units" : "Scaling Encoding Reserved Units",
+                current, next, demand));
+        if (!dryRun) {
+            reservedUnits.apply(next);
+        }
+        return next;
+    }
+
+    // Basic 0, Standard 1, Premium 2
+    static int rank(EncodingReservedUnitType type) {
+        switch (type) {
+            case Basic:
+                return 0;
+            case Standard:
+                return 1;
+            default:
+                return 2;
+        }
+    }
+
+    // The job queue of an account in Media Services
+    static JobQueue jobQueue(final MediaContract mediaService) {
+        return new JobQueue() {
+            public Demand read(long now) throws ServiceException {
+                int queued = 0;
+                int processing = 0;
+                long waitMillis = 0;
+                int pageSize = 1000;
+                int skip = 0;
+                while (true) {
+                    ListResult<JobInfo> page = mediaService.list(Job.list()
+                            .set("$filter", String.format("State eq %d or State eq %d or State eq %d",
+                                    JobState.Queued.getCode(), JobState.Scheduled.getCode(),
+                                    JobState.Processing.getCode()))
+                            .set("$top", String.valueOf(pageSize))
+                            .set("$skip", String.valueOf(skip)));
+                    for (JobInfo job : page) {
+                        if (job.getState() == JobState.Processing) {
+                            processing++;
+                        } else if (job.getState() == JobState.Queued || job.getState() == JobState.Scheduled) {
+                            queued++;
+                            if (job.getCreated() != null) {
+                                waitMillis += Math.max(0, now - job.getCreated().getTime());
+                            }
+                        }
+                    }
+                    if (page.size() < pageSize) {
+                        return new Demand(queued, processing, queued > 0 ? waitMillis / queued : 0);
+                    }
+                    skip += page.size();
+                }
+            }
+        };
+    }
+
+    // The Encoding Reserved Units of an account in Media Services. Updates are tracked in the
+    // background; while one is in progress, its allocation is reported as the current one.
+    static ReservedUnits reservedUnits(final MediaContract mediaService, final OperationTracker operations,
+            final long timeoutMillis) {
+        return new ReservedUnits() {
+            private CompletableFuture<EncodingReservedUnitInfo> update;
+            private Allocation updating;
+
+            public Allocation read() throws ServiceException {
+                if (update != null && !update.isDone()) {
+                    return updating;
+                }
+                if (update != null && update.isCompletedExceptionally()) {
+                    System.out.println(String.format("Could not scale the Encoding Reserved Units to %s: %s",
+                            updating, update.handle((info, failure) -> failure).join()));
+                }
+                update = null;
+                EncodingReservedUnitInfo info = mediaService.get(EncodingReservedUnit.get());
+                return new Allocation(info.getCurrentReservedUnits(), info.getReservedUnitType());
+            }
+
+            public void apply(Allocation allocation) {
+                updating = allocation;
+                update = operations.updateEncodingReservedUnits(mediaService, allocation.getUnits(),
+                        allocation.getType(), timeoutMillis);
+            }
+        };
+    }
+
+    // Source of the job counts
+    interface JobQueue {
+        Demand read(long now) throws ServiceException;
+    }
+
+    // The reserved units being scaled
+    interface ReservedUnits {
+        Allocation read() throws ServiceException;
+
+        void apply(Allocation allocation) throws ServiceException;
+    }
+
+    // Jobs waiting or running, and the average time the waiting ones have waited so far
+    static final class Demand {
+        private final int queued;
+        private final int processing;
+        private final long averageWaitMillis;
+
+        Demand(int queued, int processing, long averageWaitMillis) {
+            this.queued = queued;
+            this.processing = processing;
+            this.averageWaitMillis = averageWaitMillis;
+        }
+
+        int getQueued() {
+            return queued;
+        }
+
+        int getProcessing() {
+            return processing;
+        }
+
+        long getAverageWaitMillis() {
+            return averageWaitMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d queued, %d processing, average wait %d s",
+                    queued, processing, TimeUnit.MILLISECONDS.toSeconds(averageWaitMillis));
+        }
+    }
+
+    // A number of reserved units of one type
+    static final class Allocation {
+        private final int units;
+        private final EncodingReservedUnitType type;
+
+        Allocation(int units, EncodingReservedUnitType type) {
+            this.units = units;
+            this.type = type;
+        }
+
+        int getUnits() {
+            return units;
+        }
+
+        EncodingReservedUnitType getType() {
+            return type;
+        }
+
+        // More units or a faster type
+        boolean isAbove(Allocation other) {
+            return units > other.units || rank(type) > rank(other.type);
+        }
+
+        Allocation max(Allocation other) {
+            return new Allocation(Math.max(units, other.units),
+                    rank(type) >= rank(other.type) ? type : other.type);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Allocation && ((Allocation) other).units == units
+                    && ((Allocation) other).type == type;
+        }
+
+        @Override
+        public int hashCode() {
+            return units * 31 + type.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return units + " " + type.toString().toUpperCase();
+        }
+    }
+}
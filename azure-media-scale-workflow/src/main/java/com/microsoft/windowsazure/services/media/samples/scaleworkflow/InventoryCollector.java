@@ -0,0 +1,166 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnit;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitInfo;
+import com.microsoft.windowsazure.services.media.models.ListResult;
+import com.microsoft.windowsazure.services.media.models.StorageAccountInfo;
+import com.microsoft.windowsazure.services.media.models.StorageAccounts;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpoint;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpointInfo;
+
+/**
+ * Reads the Storage accounts, Streaming Endpoints and Encoding Reserved Units of many Media
+ * Services accounts at once. The three queries of every account run in parallel on a shared pool,
+ * lists are read page by page ($top/$skip) until the last page, and the results are combined into
+ * one {@link InventorySnapshot}. Each account's calls still go through that account's rate limit.
+ *
+ * The pool is kept between runs, so a dashboard can collect a snapshot every minute without
+ * starting new threads; close the collector when done.
+ */
+final class InventoryCollector implements Closeable {
+
+    private final ExecutorService executor;
+    private int pageSize = 1000;
+    private long timeoutMillis = TimeUnit.SECONDS.toMillis(50);
+
+    InventoryCollector(int concurrency) {
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, concurrency), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "inventory-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Entities requested per page; Media Services returns at most 1000
+    InventoryCollector setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, Math.min(1000, pageSize));
+        return this;
+    }
+
+    // Time allowed for a whole run; queries still running then are cancelled and reported as failed
+    InventoryCollector setTimeout(long millis) {
+        this.timeoutMillis = Math.max(1, millis);
+        return this;
+    }
+
+    InventorySnapshot collect(List<MediaAccountPool.Account> accounts) throws InterruptedException {
+        long started = System.currentTimeMillis();
+        long deadline = started + timeoutMillis;
+
+        // Start every query before waiting for any of them
+        List<PendingAccount> pending = new ArrayList<PendingAccount>();
+        for (MediaAccountPool.Account account : accounts) {
+            final MediaContract mediaService = account.getMediaService();
+            PendingAccount queries = new PendingAccount(account);
+            queries.storageAccounts = executor.submit(new Callable<List<StorageAccountInfo>>() {
+                public List<StorageAccountInfo> call() throws ServiceException {
+                    return listAll(new Page<StorageAccountInfo>() {
+                        public ListResult<StorageAccountInfo> read(int skip) throws ServiceException {
+                            return mediaService.list(StorageAccounts.list()
+                                    .set("$top", String.valueOf(pageSize))
+                                    .set("$skip", String.valueOf(skip)));
+                        }
+                    });
+                }
+            });
+            queries.streamingEndpoints = executor.submit(new Callable<List<StreamingEndpointInfo>>() {
+                public List<StreamingEndpointInfo> call() throws ServiceException {
+                    return listAll(new Page<StreamingEndpointInfo>() {
+                        public ListResult<StreamingEndpointInfo> read(int skip) throws ServiceException {
+                            return mediaService.list(StreamingEndpoint.list()
+                                    .set("$top", String.valueOf(pageSize))
+                                    .set("$skip", String.valueOf(skip)));
+                        }
+                    });
+                }
+            });
+            queries.encodingReservedUnit = executor.submit(new Callable<EncodingReservedUnitInfo>() {
+                public EncodingReservedUnitInfo call() throws ServiceException {
+                    return mediaService.get(EncodingReservedUnit.get());
+                }
+            });
+            pending.add(queries);
+        }
+
+        List<InventorySnapshot.AccountInventory> inventories = new ArrayList<InventorySnapshot.AccountInventory>();
+        for (PendingAccount queries : pending) {
+            Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+            List<StorageAccountInfo> storageAccounts =
+                    await(queries.storageAccounts, deadline, "storageAccounts", failures);
+            List<StreamingEndpointInfo> streamingEndpoints =
+                    await(queries.streamingEndpoints, deadline, "streamingEndpoints", failures);
+            EncodingReservedUnitInfo encodingReservedUnit =
+                    await(queries.encodingReservedUnit, deadline, "encodingReservedUnits", failures);
+            inventories.add(new InventorySnapshot.AccountInventory(queries.account.getName(),
+                    queries.account.getRestApiEndpoint(), storageAccounts, streamingEndpoints,
+                    encodingReservedUnit, failures));
+        }
+        return new InventorySnapshot(new Date(started), System.currentTimeMillis() - started, inventories);
+    }
+
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    // Read all pages of a list
+    private <T> List<T> listAll(Page<T> page) throws ServiceException {
+        List<T> entities = new ArrayList<T>();
+        while (true) {
+            ListResult<T> result = page.read(entities.size());
+            entities.addAll(result);
+            if (result.size() < pageSize) {
+                return entities;
+            }
+        }
+    }
+
+    private static <T> T await(Future<T> future, long deadline, String query, Map<String, Throwable> failures)
+            throws InterruptedException {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            failures.put(query, e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            failures.put(query, new TimeoutException("No response before the collection timeout"));
+        }
+        return null;
+    }
+
+    // One page of a list, starting at the given entity
+    private interface Page<T> {
+        ListResult<T> read(int skip) throws ServiceException;
+    }
+
+    private static final class PendingAccount {
+        private final MediaAccountPool.Account account;
+        private Future<List<StorageAccountInfo>> storageAccounts;
+        private Future<List<StreamingEndpointInfo>> streamingEndpoints;
+        private Future<EncodingReservedUnitInfo> encodingReservedUnit;
+
+        PendingAccount(MediaAccountPool.Account account) {
+            this.account = account;
+        }
+    }
+}
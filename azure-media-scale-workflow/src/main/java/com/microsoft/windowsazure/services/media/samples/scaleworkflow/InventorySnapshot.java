@@ -0,0 +1,224 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitInfo;
+import com.microsoft.windowsazure.services.media.models.StorageAccountInfo;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpointInfo;
+
+/**
+ * The Storage accounts, Streaming Endpoints and Encoding Reserved Units of a set of Media Services
+ * accounts, as read by one {@link InventoryCollector#collect} run. A query that failed leaves its
+ * part of the account empty and is listed with the account's failures, so one unreachable account
+ * does not hide the others.
+ *
+ * The snapshot is written as JSON or CSV straight to a Writer, one entity at a time.
+ */
+final class InventorySnapshot {
+
+    private static final JsonFactory JSON = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    private static final String[] CSV_COLUMNS = {
+        "account", "resource", "name", "state", "units", "bytes_used", "cdn", "host_name"};
+
+    private final Date takenAt;
+    private final long durationMillis;
+    private final List<AccountInventory> accounts;
+
+    InventorySnapshot(Date takenAt, long durationMillis, List<AccountInventory> accounts) {
+        this.takenAt = new Date(takenAt.getTime());
+        this.durationMillis = durationMillis;
+        this.accounts = Collections.unmodifiableList(new ArrayList<AccountInventory>(accounts));
+    }
+
+    // Start of the collection run
+    Date getTakenAt() {
+        return new Date(takenAt.getTime());
+    }
+
+    long getDurationMillis() {
+        return durationMillis;
+    }
+
+    // The accounts in the order they were given to the collector
+    List<AccountInventory> getAccounts() {
+        return accounts;
+    }
+
+    void writeJson(Writer out) throws IOException {
+        JsonGenerator json = JSON.createGenerator(out);
+        json.writeStartObject();
+        json.writeStringField("takenAt", DateTimeFormatter.ISO_INSTANT.format(takenAt.toInstant()));
+        json.writeNumberField("durationMillis", durationMillis);
+        json.writeArrayFieldStart("accounts");
+        for (AccountInventory account : accounts) {
+            account.writeJson(json);
+        }
+        json.writeEndArray();
+        json.writeEndObject();
+        // Closing the generator flushes it and leaves the Writer open
+        json.close();
+        out.write('\n');
+        out.flush();
+    }
+
+    // One row per entity (and per failed query), with the columns that apply to its kind of resource
+    void writeCsv(Writer out) throws IOException {
+        writeCsvRow(out, (Object[]) CSV_COLUMNS);
+        for (AccountInventory account : accounts) {
+            account.writeCsv(out);
+        }
+        out.flush();
+    }
+
+    private static void writeCsvRow(Writer out, Object... values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String value = values[i] == null ? "" : values[i].toString();
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0
+                    || value.indexOf('\r') >= 0) {
+                out.write('"' + value.replace("\"", "\"\"") + '"');
+            } else {
+                out.write(value);
+            }
+        }
+        out.write("\r\n");
+    }
+
+    // The inventory of one Media Services account
+    static final class AccountInventory {
+        private final String name;
+        private final String restApiEndpoint;
+        private final List<StorageAccountInfo> storageAccounts;
+        private final List<StreamingEndpointInfo> streamingEndpoints;
+        private final EncodingReservedUnitInfo encodingReservedUnit;
+        private final Map<String, Throwable> failures;
+
+        AccountInventory(String name, String restApiEndpoint, List<StorageAccountInfo> storageAccounts,
+                List<StreamingEndpointInfo> streamingEndpoints, EncodingReservedUnitInfo encodingReservedUnit,
+                Map<String, Throwable> failures) {
+            this.name = name;
+            this.restApiEndpoint = restApiEndpoint;
+            this.storageAccounts = storageAccounts == null ? Collections.<StorageAccountInfo>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<StorageAccountInfo>(storageAccounts));
+            this.streamingEndpoints = streamingEndpoints == null ? Collections.<StreamingEndpointInfo>emptyList()
+                    : Collections.unmodifiableList(new ArrayList<StreamingEndpointInfo>(streamingEndpoints));
+            this.encodingReservedUnit = encodingReservedUnit;
+            this.failures = Collections.unmodifiableMap(new LinkedHashMap<String, Throwable>(failures));
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getRestApiEndpoint() {
+            return restApiEndpoint;
+        }
+
+        List<StorageAccountInfo> getStorageAccounts() {
+            return storageAccounts;
+        }
+
+        List<StreamingEndpointInfo> getStreamingEndpoints() {
+            return streamingEndpoints;
+        }
+
+        // Null if the query failed
+        EncodingReservedUnitInfo getEncodingReservedUnit() {
+            return encodingReservedUnit;
+        }
+
+        // The failed queries ("storageAccounts", "streamingEndpoints", "encodingReservedUnits") and their errors
+        Map<String, Throwable> getFailures() {
+            return failures;
+        }
+
+        // Throw the first failure, for callers that need the complete inventory
+        void checkComplete() throws ServiceException {
+            if (!failures.isEmpty()) {
+                Map.Entry<String, Throwable> failure = failures.entrySet().iterator().next();
+                throw new ServiceException(String.format("Could not read the %s of account %s: %s",
+                        failure.getKey(), name, failure.getValue().toString()), failure.getValue());
+            }
+        }
+
+        private void writeJson(JsonGenerator json) throws IOException {
+            json.writeStartObject();
+            json.writeStringField("name", name);
+            json.writeStringField("restApiEndpoint", restApiEndpoint);
+
+            json.writeArrayFieldStart("storageAccounts");
+            for (StorageAccountInfo storageAccount : storageAccounts) {
+                json.writeStartObject();
+                json.writeStringField("name", storageAccount.getName());
+                json.writeBooleanField("isDefault", storageAccount.isDefault());
+                json.writeNumberField("bytesUsed", storageAccount.getBytesUsed());
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+
+            json.writeArrayFieldStart("streamingEndpoints");
+            for (StreamingEndpointInfo streamingEndpoint : streamingEndpoints) {
+                json.writeStartObject();
+                json.writeStringField("id", streamingEndpoint.getId());
+                json.writeStringField("name", streamingEndpoint.getName());
+                json.writeStringField("state", streamingEndpoint.getState() == null ? null
+                        : streamingEndpoint.getState().getCode());
+                json.writeBooleanField("cdnEnabled", streamingEndpoint.isCdnEnabled());
+                json.writeNumberField("scaleUnits", streamingEndpoint.getScaleUnits());
+                json.writeStringField("hostName", streamingEndpoint.getHostName());
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+
+            if (encodingReservedUnit == null) {
+                json.writeNullField("encodingReservedUnits");
+            } else {
+                json.writeObjectFieldStart("encodingReservedUnits");
+                json.writeStringField("type", String.valueOf(encodingReservedUnit.getReservedUnitType()));
+                json.writeNumberField("currentReservedUnits", encodingReservedUnit.getCurrentReservedUnits());
+                json.writeEndObject();
+            }
+
+            json.writeObjectFieldStart("failures");
+            for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+                json.writeStringField(failure.getKey(), failure.getValue().toString());
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+
+        private void writeCsv(Writer out) throws IOException {
+            for (StorageAccountInfo storageAccount : storageAccounts) {
+                writeCsvRow(out, name, "storage_account", storageAccount.getName(),
+                        storageAccount.isDefault() ? "default" : "", null, storageAccount.getBytesUsed(), null, null);
+            }
+            for (StreamingEndpointInfo streamingEndpoint : streamingEndpoints) {
+                writeCsvRow(out, name, "streaming_endpoint", streamingEndpoint.getName(),
+                        streamingEndpoint.getState() == null ? null : streamingEndpoint.getState().getCode(),
+                        streamingEndpoint.getScaleUnits(), null, streamingEndpoint.isCdnEnabled(),
+                        streamingEndpoint.getHostName());
+            }
+            if (encodingReservedUnit != null) {
+                writeCsvRow(out, name, "encoding_reserved_units", encodingReservedUnit.getReservedUnitType(),
+                        null, encodingReservedUnit.getCurrentReservedUnits(), null, null, null);
+            }
+            for (Map.Entry<String, Throwable> failure : failures.entrySet()) {
+                writeCsvRow(out, name, "failure", failure.getKey(), failure.getValue().toString(),
+                        null, null, null, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.microsoft.windowsazure.Configuration;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaConfiguration;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.MediaService;
+import com.microsoft.windowsazure.services.media.authentication.AzureAdClientSymmetricKey;
+import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenCredentials;
+import com.microsoft.windowsazure.services.media.authentication.AzureEnvironments;
+
+/**
+ * Connections to several Media Services accounts. Every account has its own MediaContract (and
+ * so its own HTTP client), its own {@link AzureAdTokenManager} and a {@link TokenBucket} that keeps
+ * its REST calls under the rate the service throttles at; calls that are throttled anyway, or fail
+ * with transient errors, are retried by a {@link ResilientMediaContract}, and every retry takes a
+ * permit of its own. A throttled account only slows down the callers using it; {@link #leastLoaded}
+ * picks the account with the fewest calls waiting or in flight for work that can run in any
+ * account.
+ *
+ * Entities (Assets, Jobs, Streaming Endpoints...) belong to one account, so work that spans several
+ * calls keeps using the account it started in.
+ */
+final class MediaAccountPool implements Closeable {
+
+    // REST calls that count against the account's request rate
+    private static final Set<String> ENTITY_OPERATIONS = new HashSet<String>(
+            Arrays.asList("create", "get", "list", "update", "delete", "action"));
+
+    private static final double DEFAULT_REQUESTS_PER_SECOND = 10;
+    private static final int DEFAULT_BURST = 20;
+
+    private final Map<String, Account> accounts = new LinkedHashMap<String, Account>();
+
+    MediaAccountPool(List<AccountSettings> settings) throws Exception {
+        try {
+            for (AccountSettings account : settings) {
+                accounts.put(account.name, new Account(account));
+            }
+        } catch (Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Read the accounts file: one account per line, as
+    // name tenant clientId clientKey restApiEndpoint [requestsPerSecond [burst]]
+    static List<AccountSettings> readAccounts(File file) throws IOException {
+        List<AccountSettings> settings = new ArrayList<AccountSettings>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+        try {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 5 || fields.length > 7) {
+                    throw new IOException(String.format("%s:%d: expected name, tenant, client id, client key, "
+                            + "REST API endpoint and optionally requests per second and burst", file, number));
+                }
+                settings.add(new AccountSettings(fields[0], fields[1], fields[2], fields[3], fields[4],
+                        fields.length > 5 ? Double.parseDouble(fields[5]) : DEFAULT_REQUESTS_PER_SECOND,
+                        fields.length > 6 ? Integer.parseInt(fields[6]) : DEFAULT_BURST));
+            }
+        } finally {
+            reader.close();
+        }
+        return settings;
+    }
+
+    Account get(String name) {
+        Account account = accounts.get(name);
+        if (account == null) {
+            throw new IllegalArgumentException("Unknown Media Services account " + name);
+        }
+        return account;
+    }
+
+    List<Account> getAccounts() {
+        return Collections.unmodifiableList(new ArrayList<Account>(accounts.values()));
+    }
+
+    // The account with the fewest calls in flight; ties go to the one with the most permits left
+    Account leastLoaded() {
+        Account best = null;
+        for (Account account : accounts.values()) {
+            if (best == null || account.inFlight.get() < best.inFlight.get()
+                    || (account.inFlight.get() == best.inFlight.get()
+                        && account.limiter.available() > best.limiter.available())) {
+                best = account;
+            }
+        }
+        if (best == null) {
+            throw new IllegalStateException("No Media Services accounts configured");
+        }
+        return best;
+    }
+
+    public void close() {
+        for (Account account : accounts.values()) {
+            account.tokenManager.close();
+        }
+    }
+
+    // Credentials and request rate of one account
+    static final class AccountSettings {
+        private final String name;
+        private final String tenant;
+        private final String clientId;
+        private final String clientKey;
+        private final String restApiEndpoint;
+        private final double requestsPerSecond;
+        private final int burst;
+
+        AccountSettings(String name, String tenant, String clientId, String clientKey, String restApiEndpoint,
+                double requestsPerSecond, int burst) {
+            this.name = name;
+            this.tenant = tenant;
+            this.clientId = clientId;
+            this.clientKey = clientKey;
+            this.restApiEndpoint = restApiEndpoint;
+            this.requestsPerSecond = requestsPerSecond;
+            this.burst = burst;
+        }
+
+        AccountSettings(String name, String tenant, String clientId, String clientKey, String restApiEndpoint) {
+            this(name, tenant, clientId, clientKey, restApiEndpoint, DEFAULT_REQUESTS_PER_SECOND, DEFAULT_BURST);
+        }
+    }
+
+    // One Media Services account of the pool
+    static final class Account {
+        private final String name;
+        private final String restApiEndpoint;
+        private final AzureAdTokenManager tokenManager;
+        private final TokenBucket limiter;
+        private final ResilientMediaContract resilience;
+        private final MediaContract mediaService;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong throttledNanos = new AtomicLong();
+
+        private Account(AccountSettings settings) throws Exception {
+            this.name = settings.name;
+            this.restApiEndpoint = settings.restApiEndpoint;
+            this.limiter = new TokenBucket(settings.requestsPerSecond, settings.burst);
+            this.resilience = new ResilientMediaContract(settings.restApiEndpoint);
+
+            // Connect to Media Services API with service principal and client symmetric key
+            AzureAdTokenCredentials credentials = new AzureAdTokenCredentials(
+                    settings.tenant,
+                    new AzureAdClientSymmetricKey(settings.clientId, settings.clientKey),
+                    AzureEnvironments.AZURE_CLOUD_ENVIRONMENT);
+            this.tokenManager = new AzureAdTokenManager(credentials, TokenCache.inUserHome(), TokenCache.key(
+                    settings.tenant, settings.clientId,
+                    AzureEnvironments.AZURE_CLOUD_ENVIRONMENT.getMediaServicesResource()));
+
+            try {
+                Configuration configuration = MediaConfiguration.configureWithAzureAdTokenProvider(
+                        new URI(settings.restApiEndpoint),
+                        tokenManager);
+                this.mediaService = resilience.wrap(rateLimited(MediaService.create(configuration)));
+            } catch (Exception e) {
+                tokenManager.close();
+                throw e;
+            }
+        }
+
+        String getName() {
+            return name;
+        }
+
+        String getRestApiEndpoint() {
+            return restApiEndpoint;
+        }
+
+        // The rate-limited and retrying MediaContract of the account
+        MediaContract getMediaService() {
+            return mediaService;
+        }
+
+        // Calls waiting for a permit or in flight
+        int getInFlight() {
+            return inFlight.get();
+        }
+
+        long getRequests() {
+            return requests.get();
+        }
+
+        // Total time callers waited for the rate limiter
+        long getThrottledMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+        }
+
+        // Retry and circuit breaker counters of the account
+        ResilientMediaContract getResilience() {
+            return resilience;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d requests, %d in flight, %d ms throttled, %d retries, circuit %s)",
+                    name, getRequests(), getInFlight(), getThrottledMillis(), resilience.getRetries(),
+                    resilience.getCircuitState());
+        }
+
+        // Wrap the MediaContract so that every entity operation takes a permit first
+        private MediaContract rateLimited(final MediaContract target) {
+            return (MediaContract) Proxy.newProxyInstance(MediaContract.class.getClassLoader(),
+                    new Class<?>[] {MediaContract.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (method.getDeclaringClass() == Object.class) {
+                                if (method.getName().equals("equals")) {
+                                    return proxy == args[0];
+                                }
+                                return method.getName().equals("hashCode") ? System.identityHashCode(proxy)
+                                        : "MediaContract of account " + name;
+                            }
+
+                            boolean limited = ENTITY_OPERATIONS.contains(method.getName());
+                            if (limited) {
+                                inFlight.incrementAndGet();
+                            }
+                            try {
+                                if (limited) {
+                                    try {
+                                        throttledNanos.addAndGet(limiter.acquire());
+                                    } catch (InterruptedException e) {
+                                        Thread.currentThread().interrupt();
+                                        throw new ServiceException("Interrupted while waiting for the request rate "
+                                                + "limit of account " + name);
+                                    }
+                                    requests.incrementAndGet();
+                                }
+
+                                Object result = method.invoke(target, args);
+                                // Filtered copies of the contract share the account's limit
+                                return result instanceof MediaContract ? rateLimited((MediaContract) result) : result;
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            } finally {
+                                if (limited) {
+                                    inFlight.decrementAndGet();
+                                }
+                            }
+                        }
+                    });
+        }
+    }
+}
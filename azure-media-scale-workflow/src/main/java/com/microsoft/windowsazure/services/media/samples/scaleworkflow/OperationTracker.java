@@ -0,0 +1,227 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnit;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitInfo;
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitType;
+import com.microsoft.windowsazure.services.media.models.Operation;
+import com.microsoft.windowsazure.services.media.models.OperationInfo;
+import com.microsoft.windowsazure.services.media.models.OperationState;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpoint;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpointInfo;
+
+/**
+ * Tracks long-running Media Services operations (Streaming Endpoint create, start, stop, scale and
+ * delete, Encoding Reserved Unit updates) without blocking the caller. Each request is sent at
+ * once and returns a CompletableFuture; a single scheduler thread polls all pending operations, of
+ * any account, and completes each future with the refreshed entity when its operation succeeds.
+ *
+ * A future fails with a ServiceException when the operation fails or cannot be polled, and with a
+ * TimeoutException when it takes longer than its timeout. Cancelling a future only stops tracking
+ * the operation; Media Services has no way to cancel it.
+ */
+final class OperationTracker implements Closeable {
+
+    // Consecutive failed polls of one operation before its future fails
+    private static final int MAX_POLL_FAILURES = 5;
+
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentLinkedQueue<TrackedOperation<?>> pending = new ConcurrentLinkedQueue<TrackedOperation<?>>();
+
+    OperationTracker(long pollIntervalMillis) {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "operation-tracker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                poll();
+            }
+        }, pollIntervalMillis, pollIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Operations not completed yet
+    int getPending() {
+        return pending.size();
+    }
+
+    // Track an operation; the future completes with the operation id when it succeeds
+    CompletableFuture<String> track(MediaContract mediaService, final String operationId, long timeoutMillis) {
+        return track(mediaService, operationId, timeoutMillis, new Callable<String>() {
+            public String call() {
+                return operationId;
+            }
+        });
+    }
+
+    // Create a Streaming Endpoint; the future completes with the endpoint once it is created
+    CompletableFuture<StreamingEndpointInfo> createStreamingEndpoint(MediaContract mediaService, String name,
+            int scaleUnits, boolean cdnEnabled, long timeoutMillis) {
+        StreamingEndpointInfo created;
+        try {
+            created = mediaService.create(StreamingEndpoint.create()
+                    .setName(name)
+                    .setCdnEnabled(cdnEnabled)
+                    .setScaleUnits(scaleUnits));
+        } catch (ServiceException se) {
+            return failed(se);
+        }
+        if (!created.hasOperationIdentifier()) {
+            return CompletableFuture.completedFuture(created);
+        }
+        return track(mediaService, created.getOperationId(), timeoutMillis, refresh(mediaService, created.getId()));
+    }
+
+    CompletableFuture<StreamingEndpointInfo> startStreamingEndpoint(MediaContract mediaService, String endpointId,
+            long timeoutMillis) {
+        try {
+            String operationId = mediaService.action(StreamingEndpoint.start(endpointId));
+            return track(mediaService, operationId, timeoutMillis, refresh(mediaService, endpointId));
+        } catch (ServiceException se) {
+            return failed(se);
+        }
+    }
+
+    CompletableFuture<StreamingEndpointInfo> stopStreamingEndpoint(MediaContract mediaService, String endpointId,
+            long timeoutMillis) {
+        try {
+            String operationId = mediaService.action(StreamingEndpoint.stop(endpointId));
+            return track(mediaService, operationId, timeoutMillis, refresh(mediaService, endpointId));
+        } catch (ServiceException se) {
+            return failed(se);
+        }
+    }
+
+    CompletableFuture<StreamingEndpointInfo> scaleStreamingEndpoint(MediaContract mediaService, String endpointId,
+            int scaleUnits, long timeoutMillis) {
+        try {
+            String operationId = mediaService.action(StreamingEndpoint.scale(endpointId, scaleUnits));
+            return track(mediaService, operationId, timeoutMillis, refresh(mediaService, endpointId));
+        } catch (ServiceException se) {
+            return failed(se);
+        }
+    }
+
+    // Delete a stopped Streaming Endpoint; the future completes with the operation id
+    CompletableFuture<String> deleteStreamingEndpoint(MediaContract mediaService, String endpointId,
+            long timeoutMillis) {
+        try {
+            String operationId = mediaService.delete(StreamingEndpoint.delete(endpointId));
+            if (operationId == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return track(mediaService, operationId, timeoutMillis);
+        } catch (ServiceException se) {
+            return failed(se);
+        }
+    }
+
+    // Change the Encoding Reserved Units; the future completes with the updated units
+    CompletableFuture<EncodingReservedUnitInfo> updateEncodingReservedUnits(final MediaContract mediaService,
+            int units, EncodingReservedUnitType type, long timeoutMillis) {
+        try {
+            EncodingReservedUnitInfo current = mediaService.get(EncodingReservedUnit.get());
+            String operationId = mediaService.update(EncodingReservedUnit.update(current)
+                    .setCurrentReservedUnits(units)
+                    .setReservedUnitType(type));
+            return track(mediaService, operationId, timeoutMillis, new Callable<EncodingReservedUnitInfo>() {
+                public EncodingReservedUnitInfo call() throws ServiceException {
+                    return mediaService.get(EncodingReservedUnit.get());
+                }
+            });
+        } catch (ServiceException se) {
+            return failed(se);
+        }
+    }
+
+    // Stop polling; futures still pending stay incomplete
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> track(MediaContract mediaService, String operationId, long timeoutMillis,
+            Callable<T> result) {
+        TrackedOperation<T> operation = new TrackedOperation<T>(mediaService, operationId,
+                System.currentTimeMillis() + timeoutMillis, result);
+        pending.add(operation);
+        return operation.future;
+    }
+
+    private static Callable<StreamingEndpointInfo> refresh(final MediaContract mediaService, final String endpointId) {
+        return new Callable<StreamingEndpointInfo>() {
+            public StreamingEndpointInfo call() throws ServiceException {
+                return mediaService.get(StreamingEndpoint.get(endpointId));
+            }
+        };
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable failure) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    // Poll every pending operation once
+    private void poll() {
+        for (Iterator<TrackedOperation<?>> operations = pending.iterator(); operations.hasNext();) {
+            TrackedOperation<?> operation = operations.next();
+            if (operation.future.isDone() || operation.poll()) {
+                // Cancelled by the caller, or completed now
+                operations.remove();
+            }
+        }
+    }
+
+    private static final class TrackedOperation<T> {
+        private final MediaContract mediaService;
+        private final String operationId;
+        private final long deadline;
+        private final Callable<T> result;
+        private final CompletableFuture<T> future = new CompletableFuture<T>();
+        private int failedPolls;
+
+        TrackedOperation(MediaContract mediaService, String operationId, long deadline, Callable<T> result) {
+            this.mediaService = mediaService;
+            this.operationId = operationId;
+            this.deadline = deadline;
+            this.result = result;
+        }
+
+        // Check the operation; returns true once the future is complete
+        boolean poll() {
+            try {
+                OperationInfo info = mediaService.get(Operation.get(operationId));
+                failedPolls = 0;
+                if (info.getState() == OperationState.Succeeded) {
+                    future.complete(result.call());
+                } else if (info.getState() == OperationState.Failed) {
+                    future.completeExceptionally(new ServiceException(String.format("Operation %s failed: %s %s",
+                            operationId, info.getErrorCode(), info.getErrorMessage())));
+                }
+            } catch (Exception e) {
+                if (++failedPolls >= MAX_POLL_FAILURES) {
+                    future.completeExceptionally(e);
+                }
+            }
+            if (!future.isDone() && System.currentTimeMillis() >= deadline) {
+                future.completeExceptionally(new TimeoutException("Operation " + operationId + " did not complete in time"));
+            }
+            return future.isDone();
+        }
+    }
+}
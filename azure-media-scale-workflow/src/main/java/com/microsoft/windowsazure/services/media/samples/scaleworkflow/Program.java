@@ -1,37 +1,48 @@
 package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.URI;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.lang.StringUtils;
 
-import com.microsoft.windowsazure.Configuration;
 import com.microsoft.windowsazure.exception.ServiceException;
-import com.microsoft.windowsazure.services.media.MediaConfiguration;
 import com.microsoft.windowsazure.services.media.MediaContract;
-import com.microsoft.windowsazure.services.media.MediaService;
-import com.microsoft.windowsazure.services.media.OperationUtils;
-import com.microsoft.windowsazure.services.media.authentication.AzureAdClientSymmetricKey;
-import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenCredentials;
-import com.microsoft.windowsazure.services.media.authentication.AzureAdTokenProvider;
-import com.microsoft.windowsazure.services.media.authentication.AzureEnvironments;
-import com.microsoft.windowsazure.services.media.authentication.TokenProvider;
-import com.microsoft.windowsazure.services.media.models.EncodingReservedUnit;
 import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitInfo;
 import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitType;
-import com.microsoft.windowsazure.services.media.models.ListResult;
 import com.microsoft.windowsazure.services.media.models.StorageAccountInfo;
-import com.microsoft.windowsazure.services.media.models.StorageAccounts;
-import com.microsoft.windowsazure.services.media.models.StreamingEndpoint;
 import com.microsoft.windowsazure.services.media.models.StreamingEndpointInfo;
 
 public final class Program {
 
     private static MediaContract mediaService;
+    private static MediaAccountPool accounts;
+    private static InventoryCollector inventoryCollector;
+    private static OperationTracker operations;
+
+    // Console input, shared by all prompts so that piped answers are not lost between them
+    private static final BufferedReader console = new BufferedReader(
+            new InputStreamReader(System.in, Charset.defaultCharset()));
 
     // Media Services account credentials configuration
     private static String tenant = "tenant.domain.com";
@@ -39,37 +50,106 @@ public final class Program {
     private static String clientKey = "<client key>";
     private static String restApiEndpoint = "https://accountname.restv2.regionname.media.azure.net/api/";
 
+    // Optional list of accounts (name tenant clientId clientKey restApiEndpoint [requestsPerSecond [burst]]
+    // per line); when it exists, it is used instead of the account above
+    private static String accountsFile = "MediaAccounts.txt";
+
+    // Inventory configuration: queries run in parallel across the accounts, and the time allowed
+    // for a whole snapshot (below the refresh interval of the capacity dashboard)
+    private static int inventoryConcurrency = 16;
+    private static int inventoryTimeoutSeconds = 50;
+
+    // Encoding Reserved Units autoscaler configuration
+    private static int autoscaleMinUnits = 1;
+    private static int autoscaleMaxUnits = 10;
+    private static int autoscaleIntervalSeconds = 60;
+
+    // Streaming Endpoint autoscaler configuration: metrics file written by the monitoring system
+    // ("hostName egressMbps sessions" per line) and the age after which it is ignored
+    private static String streamingMetricsFile = "StreamingMetrics.txt";
+    private static int streamingMetricsMaxAgeSeconds = 300;
+    private static int streamingUnitsMax = 10;
+
+    // Long-running operations: how often they are polled, and how long they may take
+    private static int operationPollSeconds = 5;
+    private static int operationTimeoutMinutes = 30;
+
+    // Desired state reconciliation: requests sent in parallel across the accounts
+    private static int reconcileConcurrency = 16;
+
     // Utility classes should not have a public or default constructor
     private Program() {
     }
 
     public static void main(String[] args) {
-        ExecutorService executorService = Executors.newFixedThreadPool(1);
-
         try {
-            // Connect to Media Services API with service principal and client symmetric key
-            AzureAdTokenCredentials credentials = new AzureAdTokenCredentials(
-                    tenant,
-                    new AzureAdClientSymmetricKey(clientId, clientKey),
-                    AzureEnvironments.AZURE_CLOUD_ENVIRONMENT);
+            // Connect to Media Services API with service principal and client symmetric key. Every
+            // account gets its own token manager (reusing cached tokens) and request rate limit
+            List<MediaAccountPool.AccountSettings> settings = new File(accountsFile).exists()
+                    ? MediaAccountPool.readAccounts(new File(accountsFile))
+                    : Arrays.asList(new MediaAccountPool.AccountSettings(
+                            "default", tenant, clientId, clientKey, restApiEndpoint));
+            accounts = new MediaAccountPool(settings);
+            inventoryCollector = new InventoryCollector(inventoryConcurrency)
+                    .setTimeout(TimeUnit.SECONDS.toMillis(inventoryTimeoutSeconds));
+            operations = new OperationTracker(TimeUnit.SECONDS.toMillis(operationPollSeconds));
+
+            // "inventory [json|csv] [file]": write a snapshot of every account and exit
+            if (args.length > 0 && args[0].equals("inventory")) {
+                writeInventory(args.length > 1 ? args[1] : "json", args.length > 2 ? args[2] : null);
+                return;
+            }
 
-            TokenProvider provider = new AzureAdTokenProvider(credentials, executorService);
+            // "autoscale-units [apply|simulate]": size the Encoding Reserved Units of every account
+            // from its job queue; decisions are only printed unless "apply" is given
+            if (args.length > 0 && args[0].equals("autoscale-units")) {
+                String mode = args.length > 1 ? args[1] : "dry-run";
+                if (mode.equals("simulate")) {
+                    simulateEncodingUnitAutoscaler();
+                } else {
+                    autoscaleEncodingUnits(mode.equals("apply"));
+                }
+                return;
+            }
+
+            // "provision-endpoints file [account]": create (and start) the Streaming Endpoints listed
+            // in the file, all at once
+            if (args.length > 1 && args[0].equals("provision-endpoints")) {
+                provisionStreamingEndpoints(new File(args[1]),
+                        args.length > 2 ? accounts.get(args[2]) : accounts.getAccounts().get(0));
+                return;
+            }
 
-            // create a new configuration with the new credentials
-            Configuration configuration = MediaConfiguration.configureWithAzureAdTokenProvider(
-                    new URI(restApiEndpoint),
-                    provider);
+            // "reconcile file [apply]": bring every account of the desired state file to that state;
+            // the changes are only printed unless "apply" is given
+            if (args.length > 1 && args[0].equals("reconcile")) {
+                reconcile(new File(args[1]), args.length > 2 && args[2].equals("apply"));
+                return;
+            }
 
-            // create the media service provisioned with the new configuration
-            mediaService = MediaService.create(configuration);
+            // "autoscale-endpoints [apply]": scale the Streaming Endpoints of every account from
+            // their egress and sessions; decisions are only printed unless "apply" is given
+            if (args.length > 0 && args[0].equals("autoscale-endpoints")) {
+                autoscaleStreamingEndpoints(args.length > 1 && args[1].equals("apply"));
+                return;
+            }
 
             System.out.println("Azure SDK for Java - Scale Workflow Sample");
 
+            // Choose the account to work with
+            MediaAccountPool.Account account = selectAccount();
+            mediaService = account.getMediaService();
+
+            // Read the Storage accounts, Streaming Endpoints and Encoding Reserved Units in parallel
+            InventorySnapshot.AccountInventory inventory = inventoryCollector
+                    .collect(Collections.singletonList(account)).getAccounts().get(0);
+            inventory.checkComplete();
+
             // 1. Summary of Storage accounts
             println("1 - Storage Accounts ");
 
             // 1.1 List the Storage accounts attached to the Media Services account
-            ListResult<StorageAccountInfo> storageAccounts = mediaService.list(StorageAccounts.list());
+            List<StorageAccountInfo> storageAccounts = inventory.getStorageAccounts();
 
             // 1.2 Format output
             println(StringUtils.repeat("-", 61));
@@ -88,7 +168,7 @@ public final class Program {
             println("2 - Streaming Endpoints ");
 
             // 2.1 List the existing Streaming Endpoints
-            ListResult<StreamingEndpointInfo> streamingEndpoints = mediaService.list(StreamingEndpoint.list());
+            List<StreamingEndpointInfo> streamingEndpoints = inventory.getStreamingEndpoints();
 
             // 2.2 Format output
             println(StringUtils.repeat("-", 144));
@@ -109,7 +189,7 @@ public final class Program {
             System.out.println("3 - Encoding Reserved Units ");
 
             // 3.1 Get the current Encoding Reserved Units information
-            EncodingReservedUnitInfo encodingReservedUnit = mediaService.get(EncodingReservedUnit.get());
+            EncodingReservedUnitInfo encodingReservedUnit = inventory.getEncodingReservedUnit();
 
             // 3.2 Format output
             System.out.println(StringUtils.repeat("-", 42));
@@ -131,18 +211,14 @@ public final class Program {
                         name, units, cdn ? "ENABLED" : "DISABLED"), true);
                 if (doit) {
                     print("Creating...");
-                    startSpinner();
 
                     // 4.2 Create the Streaming Endpoint
-                    StreamingEndpointInfo streamingEndpointInfo = mediaService.create(
-                            StreamingEndpoint.create().setName(name)
-                            .setCdnEnabled(cdn)
-                            .setScaleUnits(units));
+                    CompletableFuture<StreamingEndpointInfo> creation = operations.createStreamingEndpoint(
+                            mediaService, name, units, cdn, TimeUnit.MINUTES.toMillis(operationTimeoutMinutes));
 
                     // 4.3 Wait for operation completed.
-                    OperationUtils.await(mediaService, streamingEndpointInfo);
+                    waitFor(creation);
 
-                    stopSpinner();
                     println(" done!");
                 } else {
                     println(" cancelled!");
@@ -161,18 +237,15 @@ public final class Program {
 
                 if (doit) {
                     print("Updating...");
-                    startSpinner();
 
                     // 5.2 Update the EncodingReservedUnit
-                    encodingReservedUnit = mediaService.get(EncodingReservedUnit.get());
-                    String opId = mediaService.update(EncodingReservedUnit.update(encodingReservedUnit)
-                            .setCurrentReservedUnits(units)
-                            .setReservedUnitType(EncodingReservedUnitType.fromCode(type)));
+                    CompletableFuture<EncodingReservedUnitInfo> update = operations.updateEncodingReservedUnits(
+                            mediaService, units, EncodingReservedUnitType.fromCode(type),
+                            TimeUnit.MINUTES.toMillis(operationTimeoutMinutes));
 
                     // 5.3 Wait for operation completed.
-                    OperationUtils.await(mediaService, opId);
+                    waitFor(update);
 
-                    stopSpinner();
                     println(" done!");
                 } else {
                     println(" cancelled!");
@@ -186,15 +259,274 @@ public final class Program {
             System.out.println("Exception encountered.");
             System.out.println(e.toString());
         } finally {
-            executorService.shutdown();
+            if (operations != null) {
+                operations.close();
+            }
+            if (inventoryCollector != null) {
+                inventoryCollector.close();
+            }
+            if (accounts != null) {
+                for (MediaAccountPool.Account account : accounts.getAccounts()) {
+                    System.out.println("REST calls to " + account.getResilience());
+                }
+                accounts.close();
+            }
         }
     }
 
+    // Collect the inventory of all accounts and write it to the file, replacing the previous snapshot
+    // at once so that readers never see a partial file
+    private static void writeInventory(String format, String fileName) throws IOException, InterruptedException {
+        if (!format.equals("json") && !format.equals("csv")) {
+            throw new IllegalArgumentException("Unknown inventory format " + format + ", expected json or csv");
+        }
+        InventorySnapshot snapshot = inventoryCollector.collect(accounts.getAccounts());
+
+        File file = new File(fileName != null ? fileName : "Inventory." + format).getAbsoluteFile();
+        Path temporary = Files.createTempFile(file.getParentFile().toPath(), "inventory", ".tmp");
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(
+                    Files.newOutputStream(temporary), Charset.forName("UTF-8")));
+            try {
+                if (format.equals("json")) {
+                    snapshot.writeJson(out);
+                } else {
+                    snapshot.writeCsv(out);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        println(String.format("Inventory of %d accounts collected in %d ms and written to %s",
+                snapshot.getAccounts().size(), snapshot.getDurationMillis(), file));
+        for (InventorySnapshot.AccountInventory inventory : snapshot.getAccounts()) {
+            for (Map.Entry<String, Throwable> failure : inventory.getFailures().entrySet()) {
+                println(String.format("Could not read the %s of account %s: %s",
+                        failure.getKey(), inventory.getName(), failure.getValue().toString()));
+            }
+        }
+    }
+
+    // Evaluate the autoscaler of every account once per interval, until the process is stopped
+    private static void autoscaleEncodingUnits(boolean apply) throws InterruptedException {
+        List<EncodingUnitAutoscaler> autoscalers = new ArrayList<EncodingUnitAutoscaler>();
+        for (MediaAccountPool.Account account : accounts.getAccounts()) {
+            autoscalers.add(new EncodingUnitAutoscaler(account.getName(),
+                    EncodingUnitAutoscaler.jobQueue(account.getMediaService()),
+                    EncodingUnitAutoscaler.reservedUnits(account.getMediaService(), operations,
+                            TimeUnit.MINUTES.toMillis(operationTimeoutMinutes)))
+                    .setUnitRange(autoscaleMinUnits, autoscaleMaxUnits)
+                    .setDryRun(!apply));
+        }
+
+        println(String.format("Autoscaling the Encoding Reserved Units of %d accounts every %d s%s, press Ctrl+C to stop",
+                autoscalers.size(), autoscaleIntervalSeconds, apply ? "" : " (dry run)"));
+        while (true) {
+            for (int i = 0; i < autoscalers.size(); i++) {
+                try {
+                    autoscalers.get(i).evaluate(System.currentTimeMillis());
+                } catch (ServiceException se) {
+                    println(String.format("Could not autoscale account %s: %s",
+                            accounts.getAccounts().get(i).getName(), se.toString()));
+                }
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(autoscaleIntervalSeconds));
+        }
+    }
+
+    // Evaluate the Streaming Endpoints of every account once per interval, until the process is stopped
+    private static void autoscaleStreamingEndpoints(boolean apply) throws InterruptedException {
+        StreamingEndpointAutoscaler.MetricsSource metrics = StreamingEndpointAutoscaler.file(
+                new File(streamingMetricsFile), TimeUnit.SECONDS.toMillis(streamingMetricsMaxAgeSeconds));
+        List<StreamingEndpointAutoscaler> autoscalers = new ArrayList<StreamingEndpointAutoscaler>();
+        for (MediaAccountPool.Account account : accounts.getAccounts()) {
+            autoscalers.add(new StreamingEndpointAutoscaler(account.getName(), account.getMediaService(), metrics)
+                    .setUnitRange(1, streamingUnitsMax)
+                    .setDryRun(!apply));
+        }
+
+        println(String.format("Autoscaling the Streaming Endpoints of %d accounts every %d s%s, press Ctrl+C to stop",
+                autoscalers.size(), autoscaleIntervalSeconds, apply ? "" : " (dry run)"));
+        while (true) {
+            for (int i = 0; i < autoscalers.size(); i++) {
+                try {
+                    autoscalers.get(i).evaluate(System.currentTimeMillis());
+                } catch (ServiceException | IOException e) {
+                    println(String.format("Could not autoscale the Streaming Endpoints of account %s: %s",
+                            accounts.getAccounts().get(i).getName(), e.toString()));
+                }
+            }
+            Thread.sleep(TimeUnit.SECONDS.toMillis(autoscaleIntervalSeconds));
+        }
+    }
+
+    // Create the Streaming Endpoints of the file, one "name units [cdn [start]]" per line, and wait
+    // for all of them; every operation is tracked by the same poller
+    private static void provisionStreamingEndpoints(File file, final MediaAccountPool.Account account)
+            throws IOException, InterruptedException {
+        final long timeout = TimeUnit.MINUTES.toMillis(operationTimeoutMinutes);
+        List<CompletableFuture<StreamingEndpointInfo>> provisioning = new ArrayList<CompletableFuture<StreamingEndpointInfo>>();
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.forName("UTF-8")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                    continue;
+                }
+                final boolean start = fields.length > 3 && Boolean.parseBoolean(fields[3]);
+                CompletableFuture<StreamingEndpointInfo> endpoint = operations.createStreamingEndpoint(
+                        account.getMediaService(), fields[0], fields.length > 1 ? Integer.parseInt(fields[1]) : 0,
+                        fields.length > 2 && Boolean.parseBoolean(fields[2]), timeout);
+                if (start) {
+                    endpoint = endpoint.thenCompose(created -> operations.startStreamingEndpoint(
+                            account.getMediaService(), created.getId(), timeout));
+                }
+                endpoint.whenComplete((info, failure) -> println(failure == null
+                        ? String.format("%s: %s, %d units, %s", fields[0], info.getState().getCode(),
+                                info.getScaleUnits(), info.getHostName())
+                        : String.format("%s: failed, %s", fields[0], failure.toString())));
+                provisioning.add(endpoint);
+            }
+        } finally {
+            reader.close();
+        }
+
+        println(String.format("Provisioning %d Streaming Endpoints in account %s", provisioning.size(), account.getName()));
+        int failed = 0;
+        for (CompletableFuture<StreamingEndpointInfo> endpoint : provisioning) {
+            try {
+                endpoint.get();
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        println(String.format("%d Streaming Endpoints provisioned, %d failed", provisioning.size() - failed, failed));
+    }
+
+    // Compare the desired state with the inventory of its accounts, print the changes, and apply
+    // them all at once
+    private static void reconcile(File file, boolean apply) throws IOException, InterruptedException {
+        DesiredState desired = DesiredState.read(file);
+        List<MediaAccountPool.Account> selected = new ArrayList<MediaAccountPool.Account>();
+        for (DesiredState.AccountState account : desired.getAccounts()) {
+            selected.add(accounts.get(account.getName()));
+        }
+        InventorySnapshot snapshot = inventoryCollector.collect(selected);
+
+        DesiredStateReconciler reconciler = new DesiredStateReconciler(operations, reconcileConcurrency)
+                .setTimeout(TimeUnit.MINUTES.toMillis(operationTimeoutMinutes));
+        try {
+            List<DesiredStateReconciler.Change> changes = new ArrayList<DesiredStateReconciler.Change>();
+            int skippedAccounts = 0;
+            for (int i = 0; i < selected.size(); i++) {
+                InventorySnapshot.AccountInventory inventory = snapshot.getAccounts().get(i);
+                if (!inventory.getFailures().isEmpty()) {
+                    // Without the complete inventory the diff could create or delete the wrong things
+                    skippedAccounts++;
+                    println(String.format("%s: skipped, could not read the %s", inventory.getName(),
+                            StringUtils.join(inventory.getFailures().keySet(), ", ")));
+                    continue;
+                }
+                DesiredStateReconciler.Plan plan =
+                        reconciler.plan(desired.getAccounts().get(i), selected.get(i), inventory);
+                for (String skipped : plan.getSkipped()) {
+                    println(skipped + " (skipped)");
+                }
+                for (DesiredStateReconciler.Change change : plan.getChanges()) {
+                    println(change.toString());
+                }
+                changes.addAll(plan.getChanges());
+            }
+
+            println(String.format("%d changes in %d accounts (inventory read in %d ms)%s", changes.size(),
+                    selected.size() - skippedAccounts, snapshot.getDurationMillis(),
+                    skippedAccounts > 0 ? String.format(", %d accounts skipped", skippedAccounts) : ""));
+            if (changes.isEmpty()) {
+                return;
+            }
+            if (!apply) {
+                println("Dry run, run again with \"apply\" to make the changes");
+                return;
+            }
+
+            long started = System.currentTimeMillis();
+            int failed = reconciler.apply(changes);
+            println(String.format("%d changes applied, %d failed, in %d s", changes.size() - failed, failed,
+                    TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - started)));
+        } finally {
+            reconciler.close();
+        }
+    }
+
+    // Wait for a tracked operation, printing a dot every few seconds
+    private static <T> T waitFor(CompletableFuture<T> operation) throws Exception {
+        while (true) {
+            try {
+                return operation.get(2, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                print(".");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    // Run the autoscaler against a simulated day of jobs, and compare it with units sized for the peak
+    private static void simulateEncodingUnitAutoscaler() throws ServiceException {
+        long day = TimeUnit.DAYS.toMillis(1);
+        long step = TimeUnit.SECONDS.toMillis(autoscaleIntervalSeconds);
+
+        // The simulated day starts at midnight today, so the printed times match the hourly profile
+        Calendar midnight = Calendar.getInstance();
+        midnight.set(Calendar.HOUR_OF_DAY, 0);
+        midnight.set(Calendar.MINUTE, 0);
+        midnight.set(Calendar.SECOND, 0);
+        midnight.set(Calendar.MILLISECOND, 0);
+        long start = midnight.getTimeInMillis();
+
+        SimulatedEncodingQueue autoscaled = new SimulatedEncodingQueue(SimulatedEncodingQueue.WEEKDAY_PROFILE, 10,
+                new EncodingUnitAutoscaler.Allocation(autoscaleMinUnits, EncodingReservedUnitType.Basic), start, 1);
+        EncodingUnitAutoscaler autoscaler = new EncodingUnitAutoscaler("simulation", autoscaled, autoscaled)
+                .setUnitRange(autoscaleMinUnits, autoscaleMaxUnits);
+        while (autoscaled.getNow() < start + day) {
+            autoscaled.advance(step);
+            autoscaler.evaluate(autoscaled.getNow());
+        }
+
+        EncodingUnitAutoscaler.Allocation peak =
+                new EncodingUnitAutoscaler.Allocation(autoscaleMaxUnits, EncodingReservedUnitType.Premium);
+        SimulatedEncodingQueue fixed = new SimulatedEncodingQueue(SimulatedEncodingQueue.WEEKDAY_PROFILE, 10,
+                peak, start, 1);
+        fixed.advance(day);
+
+        println("Autoscaled: " + autoscaled);
+        println("Fixed " + peak + ": " + fixed);
+    }
+
+    private static MediaAccountPool.Account selectAccount() throws IOException {
+        List<MediaAccountPool.Account> accountList = accounts.getAccounts();
+        if (accountList.size() == 1) {
+            return accountList.get(0);
+        }
+
+        for (int i = 0; i < accountList.size(); i++) {
+            println(String.format("%3d %-24s %s", i + 1, accountList.get(i).getName(),
+                    accountList.get(i).getRestApiEndpoint()));
+        }
+        return accountList.get(inDecimal("Enter the account number", 1, accountList.size()) - 1);
+    }
+
     private static int inDecimal(String message, int min, int max) throws IOException {
         while(true) {
             System.out.print(String.format("%s:", message));
-            BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-            String in = br.readLine().trim();
+            String in = readLine().trim();
             System.out.println();
             int result;
             try {
@@ -212,8 +544,7 @@ public final class Program {
     private static String inString(String message, int limit) throws IOException {
         while(true) {
             System.out.print(String.format("%s%s:", message, limit > 0 ? " (max:" + limit +")": ""));
-            BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-            String in = br.readLine().trim();
+            String in = readLine().trim();
             System.out.println();
             if (limit > 0 && in.length() < limit) {
                 return in;
@@ -226,8 +557,7 @@ public final class Program {
     private static boolean inYesNo(String message, boolean defaultYes) throws IOException {
         while(true) {
             System.out.print(String.format("%s [%s/%s]:", message, defaultYes ? "Y" : "y", defaultYes ? "n" : "N"));
-            BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
-            String in = br.readLine().trim().toUpperCase();
+            String in = readLine().trim().toUpperCase();
             System.out.println();
             if ((defaultYes && in.isEmpty()) || in.equals("YES") || in.equals("Y")) {
                 return true;
@@ -240,6 +570,14 @@ public final class Program {
         }
     }
 
+    private static String readLine() throws IOException {
+        String line = console.readLine();
+        if (line == null) {
+            throw new EOFException("No more input");
+        }
+        return line;
+    }
+
     private static void print(String string) {
         System.out.print(string);
     }
@@ -251,39 +589,4 @@ public final class Program {
     private static void println(String string) {
         System.out.println(string);
     }
-
-    private static Thread spinner = null;
-    public static void startSpinner() {
-        if (spinner != null) {
-            return;
-        }
-        spinner = new Thread(new Runnable() {
-            public void run() {
-                String[] spinner = new String[] {"\u0008/", "\u0008-", "\u0008\\", "\u0008|" };
-                int i = 0;
-                try {
-                    while(true) {
-                        Thread.sleep(150);
-                        System.out.print(String.format("%s", spinner[i++ % spinner.length]));
-                    }
-                } catch (InterruptedException e) {
-                    System.out.print(String.format("%s", "\u0008"));
-                }
-            }
-        });
-        spinner.start();
-    }
-
-    public static void stopSpinner() {
-        if (spinner != null) {
-            spinner.interrupt();
-            try {
-                spinner.join();
-                spinner = null;
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,136 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitType;
+
+/**
+ * A simulated account for trying out an {@link EncodingUnitAutoscaler} without touching Media
+ * Services. Jobs arrive at random following an hourly profile (quiet at night, busy in the
+ * evening), every reserved unit encodes one job at a time, and faster unit types finish jobs
+ * sooner. {@link #advance} moves the simulated clock; the queue keeps the numbers needed to
+ * compare scaling policies: jobs done, waiting times and the unit-hours paid for by type.
+ */
+final class SimulatedEncodingQueue implements EncodingUnitAutoscaler.JobQueue, EncodingUnitAutoscaler.ReservedUnits {
+
+    // Jobs submitted per hour of the day
+    static final double[] WEEKDAY_PROFILE = {
+        2, 1, 1, 1, 1, 2, 4, 8, 12, 14, 14, 12, 10, 12, 14, 16, 20, 30, 45, 50, 40, 20, 8, 4};
+
+    private final double[] arrivalsPerHour;
+    private final long start;
+    private final long jobMinutes;
+    private final Random random;
+    private final Deque<Long> queued = new ArrayDeque<Long>();
+    private final List<Long> running = new ArrayList<Long>();
+    private EncodingUnitAutoscaler.Allocation allocation;
+    private long now;
+
+    private long completed;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private final double[] unitHours = new double[3];
+
+    // jobMinutes is the encoding time of a job on a Premium unit; Standard takes twice and Basic
+    // four times as long. The clock starts at the given time, which is hour 0 of the profile.
+    SimulatedEncodingQueue(double[] arrivalsPerHour, long jobMinutes, EncodingUnitAutoscaler.Allocation initial,
+            long start, long seed) {
+        this.arrivalsPerHour = arrivalsPerHour.clone();
+        this.start = start;
+        this.now = start;
+        this.jobMinutes = jobMinutes;
+        this.allocation = initial;
+        this.random = new Random(seed);
+    }
+
+    // Advance the clock by the step, submitting, starting and completing jobs on the way
+    void advance(long stepMillis) {
+        long end = now + stepMillis;
+        long minute = TimeUnit.MINUTES.toMillis(1);
+        while (now < end) {
+            long step = Math.min(minute, end - now);
+            int hour = (int) (TimeUnit.MILLISECONDS.toHours(now - start) % 24);
+            double expected = arrivalsPerHour[hour] * step / TimeUnit.HOURS.toMillis(1);
+            for (int i = poisson(expected); i > 0; i--) {
+                queued.addLast(now + (long) (random.nextDouble() * step));
+            }
+            now += step;
+
+            for (Iterator<Long> jobs = running.iterator(); jobs.hasNext();) {
+                if (jobs.next() <= now) {
+                    jobs.remove();
+                    completed++;
+                }
+            }
+            while (running.size() < allocation.getUnits() && !queued.isEmpty()) {
+                long wait = Math.max(0, now - queued.removeFirst());
+                totalWaitMillis += wait;
+                maxWaitMillis = Math.max(maxWaitMillis, wait);
+                running.add(now + TimeUnit.MINUTES.toMillis(jobMinutes) * speedFactor(allocation.getType()));
+            }
+            unitHours[EncodingUnitAutoscaler.rank(allocation.getType())] += allocation.getUnits() * (double) step
+                    / TimeUnit.HOURS.toMillis(1);
+        }
+    }
+
+    long getNow() {
+        return now;
+    }
+
+    public EncodingUnitAutoscaler.Demand read(long time) {
+        long waitMillis = 0;
+        for (long submitted : queued) {
+            waitMillis += Math.max(0, time - submitted);
+        }
+        return new EncodingUnitAutoscaler.Demand(queued.size(), running.size(),
+                queued.isEmpty() ? 0 : waitMillis / queued.size());
+    }
+
+    public EncodingUnitAutoscaler.Allocation read() {
+        return allocation;
+    }
+
+    // Takes effect at once; jobs already running on removed units finish first
+    public void apply(EncodingUnitAutoscaler.Allocation allocation) {
+        this.allocation = allocation;
+    }
+
+    @Override
+    public String toString() {
+        long started = completed + running.size();
+        return String.format("%d jobs started, %d waiting; average wait %d min, longest %d min; "
+                + "unit-hours BASIC %.1f, STANDARD %.1f, PREMIUM %.1f",
+                started, queued.size(),
+                started > 0 ? TimeUnit.MILLISECONDS.toMinutes(totalWaitMillis / started) : 0,
+                TimeUnit.MILLISECONDS.toMinutes(maxWaitMillis),
+                unitHours[0], unitHours[1], unitHours[2]);
+    }
+
+    private static long speedFactor(EncodingReservedUnitType type) {
+        switch (type) {
+            case Basic:
+                return 4;
+            case Standard:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private int poisson(double mean) {
+        double limit = Math.exp(-mean);
+        double product = random.nextDouble();
+        int count = 0;
+        while (product > limit) {
+            product *= random.nextDouble();
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,253 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.services.media.MediaContract;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpoint;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpointInfo;
+import com.microsoft.windowsazure.services.media.models.StreamingEndpointState;
+
+/**
+ * Scales the Streaming Units of the Streaming Endpoints of an account from their egress and
+ * concurrent sessions. The metrics come from a {@link MetricsSource}, keyed by the endpoint's host
+ * name (unique across accounts); {@link #file} reads them from a text file written by the
+ * monitoring system.
+ *
+ * Each endpoint needs enough units for its egress and its sessions, plus headroom, between the
+ * minimum and maximum. Spikes are followed at once, after a short cool-down; units are only
+ * removed when the target stayed lower for the whole scale-down cool-down, and then to the highest
+ * target seen in that time. Endpoints that are not running (starting, stopping, scaling, deleting
+ * or stopped), endpoints without Streaming Units and endpoints without fresh metrics are never
+ * scaled. A scale request does not wait for the operation: the endpoint reports the Scaling state
+ * until it completes, and is skipped until then.
+ */
+final class StreamingEndpointAutoscaler {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String name;
+    private final MediaContract mediaService;
+    private final MetricsSource metricsSource;
+    private int minUnits = 1;
+    private int maxUnits = 10;
+    private double egressMbpsPerUnit = 200;
+    private int sessionsPerUnit = 1000;
+    private double headroom = 1.25;
+    private long scaleUpCooldownMillis = TimeUnit.MINUTES.toMillis(5);
+    private long scaleDownCooldownMillis = TimeUnit.MINUTES.toMillis(30);
+    private boolean dryRun;
+
+    // Scaling history by endpoint id
+    private final Map<String, History> histories = new HashMap<String, History>();
+
+    // The name identifies the account in the printed decisions
+    StreamingEndpointAutoscaler(String name, MediaContract mediaService, MetricsSource metricsSource) {
+        this.name = name;
+        this.mediaService = mediaService;
+        this.metricsSource = metricsSource;
+    }
+
+    StreamingEndpointAutoscaler setUnitRange(int minUnits, int maxUnits) {
+        this.minUnits = Math.max(1, minUnits);
+        this.maxUnits = Math.max(this.minUnits, maxUnits);
+        return this;
+    }
+
+    // Capacity of one Streaming Unit
+    StreamingEndpointAutoscaler setUnitCapacity(double egressMbps, int sessions) {
+        this.egressMbpsPerUnit = egressMbps;
+        this.sessionsPerUnit = sessions;
+        return this;
+    }
+
+    // Spare capacity to keep, as a factor of the measured load
+    StreamingEndpointAutoscaler setHeadroom(double headroom) {
+        this.headroom = Math.max(1, headroom);
+        return this;
+    }
+
+    // Minimum time after a change before adding units, and before removing them
+    StreamingEndpointAutoscaler setCooldowns(long scaleUpMillis, long scaleDownMillis) {
+        this.scaleUpCooldownMillis = scaleUpMillis;
+        this.scaleDownCooldownMillis = scaleDownMillis;
+        return this;
+    }
+
+    // Print the decisions without scaling the endpoints
+    StreamingEndpointAutoscaler setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+        return this;
+    }
+
+    // Units needed for the load, before any damping
+    int target(Metrics metrics) {
+        int forEgress = (int) Math.ceil(metrics.getEgressMbps() * headroom / egressMbpsPerUnit);
+        int forSessions = (int) Math.ceil(metrics.getSessions() * headroom / sessionsPerUnit);
+        return Math.max(minUnits, Math.min(maxUnits, Math.max(forEgress, forSessions)));
+    }
+
+    // Evaluate every Streaming Endpoint of the account; returns the number of scale requests sent
+    int evaluate(long now) throws ServiceException, IOException {
+        Map<String, Metrics> metrics = metricsSource.read();
+        int scaled = 0;
+        for (StreamingEndpointInfo endpoint : mediaService.list(StreamingEndpoint.list())) {
+            String hostName = endpoint.getHostName() == null ? "" : endpoint.getHostName().toLowerCase();
+            if (evaluate(endpoint, metrics.get(hostName), now)) {
+                scaled++;
+            }
+        }
+        return scaled;
+    }
+
+    private boolean evaluate(StreamingEndpointInfo endpoint, Metrics metrics, long now) throws ServiceException {
+        History history = histories.get(endpoint.getId());
+        if (history == null) {
+            history = new History();
+            histories.put(endpoint.getId(), history);
+        }
+
+        if (endpoint.getState() != StreamingEndpointState.Running) {
+            // Starting, Stopping, Scaling and Deleting endpoints are in the middle of an operation;
+            // stopped ones serve no traffic. Start over once the endpoint is running again.
+            history.downPeak = 0;
+            if (endpoint.getState() != StreamingEndpointState.Stopped) {
+                log(now, endpoint, "skipped while " + endpoint.getState().getCode());
+            }
+            return false;
+        }
+        if (endpoint.getScaleUnits() == 0 || metrics == null) {
+            // A standard endpoint without Streaming Units, or no data to decide on
+            history.downPeak = 0;
+            return false;
+        }
+
+        int current = endpoint.getScaleUnits();
+        int target = target(metrics);
+        int next = current;
+        if (target > current) {
+            history.downPeak = 0;
+            if (now - history.lastChangeAt >= scaleUpCooldownMillis) {
+                next = target;
+            }
+        } else if (target < current) {
+            if (history.downPeak == 0) {
+                history.downSince = now;
+            }
+            history.downPeak = Math.max(history.downPeak, target);
+            if (now - history.downSince >= scaleDownCooldownMillis
+                    && now - history.lastChangeAt >= scaleDownCooldownMillis) {
+                next = history.downPeak;
+            }
+        } else {
+            history.downPeak = 0;
+        }
+
+        if (next == current) {
+            return false;
+        }
+        history.lastChangeAt = now;
+        history.downPeak = 0;
+        log(now, endpoint, String.format("%s %d -> %d Streaming Units (%s)",
+                dryRun ? "dry run, would scale" : "scaling", current, next, metrics));
+        if (!dryRun) {
+            mediaService.action(StreamingEndpoint.scale(endpoint.getId(), next));
+        }
+        return true;
+    }
+
+    private void log(long now, StreamingEndpointInfo endpoint, String message) {
+        System.out.println(String.format("%tF %<tT %s/%s: %s", new Date(now), name, endpoint.getName(), message));
+    }
+
+    // Metrics from a file with one "hostName egressMbps sessions" line per endpoint. The file is
+    // read on every evaluation; when it is older than the maximum age, it is ignored, so that a
+    // stalled exporter cannot make the endpoints scale down.
+    static MetricsSource file(final File file, final long maxAgeMillis) {
+        return new MetricsSource() {
+            public Map<String, Metrics> read() throws IOException {
+                if (!file.exists()) {
+                    System.out.println("No streaming metrics file " + file);
+                    return Collections.emptyMap();
+                }
+                long age = System.currentTimeMillis() - file.lastModified();
+                if (age > maxAgeMillis) {
+                    System.out.println(String.format("Ignoring streaming metrics %s, last updated %d s ago",
+                            file, TimeUnit.MILLISECONDS.toSeconds(age)));
+                    return Collections.emptyMap();
+                }
+
+                Map<String, Metrics> metrics = new HashMap<String, Metrics>();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+                try {
+                    String line;
+                    int number = 0;
+                    while ((line = reader.readLine()) != null) {
+                        number++;
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) {
+                            continue;
+                        }
+                        String[] fields = line.split("\\s+");
+                        if (fields.length != 3) {
+                            throw new IOException(String.format(
+                                    "%s:%d: expected host name, egress in Mbps and concurrent sessions", file, number));
+                        }
+                        metrics.put(fields[0].toLowerCase(), new Metrics(
+                                Double.parseDouble(fields[1]), Integer.parseInt(fields[2])));
+                    }
+                } finally {
+                    reader.close();
+                }
+                return metrics;
+            }
+        };
+    }
+
+    // Source of the current load of the endpoints, by host name
+    interface MetricsSource {
+        Map<String, Metrics> read() throws IOException;
+    }
+
+    // Load of one Streaming Endpoint
+    static final class Metrics {
+        private final double egressMbps;
+        private final int sessions;
+
+        Metrics(double egressMbps, int sessions) {
+            this.egressMbps = egressMbps;
+            this.sessions = sessions;
+        }
+
+        double getEgressMbps() {
+            return egressMbps;
+        }
+
+        // Concurrent streaming sessions
+        int getSessions() {
+            return sessions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f Mbps egress, %d sessions", egressMbps, sessions);
+        }
+    }
+
+    private static final class History {
+        private long lastChangeAt = Long.MIN_VALUE / 2;
+        // Highest target since the target dropped below the current units, or 0
+        private int downPeak;
+        private long downSince;
+    }
+}
@@ -0,0 +1,49 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the request rate to one Media Services account. Permits are added at a steady rate up to
+ * a burst capacity; a caller that finds the bucket empty reserves the next permit and sleeps until
+ * it is due, so waiting callers are served in order without holding the lock while they wait.
+ */
+final class TokenBucket {
+
+    private final double permitsPerNano;
+    private final double capacity;
+    private double permits;
+    private long refilledAt;
+
+    TokenBucket(double permitsPerSecond, int burst) {
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, burst);
+        this.permits = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    // Wait for a permit; returns the time waited in nanoseconds
+    long acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            permits -= 1;
+            waitNanos = permits < 0 ? (long) Math.ceil(-permits / permitsPerNano) : 0;
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return waitNanos;
+    }
+
+    // Permits available now; negative when callers are waiting
+    synchronized double available() {
+        refill(System.nanoTime());
+        return permits;
+    }
+
+    private void refill(long now) {
+        permits = Math.min(capacity, permits + (now - refilledAt) * permitsPerNano);
+        refilledAt = now;
+    }
+}
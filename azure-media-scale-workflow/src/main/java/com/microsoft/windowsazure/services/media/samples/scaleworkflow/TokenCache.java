@@ -0,0 +1,166 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Date;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.microsoft.windowsazure.core.utils.Base64;
+import com.microsoft.windowsazure.services.media.authentication.AzureAdAccessToken;
+
+/**
+ * Keeps Azure AD access tokens on disk between runs, so a short-lived command reuses the token of
+ * the previous run instead of calling Azure AD on startup. Entries are keyed by tenant, client id
+ * and resource, and each one is stored in its own file, encrypted with AES-GCM under a random key
+ * that is created next to the cache on first use and readable only by its owner (where the file
+ * system supports POSIX permissions).
+ *
+ * Files are replaced atomically, so concurrent runs never read a partially written entry; an
+ * entry that cannot be read or decrypted is treated as missing.
+ */
+final class TokenCache {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final int KEY_SIZE = 32;
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+
+    private final File directory;
+    private final SecureRandom random = new SecureRandom();
+    private SecretKeySpec key;
+
+    TokenCache(File directory) {
+        this.directory = directory;
+    }
+
+    // The default cache in the user's home directory
+    static TokenCache inUserHome() {
+        return new TokenCache(new File(System.getProperty("user.home"), ".azure-media" + File.separator + "tokens"));
+    }
+
+    // The cache key of a principal (client id, or user name) in a tenant for a resource
+    static String key(String tenant, String clientId, String resource) {
+        return tenant.toLowerCase() + "|" + clientId.toLowerCase() + "|" + resource.toLowerCase();
+    }
+
+    // Get the cached token, or null if there is none
+    AzureAdAccessToken get(String cacheKey) {
+        File file = fileFor(cacheKey);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            String[] record = new String(Files.readAllBytes(file.toPath()), UTF8).trim().split(" ");
+            if (record.length != 2) {
+                return null;
+            }
+
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(TAG_BITS, Base64.decode(record[0])));
+            cipher.updateAAD(cacheKey.getBytes(UTF8));
+            String[] token = new String(cipher.doFinal(Base64.decode(record[1])), UTF8).split("\n", 2);
+
+            return new AzureAdAccessToken(token[1], new Date(Long.parseLong(token[0])));
+        } catch (Exception e) {
+            System.out.println("Ignoring unreadable token cache entry: " + e.toString());
+            return null;
+        }
+    }
+
+    // Store the token; failures are reported but do not affect the caller
+    void put(String cacheKey, AzureAdAccessToken token) {
+        try {
+            byte[] iv = new byte[IV_SIZE];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, getKey(), new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(cacheKey.getBytes(UTF8));
+            byte[] encrypted = cipher.doFinal(
+                    (token.getExpiresOnDate().getTime() + "\n" + token.getAccessToken()).getBytes(UTF8));
+
+            Path temporary = writePrivateFile((Base64.encode(iv) + " " + Base64.encode(encrypted)).getBytes(UTF8));
+            Files.move(temporary, fileFor(cacheKey).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.out.println("Could not update the token cache: " + e.toString());
+        }
+    }
+
+    private File fileFor(String cacheKey) {
+        return new File(directory, sha256(cacheKey) + ".token");
+    }
+
+    // Read the cache key, creating it on first use
+    private synchronized SecretKeySpec getKey() throws IOException, GeneralSecurityException {
+        if (key != null) {
+            return key;
+        }
+        directory.mkdirs();
+        Path keyFile = new File(directory, "cache.key").toPath();
+        if (!Files.exists(keyFile)) {
+            byte[] bytes = new byte[KEY_SIZE];
+            random.nextBytes(bytes);
+            Path temporary = writePrivateFile(Base64.encode(bytes).getBytes(UTF8));
+            try {
+                Files.move(temporary, keyFile);
+            } catch (FileAlreadyExistsException e) {
+                // Another run created the key first
+                Files.delete(temporary);
+            }
+        }
+
+        byte[] bytes = Base64.decode(new String(Files.readAllBytes(keyFile), UTF8).trim());
+        if (bytes.length != KEY_SIZE) {
+            throw new GeneralSecurityException("Invalid token cache key " + keyFile);
+        }
+        key = new SecretKeySpec(bytes, "AES");
+        return key;
+    }
+
+    // Write the data to a new temporary file in the cache that only the owner can read and write;
+    // it is then moved into place, so readers never see a partially written file
+    private Path writePrivateFile(byte[] data) throws IOException {
+        directory.mkdirs();
+        Path path;
+        try {
+            path = Files.createTempFile(directory.toPath(), "token", ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            path = Files.createTempFile(directory.toPath(), "token", ".tmp");
+            File file = path.toFile();
+            file.setReadable(false, false);
+            file.setReadable(true, true);
+            file.setWritable(false, false);
+            file.setWritable(true, true);
+        }
+        Files.write(path, data);
+        return path;
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(UTF8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
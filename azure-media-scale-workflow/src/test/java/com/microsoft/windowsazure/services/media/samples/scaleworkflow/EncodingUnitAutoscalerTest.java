@@ -0,0 +1,139 @@
+package com.microsoft.windowsazure.services.media.samples.scaleworkflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.microsoft.windowsazure.services.media.models.EncodingReservedUnitType;
+
+public class EncodingUnitAutoscalerTest {
+
+    private static final long START = TimeUnit.DAYS.toMillis(1);
+    private static final long UP_COOLDOWN = 1000;
+    private static final long DOWN_COOLDOWN = 5000;
+
+    private EncodingUnitAutoscaler.Demand demand;
+    private EncodingUnitAutoscaler.Allocation current;
+    private final List<EncodingUnitAutoscaler.Allocation> applied = new ArrayList<EncodingUnitAutoscaler.Allocation>();
+    private EncodingUnitAutoscaler autoscaler;
+
+    @Before
+    public void createAutoscaler() {
+        autoscaler = new EncodingUnitAutoscaler("test", now -> demand,
+                new EncodingUnitAutoscaler.ReservedUnits() {
+                    public EncodingUnitAutoscaler.Allocation read() {
+                        return current;
+                    }
+
+                    public void apply(EncodingUnitAutoscaler.Allocation allocation) {
+                        applied.add(allocation);
+                        current = allocation;
+                    }
+                })
+                .setUnitRange(1, 10)
+                .setPremiumWait(TimeUnit.MINUTES.toMillis(10))
+                .setEvaluations(2, 3)
+                .setScaleDownStep(2)
+                .setCooldowns(UP_COOLDOWN, DOWN_COOLDOWN);
+    }
+
+    @Test
+    public void targetsOneUnitPerJobWithTheTypeOfTheQueue() {
+        assertEquals(allocation(1, EncodingReservedUnitType.Basic),
+                autoscaler.target(new EncodingUnitAutoscaler.Demand(0, 0, 0)));
+        assertEquals(standard(4), autoscaler.target(new EncodingUnitAutoscaler.Demand(3, 1, 0)));
+        assertEquals(premium(4), autoscaler.target(new EncodingUnitAutoscaler.Demand(3, 1,
+                TimeUnit.MINUTES.toMillis(11))));
+        assertEquals(premium(10), autoscaler.target(new EncodingUnitAutoscaler.Demand(15, 2, 0)));
+    }
+
+    @Test
+    public void scalesUpOnlyAfterConsecutiveEvaluations() throws Exception {
+        current = standard(1);
+        demand = new EncodingUnitAutoscaler.Demand(4, 0, 0);
+
+        assertNull(autoscaler.evaluate(START));
+        assertEquals(standard(4), autoscaler.evaluate(START + 100));
+        assertEquals(1, applied.size());
+    }
+
+    @Test
+    public void aSpikeThatDropsDoesNotScaleUp() throws Exception {
+        current = standard(1);
+        demand = new EncodingUnitAutoscaler.Demand(4, 0, 0);
+        assertNull(autoscaler.evaluate(START));
+
+        demand = new EncodingUnitAutoscaler.Demand(0, 1, 0);
+        assertNull(autoscaler.evaluate(START + 100));
+
+        demand = new EncodingUnitAutoscaler.Demand(4, 0, 0);
+        assertNull(autoscaler.evaluate(START + 200));
+        assertEquals(0, applied.size());
+    }
+
+    @Test
+    public void scalesDownToTheHighestTargetOfTheQuietPeriod() throws Exception {
+        current = standard(8);
+
+        demand = new EncodingUnitAutoscaler.Demand(0, 3, 0);
+        assertNull(autoscaler.evaluate(START));
+        demand = new EncodingUnitAutoscaler.Demand(0, 5, 0);
+        assertNull(autoscaler.evaluate(START + 100));
+        demand = new EncodingUnitAutoscaler.Demand(0, 2, 0);
+        assertEquals(standard(5), autoscaler.evaluate(START + 200));
+    }
+
+    @Test
+    public void waitsForTheCooldownBeforeScalingDown() throws Exception {
+        current = standard(1);
+        demand = new EncodingUnitAutoscaler.Demand(8, 0, 0);
+        autoscaler.evaluate(START);
+        assertEquals(standard(8), autoscaler.evaluate(START + 100));
+
+        demand = new EncodingUnitAutoscaler.Demand(0, 2, 0);
+        assertNull(autoscaler.evaluate(START + 1000));
+        assertNull(autoscaler.evaluate(START + 2000));
+        assertNull(autoscaler.evaluate(START + 3000));
+        assertEquals(standard(2), autoscaler.evaluate(START + 100 + DOWN_COOLDOWN));
+    }
+
+    @Test
+    public void aSmallDecreaseOnlyChangesTheType() throws Exception {
+        current = premium(5);
+        demand = new EncodingUnitAutoscaler.Demand(4, 0, 0);
+
+        assertNull(autoscaler.evaluate(START));
+        assertNull(autoscaler.evaluate(START + 100));
+        assertEquals(standard(5), autoscaler.evaluate(START + 200));
+    }
+
+    @Test
+    public void aDryRunDoesNotScale() throws Exception {
+        autoscaler.setDryRun(true);
+        current = standard(1);
+        demand = new EncodingUnitAutoscaler.Demand(4, 0, 0);
+
+        autoscaler.evaluate(START);
+        assertEquals(standard(4), autoscaler.evaluate(START + 100));
+        assertEquals(0, applied.size());
+        assertEquals(standard(1), current);
+    }
+
+    private static EncodingUnitAutoscaler.Allocation standard(int units) {
+        return allocation(units, EncodingReservedUnitType.Standard);
+    }
+
+    private static EncodingUnitAutoscaler.Allocation premium(int units) {
+        return allocation(units, EncodingReservedUnitType.Premium);
+    }
+
+    private static EncodingUnitAutoscaler.Allocation allocation(int units, EncodingReservedUnitType type) {
+        return new EncodingUnitAutoscaler.Allocation(units, type);
+    }
+}